@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+public interface AgreementService
+{
+    /**
+     * Calculate the agreement between all annotators of the given project over all documents of
+     * the project.
+     * <p>
+     * If the measure is an
+     * {@link de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AggregatableAgreementMeasure},
+     * the results for the individual documents are remembered and only the documents which have
+     * changed since the last calculation are processed again.
+     * 
+     * @param aProject
+     *            the project. It must have at least one annotator and one document.
+     * @param aMeasure
+     *            the agreement measure.
+     * @return the agreement result.
+     * @throws IOException
+     *             if the annotations could not be loaded.
+     */
+    <R extends Serializable> R getAgreement(Project aProject, AgreementMeasure<R> aMeasure)
+        throws IOException;
+
+    /**
+     * Calculate the agreement like {@link #getAgreement} in the background. For coding measures,
+     * the task also generates a CSV report on the data the agreement was calculated on. If a task
+     * calculating the same measure on the same project is already queued or running, the handle
+     * of that task is returned instead of starting a new one.
+     * 
+     * @param aProject
+     *            the project. It must have at least one annotator and one document.
+     * @param aMeasure
+     *            the agreement measure.
+     * @param aUsername
+     *            the user starting the task.
+     * @return the handle to access the task.
+     */
+    AgreementTaskHandle startAgreementTask(Project aProject, AgreementMeasure<?> aMeasure,
+            String aUsername);
+
+    /**
+     * @return the monitor of the given task or {@code null} if the task does not exist (anymore).
+     */
+    AgreementTaskMonitor getTaskMonitor(AgreementTaskHandle aHandle);
+
+    boolean cancelTask(AgreementTaskHandle aHandle);
+}
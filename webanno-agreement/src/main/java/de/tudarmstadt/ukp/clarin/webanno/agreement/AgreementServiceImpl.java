@@ -0,0 +1,574 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement;
+
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.RUNNING;
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel.ANNOTATOR;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.fit.util.FSUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AggregatableAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementMeasure_ImplBase;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AnnotationStateChangeEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeProjectRemovedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasRestoredFromHistoryEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasWriteValidationFailedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.DocumentStateChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+
+/**
+ * Calculates agreement over a project from the agreement over its individual documents. The
+ * results for the individual documents are kept in memory and are discarded when a document
+ * changes. Thus, re-calculating the agreement after a change only requires loading the annotations
+ * of the changed documents.
+ */
+@Component
+public class AgreementServiceImpl
+    implements AgreementService, DisposableBean
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // The results of a project are weighed by the number of document results they hold
+    private static final long MAX_CACHED_DOCUMENT_RESULTS = 10_000;
+
+    private final DocumentService documentService;
+    private final ProjectService projectService;
+
+    private final Cache<Long, ProjectResults> projectResultsCache;
+
+    private final Map<AgreementTaskHandle, TaskInfo> tasks = new ConcurrentHashMap<>();
+    private final ExecutorService taskExecutorService;
+    private final ScheduledExecutorService cleaningScheduler;
+
+    @Autowired
+    public AgreementServiceImpl(DocumentService aDocumentService, ProjectService aProjectService)
+    {
+        documentService = aDocumentService;
+        projectService = aProjectService;
+
+        projectResultsCache = Caffeine.newBuilder().expireAfterAccess(30, MINUTES)
+                .maximumWeight(MAX_CACHED_DOCUMENT_RESULTS)
+                .weigher((Long id, ProjectResults results) -> results.getWeight()).build();
+
+        // Each task holds the CASes of one document at a time, so we keep the number of tasks
+        // running in parallel low and queue the rest.
+        taskExecutorService = Executors.newFixedThreadPool(2);
+
+        cleaningScheduler = Executors.newScheduledThreadPool(1);
+        cleaningScheduler.scheduleAtFixedRate(this::cleanUp, 15, 15, MINUTES);
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        taskExecutorService.shutdownNow();
+        cleaningScheduler.shutdownNow();
+
+        // The reports are temporary files which are of no use after a restart
+        for (TaskInfo task : tasks.values()) {
+            deleteReport(task.task.getMonitor());
+        }
+        tasks.clear();
+    }
+
+    @Override
+    public <R extends Serializable> R getAgreement(Project aProject, AgreementMeasure<R> aMeasure)
+        throws IOException
+    {
+        try {
+            return calculateAgreement(aProject, aMeasure, null, 0, 0);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Agreement calculation was interrupted");
+        }
+    }
+
+    /**
+     * @param aMonitor
+     *            a monitor to report the progress to or {@code null}.
+     * @param aProgressFrom
+     *            the progress to report when starting.
+     * @param aProgressTo
+     *            the progress to report when done.
+     */
+    @SuppressWarnings("unchecked")
+    <R extends Serializable> R calculateAgreement(Project aProject, AgreementMeasure<R> aMeasure,
+            AgreementTaskMonitor aMonitor, int aProgressFrom, int aProgressTo)
+        throws IOException, InterruptedException
+    {
+        List<String> users = projectService.listProjectUsersWithPermissions(aProject, ANNOTATOR)
+                .stream().map(User::getUsername).collect(toList());
+        List<SourceDocument> documents = documentService.listSourceDocuments(aProject);
+        boolean limitToFinished = aMeasure.getTraits().isLimitToFinishedDocuments();
+
+        if (!(aMeasure instanceof AggregatableAgreementMeasure)) {
+            // Measures which cannot be aggregated need the CASes of all documents at once
+            Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+            users.forEach(user -> casMap.put(user, new ArrayList<>()));
+            try (CasStorageSession session = CasStorageSession.openNested()) {
+                for (int i = 0; i < documents.size(); i++) {
+                    checkInterrupted();
+                    Map<String, CAS> cases = readCases(documents.get(i), users, limitToFinished);
+                    users.forEach(user -> casMap.get(user).add(cases.get(user)));
+                    reportProgress(aMonitor, aProgressFrom, aProgressTo, i + 1, documents.size());
+                }
+                return aMeasure.getAgreement(casMap);
+            }
+        }
+
+        AggregatableAgreementMeasure<R> measure = (AggregatableAgreementMeasure<R>) aMeasure;
+
+        ProjectResults projectResults = getProjectResults(aProject, users, documents);
+        Map<Long, DocumentResult> measureResults = projectResults.getMeasureResults(measure);
+
+        List<R> documentResults = new ArrayList<>();
+        int calculated = 0;
+        for (int i = 0; i < documents.size(); i++) {
+            checkInterrupted();
+            SourceDocument document = documents.get(i);
+            DocumentResult cached = measureResults.get(document.getId());
+            R documentResult;
+            if (cached != null && cached.documentIndex == i) {
+                documentResult = (R) cached.result;
+            }
+            else {
+                int version = projectResults.getVersion(document.getId());
+                // Only the CASes of the current document are held in the session at any time
+                try (CasStorageSession session = CasStorageSession.openNested()) {
+                    documentResult = measure
+                            .getDocumentAgreement(readCases(document, users, limitToFinished), i);
+                }
+                projectResults.putResult(measureResults, document.getId(), version,
+                        new DocumentResult(i, documentResult));
+                calculated++;
+            }
+            documentResults.add(documentResult);
+            reportProgress(aMonitor, aProgressFrom, aProgressTo, i + 1, documents.size());
+        }
+
+        log.debug("Calculated agreement on {} of {} documents in project {}", calculated,
+                documents.size(), aProject);
+
+        // Weigh the results again now that they hold the results of the documents - unless the
+        // results have been discarded in the meantime
+        projectResultsCache.asMap().replace(aProject.getId(), projectResults, projectResults);
+
+        return measure.aggregate(documentResults);
+    }
+
+    /**
+     * Generate the CSV report on the data the agreement of the given measure is calculated on. The
+     * annotations are loaded one document at a time.
+     * 
+     * @return a temporary file containing the report.
+     */
+    File generateReport(Project aProject, CodingAgreementMeasure_ImplBase<?> aMeasure,
+            AgreementTaskMonitor aMonitor, int aProgressFrom, int aProgressTo)
+        throws IOException, InterruptedException
+    {
+        List<String> users = projectService.listProjectUsersWithPermissions(aProject, ANNOTATOR)
+                .stream().map(User::getUsername).collect(toList());
+        List<SourceDocument> documents = documentService.listSourceDocuments(aProject);
+        boolean limitToFinished = aMeasure.getTraits().isLimitToFinishedDocuments();
+
+        List<CodingAgreementResult> documentData = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            checkInterrupted();
+            try (CasStorageSession session = CasStorageSession.openNested()) {
+                documentData.add(aMeasure.getDocumentReportData(
+                        readCases(documents.get(i), users, limitToFinished), i));
+            }
+            reportProgress(aMonitor, aProgressFrom, aProgressTo, i + 1, documents.size());
+        }
+
+        File report = File.createTempFile("agreement", ".csv");
+        try (InputStream is = AgreementUtils
+                .generateCsvReport(aMeasure.aggregateReportData(documentData))) {
+            Files.copy(is, report.toPath(), REPLACE_EXISTING);
+        }
+        return report;
+    }
+
+    private static void checkInterrupted() throws InterruptedException
+    {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static void reportProgress(AgreementTaskMonitor aMonitor, int aProgressFrom,
+            int aProgressTo, int aDone, int aTotal)
+    {
+        if (aMonitor != null) {
+            aMonitor.setProgress(aProgressFrom + (aProgressTo - aProgressFrom) * aDone / aTotal);
+        }
+    }
+
+    private Map<String, CAS> readCases(SourceDocument aDocument, List<String> aUsers,
+            boolean aLimitToFinishedDocuments)
+        throws IOException
+    {
+        Map<String, AnnotationDocument> annotationDocuments = documentService
+                .listAnnotationDocuments(aDocument).stream()
+                .collect(toMap(AnnotationDocument::getUser, identity(), (a, b) -> a));
+
+        Map<String, CAS> cases = new LinkedHashMap<>();
+        for (String user : aUsers) {
+            AnnotationDocument annotationDocument = annotationDocuments.get(user);
+            if (aLimitToFinishedDocuments && annotationDocument != null
+                    && !annotationDocument.getState().equals(FINISHED)) {
+                // Add a skip marker (null) for the current CAS
+                cases.put(user, null);
+                continue;
+            }
+
+            // Reads the user's annotation document or the initial source document - depending on
+            // what is available
+            CAS cas = documentService.readAnnotationCas(aDocument, user, AUTO_CAS_UPGRADE,
+                    SHARED_READ_ONLY_ACCESS);
+
+            // Set the CAS name in the DocumentMetaData so that we can pick it up in the Diff
+            // position for the purpose of debugging / transparency.
+            FeatureStructure dmd = WebAnnoCasUtil.getDocumentMetadata(cas);
+            FSUtil.setFeature(dmd, "documentId", aDocument.getName());
+            FSUtil.setFeature(dmd, "collectionId", aDocument.getProject().getName());
+
+            cases.put(user, cas);
+        }
+
+        return cases;
+    }
+
+    private ProjectResults getProjectResults(Project aProject, List<String> aUsers,
+            List<SourceDocument> aDocuments)
+    {
+        Set<Long> documentIds = aDocuments.stream().map(SourceDocument::getId)
+                .collect(toSet());
+
+        // The results for the individual documents depend on the set of annotators, so they
+        // cannot be re-used if it changes. The results of documents which have been removed from
+        // the project are dropped.
+        return projectResultsCache.asMap().compute(aProject.getId(), (id, results) -> {
+            if (results != null && results.users.equals(aUsers)) {
+                results.retainDocuments(documentIds);
+                return results;
+            }
+            return new ProjectResults(aUsers);
+        });
+    }
+
+    @Override
+    public synchronized AgreementTaskHandle startAgreementTask(Project aProject,
+            AgreementMeasure<?> aMeasure, String aUsername)
+    {
+        String measureKey = getMeasureKey(aMeasure);
+
+        // If the same agreement is already being calculated, join that task instead of queuing
+        // another one which would do the same work
+        for (Entry<AgreementTaskHandle, TaskInfo> e : tasks.entrySet()) {
+            TaskInfo info = e.getValue();
+            if (info.task.getProject().getId().equals(aProject.getId())
+                    && info.measureKey.equals(measureKey)
+                    && asList(NOT_STARTED, RUNNING).contains(info.task.getMonitor().getState())
+                    && !info.future.isDone()) {
+                log.debug("Joining running agreement task for project [{}]", aProject.getName());
+                return e.getKey();
+            }
+        }
+
+        AgreementTaskHandle handle = new AgreementTaskHandle();
+        AgreementTaskMonitor monitor = new AgreementTaskMonitor();
+        AgreementTask task = new AgreementTask(handle, monitor, this, aProject, aMeasure,
+                aUsername);
+
+        tasks.put(handle, new TaskInfo(taskExecutorService.submit(task), task, measureKey));
+
+        return handle;
+    }
+
+    @Override
+    public AgreementTaskMonitor getTaskMonitor(AgreementTaskHandle aHandle)
+    {
+        TaskInfo task = tasks.get(aHandle);
+
+        if (task == null) {
+            return null;
+        }
+
+        return task.task.getMonitor();
+    }
+
+    @Override
+    public boolean cancelTask(AgreementTaskHandle aHandle)
+    {
+        TaskInfo task = tasks.get(aHandle);
+
+        if (task == null) {
+            return false;
+        }
+
+        task.future.cancel(true);
+
+        // A task which was cancelled before it started never runs and never updates its monitor
+        if (task.task.getMonitor().getState() == NOT_STARTED) {
+            task.task.getMonitor().setStateAndProgress(CANCELLED, 100);
+        }
+
+        return true;
+    }
+
+    private void cleanUp()
+    {
+        for (Entry<AgreementTaskHandle, TaskInfo> e : tasks.entrySet()) {
+            AgreementTaskMonitor monitor = e.getValue().task.getMonitor();
+
+            // Do not clean up running tasks or tasks that have not started yet
+            if (asList(NOT_STARTED, RUNNING).contains(monitor.getState())) {
+                continue;
+            }
+
+            // Remove task info from the tasks map one hour after completion/failure/etc.
+            long age = System.currentTimeMillis() - monitor.getEndTime();
+            if (age > Duration.ofHours(1).toMillis()) {
+                log.info("Cleaning up stale agreement task for project [{}]:",
+                        e.getValue().task.getProject().getName());
+                tasks.remove(e.getKey());
+                deleteReport(monitor);
+            }
+        }
+    }
+
+    private void deleteReport(AgreementTaskMonitor aMonitor)
+    {
+        File report = aMonitor.getReport();
+        if (report != null && report.exists() && !report.delete()) {
+            log.error("Unable to clean up stale agreement report [{}]", report);
+        }
+    }
+
+    /**
+     * @return a key identifying the measure, the feature and the configuration of the measure.
+     */
+    private static String getMeasureKey(AgreementMeasure<?> aMeasure)
+    {
+        // The traits do not implement equals/hashCode, so we compare them in their serialized
+        // form
+        return aMeasure.getClass().getName() + "|" + aMeasure.getFeature().getId() + "|"
+                + Base64.getEncoder()
+                        .encodeToString(SerializationUtils.serialize(aMeasure.getTraits()));
+    }
+
+    private void invalidate(SourceDocument aDocument)
+    {
+        ProjectResults projectResults = projectResultsCache
+                .getIfPresent(aDocument.getProject().getId());
+        if (projectResults != null) {
+            projectResults.invalidate(aDocument.getId());
+        }
+    }
+
+    @EventListener
+    public void onAfterCasWritten(AfterCasWrittenEvent aEvent)
+    {
+        invalidate(aEvent.getDocument().getDocument());
+    }
+
+    @EventListener
+    public void onCasRestoredFromHistory(CasRestoredFromHistoryEvent aEvent)
+    {
+        invalidate(aEvent.getDocument());
+    }
+
+    @EventListener
+    public void onCasWriteValidationFailed(CasWriteValidationFailedEvent aEvent)
+    {
+        // The CAS file has been replaced by its previous version
+        if (aEvent.isRestored()) {
+            invalidate(aEvent.getDocument());
+        }
+    }
+
+    @EventListener
+    public void onDocumentStateChanged(DocumentStateChangedEvent aEvent)
+    {
+        invalidate(aEvent.getDocument());
+    }
+
+    @EventListener
+    public void onAnnotationStateChanged(AnnotationStateChangeEvent aEvent)
+    {
+        // Relevant when the agreement is limited to finished documents
+        invalidate(aEvent.getDocument());
+    }
+
+    @EventListener
+    public void onLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
+    {
+        projectResultsCache.invalidate(aEvent.getProject().getId());
+    }
+
+    @EventListener
+    public void onBeforeProjectRemoved(BeforeProjectRemovedEvent aEvent)
+    {
+        projectResultsCache.invalidate(aEvent.getProject().getId());
+    }
+
+    private static class TaskInfo
+    {
+        private final Future<?> future;
+        private final AgreementTask task;
+        private final String measureKey;
+
+        public TaskInfo(Future<?> aFuture, AgreementTask aTask, String aMeasureKey)
+        {
+            future = aFuture;
+            task = aTask;
+            measureKey = aMeasureKey;
+        }
+    }
+
+    /**
+     * The result for a single document. The positions in the result refer to the index of the
+     * document in the project at the time the result was calculated, so the result can only be
+     * re-used as long as the document remains at that index.
+     */
+    private static class DocumentResult
+    {
+        private final int documentIndex;
+        private final Serializable result;
+
+        public DocumentResult(int aDocumentIndex, Serializable aResult)
+        {
+            documentIndex = aDocumentIndex;
+            result = aResult;
+        }
+    }
+
+    private static class ProjectResults
+    {
+        private final List<String> users;
+
+        // Measure configuration -> document ID -> result
+        private final Map<String, Map<Long, DocumentResult>> results = new ConcurrentHashMap<>();
+
+        // Incremented whenever a document changes
+        private final Map<Long, Integer> versions = new ConcurrentHashMap<>();
+
+        public ProjectResults(List<String> aUsers)
+        {
+            users = aUsers;
+        }
+
+        public int getWeight()
+        {
+            return 1 + results.values().stream().mapToInt(Map::size).sum();
+        }
+
+        public Map<Long, DocumentResult> getMeasureResults(AgreementMeasure<?> aMeasure)
+        {
+            return results.computeIfAbsent(getMeasureKey(aMeasure),
+                    k -> new ConcurrentHashMap<>());
+        }
+
+        public int getVersion(long aDocumentId)
+        {
+            return versions.getOrDefault(aDocumentId, 0);
+        }
+
+        public void putResult(Map<Long, DocumentResult> aMeasureResults, long aDocumentId,
+                int aVersion, DocumentResult aResult)
+        {
+            aMeasureResults.put(aDocumentId, aResult);
+
+            // If the document changed while the result was being calculated, the result may be
+            // stale. The check must happen after the put because the invalidation increments the
+            // version before removing the results.
+            if (getVersion(aDocumentId) != aVersion) {
+                aMeasureResults.remove(aDocumentId, aResult);
+            }
+        }
+
+        public void invalidate(long aDocumentId)
+        {
+            versions.merge(aDocumentId, 1, Integer::sum);
+            results.values().forEach(measureResults -> measureResults.remove(aDocumentId));
+        }
+
+        public void retainDocuments(Set<Long> aDocumentIds)
+        {
+            results.values()
+                    .forEach(measureResults -> measureResults.keySet().retainAll(aDocumentIds));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement;
+
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.COMPLETED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.FAILED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.RUNNING;
+
+import java.io.Serializable;
+import java.nio.channels.ClosedByInterruptException;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementMeasure_ImplBase;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.Logging;
+
+class AgreementTask
+    implements Runnable
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    // The task needs to hold on to the handle because it is used as the key of the task in
+    // AgreementServiceImpl.
+    private final AgreementTaskHandle handle;
+    private final AgreementTaskMonitor monitor;
+    private final AgreementServiceImpl agreementService;
+    private final Project project;
+    private final AgreementMeasure<?> measure;
+    private final String username;
+
+    public AgreementTask(AgreementTaskHandle aHandle, AgreementTaskMonitor aMonitor,
+            AgreementServiceImpl aAgreementService, Project aProject, AgreementMeasure<?> aMeasure,
+            String aUsername)
+    {
+        handle = aHandle;
+        monitor = aMonitor;
+        agreementService = aAgreementService;
+        project = aProject;
+        measure = aMeasure;
+        username = aUsername;
+
+        monitor.setCreateTime(System.currentTimeMillis());
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            // We are in a new thread. Set up thread-specific MDC
+            Logging.setMDC(project.getId(), username);
+
+            monitor.setState(RUNNING);
+
+            // If there is a report to generate, the agreement accounts for the first half of the
+            // progress and the report for the second half.
+            boolean withReport = measure instanceof CodingAgreementMeasure_ImplBase;
+
+            Serializable result = agreementService.calculateAgreement(project, measure, monitor, 0,
+                    withReport ? 50 : 100);
+            monitor.setResult(result);
+
+            if (withReport) {
+                monitor.setReport(agreementService.generateReport(project,
+                        (CodingAgreementMeasure_ImplBase<?>) measure, monitor, 50, 100));
+            }
+
+            monitor.setStateAndProgress(COMPLETED, 100);
+        }
+        catch (ClosedByInterruptException | InterruptedException e) {
+            monitor.setStateAndProgress(CANCELLED, 100);
+        }
+        catch (Throwable e) {
+            // This marks the progression as complete and causes ProgressBar#onFinished
+            // to be called where we display the messages
+            monitor.setStateAndProgress(FAILED, 100);
+            monitor.addMessage(LogMessage.error(this,
+                    "Unexpected error during agreement calculation: %s",
+                    ExceptionUtils.getRootCauseMessage(e)));
+            log.error("Unexpected error during agreement calculation", e);
+        }
+        finally {
+            Logging.clearMDC();
+        }
+    }
+
+    public AgreementTaskHandle getHandle()
+    {
+        return handle;
+    }
+
+    public AgreementTaskMonitor getMonitor()
+    {
+        return monitor;
+    }
+
+    public Project getProject()
+    {
+        return project;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement;
+
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.COMPLETED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.FAILED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.NOT_STARTED;
+import static java.util.Arrays.asList;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+
+public class AgreementTaskMonitor
+{
+    private final Queue<LogMessage> messages = new ConcurrentLinkedQueue<>();
+
+    private long createTime;
+    private long startTime = -1;
+    private long endTime = -1;
+    private int progress = 0;
+    private AgreementTaskState state = NOT_STARTED;
+    private Serializable result;
+    private File report;
+
+    public synchronized AgreementTaskState getState()
+    {
+        return state;
+    }
+
+    public synchronized void setState(AgreementTaskState aState)
+    {
+        if (state == NOT_STARTED && aState != NOT_STARTED) {
+            startTime = System.currentTimeMillis();
+        }
+
+        if (asList(COMPLETED, CANCELLED, FAILED).contains(aState)) {
+            endTime = System.currentTimeMillis();
+        }
+
+        state = aState;
+    }
+
+    public synchronized long getCreateTime()
+    {
+        return createTime;
+    }
+
+    public synchronized void setCreateTime(long aCreateTime)
+    {
+        createTime = aCreateTime;
+    }
+
+    public synchronized long getStartTime()
+    {
+        return startTime;
+    }
+
+    public synchronized long getEndTime()
+    {
+        return endTime;
+    }
+
+    public synchronized int getProgress()
+    {
+        return progress;
+    }
+
+    public synchronized void setStateAndProgress(AgreementTaskState aState, int aProgress)
+    {
+        setState(aState);
+        setProgress(aProgress);
+    }
+
+    public synchronized void setProgress(int aProgress)
+    {
+        progress = aProgress;
+    }
+
+    public void addMessage(LogMessage aMessage)
+    {
+        messages.add(aMessage);
+    }
+
+    public Queue<LogMessage> getMessages()
+    {
+        return messages;
+    }
+
+    /**
+     * @return the agreement result once the task has completed.
+     */
+    public synchronized Serializable getResult()
+    {
+        return result;
+    }
+
+    public synchronized void setResult(Serializable aResult)
+    {
+        result = aResult;
+    }
+
+    /**
+     * @return the CSV report on the data the agreement was calculated on or {@code null} if the
+     *         measure does not support such a report.
+     */
+    public synchronized File getReport()
+    {
+        return report;
+    }
+
+    public synchronized void setReport(File aReport)
+    {
+        report = aReport;
+    }
+}
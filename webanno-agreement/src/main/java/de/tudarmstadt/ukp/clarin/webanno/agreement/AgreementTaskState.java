@@ -15,30 +15,9 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+package de.tudarmstadt.ukp.clarin.webanno.agreement;
 
-import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
-
-public class PooledCasHolderFactory
-    extends BaseKeyedPooledObjectFactory<CasKey, CasHolder>
+public enum AgreementTaskState
 {
-    @Override
-    public CasHolder create(CasKey aKey) throws Exception
-    {
-        return new CasHolder(aKey);
-    }
-
-    @Override
-    public PooledObject<CasHolder> wrap(CasHolder aCas)
-    {
-        return new DefaultPooledObject<CasHolder>(aCas);
-    }
-
-    @Override
-    public boolean validateObject(CasKey aKey, PooledObject<CasHolder> aP)
-    {
-        return !aP.getObject().isTypeSystemOutdated() && !aP.getObject().isDeleted();
-    }
+    NOT_STARTED, RUNNING, COMPLETED, CANCELLED, FAILED;
 }
@@ -18,10 +18,13 @@
 package de.tudarmstadt.ukp.clarin.webanno.agreement;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.function.Function;
 
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
@@ -71,6 +74,43 @@ public class PairwiseAnnotationResult<R extends Serializable>
         results.put(makeKey(aKey1, aKey2), aRes);
     }
 
+    /**
+     * Combine the results for each pair of raters using the given function.
+     * 
+     * @param aResults
+     *            the results to combine. They must all have been calculated for the same raters.
+     * @param aMerger
+     *            the function combining the results of a single pair of raters.
+     * @return the combined result.
+     */
+    public static <R extends Serializable> PairwiseAnnotationResult<R> merge(
+            List<PairwiseAnnotationResult<R>> aResults, Function<List<R>, R> aMerger)
+    {
+        if (aResults.isEmpty()) {
+            throw new IllegalArgumentException("At least one result is required");
+        }
+
+        PairwiseAnnotationResult<R> first = aResults.get(0);
+        PairwiseAnnotationResult<R> merged = new PairwiseAnnotationResult<>(first.feature,
+                first.traits);
+
+        for (Map.Entry<String, R> pair : first.results.entrySet()) {
+            List<R> pairResults = new ArrayList<>();
+            for (PairwiseAnnotationResult<R> result : aResults) {
+                R pairResult = result.results.get(pair.getKey());
+                if (pairResult == null) {
+                    throw new IllegalArgumentException(
+                            "Results have not been calculated for the same raters");
+                }
+                pairResults.add(pairResult);
+            }
+            merged.results.put(pair.getKey(), aMerger.apply(pairResults));
+        }
+        merged.raters.addAll(first.raters);
+
+        return merged;
+    }
+
     private String makeKey(String aKey1, String aKey2)
     {
         String key;
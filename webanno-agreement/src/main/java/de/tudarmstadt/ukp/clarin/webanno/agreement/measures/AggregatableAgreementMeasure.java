@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement.measures;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+
+/**
+ * Agreement measure whose result over a set of documents can be aggregated from the results
+ * calculated over the individual documents. This allows calculating the agreement while only the
+ * CASes of a single document are loaded at any time.
+ */
+public interface AggregatableAgreementMeasure<R extends Serializable>
+    extends AgreementMeasure<R>
+{
+    /**
+     * Calculate the agreement on a single document. Any positions in the result refer to the same
+     * document index as they would when calculating the agreement over all documents at once.
+     * 
+     * @param aCases
+     *            the CASes of the annotators on the document. An annotator may be mapped to
+     *            {@code null} if their annotations should not be considered.
+     * @param aDocumentIndex
+     *            the index of the document.
+     * @return the result for the document.
+     */
+    R getDocumentAgreement(Map<String, CAS> aCases, int aDocumentIndex);
+
+    /**
+     * @param aDocumentResults
+     *            the results for the individual documents in the order of the documents. Each
+     *            result must have been calculated by {@link #getDocumentAgreement} for the same
+     *            annotators and the index of the document in this list.
+     * @return the result over all the documents.
+     */
+    R aggregate(List<R> aDocumentResults);
+}
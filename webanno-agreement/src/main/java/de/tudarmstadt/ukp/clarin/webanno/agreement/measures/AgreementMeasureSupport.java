@@ -17,11 +17,9 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.agreement.measures;
 
+import java.io.File;
 import java.io.Serializable;
-import java.util.List;
-import java.util.Map;
 
-import org.apache.uima.cas.CAS;
 import org.apache.wicket.markup.html.panel.EmptyPanel;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
@@ -69,6 +67,18 @@ public interface AgreementMeasureSupport<//
 
     T createTraits();
 
+    /**
+     * Returns a Wicket component to display the results of this measure.
+     * 
+     * @param aId
+     *            a markup ID.
+     * @param aResults
+     *            a model holding the results.
+     * @param aReportSupplier
+     *            supplies the report file generated together with the results. The supplier may
+     *            return {@code null} if no report is available.
+     * @return the results component.
+     */
     Panel createResultsPanel(String aId, IModel<R> aResults,
-            SerializableSupplier<Map<String, List<CAS>>> aCasMapSupplier);
+            SerializableSupplier<File> aReportSupplier);
 }
@@ -18,9 +18,6 @@
 package de.tudarmstadt.ukp.clarin.webanno.agreement.measures.cohenkappa;
 
 import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementUtils.makeCodingStudy;
-import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.doDiff;
-import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.getDiffAdapters;
-import static java.util.Arrays.asList;
 
 import java.util.List;
 import java.util.Map;
@@ -28,49 +25,48 @@ import java.util.Map;
 import org.apache.uima.cas.CAS;
 import org.dkpro.statistics.agreement.IAgreementMeasure;
 import org.dkpro.statistics.agreement.coding.CohenKappaAgreement;
+import org.dkpro.statistics.agreement.coding.ICodingAnnotationStudy;
 
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementMeasure_ImplBase;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementResult;
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff;
-import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 
 public class CohenKappaAgreementMeasure
     extends CodingAgreementMeasure_ImplBase<DefaultAgreementTraits>
 {
-    private final AnnotationSchemaService annotationService;
-
     public CohenKappaAgreementMeasure(AnnotationFeature aFeature, DefaultAgreementTraits aTraits,
             AnnotationSchemaService aAnnotationService)
     {
-        super(aFeature, aTraits);
-        annotationService = aAnnotationService;
+        super(aFeature, aTraits, aAnnotationService);
     }
 
     @Override
-    public CodingAgreementResult calculatePairAgreement(Map<String, List<CAS>> aCasMap)
+    protected CodingAgreementResult calculatePairAgreement(CasDiff aDiff,
+            Map<String, List<CAS>> aCasMap)
     {
         AnnotationFeature feature = getFeature();
-        DefaultAgreementTraits traits = getTraits();
 
-        List<DiffAdapter> adapters = getDiffAdapters(annotationService, asList(feature.getLayer()));
+        CodingAgreementResult agreementResult = makeCodingStudy(aDiff,
+                feature.getLayer().getName(), feature.getName(), isExcludeIncomplete(), aCasMap);
 
-        CasDiff diff = doDiff(adapters, traits.getLinkCompareBehavior(), aCasMap);
+        agreementResult.setAgreement(calculateAgreement(agreementResult.getStudy()));
 
-        CodingAgreementResult agreementResult = makeCodingStudy(diff, feature.getLayer().getName(),
-                feature.getName(), true, aCasMap);
+        return agreementResult;
+    }
 
-        IAgreementMeasure agreement = new CohenKappaAgreement(agreementResult.getStudy());
+    @Override
+    protected double calculateAgreement(ICodingAnnotationStudy aStudy)
+    {
+        IAgreementMeasure agreement = new CohenKappaAgreement(aStudy);
 
-        if (agreementResult.getStudy().getItemCount() > 0) {
-            agreementResult.setAgreement(agreement.calculateAgreement());
+        if (aStudy.getItemCount() > 0) {
+            return agreement.calculateAgreement();
         }
         else {
-            agreementResult.setAgreement(Double.NaN);
+            return Double.NaN;
         }
-
-        return agreementResult;
     }
 }
@@ -18,10 +18,7 @@
 package de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalpha;
 
 import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementUtils.makeCodingStudy;
-import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.doDiff;
-import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.getDiffAdapters;
 import static java.lang.Double.NaN;
-import static java.util.Arrays.asList;
 
 import java.util.List;
 import java.util.Map;
@@ -29,6 +26,7 @@ import java.util.Map;
 import org.apache.uima.cas.CAS;
 import org.dkpro.statistics.agreement.IAgreementMeasure;
 import org.dkpro.statistics.agreement.InsufficientDataException;
+import org.dkpro.statistics.agreement.coding.ICodingAnnotationStudy;
 import org.dkpro.statistics.agreement.coding.KrippendorffAlphaAgreement;
 import org.dkpro.statistics.agreement.distance.NominalDistanceFunction;
 
@@ -36,49 +34,53 @@ import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreemen
 import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementResult;
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff;
-import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 
 public class KrippendorffAlphaAgreementMeasure
     extends CodingAgreementMeasure_ImplBase<KrippendorffAlphaAgreementTraits>
 {
-    private final AnnotationSchemaService annotationService;
-
     public KrippendorffAlphaAgreementMeasure(AnnotationFeature aFeature,
             KrippendorffAlphaAgreementTraits aTraits, AnnotationSchemaService aAnnotationService)
     {
-        super(aFeature, aTraits);
-        annotationService = aAnnotationService;
+        super(aFeature, aTraits, aAnnotationService);
     }
 
     @Override
-    public CodingAgreementResult calculatePairAgreement(Map<String, List<CAS>> aCasMap)
+    protected CodingAgreementResult calculatePairAgreement(CasDiff aDiff,
+            Map<String, List<CAS>> aCasMap)
     {
         AnnotationFeature feature = getFeature();
-        KrippendorffAlphaAgreementTraits traits = getTraits();
 
-        List<DiffAdapter> adapters = getDiffAdapters(annotationService, asList(feature.getLayer()));
+        CodingAgreementResult agreementResult = makeCodingStudy(aDiff,
+                feature.getLayer().getName(), feature.getName(), isExcludeIncomplete(), aCasMap);
 
-        CasDiff diff = doDiff(adapters, traits.getLinkCompareBehavior(), aCasMap);
+        agreementResult.setAgreement(calculateAgreement(agreementResult.getStudy()));
 
-        CodingAgreementResult agreementResult = makeCodingStudy(diff, feature.getLayer().getName(),
-                feature.getName(), traits.isExcludeIncomplete(), aCasMap);
+        return agreementResult;
+    }
 
-        IAgreementMeasure agreement = new KrippendorffAlphaAgreement(agreementResult.getStudy(),
+    @Override
+    protected boolean isExcludeIncomplete()
+    {
+        return getTraits().isExcludeIncomplete();
+    }
+
+    @Override
+    protected double calculateAgreement(ICodingAnnotationStudy aStudy)
+    {
+        IAgreementMeasure agreement = new KrippendorffAlphaAgreement(aStudy,
                 new NominalDistanceFunction());
 
-        if (agreementResult.getStudy().getItemCount() > 0) {
+        if (aStudy.getItemCount() > 0) {
             try {
-                agreementResult.setAgreement(agreement.calculateAgreement());
+                return agreement.calculateAgreement();
             }
             catch (InsufficientDataException e) {
-                agreementResult.setAgreement(NaN);
+                return NaN;
             }
         }
         else {
-            agreementResult.setAgreement(NaN);
+            return NaN;
         }
-
-        return agreementResult;
     }
 }
@@ -17,6 +17,8 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaunitizing;
 
+import static java.util.Collections.singletonList;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
@@ -30,10 +32,12 @@ import org.apache.uima.cas.Type;
 import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.fit.util.FSUtil;
 import org.dkpro.statistics.agreement.IAgreementMeasure;
+import org.dkpro.statistics.agreement.unitizing.IUnitizingAnnotationUnit;
 import org.dkpro.statistics.agreement.unitizing.KrippendorffAlphaUnitizingAgreement;
 import org.dkpro.statistics.agreement.unitizing.UnitizingAnnotationStudy;
 
 import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AggregatableAgreementMeasure;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure_ImplBase;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.results.unitizing.UnitizingAgreementResult;
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
@@ -43,6 +47,7 @@ public class KrippendorffAlphaUnitizingAgreementMeasure
     extends AgreementMeasure_ImplBase<//
             PairwiseAnnotationResult<UnitizingAgreementResult>, //
             KrippendorffAlphaUnitizingAgreementTraits>
+    implements AggregatableAgreementMeasure<PairwiseAnnotationResult<UnitizingAgreementResult>>
 {
     private final AnnotationSchemaService annotationService;
 
@@ -60,16 +65,26 @@ public class KrippendorffAlphaUnitizingAgreementMeasure
     {
         PairwiseAnnotationResult<UnitizingAgreementResult> result = new PairwiseAnnotationResult<>(
                 getFeature(), getTraits());
-        List<Entry<String, List<CAS>>> entryList = new ArrayList<>(aCasMap.entrySet());
-        for (int m = 0; m < entryList.size(); m++) {
-            for (int n = 0; n < entryList.size(); n++) {
+
+        // Extract the units of every annotator only once instead of once for every pair the
+        // annotator is part of.
+        int[] docSizes = getDocumentSizes(aCasMap);
+        Map<String, List<Unit>> unitsByRater = new LinkedHashMap<>();
+        for (Entry<String, List<CAS>> set : aCasMap.entrySet()) {
+            unitsByRater.put(set.getKey(), extractUnits(set.getValue(), docSizes));
+        }
+
+        List<String> raters = new ArrayList<>(unitsByRater.keySet());
+        for (int m = 0; m < raters.size(); m++) {
+            for (int n = 0; n < raters.size(); n++) {
                 // Triangle matrix mirrored
                 if (n < m) {
-                    Map<String, List<CAS>> pairwiseCasMap = new LinkedHashMap<>();
-                    pairwiseCasMap.put(entryList.get(m).getKey(), entryList.get(m).getValue());
-                    pairwiseCasMap.put(entryList.get(n).getKey(), entryList.get(n).getValue());
-                    UnitizingAgreementResult res = calculatePairAgreement(pairwiseCasMap);
-                    result.add(entryList.get(m).getKey(), entryList.get(n).getKey(), res);
+                    Map<String, List<Unit>> pairwiseUnits = new LinkedHashMap<>();
+                    pairwiseUnits.put(raters.get(m), unitsByRater.get(raters.get(m)));
+                    pairwiseUnits.put(raters.get(n), unitsByRater.get(raters.get(n)));
+                    UnitizingAgreementResult res = calculatePairAgreement(pairwiseUnits,
+                            docSizes);
+                    result.add(raters.get(m), raters.get(n), res);
                 }
             }
         }
@@ -77,12 +92,115 @@ public class KrippendorffAlphaUnitizingAgreementMeasure
     }
 
     public UnitizingAgreementResult calculatePairAgreement(Map<String, List<CAS>> aCasMap)
+    {
+        int[] docSizes = getDocumentSizes(aCasMap);
+        Map<String, List<Unit>> unitsByRater = new LinkedHashMap<>();
+        for (Entry<String, List<CAS>> set : aCasMap.entrySet()) {
+            unitsByRater.put(set.getKey(), extractUnits(set.getValue(), docSizes));
+        }
+
+        return calculatePairAgreement(unitsByRater, docSizes);
+    }
+
+    private UnitizingAgreementResult calculatePairAgreement(Map<String, List<Unit>> aUnitsByRater,
+            int[] aDocSizes)
     {
         String typeName = getFeature().getLayer().getName();
 
-        // Calculate a character offset continuum over all CASses. We assume here that the documents
-        // all have the same size - since the users cannot change the document sizes, this should be
-        // an universally true assumption.
+        int continuumSize = Arrays.stream(aDocSizes).sum();
+
+        // Create a unitizing study for that continuum.
+        UnitizingAnnotationStudy study = new UnitizingAnnotationStudy(continuumSize);
+
+        // Add the units of each annotator to the unitizing study.
+        for (Entry<String, List<Unit>> set : aUnitsByRater.entrySet()) {
+            int raterIdx = study.addRater(set.getKey());
+            for (Unit unit : set.getValue()) {
+                study.addUnit(unit.offset, unit.length, raterIdx, unit.category);
+            }
+        }
+
+        UnitizingAgreementResult result = new UnitizingAgreementResult(typeName,
+                getFeature().getName(), study, new ArrayList<>(aUnitsByRater.keySet()),
+                getTraits().isExcludeIncomplete());
+        result.setAgreement(calculateAgreement(study));
+
+        return result;
+    }
+
+    @Override
+    public PairwiseAnnotationResult<UnitizingAgreementResult> getDocumentAgreement(
+            Map<String, CAS> aCases, int aDocumentIndex)
+    {
+        // The continuum of a single document starts at zero no matter where the document is
+        // located - the units are only shifted when the documents are aggregated
+        Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+        for (Entry<String, CAS> e : aCases.entrySet()) {
+            casMap.put(e.getKey(), singletonList(e.getValue()));
+        }
+        return getAgreement(casMap);
+    }
+
+    @Override
+    public PairwiseAnnotationResult<UnitizingAgreementResult> aggregate(
+            List<PairwiseAnnotationResult<UnitizingAgreementResult>> aDocumentResults)
+    {
+        return PairwiseAnnotationResult.merge(aDocumentResults, this::aggregatePair);
+    }
+
+    /**
+     * Concatenate the continuums of the individual documents - the units of each document are
+     * shifted by the size of the documents before it.
+     */
+    private UnitizingAgreementResult aggregatePair(List<UnitizingAgreementResult> aDocumentResults)
+    {
+        UnitizingAgreementResult first = aDocumentResults.get(0);
+
+        long continuumSize = 0;
+        for (UnitizingAgreementResult result : aDocumentResults) {
+            continuumSize += result.getStudy().getContinuumLength();
+        }
+
+        UnitizingAnnotationStudy study = new UnitizingAnnotationStudy((int) continuumSize);
+        for (String rater : first.getCasGroupIds()) {
+            study.addRater(rater);
+        }
+
+        long docOffset = 0;
+        for (UnitizingAgreementResult result : aDocumentResults) {
+            for (IUnitizingAnnotationUnit unit : result.getStudy().getUnits()) {
+                study.addUnit((int) (docOffset + unit.getOffset()), (int) unit.getLength(),
+                        unit.getRaterIdx(), unit.getCategory());
+            }
+            docOffset += result.getStudy().getContinuumLength();
+        }
+
+        UnitizingAgreementResult aggregated = new UnitizingAgreementResult(first.getType(),
+                first.getFeature(), study, first.getCasGroupIds(), first.isExcludeIncomplete());
+        aggregated.setAgreement(calculateAgreement(study));
+
+        return aggregated;
+    }
+
+    private double calculateAgreement(UnitizingAnnotationStudy aStudy)
+    {
+        IAgreementMeasure agreement = new KrippendorffAlphaUnitizingAgreement(aStudy);
+
+        if (aStudy.getUnitCount() > 0) {
+            return agreement.calculateAgreement();
+        }
+        else {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Calculate a character offset continuum over all CASses. We assume here that the documents
+     * all have the same size - since the users cannot change the document sizes, this should be
+     * an universally true assumption.
+     */
+    private int[] getDocumentSizes(Map<String, List<CAS>> aCasMap)
+    {
         List<CAS> firstUserCasses = aCasMap.values().stream().findFirst().get();
         int docCount = firstUserCasses.size();
         int[] docSizes = new int[docCount];
@@ -98,48 +216,50 @@ public class KrippendorffAlphaUnitizingAgreementMeasure
                 i++;
             }
         }
-        int continuumSize = Arrays.stream(docSizes).sum();
-
-        // Create a unitizing study for that continuum.
-        UnitizingAnnotationStudy study = new UnitizingAnnotationStudy(continuumSize);
+        return docSizes;
+    }
 
-        // For each annotator, extract the feature values from all the annotator's CASses and add
-        // them to the unitizing study based on character offsets.
-        for (Entry<String, List<CAS>> set : aCasMap.entrySet()) {
-            int raterIdx = study.addRater(set.getKey());
-            int docOffset = 0;
-            int i = 0;
-            for (CAS cas : set.getValue()) {
-                // If a user has never worked on a source document, its CAS is null here - we
-                // skip it.
-                if (cas != null) {
-                    Type t = cas.getTypeSystem().getType(typeName);
-                    Feature f = t.getFeatureByBaseName(getFeature().getName());
-                    int currentDocOffset = docOffset;
-                    cas.select(t).map(fs -> (AnnotationFS) fs).forEach(fs -> {
-                        study.addUnit(currentDocOffset + fs.getBegin(), fs.getEnd() - fs.getBegin(),
-                                raterIdx, FSUtil.getFeature(fs, f, Object.class));
-                    });
-                }
+    /**
+     * Extract the feature values from all the CASses of an annotator based on their character
+     * offsets in the continuum.
+     */
+    private List<Unit> extractUnits(List<CAS> aCasses, int[] aDocSizes)
+    {
+        String typeName = getFeature().getLayer().getName();
 
-                docOffset += docSizes[i];
-                i++;
+        List<Unit> units = new ArrayList<>();
+        int docOffset = 0;
+        int i = 0;
+        for (CAS cas : aCasses) {
+            // If a user has never worked on a source document, its CAS is null here - we
+            // skip it.
+            if (cas != null) {
+                Type t = cas.getTypeSystem().getType(typeName);
+                Feature f = t.getFeatureByBaseName(getFeature().getName());
+                int currentDocOffset = docOffset;
+                cas.select(t).map(fs -> (AnnotationFS) fs).forEach(fs -> {
+                    units.add(new Unit(currentDocOffset + fs.getBegin(),
+                            fs.getEnd() - fs.getBegin(), FSUtil.getFeature(fs, f, Object.class)));
+                });
             }
-        }
 
-        UnitizingAgreementResult result = new UnitizingAgreementResult(typeName,
-                getFeature().getName(), study, new ArrayList<>(aCasMap.keySet()),
-                getTraits().isExcludeIncomplete());
+            docOffset += aDocSizes[i];
+            i++;
+        }
+        return units;
+    }
 
-        IAgreementMeasure agreement = new KrippendorffAlphaUnitizingAgreement(study);
+    private static class Unit
+    {
+        private final int offset;
+        private final int length;
+        private final Object category;
 
-        if (result.getStudy().getUnitCount() > 0) {
-            result.setAgreement(agreement.calculateAgreement());
+        public Unit(int aOffset, int aLength, Object aCategory)
+        {
+            offset = aOffset;
+            length = aLength;
+            category = aCategory;
         }
-        else {
-            result.setAgreement(Double.NaN);
-        }
-
-        return result;
     }
 }
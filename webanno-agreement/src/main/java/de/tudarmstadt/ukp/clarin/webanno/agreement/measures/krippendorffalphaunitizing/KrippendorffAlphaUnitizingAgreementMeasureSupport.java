@@ -19,10 +19,8 @@ package de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaun
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
 
-import java.util.List;
-import java.util.Map;
+import java.io.File;
 
-import org.apache.uima.cas.CAS;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
 import org.danekja.java.util.function.serializable.SerializableSupplier;
@@ -95,7 +93,7 @@ public class KrippendorffAlphaUnitizingAgreementMeasureSupport
     @Override
     public Panel createResultsPanel(String aId,
             IModel<PairwiseAnnotationResult<UnitizingAgreementResult>> aResults,
-            SerializableSupplier<Map<String, List<CAS>>> aCasMapSupplier)
+            SerializableSupplier<File> aReportSupplier)
     {
         return new PairwiseUnitizingAgreementTable(aId, aResults);
     }
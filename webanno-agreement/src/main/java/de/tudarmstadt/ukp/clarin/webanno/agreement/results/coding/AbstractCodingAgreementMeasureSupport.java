@@ -24,10 +24,8 @@ import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.SINGLE_TOKEN
 import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.TOKENS;
 import static java.util.Arrays.asList;
 
-import java.util.List;
-import java.util.Map;
+import java.io.File;
 
-import org.apache.uima.cas.CAS;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
 import org.danekja.java.util.function.serializable.SerializableSupplier;
@@ -59,8 +57,8 @@ public abstract class AbstractCodingAgreementMeasureSupport<T extends DefaultAgr
     @Override
     public Panel createResultsPanel(String aId,
             IModel<PairwiseAnnotationResult<CodingAgreementResult>> aResults,
-            SerializableSupplier<Map<String, List<CAS>>> aCasMapSupplier)
+            SerializableSupplier<File> aReportSupplier)
     {
-        return new PairwiseCodingAgreementTable(aId, aResults, aCasMapSupplier);
+        return new PairwiseCodingAgreementTable(aId, aResults, aReportSupplier);
     }
 }
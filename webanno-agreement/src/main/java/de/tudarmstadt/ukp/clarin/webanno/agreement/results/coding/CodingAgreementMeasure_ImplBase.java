@@ -17,6 +17,11 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding;
 
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementUtils.makeCodingStudy;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.doDiff;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -24,27 +29,67 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.apache.uima.cas.CAS;
+import org.dkpro.statistics.agreement.IAnnotationUnit;
+import org.dkpro.statistics.agreement.coding.CodingAnnotationStudy;
+import org.dkpro.statistics.agreement.coding.ICodingAnnotationItem;
+import org.dkpro.statistics.agreement.coding.ICodingAnnotationStudy;
 
 import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AggregatableAgreementMeasure;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure_ImplBase;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.ConfigurationSet;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.OffsetCasList;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 
 public abstract class CodingAgreementMeasure_ImplBase<T extends DefaultAgreementTraits>
     extends AgreementMeasure_ImplBase<PairwiseAnnotationResult<CodingAgreementResult>, T>
+    implements AggregatableAgreementMeasure<PairwiseAnnotationResult<CodingAgreementResult>>
 {
-    public CodingAgreementMeasure_ImplBase(AnnotationFeature aFeature, T aTraits)
+    private final AnnotationSchemaService annotationService;
+
+    public CodingAgreementMeasure_ImplBase(AnnotationFeature aFeature, T aTraits,
+            AnnotationSchemaService aAnnotationService)
     {
         super(aFeature, aTraits);
+        annotationService = aAnnotationService;
     }
 
     @Override
     public PairwiseAnnotationResult<CodingAgreementResult> getAgreement(
             Map<String, List<CAS>> aCasMap)
+    {
+        return getAgreement(aCasMap, 0);
+    }
+
+    @Override
+    public PairwiseAnnotationResult<CodingAgreementResult> getDocumentAgreement(
+            Map<String, CAS> aCases, int aDocumentIndex)
+    {
+        return getAgreement(makeDocumentCasMap(aCases), aDocumentIndex);
+    }
+
+    /**
+     * @param aCasIdOffset
+     *            the CAS ID of the first CAS in each list.
+     */
+    private PairwiseAnnotationResult<CodingAgreementResult> getAgreement(
+            Map<String, List<CAS>> aCasMap, int aCasIdOffset)
     {
         PairwiseAnnotationResult<CodingAgreementResult> result = new PairwiseAnnotationResult<>(
                 getFeature(), getTraits());
-        List<Entry<String, List<CAS>>> entryList = new ArrayList<>(aCasMap.entrySet());
+
+        // Calculate the diff over all annotators only once and derive the diff for each pair of
+        // annotators from it instead of re-calculating it for every pair.
+        CasDiff diff = doDiff(createDiffAdapters(), getTraits().getLinkCompareBehavior(),
+                aCasMap, -1, -1, aCasIdOffset);
+
+        List<Entry<String, List<CAS>>> entryList = new ArrayList<>(
+                offsetCasMap(aCasMap, aCasIdOffset).entrySet());
         for (int m = 0; m < entryList.size(); m++) {
             for (int n = 0; n < entryList.size(); n++) {
                 // Triangle matrix mirrored
@@ -52,7 +97,8 @@ public abstract class CodingAgreementMeasure_ImplBase<T extends DefaultAgreement
                     Map<String, List<CAS>> pairwiseCasMap = new LinkedHashMap<>();
                     pairwiseCasMap.put(entryList.get(m).getKey(), entryList.get(m).getValue());
                     pairwiseCasMap.put(entryList.get(n).getKey(), entryList.get(n).getValue());
-                    CodingAgreementResult res = calculatePairAgreement(pairwiseCasMap);
+                    CodingAgreementResult res = calculatePairAgreement(
+                            diff.project(pairwiseCasMap.keySet()), pairwiseCasMap);
                     result.add(entryList.get(m).getKey(), entryList.get(n).getKey(), res);
                 }
             }
@@ -60,5 +106,157 @@ public abstract class CodingAgreementMeasure_ImplBase<T extends DefaultAgreement
         return result;
     }
 
-    public abstract CodingAgreementResult calculatePairAgreement(Map<String, List<CAS>> aCasMap);
+    public CodingAgreementResult calculatePairAgreement(Map<String, List<CAS>> aCasMap)
+    {
+        CasDiff diff = doDiff(createDiffAdapters(), getTraits().getLinkCompareBehavior(),
+                aCasMap);
+
+        return calculatePairAgreement(diff, aCasMap);
+    }
+
+    /**
+     * @param aDiff
+     *            the diff over the CASes in the given map.
+     * @param aCasMap
+     *            the CASes of the two annotators to compare.
+     * @return the agreement between the two annotators.
+     */
+    protected abstract CodingAgreementResult calculatePairAgreement(CasDiff aDiff,
+            Map<String, List<CAS>> aCasMap);
+
+    /**
+     * @param aStudy
+     *            the coding study of a pair of annotators.
+     * @return the agreement on the given study.
+     */
+    protected abstract double calculateAgreement(ICodingAnnotationStudy aStudy);
+
+    /**
+     * @return whether positions which were not annotated by all annotators are excluded from the
+     *         study. Measures which cannot handle missing values always exclude them.
+     */
+    protected boolean isExcludeIncomplete()
+    {
+        return true;
+    }
+
+    @Override
+    public PairwiseAnnotationResult<CodingAgreementResult> aggregate(
+            List<PairwiseAnnotationResult<CodingAgreementResult>> aDocumentResults)
+    {
+        return PairwiseAnnotationResult.merge(aDocumentResults, this::aggregatePair);
+    }
+
+    private CodingAgreementResult aggregatePair(List<CodingAgreementResult> aDocumentResults)
+    {
+        CodingAgreementResult aggregated = concatenate(aDocumentResults);
+        aggregated.setAgreement(calculateAgreement(aggregated.getStudy()));
+        return aggregated;
+    }
+
+    /**
+     * Collect the annotations of all annotators on a single document. Incomplete positions are
+     * only included if the measure does not exclude them (see {@link #isExcludeIncomplete()}).
+     * This is the data exported as the agreement report. No agreement is calculated on it.
+     * 
+     * @param aCases
+     *            the CASes of the annotators on the document.
+     * @param aDocumentIndex
+     *            the index of the document.
+     * @return the report data.
+     * @see #getDocumentAgreement
+     */
+    public CodingAgreementResult getDocumentReportData(Map<String, CAS> aCases,
+            int aDocumentIndex)
+    {
+        Map<String, List<CAS>> casMap = makeDocumentCasMap(aCases);
+
+        CasDiff diff = doDiff(createDiffAdapters(), getTraits().getLinkCompareBehavior(),
+                casMap, -1, -1, aDocumentIndex);
+
+        return makeCodingStudy(diff, getFeature().getLayer().getName(), getFeature().getName(),
+                isExcludeIncomplete(), offsetCasMap(casMap, aDocumentIndex));
+    }
+
+    /**
+     * @param aDocumentData
+     *            the report data for the individual documents in the order of the documents.
+     * @return the report data over all the documents.
+     * @see #getDocumentReportData
+     * @see #aggregate
+     */
+    public CodingAgreementResult aggregateReportData(List<CodingAgreementResult> aDocumentData)
+    {
+        return concatenate(aDocumentData);
+    }
+
+    private CodingAgreementResult concatenate(List<CodingAgreementResult> aDocumentResults)
+    {
+        CodingAgreementResult first = aDocumentResults.get(0);
+
+        CodingAnnotationStudy study = new CodingAnnotationStudy(
+                first.getStudy().getRaterCount());
+        List<DiffResult> diffs = new ArrayList<>();
+        List<ConfigurationSet> completeSets = new ArrayList<>();
+        List<ConfigurationSet> irrelevantSets = new ArrayList<>();
+        List<ConfigurationSet> setsWithDifferences = new ArrayList<>();
+        List<ConfigurationSet> incompleteSetsByPosition = new ArrayList<>();
+        List<ConfigurationSet> incompleteSetsByLabel = new ArrayList<>();
+        List<ConfigurationSet> pluralitySets = new ArrayList<>();
+
+        for (CodingAgreementResult result : aDocumentResults) {
+            for (ICodingAnnotationItem item : result.getStudy().getItems()) {
+                Object[] values = new Object[study.getRaterCount()];
+                for (IAnnotationUnit unit : item.getUnits()) {
+                    values[unit.getRaterIdx()] = unit.getCategory();
+                }
+                study.addItemAsArray(values);
+            }
+
+            diffs.add(result.getDiff());
+            completeSets.addAll(result.getCompleteSets());
+            irrelevantSets.addAll(result.getIrrelevantSets());
+            setsWithDifferences.addAll(result.getSetsWithDifferences());
+            incompleteSetsByPosition.addAll(result.getIncompleteSetsByPosition());
+            incompleteSetsByLabel.addAll(result.getIncompleteSetsByLabel());
+            pluralitySets.addAll(result.getPluralitySets());
+        }
+
+        return new CodingAgreementResult(first.getType(), first.getFeature(),
+                DiffResult.merge(diffs), study, first.getCasGroupIds(), completeSets,
+                irrelevantSets, setsWithDifferences, incompleteSetsByPosition,
+                incompleteSetsByLabel, pluralitySets, first.isExcludeIncomplete());
+    }
+
+    private static Map<String, List<CAS>> makeDocumentCasMap(Map<String, CAS> aCases)
+    {
+        Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+        for (Entry<String, CAS> e : aCases.entrySet()) {
+            casMap.put(e.getKey(), singletonList(e.getValue()));
+        }
+        return casMap;
+    }
+
+    /**
+     * The CASes are looked up by the CAS IDs of the positions in the diff, so the CAS lists must
+     * start at the same offset as the CAS IDs.
+     */
+    private static Map<String, List<CAS>> offsetCasMap(Map<String, List<CAS>> aCasMap,
+            int aCasIdOffset)
+    {
+        if (aCasIdOffset == 0) {
+            return aCasMap;
+        }
+
+        Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+        for (Entry<String, List<CAS>> e : aCasMap.entrySet()) {
+            casMap.put(e.getKey(), new OffsetCasList(aCasIdOffset, e.getValue()));
+        }
+        return casMap;
+    }
+
+    protected List<DiffAdapter> createDiffAdapters()
+    {
+        return CasDiff.getDiffAdapters(annotationService, asList(getFeature().getLayer()));
+    }
 }
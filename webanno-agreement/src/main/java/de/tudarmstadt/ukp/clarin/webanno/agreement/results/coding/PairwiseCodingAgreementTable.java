@@ -18,22 +18,20 @@
 package de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding;
 
 import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementReportExportFormat.CSV;
-import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementUtils.makeCodingStudy;
-import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.doDiff;
 import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.enabledWhen;
 import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.visibleWhen;
 import static java.util.Arrays.asList;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
-import org.apache.uima.cas.CAS;
 import org.apache.wicket.ajax.AjaxEventBehavior;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.behavior.AttributeAppender;
@@ -51,7 +49,6 @@ import org.apache.wicket.model.LoadableDetachableModel;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.model.ResourceModel;
 import org.apache.wicket.model.StringResourceModel;
-import org.apache.wicket.spring.injection.annot.SpringBean;
 import org.apache.wicket.util.resource.AbstractResourceStream;
 import org.apache.wicket.util.resource.IResourceStream;
 import org.apache.wicket.util.resource.ResourceStreamNotFoundException;
@@ -69,13 +66,6 @@ import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementReportExportFormat;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementResult;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementUtils;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
-import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.DefaultAgreementTraits;
-import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
-import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
-import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
-import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff;
-import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
-import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.support.AJAXDownload;
 import de.tudarmstadt.ukp.clarin.webanno.support.DefaultRefreshingView;
 import de.tudarmstadt.ukp.clarin.webanno.support.DescriptionTooltipBehavior;
@@ -89,23 +79,19 @@ public class PairwiseCodingAgreementTable
 
     private final static Logger LOG = LoggerFactory.getLogger(PairwiseCodingAgreementTable.class);
 
-    private @SpringBean AnnotationSchemaService annotationService;
-    private @SpringBean DocumentService documentService;
-    private @SpringBean ProjectService projectService;
-
     private final RefreshingView<String> rows;
     private final AjaxDownloadLink exportAllButton;
     private final DropDownChoice<AgreementReportExportFormat> formatField;
 
-    private final SerializableSupplier<Map<String, List<CAS>>> casMapSupplier;
+    private final SerializableSupplier<File> reportSupplier;
 
     public PairwiseCodingAgreementTable(String aId,
             IModel<PairwiseAnnotationResult<CodingAgreementResult>> aModel,
-            SerializableSupplier<Map<String, List<CAS>>> aCasMapSupplier)
+            SerializableSupplier<File> aReportSupplier)
     {
         super(aId, aModel);
 
-        casMapSupplier = aCasMapSupplier;
+        reportSupplier = aReportSupplier;
 
         setOutputMarkupId(true);
 
@@ -131,10 +117,10 @@ public class PairwiseCodingAgreementTable
                 new EnumChoiceRenderer<>(this)));
         formatField.add(new LambdaAjaxFormComponentUpdatingBehavior("change"));
 
+        // The report generated by the agreement task is always a CSV file
         exportAllButton = new AjaxDownloadLink("exportAll",
-                () -> "agreement" + formatField.getModelObject().getExtension(),
-                this::exportAllAgreements);
-        exportAllButton.add(enabledWhen(() -> formatField.getModelObject() != null));
+                () -> "agreement" + CSV.getExtension(), this::exportAllAgreements);
+        exportAllButton.add(enabledWhen(() -> reportSupplier.get() != null));
         add(exportAllButton);
 
         rows = new DefaultRefreshingView<String>("rows", ratersAdapter)
@@ -398,33 +384,24 @@ public class PairwiseCodingAgreementTable
         {
             private static final long serialVersionUID = 1L;
 
+            private InputStream is;
+
             @Override
             public InputStream getInputStream() throws ResourceStreamNotFoundException
             {
-                AnnotationFeature feature = getModelObject().getFeature();
-                DefaultAgreementTraits traits = getModelObject().getTraits();
-
-                Map<String, List<CAS>> casMap = casMapSupplier.get();
-
-                List<DiffAdapter> adapters = CasDiff.getDiffAdapters(annotationService,
-                        asList(feature.getLayer()));
-
-                CasDiff diff = doDiff(adapters, traits.getLinkCompareBehavior(), casMap);
-
-                // AgreementResult agreementResult = AgreementUtils.makeStudy(diff,
-                // feature.getLayer().getName(), feature.getName(),
-                // pref.excludeIncomplete, casMap);
-                // TODO: for the moment, we always include incomplete annotations during this
-                // export.
-                CodingAgreementResult agreementResult = makeCodingStudy(diff,
-                        feature.getLayer().getName(), feature.getName(), false, casMap);
+                // The report is generated by the agreement task while it streams over the
+                // documents, so we do not need to load the annotations of all documents here.
+                File report = reportSupplier.get();
+                if (report == null || !report.exists()) {
+                    throw new ResourceStreamNotFoundException("Agreement report not available");
+                }
 
                 try {
-                    return AgreementUtils.generateCsvReport(agreementResult);
+                    is = new FileInputStream(report);
+                    return is;
                 }
-                catch (Exception e) {
-                    // FIXME Is there some better error handling here?
-                    LOG.error("Unable to generate report", e);
+                catch (IOException e) {
+                    LOG.error("Unable to read report", e);
                     throw new ResourceStreamNotFoundException(e);
                 }
             }
@@ -432,7 +409,9 @@ public class PairwiseCodingAgreementTable
             @Override
             public void close() throws IOException
             {
-                // Nothing to do
+                if (is != null) {
+                    is.close();
+                }
             }
         };
     }
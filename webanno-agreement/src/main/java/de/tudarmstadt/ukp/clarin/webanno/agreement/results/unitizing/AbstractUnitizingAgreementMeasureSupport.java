@@ -17,10 +17,8 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.agreement.results.unitizing;
 
-import java.util.List;
-import java.util.Map;
+import java.io.File;
 
-import org.apache.uima.cas.CAS;
 import org.apache.wicket.markup.html.panel.Panel;
 import org.apache.wicket.model.IModel;
 import org.danekja.java.util.function.serializable.SerializableSupplier;
@@ -37,7 +35,7 @@ public abstract class AbstractUnitizingAgreementMeasureSupport<T extends Default
     @Override
     public Panel createResultsPanel(String aId,
             IModel<PairwiseAnnotationResult<UnitizingAgreementResult>> aResults,
-            SerializableSupplier<Map<String, List<CAS>>> aCasMapSupplier)
+            SerializableSupplier<File> aReportSupplier)
     {
         return new PairwiseUnitizingAgreementTable(aId, aResults);
     }
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement;
+
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.COMPLETED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.RUNNING;
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.TOKENS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.OverlapMode.NO_OVERLAP;
+import static de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel.ANNOTATOR;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaunitizing.KrippendorffAlphaUnitizingAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaunitizing.KrippendorffAlphaUnitizingAgreementTraits;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.results.unitizing.UnitizingAgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasRestoredFromHistoryEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+
+public class AgreementServiceImplTest
+{
+    private @Mock DocumentService documentService;
+    private @Mock ProjectService projectService;
+    private @Mock AnnotationSchemaService annotationService;
+
+    private AgreementServiceImpl sut;
+    private KrippendorffAlphaUnitizingAgreementMeasure measure;
+    private Project project;
+    private List<SourceDocument> documents;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        documents = new ArrayList<>(asList(makeDocument(1l), makeDocument(2l)));
+
+        AnnotationLayer layer = new AnnotationLayer(POS.class.getName(), POS.class.getSimpleName(),
+                SPAN_TYPE, project, false, TOKENS, NO_OVERLAP);
+        layer.setId(1l);
+        AnnotationFeature feature = new AnnotationFeature(project, layer, "PosValue", "PosValue",
+                CAS.TYPE_NAME_STRING);
+        feature.setId(1l);
+
+        measure = spy(new KrippendorffAlphaUnitizingAgreementMeasure(feature,
+                new KrippendorffAlphaUnitizingAgreementTraits(), annotationService));
+
+        when(projectService.listProjectUsersWithPermissions(project, ANNOTATOR))
+                .thenReturn(asList(new User("user1"), new User("user2")));
+        when(documentService.listSourceDocuments(project)).thenReturn(documents);
+        when(documentService.listAnnotationDocuments(any(SourceDocument.class)))
+                .thenReturn(emptyList());
+        when(documentService.readAnnotationCas(any(SourceDocument.class), any(String.class),
+                any(), any())).then(_call -> makeCas());
+
+        sut = new AgreementServiceImpl(documentService, projectService);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        sut.destroy();
+    }
+
+    @Test
+    public void thatUnchangedDocumentsAreNotRecalculated() throws Exception
+    {
+        sut.getAgreement(project, measure);
+        sut.getAgreement(project, measure);
+
+        verifyCalculations(0, 1);
+        verifyCalculations(1, 1);
+    }
+
+    @Test
+    public void thatWritingCasOnlyRecalculatesWrittenDocument() throws Exception
+    {
+        sut.getAgreement(project, measure);
+
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this,
+                new AnnotationDocument("doc1", project, "user1", documents.get(0)), makeCas()));
+
+        sut.getAgreement(project, measure);
+
+        verifyCalculations(0, 2);
+        verifyCalculations(1, 1);
+    }
+
+    @Test
+    public void thatRestoringCasFromHistoryOnlyRecalculatesRestoredDocument() throws Exception
+    {
+        sut.getAgreement(project, measure);
+
+        sut.onCasRestoredFromHistory(
+                new CasRestoredFromHistoryEvent(this, documents.get(1), "user2", 1000l));
+
+        sut.getAgreement(project, measure);
+
+        verifyCalculations(0, 1);
+        verifyCalculations(1, 2);
+    }
+
+    @Test
+    public void thatLayerConfigurationChangeRecalculatesAllDocuments() throws Exception
+    {
+        sut.getAgreement(project, measure);
+
+        sut.onLayerConfigurationChanged(new LayerConfigurationChangedEvent(this, project));
+
+        sut.getAgreement(project, measure);
+
+        verifyCalculations(0, 2);
+        verifyCalculations(1, 2);
+    }
+
+    @Test
+    public void thatAddingDocumentOnlyCalculatesNewDocument() throws Exception
+    {
+        sut.getAgreement(project, measure);
+
+        documents.add(makeDocument(3l));
+
+        sut.getAgreement(project, measure);
+
+        verifyCalculations(0, 1);
+        verifyCalculations(1, 1);
+        verifyCalculations(2, 1);
+    }
+
+    @Test
+    public void thatDocumentsAreRecalculatedWhenTheirPositionChanges() throws Exception
+    {
+        sut.getAgreement(project, measure);
+
+        documents.remove(0);
+
+        PairwiseAnnotationResult<UnitizingAgreementResult> result = sut.getAgreement(project, measure);
+
+        // The remaining document moved from the second to the first position
+        verifyCalculations(0, 2);
+        verifyCalculations(1, 1);
+        assertEquals(2, result.getStudy("user1", "user2").getStudy().getUnitCount());
+    }
+
+    @Test
+    public void thatTaskReportsProgress() throws Exception
+    {
+        CountDownLatch secondDocumentReached = new CountDownLatch(1);
+        CountDownLatch secondDocumentReleased = new CountDownLatch(1);
+        when(documentService.readAnnotationCas(eq(documents.get(1)), any(String.class), any(),
+                any())).then(_call -> {
+                    secondDocumentReached.countDown();
+                    secondDocumentReleased.await();
+                    return makeCas();
+                });
+
+        AgreementTaskHandle handle = sut.startAgreementTask(project, measure, "user");
+        AgreementTaskMonitor monitor = sut.getTaskMonitor(handle);
+
+        assertTrue(secondDocumentReached.await(10, SECONDS));
+        assertEquals(RUNNING, monitor.getState());
+        assertEquals(50, monitor.getProgress());
+
+        secondDocumentReleased.countDown();
+        awaitTermination(monitor);
+
+        assertEquals(COMPLETED, monitor.getState());
+        assertEquals(100, monitor.getProgress());
+        assertNotNull(monitor.getResult());
+    }
+
+    @Test
+    public void thatRunningTaskCanBeCancelled() throws Exception
+    {
+        CountDownLatch firstDocumentReached = new CountDownLatch(1);
+        when(documentService.readAnnotationCas(eq(documents.get(0)), any(String.class), any(),
+                any())).then(_call -> {
+                    firstDocumentReached.countDown();
+                    // Blocks until the task is interrupted
+                    new CountDownLatch(1).await();
+                    return makeCas();
+                });
+
+        AgreementTaskHandle handle = sut.startAgreementTask(project, measure, "user");
+        AgreementTaskMonitor monitor = sut.getTaskMonitor(handle);
+
+        assertTrue(firstDocumentReached.await(10, SECONDS));
+        assertTrue(sut.cancelTask(handle));
+        awaitTermination(monitor);
+
+        assertEquals(CANCELLED, monitor.getState());
+        assertNull(monitor.getResult());
+    }
+
+    @Test
+    public void thatTaskForSameMeasureIsJoined() throws Exception
+    {
+        CountDownLatch released = new CountDownLatch(1);
+        when(documentService.readAnnotationCas(any(SourceDocument.class), any(String.class),
+                any(), any())).then(_call -> {
+                    released.await();
+                    return makeCas();
+                });
+
+        AgreementTaskHandle handle1 = sut.startAgreementTask(project, measure, "user1");
+        AgreementTaskHandle handle2 = sut.startAgreementTask(project, measure, "user2");
+
+        released.countDown();
+        awaitTermination(sut.getTaskMonitor(handle1));
+
+        AgreementTaskHandle handle3 = sut.startAgreementTask(project, measure, "user1");
+        awaitTermination(sut.getTaskMonitor(handle3));
+
+        assertSame(handle1, handle2);
+        assertNotSame(handle1, handle3);
+    }
+
+    private static void awaitTermination(AgreementTaskMonitor aMonitor) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (asList(NOT_STARTED, RUNNING).contains(aMonitor.getState())) {
+            assertTrue("Task did not terminate", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void verifyCalculations(int aDocumentIndex, int aTimes)
+    {
+        verify(measure, times(aTimes)).getDocumentAgreement(anyMap(), eq(aDocumentIndex));
+    }
+
+    private SourceDocument makeDocument(long aId)
+    {
+        SourceDocument document = new SourceDocument("doc" + aId, project, "text");
+        document.setId(aId);
+        return document;
+    }
+
+    private static CAS makeCas() throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText("This is a test.");
+        POS pos = new POS(jcas, 0, 4);
+        pos.setPosValue("DT");
+        pos.addToIndexes();
+        return jcas.getCas();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement.measures;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.TOKENS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.OverlapMode.NO_OVERLAP;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.dkpro.statistics.agreement.unitizing.IUnitizingAnnotationStudy;
+import org.dkpro.statistics.agreement.unitizing.IUnitizingAnnotationUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaunitizing.KrippendorffAlphaUnitizingAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaunitizing.KrippendorffAlphaUnitizingAgreementMeasureSupport;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.krippendorffalphaunitizing.KrippendorffAlphaUnitizingAgreementTraits;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.results.unitizing.UnitizingAgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+
+public class KrippendorffAlphaUnitizingAgreementMeasureTest
+    extends AgreementMeasureTestSuite_ImplBase
+{
+    private AgreementMeasureSupport<KrippendorffAlphaUnitizingAgreementTraits, //
+            PairwiseAnnotationResult<UnitizingAgreementResult>, IUnitizingAnnotationStudy> sut;
+    private KrippendorffAlphaUnitizingAgreementTraits traits;
+    private AnnotationFeature feature;
+
+    @Override
+    @Before
+    public void setup()
+    {
+        super.setup();
+
+        sut = new KrippendorffAlphaUnitizingAgreementMeasureSupport(annotationService);
+        traits = sut.createTraits();
+
+        AnnotationLayer layer = new AnnotationLayer(POS.class.getName(), POS.class.getSimpleName(),
+                SPAN_TYPE, project, false, TOKENS, NO_OVERLAP);
+        layer.setId(1l);
+        layers.add(layer);
+
+        feature = new AnnotationFeature(project, layer, "PosValue", "PosValue",
+                CAS.TYPE_NAME_STRING);
+        feature.setId(1l);
+        features.add(feature);
+    }
+
+    @Test
+    public void thatAggregatedDocumentsEqualAllDocumentsAtOnce() throws Exception
+    {
+        // The documents have different sizes so that a wrong continuum shift would be noticed
+        CAS user1Doc1 = makeCas("This is a test.", 0, 4, "DT", 5, 7, "VB");
+        CAS user2Doc1 = makeCas("This is a test.", 0, 4, "DT", 5, 7, "NN");
+        CAS user1Doc2 = makeCas("Short.", 0, 5, "JJ");
+        CAS user2Doc2 = makeCas("Short.", 0, 5, "JJ");
+        CAS user1Doc3 = makeCas("A somewhat longer third document.", 2, 10, "RB", 18, 23, "JJ");
+        CAS user2Doc3 = makeCas("A somewhat longer third document.", 2, 10, "RB", 24, 32,
+                "NN");
+
+        KrippendorffAlphaUnitizingAgreementMeasure measure =
+                (KrippendorffAlphaUnitizingAgreementMeasure) sut.createMeasure(feature, traits);
+
+        Map<String, List<CAS>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", asList(user1Doc1, user1Doc2, user1Doc3));
+        casByUser.put("user2", asList(user2Doc1, user2Doc2, user2Doc3));
+        UnitizingAgreementResult expected = measure.getAgreement(casByUser)
+                .getStudy("user1", "user2");
+
+        List<PairwiseAnnotationResult<UnitizingAgreementResult>> documentResults = asList(
+                measure.getDocumentAgreement(documentCases(user1Doc1, user2Doc1), 0),
+                measure.getDocumentAgreement(documentCases(user1Doc2, user2Doc2), 1),
+                measure.getDocumentAgreement(documentCases(user1Doc3, user2Doc3), 2));
+        UnitizingAgreementResult actual = measure.aggregate(documentResults)
+                .getStudy("user1", "user2");
+
+        assertEquals(15 + 6 + 33, actual.getStudy().getContinuumLength());
+        assertEquals(expected.getStudy().getContinuumLength(),
+                actual.getStudy().getContinuumLength());
+        assertEquals(units(expected.getStudy()), units(actual.getStudy()));
+        assertTrue(units(actual.getStudy())
+                .containsAll(asList("15+5:0:JJ", "15+5:1:JJ", "23+8:0:RB", "45+8:0:NN")));
+        assertEquals(expected.getAgreement(), actual.getAgreement(), 0.00001d);
+    }
+
+    private static Map<String, CAS> documentCases(CAS aUser1Cas, CAS aUser2Cas)
+    {
+        Map<String, CAS> cases = new LinkedHashMap<>();
+        cases.put("user1", aUser1Cas);
+        cases.put("user2", aUser2Cas);
+        return cases;
+    }
+
+    private static List<String> units(IUnitizingAnnotationStudy aStudy)
+    {
+        return aStudy.getUnits().stream().map(KrippendorffAlphaUnitizingAgreementMeasureTest::unit)
+                .sorted().collect(toList());
+    }
+
+    private static String unit(IUnitizingAnnotationUnit aUnit)
+    {
+        return aUnit.getOffset() + "+" + aUnit.getLength() + ":" + aUnit.getRaterIdx() + ":"
+                + aUnit.getCategory();
+    }
+
+    private static CAS makeCas(String aText, Object... aAnnotations) throws Exception
+    {
+        JCas jcas = JCasFactory.createJCas();
+        jcas.setDocumentText(aText);
+        for (int i = 0; i < aAnnotations.length; i += 3) {
+            POS pos = new POS(jcas, (int) aAnnotations[i], (int) aAnnotations[i + 1]);
+            pos.setPosValue((String) aAnnotations[i + 2]);
+            pos.addToIndexes();
+        }
+        return jcas.getCas();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.agreement.measures;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.SINGLE_TOKEN;
+import static de.tudarmstadt.ukp.clarin.webanno.model.OverlapMode.NO_OVERLAP;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.agreement.PairwiseAnnotationResult;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.cohenkappa.CohenKappaAgreementMeasure;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.results.coding.CodingAgreementResult;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
+
+public class PairwiseAgreementTest
+    extends AgreementMeasureTestSuite_ImplBase
+{
+    private static final String[] TAGS = { "NN", "VV", "ADJ", "ADV", "DET" };
+
+    private AnnotationFeature feature;
+
+    @Override
+    @Before
+    public void setup()
+    {
+        super.setup();
+
+        AnnotationLayer layer = new AnnotationLayer(POS.class.getName(), POS.class.getSimpleName(),
+                SPAN_TYPE, project, false, SINGLE_TOKEN, NO_OVERLAP);
+        layer.setId(1l);
+        layers.add(layer);
+
+        feature = new AnnotationFeature(project, layer, "PosValue", "PosValue",
+                CAS.TYPE_NAME_STRING);
+        feature.setId(1l);
+        features.add(feature);
+    }
+
+    @Test
+    public void thatProjectedResultsMatchPairwiseResults() throws Exception
+    {
+        Map<String, List<CAS>> casByUser = generateProject(5, 3, 200);
+
+        CohenKappaAgreementMeasure measure = new CohenKappaAgreementMeasure(feature,
+                new DefaultAgreementTraits(), annotationService);
+
+        PairwiseAnnotationResult<CodingAgreementResult> result = measure.getAgreement(casByUser);
+
+        List<String> users = new ArrayList<>(casByUser.keySet());
+        for (int m = 0; m < users.size(); m++) {
+            for (int n = 0; n < m; n++) {
+                Map<String, List<CAS>> pairwiseCasByUser = new LinkedHashMap<>();
+                pairwiseCasByUser.put(users.get(m), casByUser.get(users.get(m)));
+                pairwiseCasByUser.put(users.get(n), casByUser.get(users.get(n)));
+
+                CodingAgreementResult expected = measure
+                        .calculatePairAgreement(pairwiseCasByUser);
+                CodingAgreementResult actual = result.getStudy(users.get(m), users.get(n));
+
+                assertEquals(expected.getAgreement(), actual.getAgreement(), 0.000001d);
+                assertEquals(expected.getTotalSetCount(), actual.getTotalSetCount());
+                assertEquals(expected.getRelevantSetCount(), actual.getRelevantSetCount());
+                assertEquals(expected.getDiffSetCount(), actual.getDiffSetCount());
+                assertEquals(expected.getUnusableSetCount(), actual.getUnusableSetCount());
+                assertEquals(expected.getStudy().getItemCount(),
+                        actual.getStudy().getItemCount());
+            }
+        }
+    }
+
+    @Test
+    public void thatAggregatedDocumentResultsMatchProjectResults() throws Exception
+    {
+        Map<String, List<CAS>> casByUser = generateProject(4, 3, 200);
+
+        CohenKappaAgreementMeasure measure = new CohenKappaAgreementMeasure(feature,
+                new DefaultAgreementTraits(), annotationService);
+
+        List<PairwiseAnnotationResult<CodingAgreementResult>> documentResults = new ArrayList<>();
+        for (int d = 0; d < 3; d++) {
+            Map<String, CAS> documentCasByUser = new LinkedHashMap<>();
+            for (Map.Entry<String, List<CAS>> e : casByUser.entrySet()) {
+                documentCasByUser.put(e.getKey(), e.getValue().get(d));
+            }
+            documentResults.add(measure.getDocumentAgreement(documentCasByUser, d));
+        }
+
+        PairwiseAnnotationResult<CodingAgreementResult> expected = measure
+                .getAgreement(casByUser);
+        PairwiseAnnotationResult<CodingAgreementResult> actual = measure
+                .aggregate(documentResults);
+
+        assertEquals(expected.getRaters(), actual.getRaters());
+        List<String> users = new ArrayList<>(casByUser.keySet());
+        for (int m = 0; m < users.size(); m++) {
+            for (int n = 0; n < m; n++) {
+                CodingAgreementResult expectedPair = expected.getStudy(users.get(m), users.get(n));
+                CodingAgreementResult actualPair = actual.getStudy(users.get(m), users.get(n));
+
+                assertEquals(expectedPair.getAgreement(), actualPair.getAgreement(), 0.000001d);
+                assertEquals(expectedPair.getTotalSetCount(), actualPair.getTotalSetCount());
+                assertEquals(expectedPair.getRelevantSetCount(),
+                        actualPair.getRelevantSetCount());
+                assertEquals(expectedPair.getDiffSetCount(), actualPair.getDiffSetCount());
+                assertEquals(expectedPair.getUnusableSetCount(),
+                        actualPair.getUnusableSetCount());
+                assertEquals(expectedPair.getStudy().getItemCount(),
+                        actualPair.getStudy().getItemCount());
+            }
+        }
+    }
+
+    @Ignore("Benchmark - run manually")
+    @Test
+    public void benchmarkPairwiseAgreement() throws Exception
+    {
+        CohenKappaAgreementMeasure measure = new CohenKappaAgreementMeasure(feature,
+                new DefaultAgreementTraits(), annotationService);
+
+        for (int annotators : new int[] { 5, 20, 50 }) {
+            Map<String, List<CAS>> casByUser = generateProject(annotators, 10, 2000);
+
+            // Run twice - the first round serves as warm-up
+            for (int round = 0; round < 2; round++) {
+                long start = System.currentTimeMillis();
+                List<String> users = new ArrayList<>(casByUser.keySet());
+                for (int m = 0; m < users.size(); m++) {
+                    for (int n = 0; n < m; n++) {
+                        Map<String, List<CAS>> pairwiseCasByUser = new LinkedHashMap<>();
+                        pairwiseCasByUser.put(users.get(m), casByUser.get(users.get(m)));
+                        pairwiseCasByUser.put(users.get(n), casByUser.get(users.get(n)));
+                        measure.calculatePairAgreement(pairwiseCasByUser);
+                    }
+                }
+                long pairwiseDuration = System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                measure.getAgreement(casByUser);
+                long projectedDuration = System.currentTimeMillis() - start;
+
+                System.out.printf("%d annotators: diff per pair %d ms - projected diff %d ms%n",
+                        annotators, pairwiseDuration, projectedDuration);
+            }
+        }
+    }
+
+    /**
+     * Generates a project in which every annotator has tagged the same documents. Each annotator
+     * skips some of the tokens and deviates from a shared gold label on others.
+     */
+    private Map<String, List<CAS>> generateProject(int aAnnotators, int aDocuments, int aTokens)
+        throws Exception
+    {
+        Random rnd = new Random(aAnnotators);
+
+        String[][] gold = new String[aDocuments][aTokens];
+        for (int d = 0; d < aDocuments; d++) {
+            for (int t = 0; t < aTokens; t++) {
+                gold[d][t] = TAGS[rnd.nextInt(TAGS.length)];
+            }
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int t = 0; t < aTokens; t++) {
+            text.append("tok ");
+        }
+
+        Map<String, List<CAS>> casByUser = new LinkedHashMap<>();
+        for (int a = 0; a < aAnnotators; a++) {
+            List<CAS> casses = new ArrayList<>();
+            for (int d = 0; d < aDocuments; d++) {
+                JCas jcas = JCasFactory.createJCas();
+                jcas.setDocumentText(text.toString());
+                for (int t = 0; t < aTokens; t++) {
+                    if (rnd.nextInt(10) == 0) {
+                        continue;
+                    }
+
+                    POS pos = new POS(jcas, t * 4, t * 4 + 3);
+                    pos.setPosValue(rnd.nextInt(5) == 0 ? TAGS[rnd.nextInt(TAGS.length)]
+                            : gold[d][t]);
+                    pos.addToIndexes();
+                }
+                casses.add(jcas.getCas());
+            }
+            casByUser.put("user" + a, casses);
+        }
+
+        return casByUser;
+    }
+}
@@ -149,20 +149,7 @@ public abstract class AnnotationEditorBase
                 aWindowEndOffset);
 
         // Fire render event into UI
-        Page page = null;
-        Optional<IPageRequestHandler> handler = RequestCycle.get().find(IPageRequestHandler.class);
-        if (handler.isPresent()) {
-            page = (Page) handler.get().getPage();
-        }
-        ;
-
-        if (page == null) {
-            page = getPage();
-        }
-        send(page, Broadcast.BREADTH,
-                new RenderAnnotationsEvent(
-                        RequestCycle.get().find(IPartialPageRequestHandler.class).get(), aCas,
-                        getModelObject(), vdoc));
+        fireRenderAnnotationsEvent(aCas, vdoc);
 
         if (isHighlightEnabled()) {
             AnnotatorState state = getModelObject();
@@ -182,6 +169,28 @@ public abstract class AnnotationEditorBase
         return vdoc;
     }
 
+    /**
+     * Informs the UI components that the annotations have been rendered. Editors which re-use a
+     * previous rendering instead of calling {@link #render(CAS, int, int)} should still call this
+     * method so components depending on the event are updated.
+     */
+    protected void fireRenderAnnotationsEvent(CAS aCas, VDocument aVDoc)
+    {
+        Page page = null;
+        Optional<IPageRequestHandler> handler = RequestCycle.get().find(IPageRequestHandler.class);
+        if (handler.isPresent()) {
+            page = (Page) handler.get().getPage();
+        }
+
+        if (page == null) {
+            page = getPage();
+        }
+        send(page, Broadcast.BREADTH,
+                new RenderAnnotationsEvent(
+                        RequestCycle.get().find(IPartialPageRequestHandler.class).get(), aCas,
+                        getModelObject(), aVDoc));
+    }
+
     private List<AnnotationLayer> getLayersToRender()
     {
         AnnotatorState state = getModelObject();
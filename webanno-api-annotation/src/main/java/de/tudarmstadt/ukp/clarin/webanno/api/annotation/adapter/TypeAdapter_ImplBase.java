@@ -20,12 +20,12 @@ package de.tudarmstadt.ukp.clarin.webanno.api.annotation.adapter;
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectFsByAddr;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 import org.apache.uima.cas.CAS;
@@ -54,11 +54,11 @@ public abstract class TypeAdapter_ImplBase
 
     private final Supplier<Collection<AnnotationFeature>> featureSupplier;
 
-    private Map<String, AnnotationFeature> features;
+    private volatile Map<String, AnnotationFeature> features;
 
     private ApplicationEventPublisher applicationEventPublisher;
 
-    private Map<AnnotationLayer, Object> layerTraitsCache;
+    private final Map<AnnotationLayer, Object> layerTraitsCache = new ConcurrentHashMap<>();
 
     /**
      * Constructor.
@@ -100,16 +100,18 @@ public abstract class TypeAdapter_ImplBase
     @Override
     public Collection<AnnotationFeature> listFeatures()
     {
-        if (features == null) {
+        Map<String, AnnotationFeature> result = features;
+        if (result == null) {
             // Using a sorted map here so we have reliable positions in the map when iterating. We
             // use these positions to remember the armed slots!
-            features = new TreeMap<>();
+            result = new TreeMap<>();
             for (AnnotationFeature f : featureSupplier.get()) {
-                features.put(f.getName(), f);
+                result.put(f.getName(), f);
             }
+            features = result;
         }
 
-        return features.values();
+        return result.values();
     }
 
     @Override
@@ -200,10 +202,6 @@ public abstract class TypeAdapter_ImplBase
     @SuppressWarnings("unchecked")
     public <T> Optional<T> getTraits(Class<T> aInterface)
     {
-        if (layerTraitsCache == null) {
-            layerTraitsCache = new HashMap<>();
-        }
-
         Object trait = layerTraitsCache.computeIfAbsent(getLayer(),
                 feature -> layerSupportRegistry.getLayerSupport(feature).readTraits(feature));
 
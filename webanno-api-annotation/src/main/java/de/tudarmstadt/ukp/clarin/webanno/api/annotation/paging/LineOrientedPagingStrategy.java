@@ -17,9 +17,6 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging;
 
-import static org.apache.commons.lang3.StringUtils.splitPreserveAllTokens;
-
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.uima.cas.CAS;
@@ -38,22 +35,13 @@ public class LineOrientedPagingStrategy
     @Override
     public List<Unit> units(CAS aCas, int aFirstIndex, int aLastIndex)
     {
-        // We need to preserve all tokens so we can add a +1 for the line breaks of empty lines.
-        String[] lines = splitPreserveAllTokens(aCas.getDocumentText(), '\n');
-
-        List<Unit> units = new ArrayList<>();
-        int beginOffset = 0;
-        for (int i = 0; i < Math.min(lines.length, aLastIndex); i++) {
-
-            if (i >= aFirstIndex) {
-                units.add(new Unit(i + 1, beginOffset, beginOffset + lines[i].length()));
-            }
-
-            // The +1 below accounts for the line break which is not included in the token
-            beginOffset += lines[i].length() + 1;
-        }
+        return unitIndex(aCas).units(aFirstIndex, aLastIndex);
+    }
 
-        return units;
+    @Override
+    public UnitOffsetIndex unitIndex(CAS aCas)
+    {
+        return UnitOffsetIndexCache.lines(aCas);
     }
 
     @Override
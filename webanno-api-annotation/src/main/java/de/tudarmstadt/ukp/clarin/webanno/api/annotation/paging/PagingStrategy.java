@@ -21,7 +21,6 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging.FocusPosit
 
 import java.io.Serializable;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.apache.uima.cas.CAS;
 import org.apache.wicket.Component;
@@ -46,6 +45,15 @@ public interface PagingStrategy
 
     DefaultPagingNavigator createPageNavigator(String aId, AnnotationPageBase aPage);
 
+    /**
+     * Returns the offsets of all units. The default implementation materializes all units on every
+     * call - implementations should return a cached index (cf. {@link UnitOffsetIndexCache}).
+     */
+    default UnitOffsetIndex unitIndex(CAS aCas)
+    {
+        return UnitOffsetIndex.of(units(aCas));
+    }
+
     default void moveToOffset(AnnotatorViewState aState, CAS aCas, int aOffset, FocusPosition aPos)
     {
         switch (aPos) {
@@ -54,20 +62,21 @@ public interface PagingStrategy
             break;
         }
         case CENTERED: {
-            List<Unit> units = units(aCas);
+            UnitOffsetIndex index = unitIndex(aCas);
 
             // Find the unit containing the given offset
-            Unit unit = units.stream().filter(u -> u.getBegin() <= aOffset && aOffset <= u.getEnd())
-                    .findFirst().orElseThrow(() -> new IllegalArgumentException(
-                            "No unit contains character offset [" + aOffset + "]"));
+            int unitIndex = index.unitContaining(aOffset);
+            if (unitIndex < 1) {
+                throw new IllegalArgumentException(
+                        "No unit contains character offset [" + aOffset + "]");
+            }
 
             // How many rows to display before the unit such that the unit is centered?
             int rowsInPageBeforeUnit = aState.getPreferences().getWindowSize() / 2;
-            // The -1 below is because unit.getIndex() is 1-based
-            Unit firstUnit = units.get(Math.max(0, unit.getIndex() - rowsInPageBeforeUnit - 1));
+            Unit firstUnit = index.unit(Math.max(1, unitIndex - rowsInPageBeforeUnit));
 
             aState.setPageBegin(aCas, firstUnit.getBegin());
-            aState.setFocusUnitIndex(unit.getIndex());
+            aState.setFocusUnitIndex(unitIndex);
             break;
         }
         default:
@@ -90,7 +99,7 @@ public interface PagingStrategy
      */
     default int unitCount(CAS aCas)
     {
-        return units(aCas).size();
+        return unitIndex(aCas).size();
     }
 
     /**
@@ -106,19 +115,21 @@ public interface PagingStrategy
             index = 1;
         }
 
-        List<Unit> units = units(aCas);
+        UnitOffsetIndex units = unitIndex(aCas);
 
         if (index > units.size()) {
             index = units.size();
         }
 
-        return units.get(index - 1);
+        return units.unit(index);
     }
 
     default List<Unit> unitsStartingAtOffset(CAS aCas, int aOffset, int aCount)
     {
-        return units(aCas).stream().filter(unit -> unit.getBegin() >= aOffset).limit(aCount)
-                .collect(Collectors.toList());
+        UnitOffsetIndex units = unitIndex(aCas);
+        int first = units.firstUnitStartingAtOrAfter(aOffset);
+        // Compute the last index in long to avoid an overflow for large counts
+        return units.units(first, (int) Math.min(units.size(), (long) first + aCount - 1));
     }
 
     /**
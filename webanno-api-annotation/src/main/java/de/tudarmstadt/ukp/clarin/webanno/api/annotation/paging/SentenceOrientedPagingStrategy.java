@@ -17,22 +17,15 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging;
 
-import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectSentences;
-
-import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.uima.cas.CAS;
-import org.apache.uima.cas.text.AnnotationFS;
-import org.apache.uima.fit.util.CasUtil;
-import org.apache.uima.fit.util.FSUtil;
 import org.apache.wicket.Component;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.model.IModel;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.page.AnnotationPageBase;
-import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
 
 public class SentenceOrientedPagingStrategy
     implements PagingStrategy
@@ -42,35 +35,13 @@ public class SentenceOrientedPagingStrategy
     @Override
     public List<Unit> units(CAS aCas, int aFirstIndex, int aLastIndex)
     {
-        List<Unit> units = new ArrayList<>();
-        int i = 1;
-        for (AnnotationFS sentence : selectSentences(aCas)) {
-            if (i > aLastIndex) {
-                break;
-            }
-
-            if (i >= aFirstIndex) {
-                units.add(toUnit(i, sentence));
-            }
-
-            i++;
-        }
-        return units;
+        return unitIndex(aCas).units(aFirstIndex, aLastIndex);
     }
 
     @Override
-    public int unitCount(CAS aCas)
-    {
-        // This is way faster than the default implementation which first materializes all units
-        return aCas.getAnnotationIndex(CasUtil.getType(aCas, Sentence.class)).size();
-    }
-
-    private Unit toUnit(int aIndex, AnnotationFS aSentence)
+    public UnitOffsetIndex unitIndex(CAS aCas)
     {
-        // If there is a sentence ID, then make it accessible to the user via a sentence-level
-        // comment.
-        String sentId = FSUtil.getFeature(aSentence, "id", String.class);
-        return new Unit(sentId, aIndex, aSentence.getBegin(), aSentence.getEnd());
+        return UnitOffsetIndexCache.sentences(aCas);
     }
 
     @Override
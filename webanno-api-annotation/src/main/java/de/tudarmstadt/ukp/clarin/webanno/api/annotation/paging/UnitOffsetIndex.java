@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging;
+
+import static java.util.Arrays.binarySearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The begin and end offsets of all units of a document in primitive arrays. Units are expected to
+ * be non-overlapping and sorted by their begin offset, so that positions can be mapped to units by
+ * binary search instead of iterating over all units from the start of the document. If this is
+ * not the case, e.g. because a CAS contains overlapping sentences, the lookups fall back to a
+ * linear scan in unit order.
+ */
+public final class UnitOffsetIndex
+{
+    private final int[] begins;
+    private final int[] ends;
+    private final String[] ids;
+    private final boolean ordered;
+
+    /**
+     * @param aBegins
+     *            begin offsets of the units in document order
+     * @param aEnds
+     *            end offsets of the units in document order
+     * @param aIds
+     *            unit IDs in document order or {@code null} if the units have no IDs
+     */
+    public UnitOffsetIndex(int[] aBegins, int[] aEnds, String[] aIds)
+    {
+        if (aBegins.length != aEnds.length || (aIds != null && aIds.length != aBegins.length)) {
+            throw new IllegalArgumentException("Begins, ends and IDs must have the same length");
+        }
+
+        begins = aBegins;
+        ends = aEnds;
+        ids = aIds;
+        ordered = isOrdered(aBegins, aEnds);
+    }
+
+    public static UnitOffsetIndex of(List<Unit> aUnits)
+    {
+        int[] begins = new int[aUnits.size()];
+        int[] ends = new int[aUnits.size()];
+        String[] ids = new String[aUnits.size()];
+        for (int i = 0; i < aUnits.size(); i++) {
+            Unit unit = aUnits.get(i);
+            begins[i] = unit.getBegin();
+            ends[i] = unit.getEnd();
+            ids[i] = unit.getId();
+        }
+        return new UnitOffsetIndex(begins, ends, ids);
+    }
+
+    /**
+     * Returns the total number of units.
+     */
+    public int size()
+    {
+        return begins.length;
+    }
+
+    /**
+     * @param aIndex
+     *            index of the unit (1-based)
+     */
+    public Unit unit(int aIndex)
+    {
+        int i = aIndex - 1;
+        return new Unit(ids != null ? ids[i] : null, aIndex, begins[i], ends[i]);
+    }
+
+    /**
+     * Returns the units in a given index range. The range is 1-based and inclusive and it is capped
+     * to the units available.
+     */
+    public List<Unit> units(int aFirstIndex, int aLastIndex)
+    {
+        int first = Math.max(1, aFirstIndex);
+        int last = Math.min(size(), aLastIndex);
+
+        if (first > last) {
+            return Collections.emptyList();
+        }
+
+        List<Unit> units = new ArrayList<>(last - first + 1);
+        for (int i = first; i <= last; i++) {
+            units.add(unit(i));
+        }
+        return units;
+    }
+
+    /**
+     * Returns the index (1-based) of the first unit which begins at or after the given offset or
+     * {@code size() + 1} if there is no such unit.
+     */
+    public int firstUnitStartingAtOrAfter(int aOffset)
+    {
+        if (!ordered) {
+            for (int i = 0; i < begins.length; i++) {
+                if (begins[i] >= aOffset) {
+                    return i + 1;
+                }
+            }
+            return begins.length + 1;
+        }
+
+        return lowerBound(begins, aOffset) + 1;
+    }
+
+    /**
+     * Returns the index (1-based) of the first unit which contains the given offset (begin and end
+     * inclusive) or {@code -1} if there is no such unit.
+     */
+    public int unitContaining(int aOffset)
+    {
+        if (!ordered) {
+            for (int i = 0; i < begins.length; i++) {
+                if (begins[i] <= aOffset && aOffset <= ends[i]) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        int i = lowerBound(ends, aOffset);
+        if (i < ends.length && begins[i] <= aOffset) {
+            return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks that every unit is well-formed and that it does not begin before the previous unit
+     * ends. Then, both the begins and the ends are sorted, as required by the binary search.
+     */
+    private static boolean isOrdered(int[] aBegins, int[] aEnds)
+    {
+        for (int i = 0; i < aBegins.length; i++) {
+            if (aBegins[i] > aEnds[i] || (i > 0 && aBegins[i] < aEnds[i - 1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the position of the first value in the sorted array which is greater than or equal to
+     * the given value or the length of the array if there is no such value.
+     */
+    private static int lowerBound(int[] aValues, int aValue)
+    {
+        int pos = binarySearch(aValues, aValue);
+
+        if (pos < 0) {
+            return -(pos + 1);
+        }
+
+        // Equal values may occur multiple times (e.g. empty units), so find the first one
+        while (pos > 0 && aValues[pos - 1] == aValue) {
+            pos--;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getRealCas;
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectSentences;
+import static org.apache.uima.fit.util.CasUtil.getType;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.FeatureStructure;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.util.FSUtil;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.AnnotationEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.FeatureValueUpdatedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.SpanEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+
+/**
+ * Caches the {@link UnitOffsetIndex sentence and line offsets} of CASes so that paging through
+ * long documents does not need to iterate over all units from the start of the document on every
+ * request. The paging strategies are not Spring beans, so the cache itself is static. This
+ * component only takes care of dropping the indexes when a CAS is written or when a sentence is
+ * created, deleted or updated via the type adapters. An index is also rebuilt if the document text
+ * or the number of sentences of its CAS have changed.
+ * <p>
+ * Code which moves sentences in a CAS by other means and pages through the CAS before writing it
+ * must call {@link #invalidate(CAS)}.
+ */
+@Component
+public class UnitOffsetIndexCache
+{
+    // CASes are compared by identity and are not kept alive by the cache. The keys are always the
+    // real CASes - the CASes passed in may be thread-locking proxies while the CAS obtained from
+    // a feature structure is not.
+    private static final Cache<CAS, Entry> SENTENCES = Caffeine.newBuilder().weakKeys().build();
+    private static final Cache<CAS, Entry> LINES = Caffeine.newBuilder().weakKeys().build();
+
+    public static UnitOffsetIndex sentences(CAS aCas)
+    {
+        int sentenceCount = aCas.getAnnotationIndex(getType(aCas, Sentence.class)).size();
+
+        CAS key = getRealCas(aCas);
+        Entry entry = SENTENCES.getIfPresent(key);
+        if (entry == null || !entry.isValid(aCas.getDocumentText(), sentenceCount)) {
+            entry = new Entry(aCas.getDocumentText(), sentenceCount,
+                    buildSentenceIndex(aCas, sentenceCount));
+            SENTENCES.put(key, entry);
+        }
+        return entry.index;
+    }
+
+    public static UnitOffsetIndex lines(CAS aCas)
+    {
+        CAS key = getRealCas(aCas);
+        Entry entry = LINES.getIfPresent(key);
+        if (entry == null || !entry.isValid(aCas.getDocumentText(), 0)) {
+            entry = new Entry(aCas.getDocumentText(), 0, buildLineIndex(aCas.getDocumentText()));
+            LINES.put(key, entry);
+        }
+        return entry.index;
+    }
+
+    public static void invalidate(CAS aCas)
+    {
+        CAS key = getRealCas(aCas);
+        SENTENCES.invalidate(key);
+        LINES.invalidate(key);
+    }
+
+    @EventListener
+    public void onAfterCasWritten(AfterCasWrittenEvent aEvent)
+    {
+        invalidate(aEvent.getCas());
+    }
+
+    @EventListener
+    public void onAnnotationEvent(AnnotationEvent aEvent)
+    {
+        if (aEvent.getLayer() == null
+                || !Sentence.class.getName().equals(aEvent.getLayer().getName())) {
+            return;
+        }
+
+        FeatureStructure fs = null;
+        if (aEvent instanceof SpanEvent) {
+            fs = ((SpanEvent) aEvent).getAnnotation();
+        }
+        else if (aEvent instanceof FeatureValueUpdatedEvent) {
+            // The sentence ID is part of the index
+            fs = ((FeatureValueUpdatedEvent) aEvent).getFS();
+        }
+
+        if (fs != null) {
+            invalidate(fs.getCAS());
+        }
+    }
+
+    private static UnitOffsetIndex buildSentenceIndex(CAS aCas, int aSentenceCount)
+    {
+        int[] begins = new int[aSentenceCount];
+        int[] ends = new int[aSentenceCount];
+        String[] ids = new String[aSentenceCount];
+        int i = 0;
+        for (AnnotationFS sentence : selectSentences(aCas)) {
+            begins[i] = sentence.getBegin();
+            ends[i] = sentence.getEnd();
+            // If there is a sentence ID, then make it accessible to the user via a sentence-level
+            // comment.
+            ids[i] = FSUtil.getFeature(sentence, "id", String.class);
+            i++;
+        }
+        return new UnitOffsetIndex(begins, ends, ids);
+    }
+
+    private static UnitOffsetIndex buildLineIndex(String aText)
+    {
+        // An empty document has no lines at all
+        if (aText == null || aText.isEmpty()) {
+            return new UnitOffsetIndex(new int[0], new int[0], null);
+        }
+
+        // Every line break starts a new line - also if it is the last character or follows
+        // another line break. So empty lines are units as well.
+        int lineCount = 1;
+        for (int i = 0; i < aText.length(); i++) {
+            if (aText.charAt(i) == '\n') {
+                lineCount++;
+            }
+        }
+
+        int[] begins = new int[lineCount];
+        int[] ends = new int[lineCount];
+        int line = 0;
+        int beginOffset = 0;
+        for (int i = 0; i < aText.length(); i++) {
+            if (aText.charAt(i) == '\n') {
+                begins[line] = beginOffset;
+                ends[line] = i;
+                line++;
+                // The +1 accounts for the line break which is not part of the line
+                beginOffset = i + 1;
+            }
+        }
+        begins[line] = beginOffset;
+        ends[line] = aText.length();
+
+        return new UnitOffsetIndex(begins, ends, null);
+    }
+
+    private static final class Entry
+    {
+        private final String text;
+        private final int unitAnnotationCount;
+        private final UnitOffsetIndex index;
+
+        private Entry(String aText, int aUnitAnnotationCount, UnitOffsetIndex aIndex)
+        {
+            text = aText;
+            unitAnnotationCount = aUnitAnnotationCount;
+            index = aIndex;
+        }
+
+        private boolean isValid(String aText, int aUnitAnnotationCount)
+        {
+            // The document text of a CAS cannot be changed, so if it is a different object, it is
+            // a different document (e.g. because the CAS was reset and reused). Sentences which
+            // were moved without changing their number are not detected here - checking all
+            // boundaries would defeat the purpose of the cache. Such changes are handled by
+            // invalidating the entry instead.
+            return text == aText && unitAnnotationCount == aUnitAnnotationCount;
+        }
+    }
+}
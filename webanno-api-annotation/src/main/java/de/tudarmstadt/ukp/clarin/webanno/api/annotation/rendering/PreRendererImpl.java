@@ -17,11 +17,14 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering;
 
+import static java.util.Collections.emptyList;
 import static java.util.concurrent.TimeUnit.MINUTES;
-import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.groupingBy;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.Validate;
 import org.apache.uima.cas.CAS;
@@ -47,8 +50,7 @@ public class PreRendererImpl
     private final AnnotationSchemaService annotationService;
     private final LayerSupportRegistry layerSupportRegistry;
 
-    private LoadingCache<Project, List<AnnotationFeature>> supportedFeaturesCache;
-    private LoadingCache<Project, List<AnnotationFeature>> allFeaturesCache;
+    private LoadingCache<Project, ProjectRenderers> renderersCache;
 
     @Autowired
     public PreRendererImpl(LayerSupportRegistry aLayerSupportRegistry,
@@ -57,10 +59,8 @@ public class PreRendererImpl
         layerSupportRegistry = aLayerSupportRegistry;
         annotationService = aAnnotationService;
 
-        supportedFeaturesCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
-                .maximumSize(10 * 1024).build(annotationService::listSupportedFeatures);
-        allFeaturesCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
-                .maximumSize(10 * 1024).build(annotationService::listAnnotationFeature);
+        renderersCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
+                .maximumSize(10 * 1024).build(this::loadProjectRenderers);
     }
 
     @Override
@@ -79,22 +79,13 @@ public class PreRendererImpl
 
         // Listing the features once is faster than repeatedly hitting the DB to list features for
         // every layer.
-        List<AnnotationFeature> supportedFeatures = supportedFeaturesCache.get(project);
-        List<AnnotationFeature> allFeatures = allFeaturesCache.get(project);
+        ProjectRenderers renderers = renderersCache.get(project);
 
         // Render (custom) layers
         for (AnnotationLayer layer : aLayers) {
-            List<AnnotationFeature> layerSupportedFeatures = supportedFeatures.stream() //
-                    .filter(feature -> feature.getLayer().equals(layer)) //
-                    .collect(toList());
-            List<AnnotationFeature> layerAllFeatures = allFeatures.stream() //
-                    .filter(feature -> feature.getLayer().equals(layer)) //
-                    .collect(toList());
-            // We need to pass in *all* the annotation features here because we also to that in
-            // other places where we create renderers - and the set of features must always be
-            // the same because otherwise the IDs of armed slots would be inconsistent
-            Renderer renderer = layerSupportRegistry.getLayerSupport(layer) //
-                    .createRenderer(layer, () -> layerAllFeatures);
+            List<AnnotationFeature> layerSupportedFeatures = renderers.supportedFeatures
+                    .getOrDefault(layer, emptyList());
+            Renderer renderer = renderers.getRenderer(layer);
             renderer.render(aCas, layerSupportedFeatures, aResponse, windowBegin, windowEnd);
         }
     }
@@ -102,7 +93,45 @@ public class PreRendererImpl
     @EventListener
     public void beforeLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
     {
-        supportedFeaturesCache.asMap().keySet()
+        renderersCache.asMap().keySet()
                 .removeIf(key -> Objects.equals(key.getId(), aEvent.getProject().getId()));
     }
+
+    private ProjectRenderers loadProjectRenderers(Project aProject)
+    {
+        return new ProjectRenderers(
+                annotationService.listSupportedFeatures(aProject).stream()
+                        .collect(groupingBy(AnnotationFeature::getLayer)),
+                annotationService.listAnnotationFeature(aProject).stream()
+                        .collect(groupingBy(AnnotationFeature::getLayer)));
+    }
+
+    /**
+     * The features of a project grouped by layer and the renderers created from them. Renderers
+     * are created on first use and are shared between requests until the layer configuration of
+     * the project changes.
+     */
+    private final class ProjectRenderers
+    {
+        private final Map<AnnotationLayer, List<AnnotationFeature>> supportedFeatures;
+        private final Map<AnnotationLayer, List<AnnotationFeature>> allFeatures;
+        private final Map<AnnotationLayer, Renderer> renderers = new ConcurrentHashMap<>();
+
+        private ProjectRenderers(Map<AnnotationLayer, List<AnnotationFeature>> aSupportedFeatures,
+                Map<AnnotationLayer, List<AnnotationFeature>> aAllFeatures)
+        {
+            supportedFeatures = aSupportedFeatures;
+            allFeatures = aAllFeatures;
+        }
+
+        private Renderer getRenderer(AnnotationLayer aLayer)
+        {
+            // We need to pass in *all* the annotation features here because we also to that in
+            // other places where we create renderers - and the set of features must always be
+            // the same because otherwise the IDs of armed slots would be inconsistent
+            return renderers.computeIfAbsent(aLayer,
+                    layer -> layerSupportRegistry.getLayerSupport(layer).createRenderer(layer,
+                            () -> allFeatures.getOrDefault(layer, emptyList())));
+        }
+    }
 }
@@ -18,19 +18,19 @@
 package de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering;
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getAddr;
-import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectAnnotationByAddr;
 import static java.util.Collections.emptyList;
 import static java.util.Comparator.comparingInt;
 import static org.apache.uima.fit.util.CasUtil.getType;
 import static org.apache.uima.fit.util.CasUtil.selectCovered;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.stream.Collectors;
 
 import org.apache.uima.cas.CAS;
@@ -54,6 +54,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VArc;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VComment;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VCommentType;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VDocument;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 
 /**
@@ -107,19 +108,13 @@ public class RelationRenderer
 
         Feature arcSpanFeature = spanType.getFeatureByBaseName(typeAdapter.getAttachFeatureName());
 
-        FeatureStructure dependentFs;
-        FeatureStructure governorFs;
-
-        Map<Integer, Set<Integer>> relationLinks = getRelationLinks(aCas, aWindowBegin, aWindowEnd,
-                type, dependentFeature, governorFeature, arcSpanFeature);
-
-        // if this is a governor for more than one dependent, avoid duplicate yield
-        List<Integer> yieldDeps = new ArrayList<>();
-
-        // Index mapping annotations to the corresponding rendered arcs
-        Map<AnnotationFS, VArc> annoToArcIdx = new HashMap<>();
-
+        // Resolve the endpoints of all relations in the window once and index the dependents of
+        // each governor by address - both the arcs and the yields are rendered from this
+        List<ResolvedRelation> relations = new ArrayList<>();
+        Map<Integer, List<FeatureStructure>> dependentsByGovernor = new HashMap<>();
         for (AnnotationFS fs : selectCovered(aCas, type, aWindowBegin, aWindowEnd)) {
+            FeatureStructure dependentFs;
+            FeatureStructure governorFs;
             if (typeAdapter.getAttachFeatureName() != null) {
                 dependentFs = fs.getFeatureValue(dependentFeature).getFeatureValue(arcSpanFeature);
                 governorFs = fs.getFeatureValue(governorFeature).getFeatureValue(arcSpanFeature);
@@ -129,6 +124,29 @@ public class RelationRenderer
                 governorFs = fs.getFeatureValue(governorFeature);
             }
 
+            relations.add(new ResolvedRelation(fs, governorFs, dependentFs));
+
+            if (dependentFs == null || governorFs == null) {
+                log.warn("Relation [" + typeAdapter.getLayer().getName() + "] with id ["
+                        + getAddr(fs) + "] has loose ends - cannot render.");
+                continue;
+            }
+
+            dependentsByGovernor.computeIfAbsent(getAddr(governorFs), k -> new ArrayList<>())
+                    .add(dependentFs);
+        }
+
+        // if this is a governor for more than one dependent, avoid duplicate yield
+        Set<Integer> yieldDeps = new HashSet<>();
+
+        // Index mapping annotations to the corresponding rendered arcs
+        Map<AnnotationFS, VArc> annoToArcIdx = new HashMap<>();
+
+        for (ResolvedRelation relation : relations) {
+            AnnotationFS fs = relation.fs;
+            FeatureStructure dependentFs = relation.dependent;
+            FeatureStructure governorFs = relation.governor;
+
             String bratTypeName = typeAdapter.getEncodedTypeName();
             Map<String, String> features = renderLabelFeatureValues(typeAdapter, fs,
                     visibleFeatures);
@@ -165,16 +183,10 @@ public class RelationRenderer
             // Render errors if required features are missing
             renderRequiredFeatureErrors(visibleFeatures, fs, aResponse);
 
-            if (relationLinks.keySet().contains(getAddr(governorFs))
-                    && !yieldDeps.contains(getAddr(governorFs))) {
-                yieldDeps.add(getAddr(governorFs));
+            if (yieldDeps.add(getAddr(governorFs))) {
+                List<AnnotationFS> sortedDepFs = getYield(governorFs, dependentsByGovernor);
 
-                // sort the annotations (begin, end)
-                List<Integer> sortedDepFs = new ArrayList<>(relationLinks.get(getAddr(governorFs)));
-                sortedDepFs
-                        .sort(comparingInt(arg0 -> selectAnnotationByAddr(aCas, arg0).getBegin()));
-
-                String cm = getYieldMessage(aCas, sortedDepFs);
+                String cm = getYieldMessage(sortedDepFs);
                 aResponse.add(new VComment(governorFs, VCommentType.YIELD, cm));
             }
         }
@@ -185,90 +197,71 @@ public class RelationRenderer
     }
 
     /**
-     * The relations yield message
+     * Collects the governor and all annotations transitively reachable from it via the dependent
+     * index, sorted by (begin, address). Each annotation is visited at most once, so cycles in the
+     * relation graph terminate.
      */
-    private String getYieldMessage(CAS aCas, List<Integer> sortedDepFs)
+    private List<AnnotationFS> getYield(FeatureStructure aGovernor,
+            Map<Integer, List<FeatureStructure>> aDependentsByGovernor)
     {
-        StringBuilder cm = new StringBuilder();
-        int end = -1;
-        for (Integer depFs : sortedDepFs) {
-            if (end == -1) {
-                cm.append(selectAnnotationByAddr(aCas, depFs).getCoveredText());
-                end = selectAnnotationByAddr(aCas, depFs).getEnd();
-            }
-            // if no space between token and punct
-            else if (end == selectAnnotationByAddr(aCas, depFs).getBegin()) {
-                cm.append(selectAnnotationByAddr(aCas, depFs).getCoveredText());
-                end = selectAnnotationByAddr(aCas, depFs).getEnd();
-            }
-            else if (end + 1 != selectAnnotationByAddr(aCas, depFs).getBegin()) {
-                cm.append(" ... ").append(selectAnnotationByAddr(aCas, depFs).getCoveredText());
-                end = selectAnnotationByAddr(aCas, depFs).getEnd();
-            }
-            else {
-                cm.append(" ").append(selectAnnotationByAddr(aCas, depFs).getCoveredText());
-                end = selectAnnotationByAddr(aCas, depFs).getEnd();
+        Set<Integer> visited = new HashSet<>();
+        List<AnnotationFS> yield = new ArrayList<>();
+        Deque<FeatureStructure> queue = new ArrayDeque<>();
+        visited.add(getAddr(aGovernor));
+        queue.add(aGovernor);
+        while (!queue.isEmpty()) {
+            FeatureStructure current = queue.poll();
+            yield.add((AnnotationFS) current);
+            for (FeatureStructure dep : aDependentsByGovernor.getOrDefault(getAddr(current),
+                    emptyList())) {
+                if (visited.add(getAddr(dep))) {
+                    queue.add(dep);
+                }
             }
-
         }
-        return cm.toString();
+
+        yield.sort(comparingInt(AnnotationFS::getBegin).thenComparingInt(WebAnnoCasUtil::getAddr));
+        return yield;
     }
 
     /**
-     * Get relation links to display in relation yield
+     * The relations yield message
      */
-    private Map<Integer, Set<Integer>> getRelationLinks(CAS aCas, int aWindowBegin, int aWindowEnd,
-            Type type, Feature dependentFeature, Feature governorFeature, Feature arcSpanFeature)
+    private String getYieldMessage(List<AnnotationFS> sortedDepFs)
     {
-        RelationAdapter typeAdapter = getTypeAdapter();
-        FeatureStructure dependentFs;
-        FeatureStructure governorFs;
-        Map<Integer, Set<Integer>> relations = new ConcurrentHashMap<>();
-
-        for (AnnotationFS fs : selectCovered(aCas, type, aWindowBegin, aWindowEnd)) {
-            if (typeAdapter.getAttachFeatureName() != null) {
-                dependentFs = fs.getFeatureValue(dependentFeature).getFeatureValue(arcSpanFeature);
-                governorFs = fs.getFeatureValue(governorFeature).getFeatureValue(arcSpanFeature);
-            }
-            else {
-                dependentFs = fs.getFeatureValue(dependentFeature);
-                governorFs = fs.getFeatureValue(governorFeature);
+        StringBuilder cm = new StringBuilder();
+        int end = -1;
+        for (AnnotationFS depFs : sortedDepFs) {
+            if (end == -1) {
+                cm.append(depFs.getCoveredText());
             }
-            if (dependentFs == null || governorFs == null) {
-                log.warn("Relation [" + typeAdapter.getLayer().getName() + "] with id ["
-                        + getAddr(fs) + "] has loose ends - cannot render.");
-                continue;
+            // if no space between token and punct
+            else if (end == depFs.getBegin()) {
+                cm.append(depFs.getCoveredText());
             }
-            Set<Integer> links = relations.get(getAddr(governorFs));
-            if (links == null) {
-                links = new ConcurrentSkipListSet<>();
+            else if (end + 1 != depFs.getBegin()) {
+                cm.append(" ... ").append(depFs.getCoveredText());
             }
-
-            links.add(getAddr(dependentFs));
-            relations.put(getAddr(governorFs), links);
-        }
-
-        // Update other subsequent links
-        for (int i = 0; i < relations.keySet().size(); i++) {
-            for (Integer fs : relations.keySet()) {
-                updateLinks(relations, fs);
+            else {
+                cm.append(" ").append(depFs.getCoveredText());
             }
+            end = depFs.getEnd();
         }
-        // to start displaying the text from the governor, include it
-        for (Integer fs : relations.keySet()) {
-            relations.get(fs).add(fs);
-        }
-        return relations;
+        return cm.toString();
     }
 
-    private void updateLinks(Map<Integer, Set<Integer>> aRelLinks, Integer aGov)
+    private static final class ResolvedRelation
     {
-        for (Integer dep : aRelLinks.get(aGov)) {
-            if (aRelLinks.containsKey(dep)
-                    && !aRelLinks.get(aGov).containsAll(aRelLinks.get(dep))) {
-                aRelLinks.get(aGov).addAll(aRelLinks.get(dep));
-                updateLinks(aRelLinks, dep);
-            }
+        private final AnnotationFS fs;
+        private final FeatureStructure governor;
+        private final FeatureStructure dependent;
+
+        private ResolvedRelation(AnnotationFS aFs, FeatureStructure aGovernor,
+                FeatureStructure aDependent)
+        {
+            fs = aFs;
+            governor = aGovernor;
+            dependent = aDependent;
         }
     }
 }
@@ -17,9 +17,9 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.adapter.TypeAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.feature.FeatureSupportRegistry;
@@ -34,8 +34,8 @@ public abstract class Renderer_ImplBase<T extends TypeAdapter>
     private final FeatureSupportRegistry featureSupportRegistry;
     private final LayerSupportRegistry layerSupportRegistry;
 
-    private Map<AnnotationFeature, Object> featureTraitsCache;
-    private Map<AnnotationLayer, Object> layerTraitsCache;
+    private final Map<AnnotationFeature, Object> featureTraitsCache = new ConcurrentHashMap<>();
+    private final Map<AnnotationLayer, Object> layerTraitsCache = new ConcurrentHashMap<>();
 
     public Renderer_ImplBase(T aTypeAdapter, LayerSupportRegistry aLayerSupportRegistry,
             FeatureSupportRegistry aFeatureSupportRegistry)
@@ -63,10 +63,6 @@ public abstract class Renderer_ImplBase<T extends TypeAdapter>
     @SuppressWarnings("unchecked")
     public <T> Optional<T> getTraits(AnnotationFeature aFeature, Class<T> aInterface)
     {
-        if (featureTraitsCache == null) {
-            featureTraitsCache = new HashMap<>();
-        }
-
         Object trait = featureTraitsCache.computeIfAbsent(aFeature,
                 feature -> featureSupportRegistry.getFeatureSupport(feature).readTraits(feature));
 
@@ -84,10 +80,6 @@ public abstract class Renderer_ImplBase<T extends TypeAdapter>
     @SuppressWarnings("unchecked")
     public <T> Optional<T> getTraits(AnnotationLayer aLayer, Class<T> aInterface)
     {
-        if (layerTraitsCache == null) {
-            layerTraitsCache = new HashMap<>();
-        }
-
         Object trait = layerTraitsCache.computeIfAbsent(aLayer,
                 feature -> layerSupportRegistry.getLayerSupport(feature).readTraits(feature));
 
@@ -52,6 +52,8 @@ import org.apache.uima.util.CasCreationUtils;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.adapter.FeatureFilter;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.LinkWithRoleModel;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging.UnitOffsetIndex;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging.UnitOffsetIndexCache;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
@@ -463,22 +465,14 @@ public class WebAnnoCasUtil
      */
     public static int getSentenceNumber(CAS aCas, int aBeginOffset)
     {
-        int sentenceNumber = 0;
-
-        Type sentenceType = getType(aCas, Sentence.class);
-        Collection<AnnotationFS> sentences = select(aCas, sentenceType);
-        if (sentences.isEmpty()) {
+        UnitOffsetIndex sentences = UnitOffsetIndexCache.sentences(aCas);
+        if (sentences.size() == 0) {
             throw new IndexOutOfBoundsException("No sentences");
         }
 
-        for (AnnotationFS sentence : select(aCas, sentenceType)) {
-            if (sentence.getBegin() <= aBeginOffset && aBeginOffset <= sentence.getEnd()) {
-                sentenceNumber++;
-                break;
-            }
-            sentenceNumber++;
-        }
-        return sentenceNumber;
+        // If no sentence contains the offset, the number of the last sentence is returned
+        int sentenceNumber = sentences.unitContaining(aBeginOffset);
+        return sentenceNumber > 0 ? sentenceNumber : sentences.size();
     }
 
     public static Collection<AnnotationFS> selectSentences(CAS aCas)
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.annotation.paging;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.createCas;
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getRealCas;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.TOKENS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.OverlapMode.NO_OVERLAP;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.fit.util.JCasUtil.select;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.fit.testing.factory.TokenBuilder;
+import org.apache.uima.jcas.JCas;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.SpanCreatedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class UnitOffsetIndexCacheTest
+{
+    private JCas jcas;
+
+    @Before
+    public void setup() throws Exception
+    {
+        if (jcas == null) {
+            jcas = JCasFactory.createJCas();
+        }
+        else {
+            jcas.reset();
+        }
+    }
+
+    @Test
+    public void thatLinesIncludeEmptyLines() throws Exception
+    {
+        jcas.setDocumentText("one\n\ntwo\n");
+
+        UnitOffsetIndex index = UnitOffsetIndexCache.lines(jcas.getCas());
+
+        assertThat(index.units(1, Integer.MAX_VALUE)).containsExactly(new Unit(1, 0, 3),
+                new Unit(2, 4, 4), new Unit(3, 5, 8), new Unit(4, 9, 9));
+        assertThat(new LineOrientedPagingStrategy().units(jcas.getCas()))
+                .isEqualTo(index.units(1, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void thatSentenceIndexSupportsLookupByOffset() throws Exception
+    {
+        TokenBuilder<Token, Sentence> builder = new TokenBuilder<>(Token.class, Sentence.class);
+        builder.buildTokens(jcas, "This is one .\nThis is two .\nThis is three .");
+
+        UnitOffsetIndex index = UnitOffsetIndexCache.sentences(jcas.getCas());
+
+        assertThat(index.size()).isEqualTo(3);
+        assertThat(index.unit(2)).isEqualTo(new Unit(2, 14, 27));
+        assertThat(index.unitContaining(0)).isEqualTo(1);
+        assertThat(index.unitContaining(13)).isEqualTo(1);
+        assertThat(index.unitContaining(20)).isEqualTo(2);
+        assertThat(index.unitContaining(100)).isEqualTo(-1);
+        assertThat(index.firstUnitStartingAtOrAfter(1)).isEqualTo(2);
+        assertThat(index.firstUnitStartingAtOrAfter(28)).isEqualTo(3);
+        assertThat(index.firstUnitStartingAtOrAfter(29)).isEqualTo(4);
+
+        assertThat(new SentenceOrientedPagingStrategy().unitsStartingAtOffset(jcas.getCas(), 1,
+                10)).extracting(Unit::getIndex).containsExactly(2, 3);
+    }
+
+    @Test
+    public void thatSentenceIndexIsRebuiltWhenSentencesChange() throws Exception
+    {
+        TokenBuilder<Token, Sentence> builder = new TokenBuilder<>(Token.class, Sentence.class);
+        builder.buildTokens(jcas, "This is one .\nThis is two .");
+
+        assertThat(UnitOffsetIndexCache.sentences(jcas.getCas()).size()).isEqualTo(2);
+
+        new Sentence(jcas, 0, 4).addToIndexes();
+
+        assertThat(UnitOffsetIndexCache.sentences(jcas.getCas()).size()).isEqualTo(3);
+    }
+
+    @Test
+    public void thatSentenceIndexIsRebuiltWhenSentenceIsCreatedViaAdapter() throws Exception
+    {
+        TokenBuilder<Token, Sentence> builder = new TokenBuilder<>(Token.class, Sentence.class);
+        builder.buildTokens(jcas, "This is one .\nThis is two .");
+
+        assertThat(UnitOffsetIndexCache.sentences(jcas.getCas()).unit(2))
+                .isEqualTo(new Unit(2, 14, 27));
+
+        // Move the boundary between the sentences - the number of sentences stays the same
+        Sentence[] sentences = select(jcas, Sentence.class).toArray(new Sentence[0]);
+        sentences[0].removeFromIndexes();
+        sentences[1].removeFromIndexes();
+        new Sentence(jcas, 0, 7).addToIndexes();
+        Sentence moved = new Sentence(jcas, 8, 27);
+        moved.addToIndexes();
+
+        Project project = new Project();
+        project.setId(1l);
+        SourceDocument document = new SourceDocument();
+        document.setProject(project);
+        AnnotationLayer sentenceLayer = new AnnotationLayer(Sentence.class.getName(), "Sentence",
+                SPAN_TYPE, project, true, TOKENS, NO_OVERLAP);
+
+        new UnitOffsetIndexCache().onAnnotationEvent(
+                new SpanCreatedEvent(this, document, "user", sentenceLayer, moved));
+
+        assertThat(UnitOffsetIndexCache.sentences(jcas.getCas()).unit(2))
+                .isEqualTo(new Unit(2, 8, 27));
+    }
+
+    @Test
+    public void thatSentenceIndexOfThreadLockedCasIsRebuiltWhenSentenceIsCreatedViaAdapter()
+        throws Exception
+    {
+        CAS cas = createCas(createTypeSystemDescription());
+        JCas realJCas = getRealCas(cas).getJCas();
+        TokenBuilder<Token, Sentence> builder = new TokenBuilder<>(Token.class, Sentence.class);
+        builder.buildTokens(realJCas, "This is one .\nThis is two .");
+
+        assertThat(UnitOffsetIndexCache.sentences(cas).unit(2)).isEqualTo(new Unit(2, 14, 27));
+
+        // Move the boundary between the sentences - the number of sentences stays the same
+        Sentence[] sentences = select(realJCas, Sentence.class).toArray(new Sentence[0]);
+        sentences[0].removeFromIndexes();
+        sentences[1].removeFromIndexes();
+        new Sentence(realJCas, 0, 7).addToIndexes();
+        Sentence moved = new Sentence(realJCas, 8, 27);
+        moved.addToIndexes();
+
+        // The paging strategies are called with the thread-locking proxy while the event only
+        // provides access to the real CAS
+        assertThat(moved.getCAS()).isNotSameAs(cas);
+
+        Project project = new Project();
+        project.setId(1l);
+        SourceDocument document = new SourceDocument();
+        document.setProject(project);
+        AnnotationLayer sentenceLayer = new AnnotationLayer(Sentence.class.getName(), "Sentence",
+                SPAN_TYPE, project, true, TOKENS, NO_OVERLAP);
+
+        new UnitOffsetIndexCache().onAnnotationEvent(
+                new SpanCreatedEvent(this, document, "user", sentenceLayer, moved));
+
+        assertThat(UnitOffsetIndexCache.sentences(cas).unit(2)).isEqualTo(new Unit(2, 8, 27));
+    }
+
+    @Test
+    public void thatOverlappingUnitsAreLookedUpByScanning() throws Exception
+    {
+        UnitOffsetIndex index = new UnitOffsetIndex(new int[] { 0, 5, 12 },
+                new int[] { 10, 20, 15 }, null);
+
+        assertThat(index.unitContaining(7)).isEqualTo(1);
+        assertThat(index.unitContaining(11)).isEqualTo(2);
+        assertThat(index.unitContaining(13)).isEqualTo(2);
+        assertThat(index.unitContaining(21)).isEqualTo(-1);
+        assertThat(index.firstUnitStartingAtOrAfter(1)).isEqualTo(2);
+        assertThat(index.firstUnitStartingAtOrAfter(6)).isEqualTo(3);
+        assertThat(index.firstUnitStartingAtOrAfter(13)).isEqualTo(4);
+    }
+}
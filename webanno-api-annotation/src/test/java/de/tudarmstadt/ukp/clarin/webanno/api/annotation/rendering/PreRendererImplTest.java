@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PROJECT_TYPE_ANNOTATION;
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.SPAN_TYPE;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnchoringMode.TOKENS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.OverlapMode.ANY_OVERLAP;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.feature.FeatureSupportRegistryImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.feature.StringFeatureSupport;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.layer.LayerBehaviorRegistryImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.layer.LayerSupportRegistryImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.layer.SpanLayerSupport;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VDocument;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VSpan;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.dkpro.core.api.ner.type.NamedEntity;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+
+public class PreRendererImplTest
+{
+    private @Mock AnnotationSchemaService schemaService;
+
+    private SpanLayerSupport spanLayerSupport;
+    private LayerSupportRegistryImpl layerSupportRegistry;
+    private Project project;
+    private AnnotationLayer neLayer;
+    private AnnotationFeature valueFeature;
+    private JCas jcas;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setMode(PROJECT_TYPE_ANNOTATION);
+
+        neLayer = new AnnotationLayer(NamedEntity.class.getName(), "NE", SPAN_TYPE, project, true,
+                TOKENS, ANY_OVERLAP);
+        neLayer.setId(1l);
+
+        valueFeature = new AnnotationFeature(1l, neLayer, "value", CAS.TYPE_NAME_STRING);
+        valueFeature.setProject(project);
+
+        when(schemaService.listSupportedFeatures(project)).thenReturn(asList(valueFeature));
+        when(schemaService.listAnnotationFeature(project)).thenReturn(asList(valueFeature));
+
+        FeatureSupportRegistryImpl featureSupportRegistry = new FeatureSupportRegistryImpl(
+                asList(new StringFeatureSupport()));
+        featureSupportRegistry.init();
+
+        LayerBehaviorRegistryImpl layerBehaviorRegistry = new LayerBehaviorRegistryImpl(asList());
+        layerBehaviorRegistry.init();
+
+        spanLayerSupport = spy(
+                new SpanLayerSupport(featureSupportRegistry, null, layerBehaviorRegistry));
+
+        layerSupportRegistry = new LayerSupportRegistryImpl(asList(spanLayerSupport));
+        layerSupportRegistry.init();
+
+        jcas = JCasFactory.createText("John lives in Berlin .");
+        new Sentence(jcas, 0, jcas.getDocumentText().length()).addToIndexes();
+        addNamedEntity(0, 4, "PER");
+    }
+
+    @Test
+    public void thatRenderersAreReused()
+    {
+        PreRendererImpl sut = new PreRendererImpl(layerSupportRegistry, schemaService);
+
+        render(sut);
+        render(sut);
+
+        verify(spanLayerSupport, times(1)).createRenderer(any(), any());
+        verify(schemaService, times(1)).listSupportedFeatures(project);
+    }
+
+    @Test
+    public void thatLayerConfigurationChangeRebuildsRenderers()
+    {
+        PreRendererImpl sut = new PreRendererImpl(layerSupportRegistry, schemaService);
+
+        assertThat(render(sut).spans()).extracting(VSpan::getFeatures)
+                .containsExactly(singletonMap("value", "PER"));
+
+        // Hide the feature - the renderers created before do not know about this yet
+        AnnotationFeature hiddenFeature = new AnnotationFeature(1l, neLayer, "value",
+                CAS.TYPE_NAME_STRING);
+        hiddenFeature.setProject(project);
+        hiddenFeature.setVisible(false);
+        when(schemaService.listSupportedFeatures(project)).thenReturn(asList(hiddenFeature));
+        when(schemaService.listAnnotationFeature(project)).thenReturn(asList(hiddenFeature));
+
+        sut.beforeLayerConfigurationChanged(new LayerConfigurationChangedEvent(this, project));
+
+        assertThat(render(sut).spans()).extracting(VSpan::getFeatures)
+                .containsExactly(emptyMap());
+        verify(spanLayerSupport, times(2)).createRenderer(any(), any());
+        verify(schemaService, times(2)).listSupportedFeatures(project);
+    }
+
+    @Test
+    public void thatLayerConfigurationChangeInOtherProjectKeepsRenderers()
+    {
+        PreRendererImpl sut = new PreRendererImpl(layerSupportRegistry, schemaService);
+
+        render(sut);
+
+        Project otherProject = new Project();
+        otherProject.setId(2l);
+        sut.beforeLayerConfigurationChanged(
+                new LayerConfigurationChangedEvent(this, otherProject));
+
+        render(sut);
+
+        verify(spanLayerSupport, times(1)).createRenderer(any(), any());
+    }
+
+    @Test
+    public void thatCachedRenderersRenderLikeFreshOnes()
+    {
+        PreRendererImpl sut = new PreRendererImpl(layerSupportRegistry, schemaService);
+
+        // Render once so that the renderers are cached
+        render(sut);
+
+        // Change the CAS and render with the cached renderers and with fresh ones
+        addNamedEntity(14, 20, "LOC");
+        VDocument cached = render(sut);
+        VDocument fresh = render(new PreRendererImpl(layerSupportRegistry, schemaService));
+
+        assertThat(cached.spans()).hasSize(2);
+        assertThat(cached.spans()).usingRecursiveFieldByFieldElementComparator()
+                .containsExactlyInAnyOrderElementsOf(fresh.spans());
+        assertThat(cached.comments()).usingRecursiveFieldByFieldElementComparator()
+                .containsExactlyInAnyOrderElementsOf(fresh.comments());
+    }
+
+    private void addNamedEntity(int aBegin, int aEnd, String aValue)
+    {
+        NamedEntity ne = new NamedEntity(jcas, aBegin, aEnd);
+        ne.setValue(aValue);
+        ne.addToIndexes();
+    }
+
+    private VDocument render(PreRenderer aPreRenderer)
+    {
+        VDocument vdoc = new VDocument();
+        aPreRenderer.render(vdoc, 0, jcas.getDocumentText().length(), jcas.getCas(),
+                asList(neLayer));
+        return vdoc;
+    }
+}
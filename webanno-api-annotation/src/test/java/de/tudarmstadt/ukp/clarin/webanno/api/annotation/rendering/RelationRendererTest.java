@@ -247,4 +247,40 @@ public class RelationRendererTest
                             new VComment(dep3, ERROR, "Overlap is not permitted."));
         }
     }
+
+    @Test
+    public void thatYieldCoversTransitiveDependents() throws Exception
+    {
+        TokenBuilder<Token, Sentence> builder = new TokenBuilder<>(Token.class, Sentence.class);
+        builder.buildTokens(jcas, "This is a test .");
+
+        for (Token t : select(jcas, Token.class)) {
+            POS pos = new POS(jcas, t.getBegin(), t.getEnd());
+            t.setPos(pos);
+            pos.addToIndexes();
+        }
+
+        RelationAdapter adapter = new RelationAdapter(layerSupportRegistry, featureSupportRegistry,
+                null, depLayer, FEAT_REL_TARGET, FEAT_REL_SOURCE,
+                () -> asList(dependencyLayerGovernor, dependencyLayerDependent), behaviors);
+
+        List<POS> pos = new ArrayList<>(select(jcas, POS.class));
+
+        depLayer.setOverlapMode(ANY_OVERLAP);
+        adapter.add(document, username, pos.get(1), pos.get(3), jcas.getCas());
+        adapter.add(document, username, pos.get(3), pos.get(2), jcas.getCas());
+        adapter.add(document, username, pos.get(3), pos.get(0), jcas.getCas());
+
+        RelationRenderer sut = new RelationRenderer(adapter, layerSupportRegistry,
+                featureSupportRegistry, asList());
+
+        VDocument vdoc = new VDocument();
+        sut.render(jcas.getCas(), asList(), vdoc, 0, jcas.getDocumentText().length());
+
+        assertThat(vdoc.comments()).filteredOn(c -> YIELD.equals(c.getCommentType()))
+                .usingFieldByFieldElementComparator()
+                .containsExactlyInAnyOrder(
+                        new VComment(pos.get(1), YIELD, "This is a test"),
+                        new VComment(pos.get(3), YIELD, "This ... a test"));
+    }
 }
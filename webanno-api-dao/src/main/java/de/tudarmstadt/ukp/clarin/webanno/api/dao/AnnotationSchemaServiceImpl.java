@@ -26,7 +26,11 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUt
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.isNativeUimaType;
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.isSame;
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectByAddr;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.naturalOrder;
+import static java.util.Comparator.nullsFirst;
 import static java.util.Objects.isNull;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.stream.Collectors.toList;
@@ -37,9 +41,10 @@ import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTyp
 import static org.apache.uima.util.CasCreationUtils.mergeTypeSystems;
 import static org.hibernate.annotations.QueryHints.CACHEABLE;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -50,6 +55,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 
+import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Feature;
@@ -62,6 +68,7 @@ import org.apache.uima.cas.text.AnnotationFS;
 import org.apache.uima.fit.factory.CasFactory;
 import org.apache.uima.fit.util.CasUtil;
 import org.apache.uima.resource.ResourceInitializationException;
+import org.apache.uima.resource.metadata.AllowedValue;
 import org.apache.uima.resource.metadata.FeatureDescription;
 import org.apache.uima.resource.metadata.TypeDescription;
 import org.apache.uima.resource.metadata.TypeSystemDescription;
@@ -73,9 +80,11 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 
@@ -93,6 +102,8 @@ import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.LinkWithRoleModel;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.TypeSystemAnalysis;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.TypeSystemAnalysis.RelationDetails;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasUpgradeMetrics;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.TagCreatedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.TagDeletedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.TagUpdatedEvent;
@@ -126,26 +137,55 @@ public class AnnotationSchemaServiceImpl
     private final LayerSupportRegistry layerSupportRegistry;
     private final FeatureSupportRegistry featureSupportRegistry;
     private final LoadingCache<TagSet, List<ImmutableTag>> immutableTagsCache;
+    private final Cache<Long, ProjectTypeSystem> projectTypeSystemCache;
+    private final Cache<TypeSystemCacheKey, TypeSystemDescription> typeSystemCache;
+    private final Cache<String, CASCompleteSerializer> upgradeTemplateCache;
+    private final CasUpgradeMetrics casUpgradeMetrics;
     private final TypeSystemDescription builtInTypes;
+    private final String builtInTypesHash;
 
-    @Autowired
     public AnnotationSchemaServiceImpl(LayerSupportRegistry aLayerSupportRegistry,
             FeatureSupportRegistry aFeatureSupportRegistry,
             ApplicationEventPublisher aApplicationEventPublisher)
+    {
+        this(aLayerSupportRegistry, aFeatureSupportRegistry, aApplicationEventPublisher, null);
+    }
+
+    @Autowired
+    public AnnotationSchemaServiceImpl(LayerSupportRegistry aLayerSupportRegistry,
+            FeatureSupportRegistry aFeatureSupportRegistry,
+            ApplicationEventPublisher aApplicationEventPublisher,
+            CasUpgradeMetrics aCasUpgradeMetrics)
     {
         layerSupportRegistry = aLayerSupportRegistry;
         featureSupportRegistry = aFeatureSupportRegistry;
         applicationEventPublisher = aApplicationEventPublisher;
+        casUpgradeMetrics = aCasUpgradeMetrics;
 
         immutableTagsCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
                 .maximumSize(10 * 1024).build(this::loadImmutableTags);
 
+        projectTypeSystemCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
+                .maximumSize(100).build();
+        typeSystemCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES).maximumSize(100)
+                .build();
+
+        upgradeTemplateCache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES)
+                .maximumSize(20).build();
+
         try {
             builtInTypes = createTypeSystemDescription();
         }
         catch (ResourceInitializationException e) {
             throw new IllegalStateException("Unable to initialize built-in type system", e);
         }
+
+        // The built-in and internal types only change when the application is updated, so we
+        // fingerprint them once and fold the fingerprint into every project type system hash
+        MessageDigest digest = newTypeSystemDigest();
+        updateTypeSystemDigest(digest, builtInTypes);
+        updateTypeSystemDigest(digest, CasMetadataUtils.getInternalTypeSystem());
+        builtInTypesHash = toHexString(digest);
     }
 
     public AnnotationSchemaServiceImpl()
@@ -261,6 +301,8 @@ public class AnnotationSchemaServiceImpl
             entityManager.merge(aLayer);
         }
 
+        flushTypeSystemCache(aLayer.getProject());
+
         try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                 String.valueOf(aLayer.getProject().getId()))) {
             Project project = aLayer.getProject();
@@ -280,6 +322,8 @@ public class AnnotationSchemaServiceImpl
             entityManager.merge(aFeature);
         }
 
+        flushTypeSystemCache(aFeature.getProject());
+
         try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                 String.valueOf(aFeature.getProject().getId()))) {
             Project project = aFeature.getProject();
@@ -827,6 +871,8 @@ public class AnnotationSchemaServiceImpl
         entityManager.remove(
                 entityManager.contains(aFeature) ? aFeature : entityManager.merge(aFeature));
 
+        flushTypeSystemCache(aFeature.getProject());
+
         try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                 String.valueOf(aFeature.getProject().getId()))) {
             Project project = aFeature.getProject();
@@ -857,6 +903,8 @@ public class AnnotationSchemaServiceImpl
 
         entityManager.remove(layer);
 
+        flushTypeSystemCache(aLayer.getProject());
+
         try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                 String.valueOf(aLayer.getProject().getId()))) {
             Project project = aLayer.getProject();
@@ -945,15 +993,20 @@ public class AnnotationSchemaServiceImpl
 
     @Override
     public TypeSystemDescription getCustomProjectTypes(Project aProject)
+    {
+        return generateCustomProjectTypes(listSupportedLayers(aProject),
+                listSupportedFeatures(aProject));
+    }
+
+    private TypeSystemDescription generateCustomProjectTypes(List<AnnotationLayer> aLayers,
+            List<AnnotationFeature> aFeatures)
     {
         // Create a new type system from scratch
         TypeSystemDescription tsd = new TypeSystemDescription_impl();
 
-        List<AnnotationFeature> allFeaturesInProject = listSupportedFeatures(aProject);
-
-        listSupportedLayers(aProject).stream().filter(layer -> !layer.isBuiltIn())
+        aLayers.stream().filter(layer -> !layer.isBuiltIn())
                 .forEachOrdered(layer -> layerSupportRegistry.getLayerSupport(layer)
-                        .generateTypes(tsd, layer, allFeaturesInProject));
+                        .generateTypes(tsd, layer, aFeatures));
 
         return tsd;
     }
@@ -1048,6 +1101,73 @@ public class AnnotationSchemaServiceImpl
     public TypeSystemDescription getFullProjectTypeSystem(Project aProject,
             boolean aIncludeInternalTypes)
         throws ResourceInitializationException
+    {
+        ProjectTypeSystem pts = getProjectTypeSystem(aProject);
+
+        // Hand out a copy so callers cannot accidentally modify the cached type system
+        return (TypeSystemDescription) getCachedFullProjectTypeSystem(aProject, pts,
+                aIncludeInternalTypes).clone();
+    }
+
+    /**
+     * Returns the project-specific types and the hash identifying the full project type system.
+     * These are generated from the layer configuration only once and then cached until the layer
+     * configuration of the project changes.
+     */
+    private ProjectTypeSystem getProjectTypeSystem(Project aProject)
+    {
+        if (aProject == null || aProject.getId() == null) {
+            return generateProjectTypeSystem(aProject);
+        }
+
+        return projectTypeSystemCache.get(aProject.getId(),
+                id -> generateProjectTypeSystem(aProject));
+    }
+
+    /**
+     * Generates the project-specific types and calculates the hash identifying the full project
+     * type system. The hash covers the built-in and internal types, the generated project types
+     * as well as the tag sets assigned to the project features.
+     */
+    private ProjectTypeSystem generateProjectTypeSystem(Project aProject)
+    {
+        List<AnnotationFeature> features = listSupportedFeatures(aProject);
+        TypeSystemDescription customTypes = generateCustomProjectTypes(
+                listSupportedLayers(aProject), features);
+
+        MessageDigest digest = newTypeSystemDigest();
+        digest.update(builtInTypesHash.getBytes(UTF_8));
+        updateTypeSystemDigest(digest, customTypes);
+        features.stream() //
+                .filter(f -> f.getTagset() != null) //
+                .sorted(comparing(AnnotationFeature::getId, nullsFirst(naturalOrder()))) //
+                .forEachOrdered(f -> digest.update((f.getId() + "|" + f.getTagset().getId() + "|"
+                        + f.getTagset().getName() + "\n").getBytes(UTF_8)));
+
+        return new ProjectTypeSystem(toHexString(digest), customTypes);
+    }
+
+    private TypeSystemDescription getCachedFullProjectTypeSystem(Project aProject,
+            ProjectTypeSystem aProjectTypeSystem, boolean aIncludeInternalTypes)
+        throws ResourceInitializationException
+    {
+        Long projectId = aProject != null ? aProject.getId() : null;
+        TypeSystemCacheKey key = new TypeSystemCacheKey(projectId, aProjectTypeSystem.hash,
+                aIncludeInternalTypes);
+
+        TypeSystemDescription tsd = typeSystemCache.getIfPresent(key);
+        if (tsd == null) {
+            tsd = mergeFullProjectTypeSystem(aProjectTypeSystem.customTypes,
+                    aIncludeInternalTypes);
+            typeSystemCache.put(key, tsd);
+        }
+
+        return tsd;
+    }
+
+    private TypeSystemDescription mergeFullProjectTypeSystem(TypeSystemDescription aCustomTypes,
+            boolean aIncludeInternalTypes)
+        throws ResourceInitializationException
     {
         List<TypeSystemDescription> typeSystems = new ArrayList<>();
 
@@ -1062,11 +1182,31 @@ public class AnnotationSchemaServiceImpl
         }
 
         // Types declared within the project
-        typeSystems.add(getCustomProjectTypes(aProject));
+        typeSystems.add(aCustomTypes);
 
         return mergeTypeSystems(typeSystems);
     }
 
+    @EventListener
+    public void beforeLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
+    {
+        flushTypeSystemCache(aEvent.getProject());
+    }
+
+    private void flushTypeSystemCache(Project aProject)
+    {
+        if (aProject == null || aProject.getId() == null) {
+            return;
+        }
+
+        projectTypeSystemCache.invalidate(aProject.getId());
+
+        // The full type system cache is content-addressed, so stale entries would never be hit
+        // again anyway, but there is no point in keeping them around until they expire
+        typeSystemCache.asMap().keySet()
+                .removeIf(key -> Objects.equals(key.projectId, aProject.getId()));
+    }
+
     @Override
     public void upgradeCas(CAS aCas, AnnotationDocument aAnnotationDocument)
         throws UIMAException, IOException
@@ -1121,8 +1261,10 @@ public class AnnotationSchemaServiceImpl
     @Override
     public void upgradeCas(CAS aCas, Project aProject) throws UIMAException, IOException
     {
-        TypeSystemDescription ts = getFullProjectTypeSystem(aProject);
+        ProjectTypeSystem pts = getProjectTypeSystem(aProject);
+        TypeSystemDescription ts = getCachedFullProjectTypeSystem(aProject, pts, true);
         upgradeCas(aCas, ts);
+        CasMetadataUtils.setTypeSystemHash(aCas, pts.hash);
     }
 
     @Override
@@ -1143,7 +1285,8 @@ public class AnnotationSchemaServiceImpl
     public boolean upgradeCasIfRequired(Iterable<CAS> aCasIter, Project aProject)
         throws UIMAException, IOException
     {
-        TypeSystemDescription ts = getFullProjectTypeSystem(aProject);
+        ProjectTypeSystem pts = getProjectTypeSystem(aProject);
+        TypeSystemDescription ts = null;
 
         // Check if the current CAS already contains the required type system
         boolean upgradePerformed = false;
@@ -1156,10 +1299,22 @@ public class AnnotationSchemaServiceImpl
             // eventually figure out that no upgrade is required.
             CasStorageSession.get().assertWritingPermitted(cas);
 
+            // If the CAS has already been verified against the current project type system, we
+            // do not need to look at its types again
+            if (pts.hash.equals(CasMetadataUtils.getTypeSystemHash(cas).orElse(null))) {
+                continue nextCas;
+            }
+
+            if (ts == null) {
+                ts = getCachedFullProjectTypeSystem(aProject, pts, true);
+            }
+
             if (isUpgradeRequired(cas, ts)) {
                 upgradeCas(cas, ts);
                 upgradePerformed = true;
             }
+
+            CasMetadataUtils.setTypeSystemHash(cas, pts.hash);
         }
 
         return upgradePerformed;
@@ -1203,10 +1358,24 @@ public class AnnotationSchemaServiceImpl
     {
         CasStorageSession.get().assertWritingPermitted(aTargetCas);
 
+        long startTime = System.currentTimeMillis();
+
         // Save source CAS type system (do this early since we might do an in-place upgrade)
         TypeSystem sourceTypeSystem = aSourceCas.getTypeSystem();
 
-        // Save source CAS contents
+        // Obtain the empty CAS for the target type system before touching the source CAS. Setting
+        // up a new type system is expensive, so we keep the templates around.
+        String targetTypeSystemHash = getTypeSystemHash(aTargetTypeSystem);
+        CASCompleteSerializer template = upgradeTemplateCache.getIfPresent(targetTypeSystemHash);
+        boolean templateHit = template != null;
+        if (!templateHit) {
+            CAS tempCas = CasFactory.createCas(aTargetTypeSystem);
+            template = serializeCASComplete((CASImpl) tempCas);
+            upgradeTemplateCache.put(targetTypeSystemHash, template);
+        }
+
+        // Save source CAS contents. The buffer hands out its contents as a stream without copying
+        // them into a single large array first.
         ByteArrayOutputStream serializedCasContents = new ByteArrayOutputStream();
         CAS realSourceCas = getRealCas(aSourceCas);
         // UIMA-6162 Workaround: synchronize CAS during de/serialization
@@ -1218,14 +1387,21 @@ public class AnnotationSchemaServiceImpl
         CAS realTargetCas = getRealCas(aTargetCas);
         // UIMA-6162 Workaround: synchronize CAS during de/serialization
         synchronized (((CASImpl) realTargetCas).getBaseCAS()) {
-            CAS tempCas = CasFactory.createCas(aTargetTypeSystem);
-            CASCompleteSerializer serializer = serializeCASComplete((CASImpl) tempCas);
-            deserializeCASComplete(serializer, (CASImpl) realTargetCas);
+            deserializeCASComplete(template, (CASImpl) realTargetCas);
 
             // Leniently load the source CAS contents into the target CAS
-            CasIOUtils.load(new ByteArrayInputStream(serializedCasContents.toByteArray()),
-                    getRealCas(aTargetCas), sourceTypeSystem);
+            CasIOUtils.load(serializedCasContents.toInputStream(), realTargetCas,
+                    sourceTypeSystem);
         }
+
+        if (casUpgradeMetrics != null) {
+            casUpgradeMetrics.upgradeComplete(System.currentTimeMillis() - startTime,
+                    serializedCasContents.size(), templateHit);
+        }
+
+        // The target type system is not necessarily the project type system, so any hash copied
+        // over from the source CAS is no longer trustworthy
+        CasMetadataUtils.setTypeSystemHash(aTargetCas, null);
     }
 
     /**
@@ -1494,4 +1670,108 @@ public class AnnotationSchemaServiceImpl
         }
         return result;
     }
+
+    private static MessageDigest newTypeSystemDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds a canonical representation of the given type system into the digest. Types and
+     * features are sorted by name so that the order in which they were declared does not affect
+     * the hash.
+     */
+    private static void updateTypeSystemDigest(MessageDigest aDigest,
+            TypeSystemDescription aTypeSystem)
+    {
+        List<TypeDescription> types = new ArrayList<>(asList(aTypeSystem.getTypes()));
+        types.sort(comparing(TypeDescription::getName));
+
+        for (TypeDescription type : types) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("T|").append(type.getName()).append('|').append(type.getSupertypeName())
+                    .append('\n');
+
+            List<FeatureDescription> features = new ArrayList<>(asList(type.getFeatures()));
+            features.sort(comparing(FeatureDescription::getName));
+            for (FeatureDescription feature : features) {
+                sb.append("F|").append(feature.getName()).append('|')
+                        .append(feature.getRangeTypeName()).append('|')
+                        .append(feature.getElementType()).append('|')
+                        .append(feature.getMultipleReferencesAllowed()).append('\n');
+            }
+
+            if (type.getAllowedValues() != null) {
+                for (AllowedValue value : type.getAllowedValues()) {
+                    sb.append("V|").append(value.getString()).append('\n');
+                }
+            }
+
+            aDigest.update(sb.toString().getBytes(UTF_8));
+        }
+    }
+
+    private static String getTypeSystemHash(TypeSystemDescription aTypeSystem)
+    {
+        MessageDigest digest = newTypeSystemDigest();
+        updateTypeSystemDigest(digest, aTypeSystem);
+        return toHexString(digest);
+    }
+
+    private static String toHexString(MessageDigest aDigest)
+    {
+        return String.format("%064x", new BigInteger(1, aDigest.digest()));
+    }
+
+    private static final class ProjectTypeSystem
+    {
+        private final String hash;
+        private final TypeSystemDescription customTypes;
+
+        public ProjectTypeSystem(String aHash, TypeSystemDescription aCustomTypes)
+        {
+            hash = aHash;
+            customTypes = aCustomTypes;
+        }
+    }
+
+    private static final class TypeSystemCacheKey
+    {
+        private final Long projectId;
+        private final String hash;
+        private final boolean includeInternalTypes;
+
+        public TypeSystemCacheKey(Long aProjectId, String aHash, boolean aIncludeInternalTypes)
+        {
+            projectId = aProjectId;
+            hash = aHash;
+            includeInternalTypes = aIncludeInternalTypes;
+        }
+
+        @Override
+        public boolean equals(Object aOther)
+        {
+            if (this == aOther) {
+                return true;
+            }
+            if (!(aOther instanceof TypeSystemCacheKey)) {
+                return false;
+            }
+            TypeSystemCacheKey other = (TypeSystemCacheKey) aOther;
+            return includeInternalTypes == other.includeInternalTypes
+                    && Objects.equals(projectId, other.projectId)
+                    && Objects.equals(hash, other.hash);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(projectId, hash, includeInternalTypes);
+        }
+    }
 }
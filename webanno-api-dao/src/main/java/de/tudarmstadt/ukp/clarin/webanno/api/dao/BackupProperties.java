@@ -25,7 +25,9 @@ import org.springframework.stereotype.Component;
 public class BackupProperties
 {
     private long interval;
+    private BackupMode mode = BackupMode.FULL;
     private final KeepOptions keep = new KeepOptions();
+    private final ChunkedOptions chunked = new ChunkedOptions();
 
     public void setInterval(long aInterval)
     {
@@ -37,11 +39,40 @@ public class BackupProperties
         return interval;
     }
 
+    public BackupMode getMode()
+    {
+        return mode;
+    }
+
+    public void setMode(BackupMode aMode)
+    {
+        mode = aMode;
+    }
+
     public KeepOptions getKeep()
     {
         return keep;
     }
 
+    public ChunkedOptions getChunked()
+    {
+        return chunked;
+    }
+
+    public static enum BackupMode
+    {
+        /**
+         * Each backup is a full copy of the annotation file.
+         */
+        FULL,
+
+        /**
+         * Backups are stored as manifests referring to chunks which are shared by all backups in
+         * the project. Only chunks which changed since previous backups need to be stored.
+         */
+        CHUNKED;
+    }
+
     public static class KeepOptions
     {
         private long time;
@@ -67,4 +98,37 @@ public class BackupProperties
             number = aNumber;
         }
     }
+
+    public static class ChunkedOptions
+    {
+        private int checkpoint = 10;
+        private long pruneInterval = 3600;
+
+        /**
+         * @return every how many backups a full copy is made instead of a manifest. Full copies do
+         *         not depend on the chunk store. If this is {@code 0}, no full copies are made.
+         */
+        public int getCheckpoint()
+        {
+            return checkpoint;
+        }
+
+        public void setCheckpoint(int aCheckpoint)
+        {
+            checkpoint = aCheckpoint;
+        }
+
+        /**
+         * @return time between runs removing chunks no longer referenced by any backup (seconds).
+         */
+        public long getPruneInterval()
+        {
+            return pruneInterval;
+        }
+
+        public void setPruneInterval(long aPruneInterval)
+        {
+            pruneInterval = aPruneInterval;
+        }
+    }
 }
@@ -17,6 +17,7 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.api.dao;
 
+import static java.util.stream.Collectors.toList;
 import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
 import static org.apache.uima.fit.util.CasUtil.getType;
 
@@ -24,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 import org.apache.uima.cas.CAS;
@@ -172,6 +174,54 @@ public class CasMetadataUtils
         aCas.addFsToIndexes(cmd);
     }
 
+    /**
+     * @return the hash of the project type system against which the CAS was last verified or an
+     *         empty optional if the CAS does not (yet) carry such a hash.
+     */
+    public static Optional<String> getTypeSystemHash(CAS aCas)
+    {
+        Type casMetadataType = aCas.getTypeSystem().getType(CASMetadata.class.getName());
+        if (casMetadataType == null) {
+            return Optional.empty();
+        }
+
+        Feature feature = casMetadataType.getFeatureByBaseName("typeSystemHash");
+        if (feature == null) {
+            return Optional.empty();
+        }
+
+        return aCas.select(casMetadataType).map(cmd -> cmd.getStringValue(feature))
+                .filter(Objects::nonNull).findFirst();
+    }
+
+    /**
+     * Records the hash of the project type system against which the CAS has been verified. If the
+     * CAS does not support storing the hash or if it does not contain a {@link CASMetadata}
+     * annotation yet, nothing is recorded.
+     *
+     * @return whether the hash could be recorded.
+     */
+    public static boolean setTypeSystemHash(CAS aCas, String aHash)
+    {
+        Type casMetadataType = aCas.getTypeSystem().getType(CASMetadata.class.getName());
+        if (casMetadataType == null) {
+            return false;
+        }
+
+        Feature feature = casMetadataType.getFeatureByBaseName("typeSystemHash");
+        if (feature == null) {
+            return false;
+        }
+
+        List<FeatureStructure> cmds = aCas.select(casMetadataType).collect(toList());
+        if (cmds.size() != 1) {
+            return false;
+        }
+
+        cmds.get(0).setStringValue(feature, aHash);
+        return true;
+    }
+
     public static Optional<String> getSourceDocumentName(CAS aCas)
     {
         try {
@@ -25,8 +25,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.uima.cas.CAS;
@@ -51,6 +53,17 @@ public final class CasPersistenceUtils
     }
 
     public static void writeSerializedCas(CAS aCas, File aFile) throws IOException
+    {
+        writeSerializedCas(aCas, aFile, true);
+    }
+
+    /**
+     * @param aSafeguard
+     *            whether to ensure that the serialized CAS can be deserialized again before writing
+     *            it. This may be disabled if the caller validates the written file itself.
+     */
+    public static void writeSerializedCas(CAS aCas, File aFile, boolean aSafeguard)
+        throws IOException
     {
         FileUtils.forceMkdir(aFile.getParentFile());
 
@@ -66,8 +79,10 @@ public final class CasPersistenceUtils
                 // Safeguard that we do NOT write a CAS which can afterwards not be read and thus
                 // would render the document broken within the project
                 // Reason we do this: https://issues.apache.org/jira/browse/UIMA-6162
-                CAS dummy = WebAnnoCasUtil.createCas();
-                deserializeCASComplete(serializer, (CASImpl) getRealCas(dummy));
+                if (aSafeguard) {
+                    CAS dummy = WebAnnoCasUtil.createCas();
+                    deserializeCASComplete(serializer, (CASImpl) getRealCas(dummy));
+                }
                 // END SAFEGUARD --------------
             }
             catch (Exception e) {
@@ -83,6 +98,30 @@ public final class CasPersistenceUtils
         }
     }
 
+    /**
+     * Writes the given CAS to the given stream. The stream is flushed but not closed. Unlike
+     * {@link #writeSerializedCas(CAS, File)}, this does not check if the serialized CAS can be
+     * deserialized again - the caller has to validate the written data itself.
+     */
+    public static void writeSerializedCas(CAS aCas, OutputStream aOutputStream) throws IOException
+    {
+        CAS realCas = getRealCas(aCas);
+        // UIMA-6162 Workaround: synchronize CAS during de/serialization
+        synchronized (((CASImpl) realCas).getBaseCAS()) {
+            CASCompleteSerializer serializer;
+            try {
+                serializer = serializeCASComplete((CASImpl) realCas);
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+
+            ObjectOutputStream os = new ObjectOutputStream(aOutputStream);
+            os.writeObject(serializer);
+            os.flush();
+        }
+    }
+
     private static void preserveForDebugging(File aFile, CAS aCas,
             CASCompleteSerializer aSerializer)
     {
@@ -114,27 +153,44 @@ public final class CasPersistenceUtils
     }
 
     public static void readSerializedCas(CAS aCas, File aFile) throws IOException
+    {
+        try (InputStream is = new FileInputStream(aFile)) {
+            readSerializedCas(aCas, is);
+        }
+    }
+
+    public static void readSerializedCas(CAS aCas, InputStream aInputStream) throws IOException
     {
         CAS realCas = getRealCas(aCas);
         // UIMA-6162 Workaround: synchronize CAS during de/serialization
         synchronized (((CASImpl) realCas).getBaseCAS()) {
-            try (ObjectInputStream is = new ObjectInputStream(new FileInputStream(aFile))) {
+            try (ObjectInputStream is = new ObjectInputStream(aInputStream)) {
                 CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
                 deserializeCASComplete(serializer, (CASImpl) realCas);
 
-                // Workaround for UIMA adding back deleted DocumentAnnotations
-                // https://issues.apache.org/jira/browse/UIMA-6199
-                // If there is a DocumentMetaData annotation, then we can drop any of the default
-                // UIMA DocumentAnnotation instances (excluding the DocumentMetaData of course)
-                if (!aCas.select(DocumentMetaData.class.getName()).isEmpty()) {
-                    aCas.select(CAS.TYPE_NAME_DOCUMENT_ANNOTATION).filter(
-                            fs -> !DocumentMetaData.class.getName().equals(fs.getType().getName()))
-                            .forEach(aCas::removeFsFromIndexes);
-                }
+                removeSpuriousDocumentAnnotations(aCas);
             }
             catch (ClassNotFoundException e) {
                 throw new IOException(e);
             }
         }
     }
+
+    /**
+     * Workaround for UIMA adding back deleted DocumentAnnotations
+     * (<a href="https://issues.apache.org/jira/browse/UIMA-6199">UIMA-6199</a>). If there is a
+     * DocumentMetaData annotation, then we can drop any of the default UIMA DocumentAnnotation
+     * instances (excluding the DocumentMetaData of course).
+     * 
+     * @param aCas
+     *            the freshly deserialized CAS.
+     */
+    public static void removeSpuriousDocumentAnnotations(CAS aCas)
+    {
+        if (!aCas.select(DocumentMetaData.class.getName()).isEmpty()) {
+            aCas.select(CAS.TYPE_NAME_DOCUMENT_ANNOTATION).filter(
+                    fs -> !DocumentMetaData.class.getName().equals(fs.getType().getName()))
+                    .forEach(aCas::removeFsFromIndexes);
+        }
+    }
 }
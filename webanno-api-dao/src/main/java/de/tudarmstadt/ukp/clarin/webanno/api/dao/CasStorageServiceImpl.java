@@ -19,6 +19,8 @@ package de.tudarmstadt.ukp.clarin.webanno.api.dao;
 
 import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
 import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.NO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasWriteValidationMode.ASYNC;
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasWriteValidationMode.SAMPLED;
 import static de.tudarmstadt.ukp.clarin.webanno.api.ProjectService.ANNOTATION_FOLDER;
 import static de.tudarmstadt.ukp.clarin.webanno.api.ProjectService.DOCUMENT_FOLDER;
 import static de.tudarmstadt.ukp.clarin.webanno.api.ProjectService.PROJECT_FOLDER;
@@ -29,46 +31,87 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.EXC
 import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
 import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_ACCESS;
 import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_NON_INITIALIZING_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.api.dao.BackupProperties.BackupMode.CHUNKED;
 import static de.tudarmstadt.ukp.clarin.webanno.api.dao.CasMetadataUtils.failOnConcurrentModification;
 import static de.tudarmstadt.ukp.clarin.webanno.api.dao.CasStorageServiceImpl.RepairAndUpgradeFlags.ISOLATED_SESSION;
+import static de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.ChunkedCasHistory.MANIFEST_SUFFIX;
 import static java.lang.System.currentTimeMillis;
 import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-import static java.util.Collections.newSetFromMap;
-import static java.util.Collections.synchronizedSet;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang3.ArrayUtils.contains;
+import static org.apache.commons.lang3.SystemUtils.IS_OS_WINDOWS;
+import static org.apache.uima.cas.SerialFormat.BINARY_TSI;
+import static org.apache.uima.util.CasLoadMode.REINIT;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.comparator.LastModifiedFileComparator;
 import org.apache.commons.lang3.Validate;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
-import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.AbstractCas;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.util.CasIOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.event.TransactionalEventListener;
-import org.springframework.util.ConcurrentReferenceHashMap;
 
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
@@ -78,16 +121,30 @@ import de.tudarmstadt.ukp.clarin.webanno.api.CasProvider;
 import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
 import de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties.SharedCacheOptions;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties.SnapshotOptions;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties.WriteBehindOptions;
+import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties.WriteValidationOptions;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasSessionException;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasStorageServiceAction;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasStorageServiceLoader;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasHolder;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasHolderWeigher;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasKey;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasSnapshot;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasSnapshotCache;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageFormat;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
-import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.PooledCasHolderFactory;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.ChunkedCasHistory;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CompactCasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.ExclusiveCasAccessManager;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.LegacyCasStorageFormat;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.SessionManagedCas;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasStorageMetrics;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasRestoredFromHistoryEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasWriteValidationFailedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.diag.CasDoctor;
 import de.tudarmstadt.ukp.clarin.webanno.diag.CasDoctorException;
@@ -98,23 +155,63 @@ import de.tudarmstadt.ukp.clarin.webanno.support.wicket.WicketUtil;
 
 @Component(CasStorageService.SERVICE_NAME)
 public class CasStorageServiceImpl
-    implements CasStorageService
+    implements CasStorageService, DisposableBean
 {
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     private final long EVICT_IDLE_CASES_AFTER_MINUTES = 5;
-    private final long SHARED_CAS_CACHE_SIZE = 10_000;
     private final long CAS_BORROW_WAIT_TIMEOUT_MINUTES = 3;
+    private final long WRITE_BEHIND_BORROW_WAIT_TIMEOUT_MILLIS = 1000;
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final Pattern TEMP_FILE_PATTERN = Pattern.compile(".+\\.ser\\..*\\.tmp");
+
+    /**
+     * Project-level folder in which the storage formats may keep data shared by all CASes of a
+     * project, e.g. the type system.
+     */
+    public static final String BLOB_FOLDER = "blobs";
+
+    /**
+     * Project-level folder holding the chunks referred to by history manifests when using the
+     * chunked backup mode.
+     */
+    public static final String HISTORY_CHUNK_FOLDER = "history-chunks";
+
+    /**
+     * Suffix of history versions which are still full copies because they have not yet been added
+     * to the chunk store in the background.
+     */
+    private static final String PENDING_HISTORY_SUFFIX = ".pending";
 
     private final CasDoctor casDoctor;
     private final AnnotationSchemaService schemaService;
     private final RepositoryProperties repositoryProperties;
     private final BackupProperties backupProperties;
+    private final List<CasStorageFormat> formats;
+    private final CasStorageFormat writeFormat;
+    private final CasStorageMetrics casStorageMetrics;
+    private final ApplicationEventPublisher applicationEventPublisher;
 
-    private final GenericKeyedObjectPool<CasKey, CasHolder> exclusiveAccessPool;
-    private final Set<CasHolder> exclusiveAccessHolders = synchronizedSet(
-            newSetFromMap(new WeakHashMap<>()));
+    private final ExclusiveCasAccessManager exclusiveAccessManager;
     private final Cache<CasKey, CasHolder> sharedAccessCache;
+    private final CasSnapshotCache snapshotCache;
+
+    private final ScheduledExecutorService writeBehindScheduler;
+    private final ConcurrentMap<CasKey, ScheduledFuture<?>> pendingWrites = new ConcurrentHashMap<>();
+
+    private final ExecutorService validationExecutor;
+    private final ConcurrentMap<CasKey, SourceDocument> pendingValidations = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<CasKey, Long> modificationStamps = new ConcurrentHashMap<>();
+
+    private final ChunkedCasHistory chunkedHistory = new ChunkedCasHistory();
+    private final ScheduledExecutorService historyScheduler;
+    // Guards adding and removing history files of all users
+    private final Object historyLock = new Object();
+
+    private final long startupTime = currentTimeMillis();
+    private final AtomicBoolean interruptedWritesRecovered = new AtomicBoolean();
 
     public static enum RepairAndUpgradeFlags
     {
@@ -131,57 +228,158 @@ public class CasStorageServiceImpl
      * @param aSchemaService
      *            (optional) if present, CAS upgrades can be performed
      */
+    public CasStorageServiceImpl(CasDoctor aCasDoctor, AnnotationSchemaService aSchemaService,
+            RepositoryProperties aRepositoryProperties, BackupProperties aBackupProperties)
+    {
+        this(aCasDoctor, aSchemaService, aRepositoryProperties, aBackupProperties, null, null,
+                null);
+    }
+
+    /**
+     * @param aCasDoctor
+     *            (optional) if present, CAS validation can take place
+     * @param aSchemaService
+     *            (optional) if present, CAS upgrades can be performed
+     * @param aExtensionFormats
+     *            (optional) additional storage formats besides the built-in ones
+     * @param aCasStorageMetrics
+     *            (optional) if present, metrics about deferred writes are collected
+     * @param aApplicationEventPublisher
+     *            (optional) if present, failed validations of written CASes are announced
+     */
+    @Autowired
     public CasStorageServiceImpl(@Autowired(required = false) CasDoctor aCasDoctor,
             @Autowired(required = false) AnnotationSchemaService aSchemaService,
             @Autowired RepositoryProperties aRepositoryProperties,
-            @Autowired BackupProperties aBackupProperties)
+            @Autowired BackupProperties aBackupProperties,
+            @Autowired(required = false) List<CasStorageFormat> aExtensionFormats,
+            @Autowired(required = false) CasStorageMetrics aCasStorageMetrics,
+            @Autowired(required = false) ApplicationEventPublisher aApplicationEventPublisher)
     {
         casDoctor = aCasDoctor;
         schemaService = aSchemaService;
         repositoryProperties = aRepositoryProperties;
         backupProperties = aBackupProperties;
-
-        GenericKeyedObjectPoolConfig<CasHolder> config = new GenericKeyedObjectPoolConfig<>();
-        // Since we want the pool to control exclusive access to a particular CAS, we only ever
-        // must have one instance per key (the key uniquely identifies the CAS)
-        config.setMaxTotalPerKey(1);
-        // Setting this to 0 because we do not want any CAS to stick around in memory indefinitely
-        config.setMinIdlePerKey(0);
-        // Run an evictor thread every 5 minutes
-        config.setTimeBetweenEvictionRunsMillis(MINUTES.toMillis(EVICT_IDLE_CASES_AFTER_MINUTES));
-        // Allow the evictor to drop idle CASes from the pool after 5 minutes (i.e. on each run)
-        config.setMinEvictableIdleTimeMillis(MINUTES.toMillis(EVICT_IDLE_CASES_AFTER_MINUTES));
-        // Allow the evictor to drop all idle CASes on every eviction run
-        config.setNumTestsPerEvictionRun(-1);
-        // Allow viewing the pool in JMX
-        config.setJmxEnabled(true);
-        config.setJmxNameBase(getClass().getPackage().getName() + ":type="
-                + getClass().getSimpleName() + ",name=");
-        config.setJmxNamePrefix("exclusiveCasAccessPool");
-        // Check if the CAS is still valid or needs to be replaced when it is borrowed and when it
-        // is returned
-        config.setTestOnReturn(true);
-        config.setTestOnBorrow(true);
-        config.setMaxWaitMillis(MINUTES.toMillis(CAS_BORROW_WAIT_TIMEOUT_MINUTES));
-        // We do not have to set maxTotal because the default is already to have no limit (-1)
-        exclusiveAccessPool = new GenericKeyedObjectPool<>(new PooledCasHolderFactory(), config);
-
-        sharedAccessCache = Caffeine.newBuilder()
-                .expireAfterAccess(EVICT_IDLE_CASES_AFTER_MINUTES, MINUTES)
-                .maximumSize(SHARED_CAS_CACHE_SIZE).recordStats().build();
+        casStorageMetrics = aCasStorageMetrics;
+        applicationEventPublisher = aApplicationEventPublisher;
+
+        formats = new ArrayList<>();
+        formats.add(new CompactCasStorageFormat());
+        formats.add(new LegacyCasStorageFormat());
+        if (aExtensionFormats != null) {
+            formats.addAll(aExtensionFormats);
+        }
+
+        String formatId = repositoryProperties.getCasStorageFormat() != null
+                ? repositoryProperties.getCasStorageFormat()
+                : CompactCasStorageFormat.ID;
+        writeFormat = formats.stream() //
+                .filter(f -> f.getId().equals(formatId)) //
+                .findFirst() //
+                .orElseThrow(() -> new IllegalArgumentException(
+                        "Unknown CAS storage format [" + formatId + "]"));
+
+        // The manager only ever hands out one holder per key (the key uniquely identifies the
+        // CAS) to one party at a time. Holders are dropped after they have not been borrowed for
+        // 5 minutes - except for those which still need to be written to disk - because we do
+        // not want any CAS to stick around in memory indefinitely.
+        exclusiveAccessManager = new ExclusiveCasAccessManager(
+                MINUTES.toMillis(CAS_BORROW_WAIT_TIMEOUT_MINUTES),
+                MINUTES.toMillis(EVICT_IDLE_CASES_AFTER_MINUTES));
+        // Allow viewing the borrowed CASes and their owners in JMX
+        exclusiveAccessManager.registerMBean(getClass().getPackage().getName() + ":type="
+                + getClass().getSimpleName() + ",name=exclusiveCasAccessManager");
+
+        SharedCacheOptions sharedCache = repositoryProperties.getSharedCache();
+        sharedAccessCache = Caffeine.newBuilder() //
+                .expireAfterAccess(sharedCache.getIdleTimeout()) //
+                .maximumWeight(sharedCache.getSize().toBytes()) //
+                .weigher(new CasHolderWeigher()) //
+                .recordStats() //
+                .build();
+        if (casStorageMetrics != null) {
+            casStorageMetrics.monitorSharedAccessCache(sharedAccessCache);
+        }
+
+        SnapshotOptions snapshots = repositoryProperties.getSnapshots();
+        if (snapshots.isEnabled() && !IS_OS_WINDOWS) {
+            snapshotCache = new CasSnapshotCache(snapshots.getSize().toBytes());
+        }
+        else {
+            snapshotCache = null;
+        }
 
         if (casDoctor == null) {
             log.info("CAS doctor not available - unable to check/repair CASes");
         }
 
+        log.info("CAS storage format: {}", writeFormat.getId());
+
+        log.info("Shared CAS cache - size: {}MB  idle-timeout: {}sec",
+                sharedCache.getSize().toMegabytes(), sharedCache.getIdleTimeout().toSeconds());
+
+        if (snapshotCache != null) {
+            log.info("CAS snapshots enabled - size: {}MB", snapshots.getSize().toMegabytes());
+        }
+        else if (snapshots.isEnabled()) {
+            // Files cannot be renamed or deleted while they are mapped on Windows
+            log.warn("CAS snapshots are not supported on Windows - disabled");
+        }
+        else {
+            log.info("CAS snapshots disabled");
+        }
+
+        WriteBehindOptions writeBehind = repositoryProperties.getWriteBehind();
+        if (writeBehind.isEnabled()) {
+            writeBehindScheduler = Executors.newScheduledThreadPool(writeBehind.getThreads());
+            log.info("CAS write-behind enabled - delay: {}ms  max-pending: {}  threads: {}",
+                    writeBehind.getDelay(), writeBehind.getMaxPending(),
+                    writeBehind.getThreads());
+        }
+        else {
+            writeBehindScheduler = null;
+            log.info("CAS write-behind disabled");
+        }
+
+        WriteValidationOptions writeValidation = repositoryProperties.getWriteValidation();
+        if (ASYNC.equals(writeValidation.getMode())) {
+            validationExecutor = Executors.newSingleThreadExecutor();
+        }
+        else {
+            validationExecutor = null;
+        }
+
+        if (SAMPLED.equals(writeValidation.getMode())) {
+            log.info("CAS write validation: {} - sample-rate: {}%", writeValidation.getMode(),
+                    writeValidation.getSampleRate());
+        }
+        else {
+            log.info("CAS write validation: {}", writeValidation.getMode());
+        }
+
         if (backupProperties.getInterval() > 0) {
-            log.info("CAS backups enabled - interval: {}sec  max-backups: {}  max-age: {}sec",
-                    backupProperties.getInterval(), backupProperties.getKeep().getNumber(),
-                    backupProperties.getKeep().getTime());
+            log.info("CAS backups enabled - interval: {}sec  max-backups: {}  max-age: {}sec  "
+                    + "mode: {}", backupProperties.getInterval(),
+                    backupProperties.getKeep().getNumber(), backupProperties.getKeep().getTime(),
+                    backupProperties.getMode());
         }
         else {
             log.info("CAS backups disabled");
         }
+
+        // History versions are chunked and chunks are removed in the background so that writers
+        // do not have to wait for it
+        if (CHUNKED.equals(backupProperties.getMode())) {
+            historyScheduler = Executors.newSingleThreadScheduledExecutor();
+            long pruneInterval = backupProperties.getChunked().getPruneInterval();
+            if (pruneInterval > 0) {
+                historyScheduler.scheduleWithFixedDelay(this::pruneHistoryChunks, pruneInterval,
+                        pruneInterval, SECONDS);
+            }
+        }
+        else {
+            historyScheduler = null;
+        }
     }
 
     @Override
@@ -218,11 +416,18 @@ public class CasStorageServiceImpl
                         + mCas.get().getSourceDocumentId() + "]");
             }
 
-            realWriteCas(aDocument, aUserName, aCas);
+            if (!deferWrite(aDocument, aUserName, aCas)) {
+                realWriteCas(aDocument, aUserName, aCas);
+
+                // Whatever might still have been waiting to be written is outdated now
+                findDirtyHolder(new CasKey(aDocument, aUserName))
+                        .ifPresent(CasHolder::clearDirty);
+            }
         }
         else {
             try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUserName)) {
                 realWriteCas(aDocument, aUserName, aCas);
+                access.discardPendingWrite();
 
                 // If the CAS which was written does not match the CAS in the session for the given
                 // document/user, then we replace the CAS in the session with the new CAS. This
@@ -254,13 +459,60 @@ public class CasStorageServiceImpl
     /*
      * For testing
      */
-    void writeSerializedCas(CAS aCas, File aFile) throws IOException
+    void writeSerializedCas(CAS aCas, File aFile, long aProjectId) throws IOException
+    {
+        // If requested, the data is forced to the storage device through the same channel it was
+        // written with instead of opening the file a second time
+        try (FileChannel channel = FileChannel.open(aFile.toPath(), CREATE, WRITE,
+                TRUNCATE_EXISTING)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel));
+            writeFormat.write(aCas, os, getBlobFolder(aProjectId));
+            os.flush();
+            if (repositoryProperties.isSyncWrites()) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private void readSerializedCas(CAS aCas, File aFile, long aProjectId) throws IOException
+    {
+        detectFormat(aFile).read(aCas, aFile, getBlobFolder(aProjectId));
+    }
+
+    private CasStorageFormat detectFormat(File aFile) throws IOException
+    {
+        byte[] preamble = new byte[CasStorageFormat.PREAMBLE_LENGTH];
+        int length;
+        try (InputStream is = new FileInputStream(aFile)) {
+            length = IOUtils.read(is, preamble);
+        }
+
+        return detectFormat(Arrays.copyOf(preamble, length), aFile);
+    }
+
+    private CasStorageFormat detectFormat(byte[] aPreamble, File aFile) throws IOException
     {
-        CasPersistenceUtils.writeSerializedCas(aCas, aFile);
+        return formats.stream() //
+                .filter(f -> f.accepts(aPreamble)) //
+                .findFirst() //
+                .orElseThrow(() -> new IOException(
+                        "Unable to determine the storage format of [" + aFile + "]"));
     }
 
     private void realWriteCas(SourceDocument aDocument, String aUserName, CAS aCas)
         throws IOException
+    {
+        realWriteCas(aDocument, aUserName, aCas, false);
+    }
+
+    /**
+     * @param aFlush
+     *            whether only changes are written which have been deferred before. In this case,
+     *            the modification stamp has already been advanced when the write was deferred.
+     */
+    private void realWriteCas(SourceDocument aDocument, String aUserName, CAS aCas,
+            boolean aFlush)
+        throws IOException
     {
         long t0 = currentTimeMillis();
 
@@ -274,22 +526,46 @@ public class CasStorageServiceImpl
         File currentVersion = new File(annotationFolder, aUserName + ".ser");
         File oldVersion = new File(annotationFolder, aUserName + ".ser.old");
 
+        // If the previous version is still waiting to be validated, this must happen before its
+        // backup is replaced
+        CasKey key = new CasKey(aDocument, aUserName);
+        completePendingValidation(key);
+
         // Check if there was a concurrent change to the file on disk
         if (currentVersion.exists()) {
             failOnConcurrentModification(aCas, currentVersion, aDocument, aUserName);
         }
 
-        // Save current version
-        try {
-            // Make a backup of the current version of the file before overwriting
-            if (currentVersion.exists()) {
-                move(currentVersion.toPath(), oldVersion.toPath());
-            }
+        // The snapshot of the current version must not be used anymore
+        if (snapshotCache != null) {
+            snapshotCache.invalidate(key);
+        }
 
-            // Now write the new version to "<username>.ser" or CURATION_USER.ser
+        // Save current version - the new version is first written to a temporary file which then
+        // atomically replaces the current version. Thus, the current version is never left in a
+        // partially written state, even if the application terminates abnormally.
+        long previousLength = currentVersion.exists() ? currentVersion.length() : -1;
+        long previousTimestamp = currentVersion.lastModified();
+        File tempVersion = File.createTempFile(aUserName + ".ser.", TEMP_FILE_SUFFIX,
+                annotationFolder);
+        try {
             long start = currentTimeMillis();
             setDocumentId(aCas, aUserName);
-            writeSerializedCas(aCas, currentVersion);
+            writeSerializedCas(aCas, tempVersion, aDocument.getProject().getId());
+            if (isValidationRequired()) {
+                validateCasFile(aDocument, aUserName, tempVersion, false);
+            }
+
+            // If the new version still needs to be validated, the current version is kept as a
+            // backup until then
+            if (validationExecutor != null && currentVersion.exists()) {
+                keepPreviousVersion(currentVersion, oldVersion);
+            }
+
+            replaceAtomically(tempVersion, currentVersion);
+            if (repositoryProperties.isSyncWrites()) {
+                forceToDisk(annotationFolder);
+            }
             long duration = currentTimeMillis() - start;
 
             try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
@@ -302,42 +578,31 @@ public class CasStorageServiceImpl
         }
         catch (Exception e) {
             log.error("There was an error while trying to write the CAS to [" + currentVersion
-                    + "] - additional messages follow.");
-            // If this is the first version, there is no old version, so do not restore anything
-            if (!oldVersion.exists()) {
-                log.warn("There is no old version to restore - leaving the current version which "
-                        + "may be corrupt: [{}]", currentVersion);
-                // Now abort anyway
-                throw e;
-            }
-
-            log.error("Restoring previous annotations for user [{}] on document [{}]({}) in " //
-                    + "project [{}]({}) due exception when trying to write new "
-                    + "annotations: [{}]", aUserName, aDocument.getName(), aDocument.getId(),
-                    aDocument.getProject().getName(), aDocument.getProject().getId(), oldVersion);
-            try {
-                move(oldVersion.toPath(), currentVersion.toPath(), REPLACE_EXISTING);
-            }
-            catch (Exception ex) {
-                log.error("Unable to restore previous annotations: [{}]", oldVersion, ex);
-            }
-
-            // Now abort anyway
+                    + "] - the previous version remains in place - additional messages follow.");
             throw e;
         }
+        finally {
+            // No effect if the temporary file has already been moved into place
+            FileUtils.deleteQuietly(tempVersion);
+        }
 
-        if (oldVersion.exists() && (currentVersion.length() < oldVersion.length())) {
+        if (previousLength >= 0 && (currentVersion.length() < previousLength)) {
             log.debug(
                     "Annotations truncated for user [{}] on document [{}]({}) in project "
                             + "[{}]({}): {} -> {} bytes ({} bytes removed)",
                     aUserName, aDocument.getName(), aDocument.getId(),
                     aDocument.getProject().getName(), aDocument.getProject().getId(),
-                    oldVersion.length(), currentVersion.length(),
-                    currentVersion.length() - oldVersion.length());
+                    previousLength, currentVersion.length(),
+                    currentVersion.length() - previousLength);
         }
 
-        // If the saving was successful, we delete the old version
-        if (oldVersion.exists()) {
+        // If the new version still needs to be validated, it is done in the background. Otherwise,
+        // we delete any backup which may have been left over
+        if (validationExecutor != null) {
+            pendingValidations.put(key, aDocument);
+            validationExecutor.execute(() -> validateInBackground(key));
+        }
+        else if (oldVersion.exists()) {
             FileUtils.forceDelete(oldVersion);
         }
 
@@ -347,11 +612,605 @@ public class CasStorageServiceImpl
         // save.
         CasMetadataUtils.addOrUpdateCasMetadata(aCas, currentVersion, aDocument, aUserName);
 
+        if (!aFlush) {
+            advanceModificationStamp(key, previousTimestamp, currentVersion.lastModified());
+        }
+
         manageHistory(currentVersion, aDocument, aUserName);
 
         WicketUtil.serverTiming("realWriteCas", currentTimeMillis() - t0);
     }
 
+    /**
+     * Advances the modification stamp reported by {@link #getCasTimestamp} for the given CAS. The
+     * stamp follows the timestamp of the CAS file where possible, but it is increased by every
+     * change even if the file system records timestamps only with a coarse granularity.
+     * 
+     * @param aPreviousFileTimestamp
+     *            the timestamp of the CAS file before the change or {@code 0} if there was none.
+     * @param aCandidate
+     *            the preferred new stamp, e.g. the timestamp of the CAS file after the change.
+     */
+    private long advanceModificationStamp(CasKey aKey, long aPreviousFileTimestamp,
+            long aCandidate)
+    {
+        return modificationStamps.compute(aKey,
+                (key, stamp) -> Math.max(aCandidate,
+                        Math.max(stamp != null ? stamp : 0, aPreviousFileTimestamp) + 1));
+    }
+
+    private boolean isValidationRequired()
+    {
+        WriteValidationOptions writeValidation = repositoryProperties.getWriteValidation();
+        switch (writeValidation.getMode()) {
+        case ALWAYS:
+            return true;
+        case SAMPLED:
+            if (ThreadLocalRandom.current().nextInt(100) < writeValidation.getSampleRate()) {
+                return true;
+            }
+
+            if (casStorageMetrics != null) {
+                casStorageMetrics.validationSkipped();
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Ensures that the given CAS file can be read. This is a safeguard against writing a CAS which
+     * cannot be read anymore and thus would render the document broken within the project (cf.
+     * <a href="https://issues.apache.org/jira/browse/UIMA-6162">UIMA-6162</a>).
+     */
+    private void validateCasFile(SourceDocument aDocument, String aUserName, File aCasFile,
+            boolean aAsync)
+        throws IOException
+    {
+        long start = currentTimeMillis();
+        boolean successful = false;
+        try {
+            CAS dummy = WebAnnoCasUtil.createCas();
+            readSerializedCas(dummy, aCasFile, aDocument.getProject().getId());
+            successful = true;
+        }
+        catch (Exception e) {
+            throw new IOException("Annotation document of user [" + aUserName
+                    + "] for source document [" + aDocument.getName() + "] ("
+                    + aDocument.getId() + ") in project [" + aDocument.getProject().getName()
+                    + "] (" + aDocument.getProject().getId() + ") cannot be read back from file ["
+                    + aCasFile + "] after writing it", e);
+        }
+        finally {
+            if (casStorageMetrics != null) {
+                casStorageMetrics.validationComplete(currentTimeMillis() - start, aAsync,
+                        successful);
+            }
+        }
+    }
+
+    private void validateInBackground(CasKey aKey)
+    {
+        try {
+            if (!completePendingValidation(aKey, WRITE_BEHIND_BORROW_WAIT_TIMEOUT_MILLIS)) {
+                // The CAS is still in use - try again later
+                validationExecutor.execute(() -> validateInBackground(aKey));
+            }
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down - remaining CASes are validated in destroy()
+        }
+        catch (Exception e) {
+            log.error("Unable to validate CAS for [{}]@[{}]({})", aKey.getUserId(),
+                    aKey.getDocumentName(), aKey.getDocumentId(), e);
+        }
+    }
+
+    /**
+     * Forces the contents of the given file or the entries of the given directory to the storage
+     * device. Not all platforms support this for directories (e.g. Windows) - in this case, the
+     * directory is not forced.
+     */
+    private void forceToDisk(File aFile) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(aFile.toPath(),
+                aFile.isDirectory() ? READ : WRITE)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            if (!aFile.isDirectory()) {
+                throw e;
+            }
+            log.trace("Unable to force directory [{}] to disk", aFile, e);
+        }
+    }
+
+    /**
+     * Keeps the current version as a backup. A hard link is used if possible to avoid copying the
+     * data. Since the current version is subsequently replaced by moving a new file into place,
+     * the backup continues to refer to the previous data.
+     */
+    private void keepPreviousVersion(File aCurrentVersion, File aOldVersion) throws IOException
+    {
+        Files.deleteIfExists(aOldVersion.toPath());
+        try {
+            Files.createLink(aOldVersion.toPath(), aCurrentVersion.toPath());
+        }
+        catch (UnsupportedOperationException | IOException e) {
+            Files.copy(aCurrentVersion.toPath(), aOldVersion.toPath(), COPY_ATTRIBUTES);
+        }
+    }
+
+    private void replaceAtomically(File aSource, File aTarget) throws IOException
+    {
+        try {
+            move(aSource.toPath(), aTarget.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            log.warn("Atomic move not supported - replacing [{}] non-atomically", aTarget);
+            move(aSource.toPath(), aTarget.toPath(), REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Obtains exclusive access to the CAS and validates its file if it is still waiting to be
+     * validated.
+     * 
+     * @return {@code false} if exclusive access could not be obtained in time.
+     */
+    private boolean completePendingValidation(CasKey aKey, long aMaxWaitMillis) throws Exception
+    {
+        if (!pendingValidations.containsKey(aKey)) {
+            return true;
+        }
+
+        CasHolder holder;
+        try {
+            holder = exclusiveAccessManager.borrow(aKey, aMaxWaitMillis);
+        }
+        catch (NoSuchElementException e) {
+            return false;
+        }
+
+        try {
+            completePendingValidation(aKey);
+        }
+        finally {
+            exclusiveAccessManager.release(aKey, holder);
+            logExclusiveAccessHolders();
+        }
+
+        return true;
+    }
+
+    /**
+     * Validates the CAS file if it is still waiting to be validated. If the validation succeeds,
+     * the previous version of the file is deleted, otherwise it is restored. The caller must have
+     * exclusive access to the CAS.
+     */
+    private void completePendingValidation(CasKey aKey)
+    {
+        SourceDocument document = pendingValidations.remove(aKey);
+        if (document == null) {
+            return;
+        }
+
+        String user = aKey.getUserId();
+        File currentVersion = null;
+        File oldVersion = null;
+        try {
+            File annotationFolder = getAnnotationFolder(document);
+            currentVersion = new File(annotationFolder, user + ".ser");
+            oldVersion = new File(annotationFolder, user + ".ser.old");
+
+            validateCasFile(document, user, currentVersion, true);
+
+            if (oldVersion.exists()) {
+                FileUtils.forceDelete(oldVersion);
+            }
+        }
+        catch (Exception e) {
+            log.error("Validation of CAS for [{}]@[{}]({}) failed", user, document.getName(),
+                    document.getId(), e);
+
+            boolean restored = false;
+            if (oldVersion != null && oldVersion.exists()) {
+                long brokenTimestamp = currentVersion.lastModified();
+                try {
+                    move(oldVersion.toPath(), currentVersion.toPath(), REPLACE_EXISTING);
+                    advanceModificationStamp(aKey, brokenTimestamp, currentTimeMillis());
+                    restored = true;
+                    log.error("Restored previous annotations for user [{}] on document [{}]({}) "
+                            + "in project [{}]({}): [{}]", user, document.getName(),
+                            document.getId(), document.getProject().getName(),
+                            document.getProject().getId(), oldVersion);
+                }
+                catch (Exception ex) {
+                    log.error("Unable to restore previous annotations: [{}]", oldVersion, ex);
+                }
+            }
+
+            // Any CAS in memory is based on the broken file and must not be used anymore
+            invalidateCachedCas(aKey);
+
+            if (applicationEventPublisher != null) {
+                applicationEventPublisher.publishEvent(
+                        new CasWriteValidationFailedEvent(this, document, user, restored));
+            }
+        }
+    }
+
+    /**
+     * Drops all copies of the given CAS which are held in memory, e.g. because the CAS file has
+     * been replaced. Holders in the exclusive access manager are marked as deleted so they are
+     * dropped when they are returned.
+     */
+    private void invalidateCachedCas(CasKey aKey)
+    {
+        sharedAccessCache.invalidate(aKey);
+        if (snapshotCache != null) {
+            snapshotCache.invalidate(aKey);
+        }
+        exclusiveAccessManager.getHolder(aKey).ifPresent(h -> {
+            h.clearDirty();
+            h.setDeleted(true);
+        });
+    }
+
+    /**
+     * Tries to defer writing the given CAS to the background writer. This is only possible if
+     * write-behind is enabled, the CAS is the one held in the exclusive access manager and the CAS
+     * file already exists.
+     * 
+     * @return whether writing the CAS has been deferred. If not, the caller must write the CAS
+     *         itself.
+     */
+    private boolean deferWrite(SourceDocument aDocument, String aUserName, CAS aCas)
+        throws IOException
+    {
+        if (writeBehindScheduler == null) {
+            return false;
+        }
+
+        CasKey key = new CasKey(aDocument, aUserName);
+        Optional<CasHolder> maybeHolder = exclusiveAccessManager.getHolder(key) //
+                .filter(h -> h.isCasSet() && h.getCas() == aCas);
+
+        if (!maybeHolder.isPresent()) {
+            return false;
+        }
+
+        CasHolder holder = maybeHolder.get();
+
+        // If the last attempt to write the CAS failed, write it directly so the caller gets to
+        // see the problem
+        if (holder.isFlushFailed()) {
+            return false;
+        }
+
+        // The initial version of a CAS is always written directly
+        File casFile = getCasFile(aDocument, aUserName);
+        if (!casFile.exists()) {
+            return false;
+        }
+
+        boolean coalesced = holder.isDirty();
+        if (!coalesced && pendingWrites.size() >= repositoryProperties.getWriteBehind()
+                .getMaxPending()) {
+            return false;
+        }
+
+        failOnConcurrentModification(aCas, casFile, aDocument, aUserName);
+
+        // The change is reported by getCasTimestamp() right away - writing the CAS file later
+        // does not change the stamp anymore
+        advanceModificationStamp(key, casFile.lastModified(), currentTimeMillis());
+        holder.markDirty(aDocument);
+
+        scheduleFlush(key);
+
+        log.trace("Deferred writing CAS [{}] for [{}]@[{}]({}) - coalesced: {}",
+                holder.getCasHashCode(), aUserName, aDocument.getName(), aDocument.getId(),
+                coalesced);
+
+        if (casStorageMetrics != null) {
+            casStorageMetrics.writeDeferred(coalesced, pendingWrites.size());
+        }
+
+        return true;
+    }
+
+    private void scheduleFlush(CasKey aKey)
+    {
+        pendingWrites.computeIfAbsent(aKey,
+                key -> writeBehindScheduler.schedule(() -> flushInBackground(key),
+                        repositoryProperties.getWriteBehind().getDelay(), MILLISECONDS));
+    }
+
+    private void flushInBackground(CasKey aKey)
+    {
+        pendingWrites.remove(aKey);
+
+        try {
+            if (!flushPendingWrite(aKey, WRITE_BEHIND_BORROW_WAIT_TIMEOUT_MILLIS)) {
+                // The CAS is still in use - try again later
+                scheduleFlush(aKey);
+            }
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down - remaining CASes are written in destroy()
+        }
+        catch (Exception e) {
+            log.error("Unable to write CAS for [{}]@[{}]({})", aKey.getUserId(),
+                    aKey.getDocumentName(), aKey.getDocumentId(), e);
+        }
+    }
+
+    /**
+     * Obtains exclusive access to the CAS and writes it if it has changes that have not been
+     * written yet.
+     * 
+     * @return {@code false} if exclusive access could not be obtained in time.
+     */
+    private boolean flushPendingWrite(CasKey aKey, long aMaxWaitMillis) throws Exception
+    {
+        CasHolder holder;
+        try {
+            holder = exclusiveAccessManager.borrow(aKey, aMaxWaitMillis);
+        }
+        catch (NoSuchElementException e) {
+            return false;
+        }
+
+        try {
+            if (holder.isCasSet() && holder.isDirty()) {
+                transferCasOwnershipToCurrentThread(holder.getCas());
+                flush(holder);
+            }
+        }
+        finally {
+            exclusiveAccessManager.release(aKey, holder);
+            logExclusiveAccessHolders();
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the changes held by the given holder to disk. The caller must have exclusive access
+     * to the CAS.
+     */
+    private void flush(CasHolder aHolder) throws IOException
+    {
+        long start = currentTimeMillis();
+        long dirtySince = aHolder.getDirtySince();
+
+        try {
+            realWriteCas(aHolder.getDirtyDocument(), aHolder.getKey().getUserId(),
+                    aHolder.getCas(), true);
+            aHolder.clearDirty();
+        }
+        catch (IOException | RuntimeException e) {
+            aHolder.setFlushFailed(true);
+            if (casStorageMetrics != null) {
+                casStorageMetrics.flushFailed();
+            }
+            throw e;
+        }
+
+        if (casStorageMetrics != null) {
+            long now = currentTimeMillis();
+            casStorageMetrics.flushComplete(now - start, now - dirtySince, pendingWrites.size());
+        }
+    }
+
+    private Optional<CasHolder> findDirtyHolder(CasKey aKey)
+    {
+        return exclusiveAccessManager.getHolder(aKey).filter(CasHolder::isDirty);
+    }
+
+    /**
+     * Cleans up after writes which have been interrupted by an abnormal termination of the
+     * application. Temporary files which never made it into place are removed. If only the backup
+     * of an annotation file exists (e.g. because it was written by an older version which moved the
+     * current version out of the way before writing the new one), the backup is restored. If both
+     * exist, the validation of the annotation file may not have completed, so it is validated now.
+     * The backup is then either deleted or restored.
+     * <p>
+     * This scans the whole repository, so it happens only once after the application has started.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverInterruptedWrites()
+    {
+        if (!interruptedWritesRecovered.compareAndSet(false, true)) {
+            return;
+        }
+
+        Path projectsFolder = new File(repositoryProperties.getPath(), PROJECT_FOLDER).toPath();
+        if (!Files.isDirectory(projectsFolder)) {
+            return;
+        }
+
+        List<Path> candidates;
+        try (Stream<Path> files = Files.find(projectsFolder, 5, (path, attrs) -> {
+            String name = path.getFileName().toString();
+            return attrs.isRegularFile() && (TEMP_FILE_PATTERN.matcher(name).matches()
+                    || name.endsWith(".ser.old") || name.endsWith(PENDING_HISTORY_SUFFIX));
+        })) {
+            candidates = files.collect(toList());
+        }
+        catch (IOException | UncheckedIOException e) {
+            log.error("Unable to scan repository for interrupted writes", e);
+            return;
+        }
+
+        int removed = 0;
+        int restored = 0;
+        int validated = 0;
+        for (Path file : candidates) {
+            String name = file.getFileName().toString();
+            try {
+                if (name.endsWith(PENDING_HISTORY_SUFFIX)) {
+                    // <project>/document/<document>/annotation/<user>.ser.<timestamp>.pending
+                    if (historyScheduler != null) {
+                        long projectId = Long.parseLong(file.getParent().getParent().getParent()
+                                .getParent().getFileName().toString());
+                        scheduleChunking(file.toFile(), projectId);
+                    }
+                }
+                else if (name.endsWith(".ser.old")) {
+                    Path current = file.resolveSibling(
+                            name.substring(0, name.length() - ".old".length()));
+                    if (!Files.exists(current)) {
+                        log.warn("Restoring previous version of interrupted write [{}]", current);
+                        move(file, current);
+                        restored++;
+                    }
+                    else if (validateInterruptedWrite(file, current)) {
+                        validated++;
+                    }
+                }
+                // Files modified after startup may belong to a write which is still in progress
+                else if (Files.getLastModifiedTime(file).toMillis() < startupTime) {
+                    log.debug("Removing temporary file of interrupted write [{}]", file);
+                    Files.delete(file);
+                    removed++;
+                }
+            }
+            catch (IOException | NumberFormatException e) {
+                log.error("Unable to recover interrupted write [{}]", file, e);
+            }
+        }
+
+        if (removed > 0 || restored > 0 || validated > 0) {
+            log.info("Recovered from interrupted writes: {} temporary files removed, {} previous "
+                    + "versions restored, {} pending validations completed", removed, restored,
+                    validated);
+        }
+    }
+
+    /**
+     * Completes the validation of an annotation file which was still pending when the application
+     * terminated. The database may not be available yet, so the validation works on a document
+     * which only carries the IDs taken from the path of the file.
+     * 
+     * @return whether the file has been validated.
+     */
+    private boolean validateInterruptedWrite(Path aOldVersion, Path aCurrentVersion)
+        throws IOException
+    {
+        // <project>/document/<document>/annotation/<user>.ser
+        Path annotationFolder = aCurrentVersion.getParent();
+        String name = aCurrentVersion.getFileName().toString();
+        String user = name.substring(0, name.length() - ".ser".length());
+        long documentId = Long.parseLong(annotationFolder.getParent().getFileName().toString());
+        long projectId = Long.parseLong(
+                annotationFolder.getParent().getParent().getParent().getFileName().toString());
+
+        Project project = new Project();
+        project.setId(projectId);
+        SourceDocument document = new SourceDocument();
+        document.setId(documentId);
+        document.setProject(project);
+
+        // If the file has been written again since the startup, its validation is already pending
+        CasKey key = new CasKey(document, user);
+        if (pendingValidations.putIfAbsent(key, document) != null) {
+            return false;
+        }
+
+        try {
+            if (completePendingValidation(key, WRITE_BEHIND_BORROW_WAIT_TIMEOUT_MILLIS)) {
+                return true;
+            }
+
+            // The CAS is in use - it is validated before it is loaded the next time
+            if (validationExecutor != null) {
+                validationExecutor.execute(() -> validateInBackground(key));
+            }
+            return false;
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        if (writeBehindScheduler != null) {
+            flushPendingWritesOnShutdown();
+        }
+
+        if (validationExecutor != null) {
+            completePendingValidationsOnShutdown();
+        }
+
+        // Pending history versions which have not been chunked yet remain as full copies and are
+        // chunked after the next start
+        if (historyScheduler != null) {
+            historyScheduler.shutdownNow();
+        }
+
+        exclusiveAccessManager.close();
+    }
+
+    private void completePendingValidationsOnShutdown() throws InterruptedException
+    {
+        validationExecutor.shutdownNow();
+        // Wait for a validation which might currently be running
+        validationExecutor.awaitTermination(CAS_BORROW_WAIT_TIMEOUT_MINUTES, MINUTES);
+
+        for (CasKey key : new ArrayList<>(pendingValidations.keySet())) {
+            try {
+                if (!completePendingValidation(key,
+                        MINUTES.toMillis(CAS_BORROW_WAIT_TIMEOUT_MINUTES))) {
+                    log.error("Unable to obtain exclusive access to validate CAS for [{}]@[{}]({}) "
+                            + "on shutdown", key.getUserId(), key.getDocumentName(),
+                            key.getDocumentId());
+                }
+            }
+            catch (Exception e) {
+                log.error("Unable to validate CAS for [{}]@[{}]({}) on shutdown", key.getUserId(),
+                        key.getDocumentName(), key.getDocumentId(), e);
+            }
+        }
+    }
+
+    private void flushPendingWritesOnShutdown() throws InterruptedException
+    {
+        writeBehindScheduler.shutdownNow();
+        // Wait for writes which might currently be running
+        writeBehindScheduler.awaitTermination(CAS_BORROW_WAIT_TIMEOUT_MINUTES, MINUTES);
+
+        // Write all CASes that are still waiting to be written
+        Set<CasKey> keys = new LinkedHashSet<>(pendingWrites.keySet());
+        exclusiveAccessManager.forEachHolder(h -> {
+            if (h.isDirty()) {
+                keys.add(h.getKey());
+            }
+        });
+        pendingWrites.clear();
+
+        for (CasKey key : keys) {
+            try {
+                if (!flushPendingWrite(key, MINUTES.toMillis(CAS_BORROW_WAIT_TIMEOUT_MINUTES))) {
+                    log.error("Unable to obtain exclusive access to write CAS for [{}]@[{}]({}) "
+                            + "on shutdown", key.getUserId(), key.getDocumentName(),
+                            key.getDocumentId());
+                }
+            }
+            catch (Exception e) {
+                log.error("Unable to write CAS for [{}]@[{}]({}) on shutdown", key.getUserId(),
+                        key.getDocumentName(), key.getDocumentId(), e);
+            }
+        }
+    }
+
     private void manageHistory(File aCurrentVersion, SourceDocument aDocument, String aUserName)
         throws IOException
     {
@@ -364,37 +1223,22 @@ public class CasStorageServiceImpl
         // Determine the reference point in time based on the current version
         long now = aCurrentVersion.lastModified();
 
-        // Get all history files for the current user
-        File[] history = annotationFolder.listFiles(new FileFilter()
-        {
-            private final Matcher matcher = Pattern
-                    .compile(Pattern.quote(aUserName) + "\\.ser\\.[0-9]+\\.bak").matcher("");
-
-            @Override
-            public boolean accept(File aFile)
-            {
-                // Check if the filename matches the pattern given above.
-                return matcher.reset(aFile.getName()).matches();
-            }
-        });
-
-        // Sort the files (oldest one first)
-        Arrays.sort(history, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
+        // Get all history files for the current user (oldest one first)
+        File[] history = listHistoryFiles(annotationFolder, aUserName);
 
         // Check if we need to make a new history file
         boolean historyFileCreated = false;
-        File historyFile = new File(annotationFolder, aUserName + ".ser." + now + ".bak");
         if (history.length == 0) {
             // If there is no history yet but we should keep history, then we create a
             // history file in any case.
-            FileUtils.copyFile(aCurrentVersion, historyFile);
+            storeHistoryVersion(aCurrentVersion, aDocument, aUserName, history);
             historyFileCreated = true;
         }
         else {
             // Check if the newest history file is significantly older than the current one
             File latestHistory = history[history.length - 1];
             if (latestHistory.lastModified() + (backupProperties.getInterval() * 1000) < now) {
-                FileUtils.copyFile(aCurrentVersion, historyFile);
+                storeHistoryVersion(aCurrentVersion, aDocument, aUserName, history);
                 historyFileCreated = true;
             }
         }
@@ -420,9 +1264,10 @@ public class CasStorageServiceImpl
             }
             history = newHistory;
 
-            // Remove these old files
+            // Remove these old files - chunks which are no longer referenced by any manifest are
+            // removed later by the background pruning
             for (File file : toRemove) {
-                FileUtils.forceDelete(file);
+                deleteHistoryFile(file);
 
                 try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                         String.valueOf(aDocument.getProject().getId()))) {
@@ -439,7 +1284,7 @@ public class CasStorageServiceImpl
         if (backupProperties.getKeep().getTime() > 0) {
             for (File file : history) {
                 if ((file.lastModified() + (backupProperties.getKeep().getTime() * 1000)) < now) {
-                    FileUtils.forceDelete(file);
+                    deleteHistoryFile(file);
 
                     try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
                             String.valueOf(aDocument.getProject().getId()))) {
@@ -454,6 +1299,332 @@ public class CasStorageServiceImpl
         }
     }
 
+    /**
+     * Removes a history file. If a pending version is removed while it is being chunked, the
+     * manifest is removed as well.
+     */
+    private void deleteHistoryFile(File aFile) throws IOException
+    {
+        synchronized (historyLock) {
+            Files.deleteIfExists(aFile.toPath());
+            if (aFile.getName().endsWith(PENDING_HISTORY_SUFFIX)) {
+                Files.deleteIfExists(getManifestFile(aFile).toPath());
+            }
+        }
+    }
+
+    /**
+     * @return the history files of the given user sorted by time (oldest one first). These are
+     *         full copies ({@code .bak}), manifests referring to chunks ({@code .manifest}) and
+     *         full copies which are still to be chunked ({@code .pending}).
+     */
+    private File[] listHistoryFiles(File aAnnotationFolder, String aUserName)
+    {
+        File[] history = aAnnotationFolder.listFiles(new FileFilter()
+        {
+            private final Matcher matcher = Pattern.compile(Pattern.quote(aUserName)
+                    + "\\.ser\\.[0-9]+(\\.bak|" + Pattern.quote(MANIFEST_SUFFIX) + "|"
+                    + Pattern.quote(PENDING_HISTORY_SUFFIX) + ")").matcher("");
+
+            @Override
+            public boolean accept(File aFile)
+            {
+                // Check if the filename matches the pattern given above.
+                return matcher.reset(aFile.getName()).matches();
+            }
+        });
+
+        if (history == null) {
+            return new File[0];
+        }
+
+        // A pending version for which the manifest has just been written is listed only once
+        history = Stream.of(history) //
+                .filter(f -> !f.getName().endsWith(PENDING_HISTORY_SUFFIX)
+                        || !getManifestFile(f).exists()) //
+                .toArray(File[]::new);
+
+        Arrays.sort(history, LastModifiedFileComparator.LASTMODIFIED_COMPARATOR);
+        return history;
+    }
+
+    /**
+     * Adds the given version to the history. In the chunked backup mode, a full copy is made only
+     * if the configured number of manifests has been created since the last full copy. Otherwise,
+     * the version is kept as a pending version (a hard link if possible) which is added to the
+     * chunk store in the background.
+     */
+    private void storeHistoryVersion(File aVersion, SourceDocument aDocument, String aUserName,
+            File[] aHistory)
+        throws IOException
+    {
+        File annotationFolder = getAnnotationFolder(aDocument);
+        String baseName = aUserName + ".ser." + aVersion.lastModified();
+
+        if (CHUNKED.equals(backupProperties.getMode()) && !isCheckpointDue(aHistory)) {
+            File pending = new File(annotationFolder, baseName + PENDING_HISTORY_SUFFIX);
+            keepPreviousVersion(aVersion, pending);
+            scheduleChunking(pending, aDocument.getProject().getId());
+        }
+        else {
+            FileUtils.copyFile(aVersion, new File(annotationFolder, baseName + ".bak"));
+        }
+    }
+
+    private void scheduleChunking(File aPending, long aProjectId)
+    {
+        try {
+            historyScheduler.execute(() -> chunkPendingHistoryVersion(aPending, aProjectId));
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down - the pending version is chunked after the next start
+        }
+    }
+
+    /**
+     * Adds a pending history version to the chunk store. The chunks are created from an
+     * uncompressed serialization of the CAS which changes only locally when annotations are added
+     * or removed. Chunking the compressed storage format instead would prevent the chunks of
+     * consecutive versions from matching up.
+     */
+    void chunkPendingHistoryVersion(File aPending, long aProjectId)
+    {
+        if (!aPending.exists()) {
+            // Removed by the history pruning in the meantime
+            return;
+        }
+
+        File manifest = getManifestFile(aPending);
+        try {
+            CAS cas = WebAnnoCasUtil.createCas();
+            readSerializedCas(cas, aPending, aProjectId);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            CasIOUtils.save(getRealCas(cas), bos, BINARY_TSI);
+
+            long added = chunkedHistory.store(new ByteArrayInputStream(bos.toByteArray()),
+                    manifest, getHistoryChunkFolder(aProjectId));
+            manifest.setLastModified(getHistoryTimestamp(aPending));
+
+            synchronized (historyLock) {
+                if (aPending.exists()) {
+                    Files.delete(aPending.toPath());
+                }
+                else {
+                    // Removed by the history pruning while we were chunking it
+                    Files.deleteIfExists(manifest.toPath());
+                }
+            }
+
+            log.trace("Stored history version [{}] - {} of {} bytes added to chunk store",
+                    manifest, added, bos.size());
+        }
+        catch (Exception e) {
+            // The pending version remains usable as a full copy
+            log.error("Unable to add history version [{}] to the chunk store", aPending, e);
+            FileUtils.deleteQuietly(manifest);
+        }
+    }
+
+    private File getManifestFile(File aPending)
+    {
+        String name = aPending.getName();
+        return new File(aPending.getParentFile(),
+                name.substring(0, name.length() - PENDING_HISTORY_SUFFIX.length())
+                        + MANIFEST_SUFFIX);
+    }
+
+    private boolean isCheckpointDue(File[] aHistory)
+    {
+        int checkpoint = backupProperties.getChunked().getCheckpoint();
+        if (checkpoint <= 0) {
+            return false;
+        }
+
+        // Count the manifests (including the pending ones) created since the last full copy
+        int sinceCheckpoint = 0;
+        for (int i = aHistory.length - 1; i >= 0; i--) {
+            if (aHistory[i].getName().endsWith(".bak")) {
+                return sinceCheckpoint >= checkpoint - 1;
+            }
+            sinceCheckpoint++;
+        }
+
+        // There is no full copy at all (anymore)
+        return true;
+    }
+
+    @Override
+    public List<Long> listCasHistory(SourceDocument aDocument, String aUser) throws IOException
+    {
+        Validate.notNull(aDocument, "Source document must be specified");
+        Validate.notBlank(aUser, "User must be specified");
+
+        File[] history = listHistoryFiles(getAnnotationFolder(aDocument), aUser);
+        return Stream.of(history) //
+                .map(this::getHistoryTimestamp) //
+                .distinct() //
+                .collect(toList());
+    }
+
+    @Override
+    public void restoreCasFromHistory(SourceDocument aDocument, String aUser, long aTimestamp)
+        throws IOException, CasSessionException
+    {
+        Validate.notNull(aDocument, "Source document must be specified");
+        Validate.notBlank(aUser, "User must be specified");
+
+        File annotationFolder = getAnnotationFolder(aDocument);
+        File historyFile = Stream.of(listHistoryFiles(annotationFolder, aUser)) //
+                .filter(f -> getHistoryTimestamp(f) == aTimestamp) //
+                .findFirst() //
+                .orElseThrow(() -> new FileNotFoundException("No history version [" + aTimestamp
+                        + "] for user [" + aUser + "] on document [" + aDocument.getName() + "]("
+                        + aDocument.getId() + ") in project [" + aDocument.getProject().getName()
+                        + "](" + aDocument.getProject().getId() + ")"));
+
+        try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUser)) {
+            // Changes which have not been written yet would overwrite the restored version
+            access.discardPendingWrite();
+            completePendingValidation(access.getKey());
+
+            File currentVersion = new File(annotationFolder, aUser + ".ser");
+
+            // Keep the version which is about to be replaced so the restore can be undone
+            if (currentVersion.exists()) {
+                storeHistoryVersion(currentVersion, aDocument, aUser,
+                        listHistoryFiles(annotationFolder, aUser));
+            }
+
+            File tempVersion = File.createTempFile(aUser + ".ser.", TEMP_FILE_SUFFIX,
+                    annotationFolder);
+            try {
+                if (historyFile.getName().endsWith(MANIFEST_SUFFIX)) {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    chunkedHistory.restore(historyFile,
+                            getHistoryChunkFolder(aDocument.getProject().getId()), bos);
+                    CAS cas = WebAnnoCasUtil.createCas();
+                    CasIOUtils.load(new ByteArrayInputStream(bos.toByteArray()), null,
+                            getRealCas(cas), REINIT);
+                    writeSerializedCas(cas, tempVersion, aDocument.getProject().getId());
+                }
+                else {
+                    // The restored version is a new version, so we do not copy the timestamp
+                    Files.copy(historyFile.toPath(), tempVersion.toPath(), REPLACE_EXISTING);
+                    if (repositoryProperties.isSyncWrites()) {
+                        forceToDisk(tempVersion);
+                    }
+                }
+                validateCasFile(aDocument, aUser, tempVersion, false);
+
+                long previousTimestamp = currentVersion.lastModified();
+                replaceAtomically(tempVersion, currentVersion);
+                if (repositoryProperties.isSyncWrites()) {
+                    forceToDisk(annotationFolder);
+                }
+                advanceModificationStamp(access.getKey(), previousTimestamp,
+                        currentVersion.lastModified());
+            }
+            finally {
+                FileUtils.deleteQuietly(tempVersion);
+            }
+
+            try (MDC.MDCCloseable closable = MDC.putCloseable(Logging.KEY_PROJECT_ID,
+                    String.valueOf(aDocument.getProject().getId()))) {
+                log.info("Restored annotations for user [{}] on document [{}]({}) in project "
+                        + "[{}]({}) from history file [{}]", aUser, aDocument.getName(),
+                        aDocument.getId(), aDocument.getProject().getName(),
+                        aDocument.getProject().getId(), historyFile.getName());
+            }
+
+            // Any CAS in memory is based on the replaced version and must be loaded again. As when
+            // deleting the CAS, it is released from the exclusive access manager and the session.
+            invalidateCachedCas(access.getKey());
+            access.release();
+            CasStorageSession.get().remove(aDocument.getId(), aUser);
+
+            // The restored version is not written through the document service, so there is no
+            // AfterCasWrittenEvent which would notify e.g. caches of results derived from the CAS
+            if (applicationEventPublisher != null) {
+                applicationEventPublisher.publishEvent(
+                        new CasRestoredFromHistoryEvent(this, aDocument, aUser, aTimestamp));
+            }
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (CasSessionException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private long getHistoryTimestamp(File aHistoryFile)
+    {
+        // <user>.ser.<timestamp>.bak, <user>.ser.<timestamp>.manifest or
+        // <user>.ser.<timestamp>.pending
+        String name = aHistoryFile.getName();
+        String withoutSuffix = name.substring(0, name.lastIndexOf('.'));
+        return Long.parseLong(withoutSuffix.substring(withoutSuffix.lastIndexOf('.') + 1));
+    }
+
+    /**
+     * Removes chunks which are no longer referenced by any history manifest. The manifests are
+     * collected only after the chunk folder has been locked, so no manifest can be created while
+     * the pruning is in progress.
+     */
+    void pruneHistoryChunks()
+    {
+        File projectsFolder = new File(repositoryProperties.getPath(), PROJECT_FOLDER);
+        File[] projects = projectsFolder.listFiles(File::isDirectory);
+        if (projects == null) {
+            return;
+        }
+
+        for (File project : projects) {
+            File chunkFolder = new File(project, HISTORY_CHUNK_FOLDER);
+            if (!chunkFolder.isDirectory()) {
+                continue;
+            }
+
+            File documentsFolder = new File(project, DOCUMENT_FOLDER);
+            try {
+                int removed = chunkedHistory.pruneChunks(chunkFolder,
+                        () -> listManifests(documentsFolder));
+                if (removed > 0) {
+                    log.info("Removed {} unused history chunks from project folder [{}]",
+                            removed, project.getName());
+                }
+            }
+            catch (Exception e) {
+                log.error("Unable to prune history chunks in [{}]", chunkFolder, e);
+            }
+        }
+    }
+
+    private List<File> listManifests(File aDocumentsFolder)
+    {
+        if (!aDocumentsFolder.isDirectory()) {
+            return emptyList();
+        }
+
+        try (Stream<Path> files = Files.find(aDocumentsFolder.toPath(), 3,
+                (path, attrs) -> attrs.isRegularFile()
+                        && path.getFileName().toString().endsWith(MANIFEST_SUFFIX))) {
+            return files.map(Path::toFile).collect(toList());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private File getHistoryChunkFolder(long aProjectId)
+    {
+        return new File(repositoryProperties.getPath(),
+                "/" + PROJECT_FOLDER + "/" + aProjectId + "/" + HISTORY_CHUNK_FOLDER);
+    }
+
     @Override
     public CAS readCas(SourceDocument aDocument, String aUsername)
         throws IOException, CasSessionException
@@ -496,7 +1667,8 @@ public class CasStorageServiceImpl
         // If the CAS is not yet in the session, then we must get hold of it somehow...
         CasHolder casHolder;
 
-        // If exclusive access is requested, then we check the CAS out of the exclusive access pool
+        // If exclusive access is requested, then we borrow the CAS from the exclusive access
+        // manager
         if (EXCLUSIVE_WRITE_ACCESS.equals(aAccessMode)) {
             CasKey key = null;
             CasHolder holder = null;
@@ -507,9 +1679,11 @@ public class CasStorageServiceImpl
                 key = new CasKey(aDocument, aUsername);
                 holder = borrowCas(key);
 
-                // If the CAS has not been loaded into the exclusive access pool, then we need to
+                // If the CAS has not been loaded into the exclusive access manager, then we need to
                 // load it
                 if (!holder.isCasSet()) {
+                    completePendingValidation(key);
+
                     CasKey finalKey = key;
                     CasHolder finalHolder = holder;
 
@@ -555,18 +1729,18 @@ public class CasStorageServiceImpl
                 casHolder = holder;
             }
             catch (Exception e) {
-                // If there was an exception, we need to return the CAS to the pool
+                // If there was an exception, we need to return the CAS to the manager
                 if (key != null && holder != null) {
                     log.trace(
                             "CAS storage session [{}]: returning borrowed CAS [{}] for [{}]@[{}]({}) after failure to load CAS",
                             session.hashCode(), holder.getCasHashCode(), aUsername,
                             aDocument.getName(), aDocument.getId());
                     try {
-                        exclusiveAccessPool.returnObject(key, holder);
+                        exclusiveAccessManager.release(key, holder);
                         logExclusiveAccessHolders();
                     }
                     catch (Exception e1) {
-                        log.error("Unable to return CAS to exclusive access pool", e1);
+                        log.error("Unable to return CAS to exclusive access manager", e1);
                     }
                 }
                 casHolder = new CasHolder(key, e);
@@ -582,12 +1756,20 @@ public class CasStorageServiceImpl
             // Ensure that the CAS is not being re-written and temporarily unavailable while we
             // check for its existence
             try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUsername)) {
+                access.flushPendingWrite();
+
                 // Since we promise to only read the CAS, we don't have to worry about it being
                 // locked to a particular thread...
-                casHolder = sharedAccessCache.get(new CasKey(aDocument, aUsername),
-                        (key) -> CasHolder.of(key,
-                                () -> getRealCas(readOrCreateUnmanagedCas(aDocument, aUsername,
-                                        aSupplier, aUpgradeMode))));
+                if (snapshotCache == null) {
+                    casHolder = sharedAccessCache.get(new CasKey(aDocument, aUsername),
+                            (key) -> CasHolder.of(key,
+                                    () -> getRealCas(readOrCreateUnmanagedCas(aDocument,
+                                            aUsername, aSupplier, aUpgradeMode))));
+                }
+                else {
+                    casHolder = readSharedCasViaSnapshot(aDocument, aUsername, aSupplier,
+                            aUpgradeMode);
+                }
             }
         }
         // else if the special bypass mode is requested, then we fetch directly from disk
@@ -595,6 +1777,8 @@ public class CasStorageServiceImpl
             // Ensure that the CAS is not being re-written and temporarily unavailable while we
             // check for its existence
             try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUsername)) {
+                access.flushPendingWrite();
+
                 casHolder = CasHolder.of(new CasKey(aDocument, aUsername),
                         () -> readOrCreateUnmanagedCas(aDocument, aUsername, aSupplier,
                                 aUpgradeMode));
@@ -605,6 +1789,8 @@ public class CasStorageServiceImpl
             // Ensure that the CAS is not being re-written and temporarily unavailable while we
             // check for its existence
             try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUsername)) {
+                access.flushPendingWrite();
+
                 casHolder = CasHolder.of(new CasKey(aDocument, aUsername),
                         () -> readUnmanagedCas(aDocument, aUsername));
             }
@@ -631,15 +1817,53 @@ public class CasStorageServiceImpl
         return cas;
     }
 
+    /**
+     * Obtains a shared read-only CAS from the heap cache or materializes it from its memory-mapped
+     * snapshot. A CAS materialized from a snapshot is only added to the heap cache if it is read
+     * repeatedly. CASes which are read only once, e.g. when the agreement is calculated for a whole
+     * project, thus do not displace the CASes which are actively being worked with from the heap
+     * cache. Until then, the snapshot keeps a soft reference to the materialized CAS, so a repeated
+     * read does not need to materialize the CAS again unless the memory was needed otherwise.
+     */
+    private CasHolder readSharedCasViaSnapshot(SourceDocument aDocument, String aUsername,
+            CasProvider aSupplier, CasUpgradeMode aUpgradeMode)
+        throws IOException
+    {
+        CasKey key = new CasKey(aDocument, aUsername);
+
+        CasHolder casHolder = sharedAccessCache.getIfPresent(key);
+        if (casHolder != null) {
+            return casHolder;
+        }
+
+        File casFile = getCasFile(aDocument, aUsername);
+        Optional<CAS> materializedCas = snapshotCache.getMaterializedCas(key, casFile);
+        if (materializedCas.isPresent()) {
+            casHolder = CasHolder.of(key, materializedCas::get);
+            sharedAccessCache.put(key, casHolder);
+            return casHolder;
+        }
+
+        casHolder = CasHolder.of(key, () -> getRealCas(readOrCreateUnmanagedCas(aDocument,
+                aUsername, aSupplier, aUpgradeMode, true)));
+
+        if (casHolder.isCasSet()) {
+            if (snapshotCache.getAccessCount(key) > 1) {
+                sharedAccessCache.put(key, casHolder);
+            }
+            else {
+                snapshotCache.setMaterializedCas(key, casFile, casHolder.getCas());
+            }
+        }
+
+        return casHolder;
+    }
+
     private CasHolder borrowCas(CasKey aKey)
     {
         try {
-            CasHolder holder = exclusiveAccessPool.borrowObject(aKey);
-            // Add the holder to the set of known holder. Because this set it using weak
-            // references, and because we use the set only to inform holders when they become
-            // invalid we do never have to explicitly remove the holder from the set
-            exclusiveAccessHolders.add(holder);
-            log.trace("Added to exclusiveAccessHolders: {}", holder);
+            CasHolder holder = exclusiveAccessManager.borrow(aKey);
+            log.trace("Borrowed from exclusiveAccessManager: {}", holder);
             logExclusiveAccessHolders();
             return holder;
         }
@@ -649,20 +1873,34 @@ public class CasStorageServiceImpl
     }
 
     /**
-     * Returns a borrowed CAS to the exclusive access pool. This method is not called directly when
-     * a CAS needs to be returned. Rather, it is registered as a "CAS owner" in CAS instances such
-     * that it is called when {@link CAS#release()} is called.
+     * Returns a borrowed CAS to the exclusive access manager. This method is not called directly
+     * when a CAS needs to be returned. Rather, it is registered as a "CAS owner" in CAS instances
+     * such that it is called when {@link CAS#release()} is called.
      */
     private void returnBorrowedCas(AbstractCas cas, CasKey aKey, CasHolder aHolder)
     {
         try {
             log.trace("Returning borrowed CAS [{}] for [{}]@[{}]({})", cas.hashCode(),
                     aKey.getUserId(), aKey.getDocumentName(), aKey.getDocumentId());
-            exclusiveAccessPool.returnObject(aKey, aHolder);
+
+            // Changes which have been deferred while the CAS was borrowed are written before the
+            // CAS is returned, i.e. at the latest when the CAS storage session is closed. If this
+            // fails, the background writer tries again later.
+            if (aHolder.isCasSet() && aHolder.isDirty() && !aHolder.isDeleted()) {
+                try {
+                    flush(aHolder);
+                }
+                catch (Exception e) {
+                    log.error("Unable to write pending changes to CAS for [{}]@[{}]({})",
+                            aKey.getUserId(), aKey.getDocumentName(), aKey.getDocumentId(), e);
+                }
+            }
+
+            exclusiveAccessManager.release(aKey, aHolder);
             logExclusiveAccessHolders();
         }
         catch (Exception e) {
-            log.error("Unable to return CAS [{}] for [{}]@[{}]({}) to exclusive access pool",
+            log.error("Unable to return CAS [{}] for [{}]@[{}]({}) to exclusive access manager",
                     cas.hashCode(), aKey.getUserId(), aKey.getDocumentName(), aKey.getDocumentId(),
                     e);
         }
@@ -714,6 +1952,17 @@ public class CasStorageServiceImpl
     private CAS readOrCreateUnmanagedCas(SourceDocument aDocument, String aUsername,
             CasProvider aSupplier, CasUpgradeMode aUpgradeMode)
         throws IOException
+    {
+        return readOrCreateUnmanagedCas(aDocument, aUsername, aSupplier, aUpgradeMode, false);
+    }
+
+    /**
+     * @param aViaSnapshot
+     *            whether to read the CAS via its memory-mapped snapshot instead of reading the file.
+     */
+    private CAS readOrCreateUnmanagedCas(SourceDocument aDocument, String aUsername,
+            CasProvider aSupplier, CasUpgradeMode aUpgradeMode, boolean aViaSnapshot)
+        throws IOException
     {
         long start = currentTimeMillis();
 
@@ -727,7 +1976,7 @@ public class CasStorageServiceImpl
                     aDocument.getName(), aDocument.getId(), aUsername,
                     aDocument.getProject().getName(), aDocument.getProject().getId());
 
-            cas = readUnmanagedCas(aDocument, aUsername);
+            cas = readUnmanagedCas(aDocument, aUsername, aViaSnapshot);
             repairAndUpgradeCasIfRequired(aDocument, aUsername, cas, aUpgradeMode,
                     ISOLATED_SESSION);
             source = "disk";
@@ -756,6 +2005,12 @@ public class CasStorageServiceImpl
     }
 
     private CAS readUnmanagedCas(SourceDocument aDocument, String aUser) throws IOException
+    {
+        return readUnmanagedCas(aDocument, aUser, false);
+    }
+
+    private CAS readUnmanagedCas(SourceDocument aDocument, String aUser, boolean aViaSnapshot)
+        throws IOException
     {
         File casFile = getCasFile(aDocument.getProject().getId(), aDocument.getId(), aUser);
         File oldCasFile = new File(casFile.getPath() + ".old");
@@ -788,7 +2043,18 @@ public class CasStorageServiceImpl
         }
 
         try {
-            CasPersistenceUtils.readSerializedCas(cas, casFile);
+            Optional<CasSnapshot> snapshot = aViaSnapshot && snapshotCache != null
+                    ? snapshotCache.get(new CasKey(aDocument, aUser), casFile)
+                    : Optional.empty();
+            if (snapshot.isPresent()) {
+                try (CasSnapshot s = snapshot.get(); InputStream is = s.openStream()) {
+                    detectFormat(s.getPreamble(), casFile).read(cas, is,
+                            getBlobFolder(aDocument.getProject().getId()));
+                }
+            }
+            else {
+                readSerializedCas(cas, casFile, aDocument.getProject().getId());
+            }
             // Add/update the CAS metadata
             CasMetadataUtils.addOrUpdateCasMetadata(cas, casFile, aDocument, aUser);
         }
@@ -808,8 +2074,20 @@ public class CasStorageServiceImpl
         throws IOException, CasSessionException
     {
         try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUsername)) {
-            boolean fileWasDeleted = new File(getAnnotationFolder(aDocument), aUsername + ".ser")
-                    .delete();
+            access.discardPendingWrite();
+
+            // Any previous version kept for validation is not needed anymore
+            if (pendingValidations.remove(access.getKey()) != null) {
+                FileUtils.deleteQuietly(
+                        new File(getAnnotationFolder(aDocument), aUsername + ".ser.old"));
+            }
+
+            File casFile = new File(getAnnotationFolder(aDocument), aUsername + ".ser");
+            long previousTimestamp = casFile.lastModified();
+            boolean fileWasDeleted = casFile.delete();
+            if (fileWasDeleted) {
+                advanceModificationStamp(access.getKey(), previousTimestamp, currentTimeMillis());
+            }
 
             // Drop the CAS from the shared CAS it doesn't ghost around. Also set the deleted flag
             // in the holder in case anybody might still be holding on to the holder and needs to
@@ -820,16 +2098,14 @@ public class CasStorageServiceImpl
                 sharedCasHolder.setDeleted(true);
             }
             sharedAccessCache.invalidate(key);
+            if (snapshotCache != null) {
+                snapshotCache.invalidate(key);
+            }
 
-            // Drop the CAS from the exclusive access pool. This is done my marking it as deleted
-            // and then releasing it (returning it to the pool). Upon return, the deleted flag
-            // causes the CAS to be invalidated and dropped from the pool.
-            exclusiveAccessHolders.forEach(h -> {
-                // Must use the forEach here because stream() is not synchronized!
-                if (Objects.equals(h.getKey(), key)) {
-                    h.setDeleted(true);
-                }
-            });
+            // Drop the CAS from the exclusive access manager. This is done my marking it as
+            // deleted and then releasing it. Upon release, the deleted flag causes the CAS to be
+            // dropped from the manager.
+            exclusiveAccessManager.getHolder(key).ifPresent(h -> h.setDeleted(true));
             access.release();
 
             // Drop the CAS from the current session
@@ -973,6 +2249,8 @@ public class CasStorageServiceImpl
             try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUser)) {
                 session.add(aDocument.getId(), aUser, EXCLUSIVE_WRITE_ACCESS, access.getHolder());
 
+                access.flushPendingWrite();
+
                 CAS cas = aLoader.load(aDocument, aUser);
                 access.setCas(cas);
 
@@ -994,6 +2272,42 @@ public class CasStorageServiceImpl
         }
     }
 
+    @Override
+    public void exportCas(SourceDocument aDocument, String aUser, File aTarget) throws IOException
+    {
+        Validate.notNull(aDocument, "Source document must be specified");
+        Validate.notBlank(aUser, "User must be specified");
+
+        // Ensure that the CAS is not being re-written and temporarily unavailable while we export
+        // it - exports may run outside of any session, so we open a nested one here
+        try (CasStorageSession session = CasStorageSession.openNested();
+                WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUser)) {
+            access.flushPendingWrite();
+
+            File casFile = getCasFile(aDocument, aUser);
+            CasStorageFormat format = detectFormat(casFile);
+
+            // Legacy files are self-contained and can be copied as they are
+            if (format instanceof LegacyCasStorageFormat) {
+                FileUtils.copyFile(casFile, aTarget);
+                return;
+            }
+
+            // Other formats may depend on data stored elsewhere in the project (e.g. the type
+            // system), so we convert them to the self-contained legacy format for the export. This
+            // also ensures that older versions are able to import the exported data.
+            CAS cas = WebAnnoCasUtil.createCas();
+            format.read(cas, casFile, getBlobFolder(aDocument.getProject().getId()));
+            CasPersistenceUtils.writeSerializedCas(cas, aTarget);
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     public boolean existsCas(SourceDocument aDocument, String aUser) throws IOException
     {
@@ -1071,6 +2385,10 @@ public class CasStorageServiceImpl
 
         public void setCas(CAS aCas)
         {
+            // Changes to the replaced CAS which have not been written yet must not be written
+            // anymore
+            discardPendingWrite();
+
             if (holder != null) {
                 // Unset the release hook for the old CAS
                 if (holder.isCasSet()) {
@@ -1107,6 +2425,51 @@ public class CasStorageServiceImpl
             return holder;
         }
 
+        /**
+         * @return the holder of the CAS if it has changes which have not been written to disk yet.
+         *         If exclusive access already existed before, the holder is looked up from the
+         *         exclusive access manager.
+         */
+        public Optional<CasHolder> getDirtyHolder()
+        {
+            if (holder != null) {
+                return holder.isDirty() ? Optional.of(holder) : Optional.empty();
+            }
+
+            return findDirtyHolder(key);
+        }
+
+        /**
+         * Writes changes to the CAS which have not been written to disk yet and validates the
+         * written file if that is still pending. This must be called before accessing the CAS
+         * file directly. If writing fails, the problem is logged and the last version on disk is
+         * used - the owner of the CAS gets to see the problem when saving the next time.
+         */
+        public void flushPendingWrite()
+        {
+            Optional<CasHolder> dirtyHolder = getDirtyHolder();
+            if (dirtyHolder.isPresent()) {
+                try {
+                    flush(dirtyHolder.get());
+                }
+                catch (Exception e) {
+                    log.error("Unable to write pending changes to CAS for [{}]@[{}]({})",
+                            username, documentName, documentId, e);
+                }
+            }
+
+            completePendingValidation(key);
+        }
+
+        /**
+         * Drops changes to the CAS which have not been written to disk yet, e.g. because the CAS
+         * file has been overwritten or deleted.
+         */
+        public void discardPendingWrite()
+        {
+            getDirtyHolder().ifPresent(CasHolder::clearDirty);
+        }
+
         /**
          * Releases the CAS prior to closing the exclusive access context. This is used if the CAS
          * must be released irrespective of whether it was borrowed by {@link WithExclusiveAccess}
@@ -1120,7 +2483,7 @@ public class CasStorageServiceImpl
         public void release()
         {
             if (holder != null) {
-                exclusiveAccessPool.returnObject(key, holder);
+                exclusiveAccessManager.release(key, holder);
                 holder = null;
                 logExclusiveAccessHolders();
             }
@@ -1135,7 +2498,7 @@ public class CasStorageServiceImpl
             if (holder != null) {
                 log.trace("Returning briefly borrowed CAS [{}]@[{}]({})", username, documentName,
                         documentId);
-                exclusiveAccessPool.returnObject(key, holder);
+                exclusiveAccessManager.release(key, holder);
                 logExclusiveAccessHolders();
             }
         }
@@ -1150,12 +2513,20 @@ public class CasStorageServiceImpl
         // Ensure that the CAS is not being re-written and temporarily unavailable while we check
         // for its existence
         try (WithExclusiveAccess access = new WithExclusiveAccess(aDocument, aUser)) {
+            // Changes made through this service are reported by the modification stamp which is
+            // also advanced by changes which have not been written yet. The timestamp of the CAS
+            // file is only used if the CAS has not been changed since the application started.
+            Long stamp = modificationStamps.get(access.getKey());
+            if (access.getDirtyHolder().isPresent()) {
+                return Optional.of(stamp);
+            }
+
             File casFile = getCasFile(aDocument, aUser);
             if (!casFile.exists()) {
                 return Optional.empty();
             }
             else {
-                return Optional.of(casFile.lastModified());
+                return Optional.of(stamp != null ? stamp : casFile.lastModified());
             }
         }
         catch (IOException e) {
@@ -1192,23 +2563,21 @@ public class CasStorageServiceImpl
         return annotationFolder;
     }
 
+    private File getBlobFolder(long aProjectId)
+    {
+        return new File(repositoryProperties.getPath(),
+                "/" + PROJECT_FOLDER + "/" + aProjectId + "/" + BLOB_FOLDER);
+    }
+
     /**
-     * When using the Spring {@link ConcurrentReferenceHashMap} for the
-     * {@link #exclusiveAccessHolders}, we had some trouble that CASHolders disappeared from the set
-     * even though they had not yet been garbage collected (i.e. still referenced from the
-     * {@link #exclusiveAccessPool}. To fix this, we switch to a simple synchronized
-     * {@link WeakHashMap} turned into a set. We keep the debug/logging code around for a little
-     * more to facilitate debugging this again if need be.
+     * Logs the state of the {@link #exclusiveAccessManager} to facilitate debugging problems with
+     * exclusive access to CASes. The CASes currently borrowed and their owners can also be viewed
+     * in JMX.
      */
     private void logExclusiveAccessHolders()
     {
         if (log.isTraceEnabled()) {
-            if (exclusiveAccessHolders.isEmpty()) {
-                log.trace("exclusiveAccessHolders: empty!");
-            }
-            else {
-                log.trace("exclusiveAccessHolders: {}", exclusiveAccessHolders);
-            }
+            log.trace("exclusiveAccessManager: {}", exclusiveAccessManager);
         }
     }
 
@@ -1220,8 +2589,7 @@ public class CasStorageServiceImpl
         // so they can be refreshed when next returned or borrowed
         logExclusiveAccessHolders();
 
-        exclusiveAccessHolders.forEach(h -> {
-            // Must use the forEach here because stream() is not synchronized!
+        exclusiveAccessManager.forEachHolder(h -> {
             if (Objects.equals(h.getKey().getProjectId(), aEvent.getProject().getId())) {
                 h.setTypeSystemOutdated(true);
             }
@@ -1233,5 +2601,8 @@ public class CasStorageServiceImpl
         // with an updated type system on next access
         sharedAccessCache.asMap().keySet()
                 .removeIf(key -> Objects.equals(key.getProjectId(), aEvent.getProject().getId()));
+        if (snapshotCache != null) {
+            snapshotCache.invalidateProject(aEvent.getProject().getId());
+        }
     }
 }
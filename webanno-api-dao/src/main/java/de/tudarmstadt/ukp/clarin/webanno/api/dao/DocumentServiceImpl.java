@@ -284,6 +284,12 @@ public class DocumentServiceImpl
         return casStorageService.getCasFile(aDocument, aUser);
     }
 
+    @Override
+    public void exportCas(SourceDocument aDocument, String aUser, File aTarget) throws IOException
+    {
+        casStorageService.exportCas(aDocument, aUser, aTarget);
+    }
+
     @Override
     @Transactional(noRollbackFor = NoResultException.class)
     public AnnotationDocument createOrGetAnnotationDocument(SourceDocument aDocument, User aUser)
@@ -23,6 +23,8 @@ import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.uima.cas.CAS;
 
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
 /**
  * Object representing the attempt to load a CAS, either containing a CAS or an exception if the
  * load failed.
@@ -36,6 +38,10 @@ public class CasHolder
     private boolean typeSystemOutdated;
     private boolean deleted;
 
+    private SourceDocument dirtyDocument;
+    private long dirtySince;
+    private boolean flushFailed;
+
     public CasHolder(CasKey aKey)
     {
         key = aKey;
@@ -111,6 +117,57 @@ public class CasHolder
         return deleted;
     }
 
+    /**
+     * Marks the CAS as having been changed in memory without the change having been written to
+     * disk yet.
+     * 
+     * @param aDocument
+     *            the document to which the CAS belongs.
+     */
+    public synchronized void markDirty(SourceDocument aDocument)
+    {
+        if (dirtyDocument == null) {
+            dirtySince = System.currentTimeMillis();
+        }
+
+        dirtyDocument = aDocument;
+    }
+
+    public synchronized void clearDirty()
+    {
+        dirtyDocument = null;
+        dirtySince = 0;
+        flushFailed = false;
+    }
+
+    /**
+     * @return whether the last attempt to write the pending changes to disk has failed.
+     */
+    public synchronized boolean isFlushFailed()
+    {
+        return flushFailed;
+    }
+
+    public synchronized void setFlushFailed(boolean aFlushFailed)
+    {
+        flushFailed = aFlushFailed;
+    }
+
+    public synchronized boolean isDirty()
+    {
+        return dirtyDocument != null;
+    }
+
+    public synchronized SourceDocument getDirtyDocument()
+    {
+        return dirtyDocument;
+    }
+
+    public synchronized long getDirtySince()
+    {
+        return dirtySince;
+    }
+
     public static CasHolder of(CasKey aKey, SupplierThrowingException<CAS> aSupplier)
     {
         try {
@@ -142,7 +199,7 @@ public class CasHolder
     {
         return new ToStringBuilder(this, SHORT_PREFIX_STYLE).append("key", key)
                 .append("deleted", deleted).append("typeSystemOutdated", typeSystemOutdated)
-                .toString();
+                .append("dirty", isDirty()).toString();
     }
 
 }
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getRealCas;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.impl.CASImpl;
+
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * Weighs CAS holders by a rough estimate of the heap memory occupied by their CAS. The estimate is
+ * based on the number of feature structures and the length of the document text and is meant to
+ * bound the memory used by a cache, not to measure it precisely.
+ */
+public class CasHolderWeigher
+    implements Weigher<CasKey, CasHolder>
+{
+    /**
+     * Memory used by an empty CAS, e.g. for the views, index repository and sofa.
+     */
+    static final long CAS_OVERHEAD = 16 * 1024;
+
+    /**
+     * Average memory used by a feature structure including its feature value arrays and index
+     * entries.
+     */
+    static final long BYTES_PER_FEATURE_STRUCTURE = 96;
+
+    @Override
+    public int weigh(CasKey aKey, CasHolder aHolder)
+    {
+        if (!aHolder.isCasSet()) {
+            return 1;
+        }
+
+        return (int) Math.min(Integer.MAX_VALUE, estimateSize(aHolder.getCas()));
+    }
+
+    public static long estimateSize(CAS aCas)
+    {
+        CASImpl baseCas = ((CASImpl) getRealCas(aCas)).getBaseCAS();
+
+        long size = CAS_OVERHEAD;
+        size += (long) baseCas.getLastUsedFsId() * BYTES_PER_FEATURE_STRUCTURE;
+
+        String text = aCas.getDocumentText();
+        if (text != null) {
+            size += (long) text.length() * Character.BYTES;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only snapshot of a CAS file which is memory-mapped from disk. The data of the snapshot
+ * lives outside of the Java heap and is paged in by the operating system when a CAS is
+ * materialized from it.
+ * <p>
+ * The mapping is reference counted. The cache holds one reference and every reader obtains another
+ * one which it releases by closing the snapshot. The file is unmapped as soon as the last reference
+ * has been released, i.e. when the snapshot has been evicted from the cache and no reader is using
+ * it anymore.
+ */
+public class CasSnapshot
+    implements AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CasSnapshot.class);
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch (Exception e) {
+            LOG.warn("Unable to unmap CAS snapshots explicitly - mappings are released by the "
+                    + "garbage collector", e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long lastModified;
+    private final long size;
+    private final LongConsumer unmapListener;
+    private final AtomicInteger accessCount = new AtomicInteger();
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private volatile ByteBuffer data;
+    private volatile SoftReference<CAS> materializedCas;
+
+    private CasSnapshot(long aLastModified, ByteBuffer aData, LongConsumer aUnmapListener)
+    {
+        lastModified = aLastModified;
+        size = aData.capacity();
+        data = aData;
+        unmapListener = aUnmapListener;
+    }
+
+    /**
+     * @param aUnmapListener
+     *            receives the size of the snapshot once it has been unmapped.
+     */
+    public static CasSnapshot map(File aCasFile, LongConsumer aUnmapListener) throws IOException
+    {
+        long lastModified = aCasFile.lastModified();
+        try (FileChannel channel = FileChannel.open(aCasFile.toPath(), READ)) {
+            return new CasSnapshot(lastModified, channel.map(READ_ONLY, 0, channel.size()),
+                    aUnmapListener);
+        }
+    }
+
+    /**
+     * @return whether the snapshot still reflects the contents of the given file.
+     */
+    public boolean isValid(File aCasFile)
+    {
+        return aCasFile.lastModified() == lastModified && aCasFile.length() == size;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public int recordAccess()
+    {
+        return accessCount.incrementAndGet();
+    }
+
+    public int getAccessCount()
+    {
+        return accessCount.get();
+    }
+
+    /**
+     * Obtains another reference to the snapshot.
+     * 
+     * @return {@code false} if the snapshot has already been unmapped.
+     */
+    boolean tryRetain()
+    {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0) {
+                return false;
+            }
+        }
+        while (!references.compareAndSet(count, count + 1));
+
+        return true;
+    }
+
+    /**
+     * Releases a reference to the snapshot. The file is unmapped when the last reference has been
+     * released.
+     */
+    @Override
+    public void close()
+    {
+        if (references.decrementAndGet() > 0) {
+            return;
+        }
+
+        ByteBuffer buffer = data;
+        data = null;
+        materializedCas = null;
+
+        if (buffer != null && INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            }
+            catch (Exception e) {
+                LOG.warn("Unable to unmap CAS snapshot - mapping is released by the garbage "
+                        + "collector", e);
+            }
+        }
+
+        unmapListener.accept(size);
+    }
+
+    public boolean isMapped()
+    {
+        return data != null;
+    }
+
+    /**
+     * @return a CAS which has previously been materialized from this snapshot if the garbage
+     *         collector did not reclaim it yet.
+     */
+    public Optional<CAS> getMaterializedCas()
+    {
+        SoftReference<CAS> ref = materializedCas;
+        return Optional.ofNullable(ref != null ? ref.get() : null);
+    }
+
+    /**
+     * Remembers a CAS which has been materialized from this snapshot such that it can be used
+     * again instead of materializing another one. The CAS is only softly referenced, so it does not
+     * count towards the size of any cache.
+     */
+    public void setMaterializedCas(CAS aCas)
+    {
+        materializedCas = new SoftReference<>(aCas);
+    }
+
+    /**
+     * @return the first bytes of the snapshot for detecting the storage format.
+     */
+    public byte[] getPreamble()
+    {
+        ByteBuffer buffer = getData();
+        byte[] preamble = new byte[(int) Math.min(CasStorageFormat.PREAMBLE_LENGTH, size)];
+        buffer.get(preamble);
+        return preamble;
+    }
+
+    /**
+     * @return a new stream over the data of the snapshot. Multiple streams may be used
+     *         concurrently. The stream must not be used anymore once the snapshot has been closed.
+     */
+    public InputStream openStream()
+    {
+        return new ByteBufferInputStream(getData());
+    }
+
+    private ByteBuffer getData()
+    {
+        ByteBuffer buffer = data;
+        if (buffer == null) {
+            throw new IllegalStateException("Snapshot has already been unmapped");
+        }
+        return buffer.duplicate();
+    }
+
+    private static class ByteBufferInputStream
+        extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer aBuffer)
+        {
+            buffer = aBuffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] aBytes, int aOffset, int aLength)
+        {
+            if (aLength == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int length = Math.min(aLength, buffer.remaining());
+            buffer.get(aBytes, aOffset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long aCount)
+        {
+            int count = (int) Math.max(0, Math.min(aCount, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.uima.cas.CAS;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+/**
+ * Keeps memory-mapped read-only snapshots of CAS files. The total size of the mapped files is
+ * bounded. Snapshots are validated against the file on disk before they are used and are
+ * replaced if the file has changed. Snapshots which are dropped from the cache are unmapped as soon
+ * as they are no longer being read.
+ */
+public class CasSnapshotCache
+{
+    /**
+     * Mappings occupy whole pages of memory.
+     */
+    static final long PAGE_SIZE = 4096;
+
+    private final Cache<CasKey, CasSnapshot> snapshots;
+    private final AtomicLong mappedSize = new AtomicLong();
+
+    public CasSnapshotCache(long aMaxSize)
+    {
+        snapshots = Caffeine.newBuilder() //
+                .maximumWeight(aMaxSize) //
+                .weigher((CasKey key, CasSnapshot snapshot) -> weigh(snapshot)) //
+                .removalListener(
+                        (CasKey key, CasSnapshot snapshot, RemovalCause cause) -> snapshot.close()) //
+                .executor(Runnable::run) //
+                .build();
+    }
+
+    static int weigh(CasSnapshot aSnapshot)
+    {
+        long pages = (aSnapshot.getSize() + PAGE_SIZE - 1) / PAGE_SIZE;
+        return (int) Math.min(Integer.MAX_VALUE, pages * PAGE_SIZE);
+    }
+
+    /**
+     * Obtains a snapshot of the given CAS file, mapping the file if there is no valid snapshot
+     * yet. The caller must ensure that the file is not written while this method is called. The
+     * caller must close the snapshot when it is done reading from it.
+     * 
+     * @return the snapshot or an empty optional if the file cannot be mapped, e.g. because it is
+     *         too large.
+     */
+    public Optional<CasSnapshot> get(CasKey aKey, File aCasFile) throws IOException
+    {
+        long length = aCasFile.length();
+        if (length == 0 || length > Integer.MAX_VALUE) {
+            return Optional.empty();
+        }
+
+        CasSnapshot snapshot = getIfValid(aKey, aCasFile);
+        if (snapshot == null) {
+            snapshot = CasSnapshot.map(aCasFile, size -> mappedSize.addAndGet(-size));
+            mappedSize.addAndGet(snapshot.getSize());
+            // One reference for the cache and one for the caller
+            snapshot.tryRetain();
+            snapshots.put(aKey, snapshot);
+        }
+
+        snapshot.recordAccess();
+
+        return Optional.of(snapshot);
+    }
+
+    /**
+     * @return a CAS which has been materialized from the current snapshot of the given CAS file
+     *         before and which has not been reclaimed by the garbage collector yet.
+     */
+    public Optional<CAS> getMaterializedCas(CasKey aKey, File aCasFile)
+    {
+        CasSnapshot snapshot = getIfValid(aKey, aCasFile);
+        if (snapshot == null) {
+            return Optional.empty();
+        }
+
+        try {
+            Optional<CAS> cas = snapshot.getMaterializedCas();
+            if (cas.isPresent()) {
+                snapshot.recordAccess();
+            }
+            return cas;
+        }
+        finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Remembers a CAS which has been materialized from the current snapshot of the given CAS file.
+     * 
+     * @see CasSnapshot#setMaterializedCas(CAS)
+     */
+    public void setMaterializedCas(CasKey aKey, File aCasFile, CAS aCas)
+    {
+        CasSnapshot snapshot = getIfValid(aKey, aCasFile);
+        if (snapshot != null) {
+            try {
+                snapshot.setMaterializedCas(aCas);
+            }
+            finally {
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * @return a retained snapshot of the given file or {@code null} if there is none.
+     */
+    private CasSnapshot getIfValid(CasKey aKey, File aCasFile)
+    {
+        CasSnapshot snapshot = snapshots.getIfPresent(aKey);
+        if (snapshot == null || !snapshot.tryRetain()) {
+            return null;
+        }
+
+        if (!snapshot.isValid(aCasFile)) {
+            snapshot.close();
+            return null;
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return how often the CAS has been read via its current snapshot.
+     */
+    public int getAccessCount(CasKey aKey)
+    {
+        CasSnapshot snapshot = snapshots.getIfPresent(aKey);
+        return snapshot != null ? snapshot.getAccessCount() : 0;
+    }
+
+    public void invalidate(CasKey aKey)
+    {
+        snapshots.invalidate(aKey);
+    }
+
+    public void invalidateProject(long aProjectId)
+    {
+        snapshots.asMap().keySet().removeIf(key -> key.getProjectId() == aProjectId);
+    }
+
+    public long size()
+    {
+        return snapshots.estimatedSize();
+    }
+
+    /**
+     * @return the total size of the files which are currently mapped, including snapshots which
+     *         have been dropped from the cache but are still being read.
+     */
+    public long getMappedSize()
+    {
+        return mappedSize.get();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.uima.cas.CAS;
+
+/**
+ * Storage format used by the {@code CasStorageService} to persist annotation CASes to disk.
+ * <p>
+ * Multiple formats may be registered with the storage service. One of them is used to write CASes
+ * while any of them may be used to read CASes. The format of an existing file is detected by
+ * looking at its first few bytes via {@link #accepts(byte[])}. This permits transparently reading
+ * files written in a different format than the current one. Such files are migrated lazily to the
+ * current format when they are written the next time.
+ */
+public interface CasStorageFormat
+{
+    /**
+     * Number of bytes from the beginning of a file which are passed to {@link #accepts(byte[])}.
+     */
+    int PREAMBLE_LENGTH = 8;
+
+    /**
+     * @return the unique identifier of the format. This is used in the configuration to select the
+     *         format in which CASes are written.
+     */
+    String getId();
+
+    /**
+     * @param aPreamble
+     *            the first bytes of a file (at most {@link #PREAMBLE_LENGTH}, maybe less if the
+     *            file is shorter).
+     * @return whether the file appears to be stored in this format.
+     */
+    boolean accepts(byte[] aPreamble);
+
+    /**
+     * Write the given CAS to the given file.
+     * 
+     * @param aCas
+     *            the CAS to write.
+     * @param aCasFile
+     *            the file to write the CAS to.
+     * @param aBlobFolder
+     *            a project-level folder in which the format may store data shared between multiple
+     *            CASes of the project, e.g. the type system.
+     * @throws IOException
+     *             if the CAS could not be written.
+     */
+    default void write(CAS aCas, File aCasFile, File aBlobFolder) throws IOException
+    {
+        FileUtils.forceMkdir(aCasFile.getParentFile());
+
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(aCasFile))) {
+            write(aCas, os, aBlobFolder);
+        }
+    }
+
+    /**
+     * Write the given CAS to the given stream. This allows the caller to control how the data is
+     * written, e.g. to force it to the storage device through the same channel it is written with.
+     * 
+     * @param aCas
+     *            the CAS to write.
+     * @param aOutputStream
+     *            the stream to write the CAS to. The stream is flushed but not closed.
+     * @param aBlobFolder
+     *            a project-level folder in which the format may store data shared between multiple
+     *            CASes of the project, e.g. the type system.
+     * @throws IOException
+     *             if the CAS could not be written.
+     */
+    void write(CAS aCas, OutputStream aOutputStream, File aBlobFolder) throws IOException;
+
+    /**
+     * Read the CAS from the given file into the given CAS. The type system of the given CAS is
+     * replaced by the type system stored with the data.
+     * 
+     * @param aCas
+     *            the CAS to load the data into.
+     * @param aCasFile
+     *            the file to read the CAS from.
+     * @param aBlobFolder
+     *            a project-level folder in which the format may store data shared between multiple
+     *            CASes of the project, e.g. the type system.
+     * @throws IOException
+     *             if the CAS could not be read.
+     */
+    default void read(CAS aCas, File aCasFile, File aBlobFolder) throws IOException
+    {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(aCasFile))) {
+            read(aCas, is, aBlobFolder);
+        }
+    }
+
+    /**
+     * Read the CAS from the given stream into the given CAS. The stream contains the complete
+     * contents of a file written by this format.
+     * 
+     * @param aCas
+     *            the CAS to load the data into.
+     * @param aInputStream
+     *            the stream to read the CAS from. The stream is not closed.
+     * @param aBlobFolder
+     *            a project-level folder in which the format may store data shared between multiple
+     *            CASes of the project, e.g. the type system.
+     * @throws IOException
+     *             if the CAS could not be read.
+     */
+    void read(CAS aCas, InputStream aInputStream, File aBlobFolder) throws IOException;
+}
@@ -0,0 +1,377 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.util.stream.Collectors.toList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores history versions of annotation files as manifests referring to content-defined chunks.
+ * The chunks are kept in a project-level folder and are shared by all versions of all annotation
+ * files in the project. Since consecutive versions of an annotation file and the files of
+ * different annotators working on the same document usually have most of their data in common,
+ * only the chunks which actually changed need to be stored for a new version.
+ * <p>
+ * Chunk boundaries are determined by a rolling hash over the data (gear hash). Thus, inserting or
+ * removing data only affects the chunks around the modification while all other chunks remain the
+ * same even though their position in the file has changed. This only works if the data is not
+ * compressed as a whole, so callers should pass an uncompressed serialization. Each chunk is
+ * compressed individually when it is stored.
+ * <p>
+ * Chunks are never modified. Chunks which are no longer referenced by any manifest are removed by
+ * {@link #pruneChunks}. Storing and restoring versions may happen concurrently, but not while
+ * chunks are pruned.
+ */
+public class ChunkedCasHistory
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedCasHistory.class);
+
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final String MANIFEST_HEADER = "# chunked-history 1";
+
+    private static final int MIN_CHUNK_SIZE = 2 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // 13 bits results in an average chunk size of about 8KB
+    private static final long BOUNDARY_MASK = 0xFFF8_0000_0000_0000L;
+
+    private static final long[] GEAR = new long[256];
+
+    private final ConcurrentMap<File, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+    static {
+        // Fixed seed - the chunk boundaries must be the same across restarts
+        Random rnd = new Random(0x5EED_CA5EL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = rnd.nextLong();
+        }
+    }
+
+    /**
+     * Stores the given data as a manifest referring to chunks in the given chunk folder. The
+     * manifest is written before the chunk folder is released for pruning again, so the chunks it
+     * refers to cannot be removed in between.
+     * 
+     * @param aSource
+     *            the data to store. The stream is not closed.
+     * @param aManifest
+     *            the manifest file to create.
+     * @param aChunkFolder
+     *            the folder holding the chunks.
+     * @return the number of (compressed) bytes which had to be added to the chunk folder.
+     * @throws IOException
+     *             if the data could not be stored.
+     */
+    public long store(InputStream aSource, File aManifest, File aChunkFolder) throws IOException
+    {
+        Lock lock = getLock(aChunkFolder).readLock();
+        lock.lock();
+        try {
+            return storeLocked(aSource, aManifest, aChunkFolder);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private long storeLocked(InputStream aSource, File aManifest, File aChunkFolder)
+        throws IOException
+    {
+        long added = 0;
+        List<String> entries = new ArrayList<>();
+        InputStream is = new BufferedInputStream(aSource);
+        byte[] buffer = new byte[MAX_CHUNK_SIZE];
+        int length;
+        while ((length = readChunk(is, buffer)) > 0) {
+            String hash = sha256(buffer, length);
+            added += storeChunk(aChunkFolder, hash, buffer, length);
+            entries.add(hash + " " + length);
+        }
+
+        File tempFile = File.createTempFile(aManifest.getName(), ".tmp",
+                aManifest.getParentFile());
+        try {
+            try (Writer out = Files.newBufferedWriter(tempFile.toPath(), UTF_8)) {
+                out.write(MANIFEST_HEADER);
+                out.write('\n');
+                for (String entry : entries) {
+                    out.write(entry);
+                    out.write('\n');
+                }
+            }
+            move(tempFile, aManifest);
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+
+        return added;
+    }
+
+    /**
+     * Writes the data from which the given manifest was created to the given stream.
+     * 
+     * @param aManifest
+     *            the manifest.
+     * @param aChunkFolder
+     *            the folder holding the chunks.
+     * @param aOut
+     *            the stream to write to. The stream is not closed.
+     * @throws IOException
+     *             if a chunk is missing or damaged.
+     */
+    public void restore(File aManifest, File aChunkFolder, OutputStream aOut) throws IOException
+    {
+        Lock lock = getLock(aChunkFolder).readLock();
+        lock.lock();
+        try {
+            for (String entry : readManifest(aManifest)) {
+                String[] fields = entry.split(" ");
+                String hash = fields[0];
+                int length = Integer.parseInt(fields[1]);
+
+                byte[] data;
+                try (InputStream is = new InflaterInputStream(
+                        Files.newInputStream(getChunkFile(aChunkFolder, hash).toPath()))) {
+                    data = is.readAllBytes();
+                }
+                catch (NoSuchFileException e) {
+                    throw e;
+                }
+                catch (IOException e) {
+                    throw new IOException("Chunk [" + hash + "] referenced by [" + aManifest
+                            + "] is damaged", e);
+                }
+
+                if (data.length != length || !hash.equals(sha256(data, data.length))) {
+                    throw new IOException("Chunk [" + hash + "] referenced by [" + aManifest
+                            + "] is damaged");
+                }
+                aOut.write(data);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all chunks which are not referenced by any manifest. No versions can be stored while
+     * the chunks are pruned, so the manifests obtained from the given supplier are exactly the ones
+     * referring to chunks in the folder.
+     * 
+     * @param aChunkFolder
+     *            the folder holding the chunks.
+     * @param aManifests
+     *            supplies all manifests which refer to chunks in the folder. It is called after
+     *            the folder has been locked.
+     * @return the number of chunks which were removed.
+     * @throws IOException
+     *             if the manifests could not be read.
+     */
+    public int pruneChunks(File aChunkFolder, Supplier<Collection<File>> aManifests)
+        throws IOException
+    {
+        if (!aChunkFolder.isDirectory()) {
+            return 0;
+        }
+
+        Lock lock = getLock(aChunkFolder).writeLock();
+        lock.lock();
+        try {
+            return pruneChunksLocked(aChunkFolder, aManifests);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private int pruneChunksLocked(File aChunkFolder, Supplier<Collection<File>> aManifests)
+        throws IOException
+    {
+        Set<String> referenced = new HashSet<>();
+        for (File manifest : aManifests.get()) {
+            try {
+                for (String entry : readManifest(manifest)) {
+                    referenced.add(entry.substring(0, entry.indexOf(' ')));
+                }
+            }
+            catch (NoSuchFileException e) {
+                // Manifest has been removed in the meantime - fine
+            }
+        }
+
+        List<Path> chunks;
+        try (Stream<Path> files = Files.walk(aChunkFolder.toPath(), 2)) {
+            chunks = files.filter(Files::isRegularFile).collect(toList());
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // Left-over temporary files of interrupted writes are not referenced either
+        int removed = 0;
+        for (Path chunk : chunks) {
+            String name = chunk.getFileName().toString();
+            if (referenced.contains(name)) {
+                continue;
+            }
+
+            try {
+                Files.delete(chunk);
+                removed++;
+            }
+            catch (IOException e) {
+                LOG.warn("Unable to remove unused history chunk [{}]", chunk, e);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Reads up to the next chunk boundary.
+     * 
+     * @return the length of the chunk or {@code 0} if the end of the stream has been reached.
+     */
+    static int readChunk(InputStream aIn, byte[] aBuffer) throws IOException
+    {
+        long hash = 0;
+        int length = 0;
+        int b;
+        while (length < aBuffer.length && (b = aIn.read()) != -1) {
+            aBuffer[length++] = (byte) b;
+            hash = (hash << 1) + GEAR[b];
+            if (length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the number of bytes written for the chunk or {@code 0} if the chunk already existed.
+     */
+    private long storeChunk(File aChunkFolder, String aHash, byte[] aData, int aLength)
+        throws IOException
+    {
+        File chunkFile = getChunkFile(aChunkFolder, aHash);
+
+        // Chunks cannot be pruned while we hold the read lock, so an existing chunk stays
+        if (chunkFile.exists()) {
+            return 0;
+        }
+
+        FileUtils.forceMkdir(chunkFile.getParentFile());
+        File tempFile = File.createTempFile(aHash, ".tmp", chunkFile.getParentFile());
+        try {
+            try (OutputStream os = new DeflaterOutputStream(
+                    Files.newOutputStream(tempFile.toPath()))) {
+                os.write(aData, 0, aLength);
+            }
+            long written = tempFile.length();
+            move(tempFile, chunkFile);
+            return written;
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private ReadWriteLock getLock(File aChunkFolder)
+    {
+        return locks.computeIfAbsent(aChunkFolder.getAbsoluteFile(),
+                k -> new ReentrantReadWriteLock());
+    }
+
+    private static List<String> readManifest(File aManifest) throws IOException
+    {
+        try (BufferedReader in = Files.newBufferedReader(aManifest.toPath(), UTF_8)) {
+            if (!MANIFEST_HEADER.equals(in.readLine())) {
+                throw new IOException("[" + aManifest + "] is not a history manifest");
+            }
+            return in.lines().filter(line -> !line.isEmpty()).collect(toList());
+        }
+    }
+
+    private static File getChunkFile(File aChunkFolder, String aHash)
+    {
+        return new File(new File(aChunkFolder, aHash.substring(0, 2)), aHash);
+    }
+
+    private static void move(File aSource, File aTarget) throws IOException
+    {
+        try {
+            Files.move(aSource.toPath(), aTarget.toPath(), ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(aSource.toPath(), aTarget.toPath());
+        }
+    }
+
+    private static String sha256(byte[] aData, int aLength)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(aData, 0, aLength);
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
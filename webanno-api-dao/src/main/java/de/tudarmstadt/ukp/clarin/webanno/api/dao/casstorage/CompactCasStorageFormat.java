@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.getRealCas;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.util.Collections.synchronizedMap;
+import static org.apache.uima.cas.SerialFormat.COMPRESSED_FILTERED;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.TypeSystem;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.util.CasIOUtils;
+import org.apache.uima.util.CasLoadMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasPersistenceUtils;
+
+/**
+ * Stores the CAS data in the UIMA compressed binary form 6 without type system information. The
+ * type system and index definitions are stored separately as a content-addressed blob in the
+ * project-level blob folder. Since all CASes of a project usually share the same type system, it
+ * is stored only once instead of being repeated in every file.
+ * <p>
+ * File layout:
+ * <ul>
+ * <li>4 bytes magic number ({@code WAC6})</li>
+ * <li>4 bytes format version</li>
+ * <li>the SHA-256 hash of the type system blob (modified UTF-8 string)</li>
+ * <li>the UIMA compressed form 6 binary CAS</li>
+ * </ul>
+ */
+public class CompactCasStorageFormat
+    implements CasStorageFormat
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CompactCasStorageFormat.class);
+
+    public static final String ID = "compact";
+
+    private static final byte[] MAGIC = { 'W', 'A', 'C', '6' };
+    private static final int VERSION = 1;
+    private static final String TYPE_SYSTEM_SUFFIX = ".tsi";
+
+    private final Map<TypeSystem, String> typeSystemHashCache = synchronizedMap(
+            new WeakHashMap<>());
+
+    @Override
+    public String getId()
+    {
+        return ID;
+    }
+
+    @Override
+    public boolean accepts(byte[] aPreamble)
+    {
+        return aPreamble.length >= MAGIC.length
+                && Arrays.equals(aPreamble, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    @Override
+    public void write(CAS aCas, OutputStream aOutputStream, File aBlobFolder) throws IOException
+    {
+        CAS realCas = getRealCas(aCas);
+        // UIMA-6162 Workaround: synchronize CAS during de/serialization
+        synchronized (((CASImpl) realCas).getBaseCAS()) {
+            String typeSystemHash = storeTypeSystem(realCas, aBlobFolder);
+
+            DataOutputStream os = new DataOutputStream(aOutputStream);
+            os.write(MAGIC);
+            os.writeInt(VERSION);
+            os.writeUTF(typeSystemHash);
+            CasIOUtils.save(realCas, os, COMPRESSED_FILTERED);
+            os.flush();
+        }
+    }
+
+    @Override
+    public void read(CAS aCas, InputStream aInputStream, File aBlobFolder) throws IOException
+    {
+        CAS realCas = getRealCas(aCas);
+        // UIMA-6162 Workaround: synchronize CAS during de/serialization
+        synchronized (((CASImpl) realCas).getBaseCAS()) {
+            DataInputStream is = new DataInputStream(aInputStream);
+            byte[] magic = new byte[MAGIC.length];
+            is.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Data is not in the compact CAS format");
+            }
+
+            int version = is.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported compact CAS file version [" + version + "]");
+            }
+
+            String typeSystemHash = is.readUTF();
+            File typeSystemFile = getTypeSystemFile(aBlobFolder, typeSystemHash);
+            if (!typeSystemFile.exists()) {
+                throw new FileNotFoundException("Type system [" + typeSystemHash
+                        + "] not found at [" + typeSystemFile + "]");
+            }
+
+            try (InputStream tsis = new BufferedInputStream(
+                    new FileInputStream(typeSystemFile))) {
+                CasIOUtils.load(is, tsis, realCas, CasLoadMode.REINIT);
+            }
+
+            CasPersistenceUtils.removeSpuriousDocumentAnnotations(aCas);
+        }
+    }
+
+    /**
+     * Stores the type system of the given CAS in the blob folder unless a blob with the same
+     * content already exists there.
+     * 
+     * @return the hash under which the type system was stored.
+     */
+    private String storeTypeSystem(CAS aCas, File aBlobFolder) throws IOException
+    {
+        TypeSystem ts = aCas.getTypeSystem();
+
+        byte[] tsi = null;
+        String hash = typeSystemHashCache.get(ts);
+        if (hash == null) {
+            tsi = serializeTypeSystem(aCas);
+            hash = sha256(tsi);
+            typeSystemHashCache.put(ts, hash);
+        }
+
+        File typeSystemFile = getTypeSystemFile(aBlobFolder, hash);
+        if (typeSystemFile.exists()) {
+            return hash;
+        }
+
+        if (tsi == null) {
+            tsi = serializeTypeSystem(aCas);
+        }
+
+        // Write to a temporary file first and then move it into place so that a concurrent reader
+        // never sees a partially written blob
+        FileUtils.forceMkdir(aBlobFolder);
+        File tempFile = File.createTempFile(hash, ".tmp", aBlobFolder);
+        try {
+            Files.write(tempFile.toPath(), tsi);
+            try {
+                Files.move(tempFile.toPath(), typeSystemFile.toPath(), ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), typeSystemFile.toPath());
+            }
+        }
+        catch (IOException e) {
+            // Another thread may have stored the same blob in the meantime - that is fine
+            if (!typeSystemFile.exists()) {
+                throw e;
+            }
+        }
+        finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+
+        LOG.debug("Stored type system [{}] at [{}]", hash, typeSystemFile);
+
+        return hash;
+    }
+
+    private File getTypeSystemFile(File aBlobFolder, String aHash)
+    {
+        return new File(aBlobFolder, aHash + TYPE_SYSTEM_SUFFIX);
+    }
+
+    private static byte[] serializeTypeSystem(CAS aCas) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CasIOUtils.writeTypeSystem(aCas, bos, true);
+        return bos.toByteArray();
+    }
+
+    private static String sha256(byte[] aData)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return String.format("%064x", new BigInteger(1, digest.digest(aData)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
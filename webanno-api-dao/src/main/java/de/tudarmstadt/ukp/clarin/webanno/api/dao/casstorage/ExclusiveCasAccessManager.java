@@ -0,0 +1,396 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Controls exclusive access to CASes. For every {@link CasKey}, there is at most one
+ * {@link CasHolder} which can be borrowed by one party at a time. Other parties wanting to borrow
+ * the same CAS wait in the order of their arrival until it is returned or their timeout expires.
+ * <p>
+ * Each key has its own lightweight slot in a concurrent map, so borrowing and returning CASes for
+ * different keys does not contend on any shared lock. The known holders can be iterated without
+ * locking, e.g. to mark them as outdated.
+ * <p>
+ * A holder is checked when it is borrowed and when it is returned. If it has been deleted or its
+ * type system has become outdated (and it has no changes which still need to be written), it is
+ * dropped and a fresh holder is handed out on the next borrow. Slots which have not been used for
+ * the configured idle time are dropped by a background evictor - again except for those holding
+ * changes which still need to be written.
+ */
+public class ExclusiveCasAccessManager
+    implements ExclusiveCasAccessManagerMXBean, AutoCloseable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ExclusiveCasAccessManager.class);
+
+    private final ConcurrentMap<CasKey, Slot> slots = new ConcurrentHashMap<>();
+
+    private final long maxWaitMillis;
+    private final long maxIdleMillis;
+    private final ScheduledExecutorService evictor;
+
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * @param aMaxWaitMillis
+     *            the time to wait for exclusive access if no explicit timeout is given.
+     * @param aMaxIdleMillis
+     *            the time after which CASes which have not been borrowed are dropped. If this is
+     *            {@code 0} or less, idle CASes are only dropped when calling {@link #evictIdle()}.
+     */
+    public ExclusiveCasAccessManager(long aMaxWaitMillis, long aMaxIdleMillis)
+    {
+        maxWaitMillis = aMaxWaitMillis;
+        maxIdleMillis = aMaxIdleMillis;
+
+        if (maxIdleMillis > 0) {
+            evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "exclusive-cas-access-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictor.scheduleWithFixedDelay(this::evictIdle, maxIdleMillis, maxIdleMillis,
+                    MILLISECONDS);
+        }
+        else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * Borrows the holder for the given CAS, waiting at most for the default time.
+     * 
+     * @see #borrow(CasKey, long)
+     */
+    public CasHolder borrow(CasKey aKey) throws InterruptedException
+    {
+        return borrow(aKey, maxWaitMillis);
+    }
+
+    /**
+     * Borrows the holder for the given CAS. The holder must be returned using
+     * {@link #release(CasKey, CasHolder)} - not necessarily by the same thread.
+     * 
+     * @param aKey
+     *            the CAS to borrow.
+     * @param aMaxWaitMillis
+     *            the maximum time to wait if the CAS is currently borrowed by somebody else.
+     * @return the holder. If the CAS has not been loaded yet, the holder is empty.
+     * @throws NoSuchElementException
+     *             if the CAS could not be borrowed in time.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting.
+     */
+    public CasHolder borrow(CasKey aKey, long aMaxWaitMillis) throws InterruptedException
+    {
+        long start = nanoTime();
+        long deadline = start + MILLISECONDS.toNanos(aMaxWaitMillis);
+
+        while (true) {
+            Slot slot = slots.computeIfAbsent(aKey, Slot::new);
+
+            // Unlike the untimed variant, a timed tryAcquire does not barge ahead of waiting
+            // threads
+            boolean acquired = slot.permit.tryAcquire(0, NANOSECONDS);
+            if (!acquired) {
+                waitingCount.incrementAndGet();
+                try {
+                    acquired = slot.permit.tryAcquire(Math.max(deadline - nanoTime(), 0),
+                            NANOSECONDS);
+                }
+                finally {
+                    waitingCount.decrementAndGet();
+                }
+            }
+
+            if (!acquired) {
+                timeoutCount.incrementAndGet();
+                throw new NoSuchElementException("Timeout waiting " + aMaxWaitMillis
+                        + "ms for exclusive access to CAS " + describe(slot));
+            }
+
+            // The slot has been evicted while we were waiting for it - try again with a new one
+            if (slot.retired) {
+                slot.permit.release();
+                continue;
+            }
+
+            if (slot.holder == null || !isValid(slot.holder)) {
+                slot.holder = new CasHolder(aKey);
+            }
+
+            slot.owner = Thread.currentThread().getName();
+            slot.borrowedSince = currentTimeMillis();
+            slot.borrowed = true;
+
+            borrowCount.incrementAndGet();
+            long waited = NANOSECONDS.toMillis(nanoTime() - start);
+            maxWaitTime.accumulateAndGet(waited, Math::max);
+
+            return slot.holder;
+        }
+    }
+
+    /**
+     * Returns a borrowed holder. If the holder is no longer valid, it is dropped.
+     * 
+     * @throws IllegalStateException
+     *             if the holder is not currently borrowed.
+     */
+    public void release(CasKey aKey, CasHolder aHolder)
+    {
+        Slot slot = slots.get(aKey);
+        if (slot == null || !slot.borrowed || slot.holder != aHolder) {
+            throw new IllegalStateException("CAS holder " + aHolder + " is not borrowed");
+        }
+
+        if (!isValid(aHolder)) {
+            slot.holder = null;
+        }
+
+        slot.borrowed = false;
+        slot.owner = null;
+        slot.lastReleased = currentTimeMillis();
+        slot.permit.release();
+    }
+
+    /**
+     * @return the holder currently known for the given CAS, irrespective of whether it is borrowed
+     *         or not.
+     */
+    public Optional<CasHolder> getHolder(CasKey aKey)
+    {
+        Slot slot = slots.get(aKey);
+        return slot != null ? Optional.ofNullable(slot.holder) : Optional.empty();
+    }
+
+    /**
+     * Calls the given action for all holders currently known, irrespective of whether they are
+     * borrowed or not. This does not block borrowing or returning CASes. Holders which are added
+     * or removed concurrently may or may not be visited.
+     */
+    public void forEachHolder(Consumer<CasHolder> aAction)
+    {
+        for (Slot slot : slots.values()) {
+            CasHolder holder = slot.holder;
+            if (holder != null) {
+                aAction.accept(holder);
+            }
+        }
+    }
+
+    @Override
+    public void evictIdle()
+    {
+        long now = currentTimeMillis();
+        for (Slot slot : slots.values()) {
+            // Slots which are currently borrowed are skipped
+            if (!slot.permit.tryAcquire()) {
+                continue;
+            }
+
+            try {
+                CasHolder holder = slot.holder;
+                if (now - slot.lastReleased >= maxIdleMillis
+                        && (holder == null || !holder.isDirty())) {
+                    slot.retired = true;
+                    slots.remove(slot.key, slot);
+                    evictionCount.incrementAndGet();
+                }
+            }
+            finally {
+                slot.permit.release();
+            }
+        }
+    }
+
+    private static boolean isValid(CasHolder aHolder)
+    {
+        if (aHolder.isDeleted()) {
+            return false;
+        }
+
+        // A CAS with changes that have not been written to disk yet must not be dropped - it is
+        // refreshed once the background writer has stored it
+        return aHolder.isDirty() || !aHolder.isTypeSystemOutdated();
+    }
+
+    private static String describe(Slot aSlot)
+    {
+        String owner = aSlot.owner;
+        if (owner == null) {
+            return aSlot.key.toString();
+        }
+
+        return aSlot.key + " - borrowed by [" + owner + "] for "
+                + (currentTimeMillis() - aSlot.borrowedSince) + "ms";
+    }
+
+    /**
+     * Makes the manager available via JMX. If the given name is already taken, a number is
+     * appended to it.
+     */
+    public void registerMBean(String aObjectName)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 1; objectName == null; i++) {
+            try {
+                ObjectName name = new ObjectName(i == 1 ? aObjectName : aObjectName + i);
+                server.registerMBean(this, name);
+                objectName = name;
+            }
+            catch (InstanceAlreadyExistsException e) {
+                // Try next number
+            }
+            catch (JMException e) {
+                LOG.warn("Unable to register [{}] in JMX", aObjectName, e);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e) {
+                LOG.warn("Unable to unregister [{}] from JMX", objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public int getActiveCount()
+    {
+        return (int) slots.values().stream().filter(s -> s.borrowed).count();
+    }
+
+    @Override
+    public int getIdleCount()
+    {
+        return (int) slots.values().stream().filter(s -> !s.borrowed).count();
+    }
+
+    @Override
+    public int getWaitingCount()
+    {
+        return waitingCount.get();
+    }
+
+    @Override
+    public long getBorrowCount()
+    {
+        return borrowCount.get();
+    }
+
+    @Override
+    public long getTimeoutCount()
+    {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    @Override
+    public long getMaxWaitTime()
+    {
+        return maxWaitTime.get();
+    }
+
+    @Override
+    public String[] getOwners()
+    {
+        List<String> owners = new ArrayList<>();
+        for (Slot slot : slots.values()) {
+            if (slot.borrowed) {
+                owners.add(describe(slot));
+            }
+        }
+        return owners.toArray(new String[owners.size()]);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ExclusiveCasAccessManager [active=" + getActiveCount() + ", idle="
+                + getIdleCount() + ", waiting=" + getWaitingCount() + "]";
+    }
+
+    private static final class Slot
+    {
+        private final CasKey key;
+        // Fair so that waiting parties get the CAS in the order of their arrival
+        private final Semaphore permit = new Semaphore(1, true);
+
+        private volatile CasHolder holder;
+        private volatile boolean borrowed;
+        private volatile boolean retired;
+        private volatile String owner;
+        private volatile long borrowedSince;
+        private volatile long lastReleased = currentTimeMillis();
+
+        private Slot(CasKey aKey)
+        {
+            key = aKey;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+/**
+ * JMX view on the {@link ExclusiveCasAccessManager}.
+ */
+public interface ExclusiveCasAccessManagerMXBean
+{
+    /**
+     * @return the number of CASes currently borrowed.
+     */
+    int getActiveCount();
+
+    /**
+     * @return the number of CASes currently known but not borrowed.
+     */
+    int getIdleCount();
+
+    /**
+     * @return the number of threads currently waiting for exclusive access to a CAS.
+     */
+    int getWaitingCount();
+
+    long getBorrowCount();
+
+    long getTimeoutCount();
+
+    long getEvictionCount();
+
+    /**
+     * @return the maximum time in milliseconds a thread had to wait for exclusive access.
+     */
+    long getMaxWaitTime();
+
+    /**
+     * @return one line per borrowed CAS listing the CAS, the thread which borrowed it and for how
+     *         long it has been borrowed.
+     */
+    String[] getOwners();
+
+    /**
+     * Drops CASes which have not been borrowed for the configured idle time.
+     */
+    void evictIdle();
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.io.ObjectStreamConstants.STREAM_MAGIC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.uima.cas.CAS;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.CasPersistenceUtils;
+
+/**
+ * The storage format used by WebAnno up to version 4.0. Each file contains a Java-serialized
+ * {@link org.apache.uima.cas.impl.CASCompleteSerializer} which includes the full type system and
+ * index definitions.
+ */
+public class LegacyCasStorageFormat
+    implements CasStorageFormat
+{
+    public static final String ID = "legacy";
+
+    @Override
+    public String getId()
+    {
+        return ID;
+    }
+
+    @Override
+    public boolean accepts(byte[] aPreamble)
+    {
+        return aPreamble.length >= 2 && (aPreamble[0] & 0xFF) == ((STREAM_MAGIC >> 8) & 0xFF)
+                && (aPreamble[1] & 0xFF) == (STREAM_MAGIC & 0xFF);
+    }
+
+    @Override
+    public void write(CAS aCas, File aCasFile, File aBlobFolder) throws IOException
+    {
+        // The storage service validates the written file according to its configuration
+        CasPersistenceUtils.writeSerializedCas(aCas, aCasFile, false);
+    }
+
+    @Override
+    public void write(CAS aCas, OutputStream aOutputStream, File aBlobFolder) throws IOException
+    {
+        // The storage service validates the written file according to its configuration
+        CasPersistenceUtils.writeSerializedCas(aCas, aOutputStream);
+    }
+
+    @Override
+    public void read(CAS aCas, InputStream aInputStream, File aBlobFolder) throws IOException
+    {
+        CasPersistenceUtils.readSerializedCas(aCas, aInputStream);
+    }
+}
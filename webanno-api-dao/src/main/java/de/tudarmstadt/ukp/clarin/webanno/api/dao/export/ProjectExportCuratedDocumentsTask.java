@@ -160,7 +160,8 @@ public class ProjectExportCuratedDocumentsTask
                         WebAnnoConst.CURATION_USER);
                 if (curationCasFile.exists()) {
                     // Copy CAS - this is used when importing the project again
-                    FileUtils.copyFileToDirectory(curationCasFile, curationCasDir);
+                    documentService.exportCas(sourceDocument, WebAnnoConst.CURATION_USER,
+                            new File(curationCasDir, curationCasFile.getName()));
 
                     // Copy secondary export format for convenience - not used during import
                     try {
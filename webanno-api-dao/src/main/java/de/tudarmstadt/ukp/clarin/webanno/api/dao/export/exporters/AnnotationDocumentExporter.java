@@ -201,7 +201,8 @@ public class AnnotationDocumentExporter
 
                 File initialCasFile = documentService.getCasFile(srcDoc, INITIAL_CAS_PSEUDO_USER);
 
-                copyFileToDirectory(initialCasFile, targetDir);
+                documentService.exportCas(srcDoc, INITIAL_CAS_PSEUDO_USER,
+                        new File(targetDir, initialCasFile.getName()));
 
                 log.info("Exported annotation document content for user [" + INITIAL_CAS_PSEUDO_USER
                         + "] for source document [" + srcDoc.getId() + "] in project ["
@@ -253,7 +254,8 @@ public class AnnotationDocumentExporter
                         }
 
                         if (annSerFile.exists()) {
-                            copyFileToDirectory(annSerFile, annSerDir);
+                            documentService.exportCas(srcDoc, annDoc.getUser(),
+                                    new File(annSerDir, annSerFile.getName()));
                             copyFileToDirectory(annFile, annDocDir);
                             forceDelete(annFile);
                         }
@@ -279,7 +281,8 @@ public class AnnotationDocumentExporter
                         File curationSerDir = new File(
                                 aStage + ANNOTATION_AS_SERIALISED_CAS + srcDoc.getName());
                         forceMkdir(curationSerDir);
-                        copyFileToDirectory(corrSerFile, curationSerDir);
+                        documentService.exportCas(srcDoc, CORRECTION_USER,
+                                new File(curationSerDir, corrSerFile.getName()));
 
                         // Copy secondary export format for convenience - not used during import
                         File curationDir = new File(
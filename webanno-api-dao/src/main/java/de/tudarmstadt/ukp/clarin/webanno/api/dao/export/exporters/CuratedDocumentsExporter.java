@@ -123,7 +123,8 @@ public class CuratedDocumentsExporter
                 File curationCasFile = documentService.getCasFile(sourceDocument, CURATION_USER);
                 if (curationCasFile.exists()) {
                     // Copy CAS - this is used when importing the project again
-                    copyFileToDirectory(curationCasFile, curationCasDir);
+                    documentService.exportCas(sourceDocument, CURATION_USER,
+                            new File(curationCasDir, curationCasFile.getName()));
 
                     // Determine which format to use for export
                     String formatId = FORMAT_AUTO.equals(aRequest.getFormat())
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+public interface CasStorageMetrics
+{
+    /**
+     * Record that writing a CAS has been deferred to the background writer.
+     *
+     * @param aCoalesced
+     *            whether the CAS was already waiting to be written, i.e. the write was merged
+     *            into an already pending one.
+     * @param aQueueDepth
+     *            the number of CASes waiting to be written.
+     */
+    void writeDeferred(boolean aCoalesced, int aQueueDepth);
+
+    /**
+     * Record that a deferred write has been completed.
+     *
+     * @param aTime
+     *            the time in milliseconds it took to write the CAS.
+     * @param aDelay
+     *            the time in milliseconds between the CAS first being deferred and it being
+     *            written.
+     * @param aQueueDepth
+     *            the number of CASes waiting to be written.
+     */
+    void flushComplete(long aTime, long aDelay, int aQueueDepth);
+
+    /**
+     * Record that a deferred write has failed.
+     */
+    void flushFailed();
+
+    /**
+     * Expose the statistics of the shared read-only CAS cache. The cache must record statistics.
+     */
+    void monitorSharedAccessCache(Cache<?, ?> aCache);
+
+    /**
+     * Record that a written CAS file has been validated by reading it back.
+     *
+     * @param aTime
+     *            the time in milliseconds the validation took.
+     * @param aAsync
+     *            whether the validation took place in the background.
+     * @param aSuccessful
+     *            whether the CAS file could be read back.
+     */
+    void validationComplete(long aTime, boolean aAsync, boolean aSuccessful);
+
+    /**
+     * Record that validating a written CAS file has been skipped because it was not sampled.
+     */
+    void validationSkipped();
+}
@@ -0,0 +1,339 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics;
+
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy.Eviction;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+@ManagedResource
+@Component
+public class CasStorageMetricsImpl
+    implements CasStorageMetrics
+{
+    private long deferredWriteCount = 0;
+    private long coalescedWriteCount = 0;
+
+    private long flushCount = 0;
+    private long failedFlushCount = 0;
+
+    private int queueDepth = 0;
+    private int maxQueueDepth = 0;
+
+    private long flushTime = 0;
+    private long maxFlushTime = 0;
+    private long lastFlushTime = 0;
+
+    private long maxFlushDelay = 0;
+    private long lastFlushDelay = 0;
+
+    private long validationCount = 0;
+    private long asyncValidationCount = 0;
+    private long failedValidationCount = 0;
+    private long skippedValidationCount = 0;
+
+    private long validationTime = 0;
+    private long maxValidationTime = 0;
+    private long lastValidationTime = 0;
+
+    private volatile Cache<?, ?> sharedAccessCache;
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getDeferredWriteCount()
+    {
+        return deferredWriteCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getCoalescedWriteCount()
+    {
+        return coalescedWriteCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getFlushCount()
+    {
+        return flushCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getFailedFlushCount()
+    {
+        return failedFlushCount;
+    }
+
+    @ManagedMetric(metricType = GAUGE)
+    public synchronized int getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    @ManagedMetric(metricType = GAUGE)
+    public synchronized int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    @ManagedMetric(metricType = COUNTER, unit = "ms")
+    public synchronized long getFlushTime()
+    {
+        return flushTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getMaxFlushTime()
+    {
+        return maxFlushTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getLastFlushTime()
+    {
+        return lastFlushTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getMaxFlushDelay()
+    {
+        return maxFlushDelay;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getLastFlushDelay()
+    {
+        return lastFlushDelay;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getValidationCount()
+    {
+        return validationCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getAsyncValidationCount()
+    {
+        return asyncValidationCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getFailedValidationCount()
+    {
+        return failedValidationCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getSkippedValidationCount()
+    {
+        return skippedValidationCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER, unit = "ms")
+    public synchronized long getValidationTime()
+    {
+        return validationTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getMaxValidationTime()
+    {
+        return maxValidationTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getLastValidationTime()
+    {
+        return lastValidationTime;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public long getSharedCacheHitCount()
+    {
+        return sharedCacheStat(CacheStats::hitCount);
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public long getSharedCacheMissCount()
+    {
+        return sharedCacheStat(CacheStats::missCount);
+    }
+
+    @ManagedMetric(metricType = GAUGE)
+    public double getSharedCacheHitRate()
+    {
+        return sharedAccessCache != null ? sharedAccessCache.stats().hitRate() : 0.0;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public long getSharedCacheEvictionCount()
+    {
+        return sharedCacheStat(CacheStats::evictionCount);
+    }
+
+    @ManagedMetric(metricType = COUNTER, unit = "bytes")
+    public long getSharedCacheEvictionWeight()
+    {
+        return sharedCacheStat(CacheStats::evictionWeight);
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public long getSharedCacheLoadSuccessCount()
+    {
+        return sharedCacheStat(CacheStats::loadSuccessCount);
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public long getSharedCacheLoadFailureCount()
+    {
+        return sharedCacheStat(CacheStats::loadFailureCount);
+    }
+
+    @ManagedMetric(metricType = COUNTER, unit = "ms")
+    public long getSharedCacheLoadTime()
+    {
+        return sharedCacheStat(CacheStats::totalLoadTime) / 1_000_000;
+    }
+
+    @ManagedMetric(metricType = GAUGE)
+    public long getSharedCacheSize()
+    {
+        return sharedAccessCache != null ? sharedAccessCache.estimatedSize() : 0;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "bytes")
+    public long getSharedCacheWeight()
+    {
+        return sharedCacheEviction().map(e -> e.weightedSize().orElse(0)).orElse(0l);
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "bytes")
+    public long getSharedCacheMaximumWeight()
+    {
+        return sharedCacheEviction().map(Eviction::getMaximum).orElse(0l);
+    }
+
+    @ManagedOperation
+    public synchronized void reset()
+    {
+        deferredWriteCount = 0;
+        coalescedWriteCount = 0;
+        flushCount = 0;
+        failedFlushCount = 0;
+        maxQueueDepth = queueDepth;
+        flushTime = 0;
+        maxFlushTime = 0;
+        lastFlushTime = 0;
+        maxFlushDelay = 0;
+        lastFlushDelay = 0;
+        validationCount = 0;
+        asyncValidationCount = 0;
+        failedValidationCount = 0;
+        skippedValidationCount = 0;
+        validationTime = 0;
+        maxValidationTime = 0;
+        lastValidationTime = 0;
+    }
+
+    @Override
+    public synchronized void writeDeferred(boolean aCoalesced, int aQueueDepth)
+    {
+        deferredWriteCount++;
+        if (aCoalesced) {
+            coalescedWriteCount++;
+        }
+
+        updateQueueDepth(aQueueDepth);
+    }
+
+    @Override
+    public synchronized void flushComplete(long aTime, long aDelay, int aQueueDepth)
+    {
+        flushCount++;
+
+        flushTime += aTime;
+        maxFlushTime = Math.max(maxFlushTime, aTime);
+        lastFlushTime = aTime;
+
+        maxFlushDelay = Math.max(maxFlushDelay, aDelay);
+        lastFlushDelay = aDelay;
+
+        updateQueueDepth(aQueueDepth);
+    }
+
+    @Override
+    public synchronized void flushFailed()
+    {
+        failedFlushCount++;
+    }
+
+    @Override
+    public synchronized void validationComplete(long aTime, boolean aAsync, boolean aSuccessful)
+    {
+        validationCount++;
+        if (aAsync) {
+            asyncValidationCount++;
+        }
+        if (!aSuccessful) {
+            failedValidationCount++;
+        }
+
+        validationTime += aTime;
+        maxValidationTime = Math.max(maxValidationTime, aTime);
+        lastValidationTime = aTime;
+    }
+
+    @Override
+    public synchronized void validationSkipped()
+    {
+        skippedValidationCount++;
+    }
+
+    @Override
+    public void monitorSharedAccessCache(Cache<?, ?> aCache)
+    {
+        sharedAccessCache = aCache;
+    }
+
+    private long sharedCacheStat(Function<CacheStats, Long> aStat)
+    {
+        return sharedAccessCache != null ? aStat.apply(sharedAccessCache.stats()) : 0;
+    }
+
+    private Optional<Eviction<?, ?>> sharedCacheEviction()
+    {
+        return sharedAccessCache != null ? sharedAccessCache.policy().eviction().map(e -> e)
+                : Optional.empty();
+    }
+
+    private void updateQueueDepth(int aQueueDepth)
+    {
+        queueDepth = aQueueDepth;
+        maxQueueDepth = Math.max(maxQueueDepth, aQueueDepth);
+    }
+}
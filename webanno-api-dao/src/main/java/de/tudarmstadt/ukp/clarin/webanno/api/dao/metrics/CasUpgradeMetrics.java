@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics;
+
+public interface CasUpgradeMetrics
+{
+    /**
+     * Record a completed CAS upgrade.
+     *
+     * @param aTime
+     *            the time the upgrade took in milliseconds.
+     * @param aBufferedSize
+     *            the number of bytes that were buffered to carry the CAS contents over.
+     * @param aTemplateHit
+     *            whether a cached template could be used to initialize the target CAS.
+     */
+    void upgradeComplete(long aTime, long aBufferedSize, boolean aTemplateHit);
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics;
+
+import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+@ManagedResource
+@Component
+public class CasUpgradeMetricsImpl
+    implements CasUpgradeMetrics
+{
+    private long upgradeCount = 0;
+
+    private long templateHitCount = 0;
+    private long templateMissCount = 0;
+
+    private long bufferedSize = 0;
+    private long maxBufferedSize = 0;
+    private long lastBufferedSize = 0;
+
+    private long upgradeTime = 0;
+    private long maxUpgradeTime = 0;
+    private long lastUpgradeTime = 0;
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getUpgradeCount()
+    {
+        return upgradeCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getTemplateHitCount()
+    {
+        return templateHitCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public synchronized long getTemplateMissCount()
+    {
+        return templateMissCount;
+    }
+
+    @ManagedMetric(metricType = COUNTER, unit = "bytes")
+    public synchronized long getBufferedSize()
+    {
+        return bufferedSize;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "bytes")
+    public synchronized long getMaxBufferedSize()
+    {
+        return maxBufferedSize;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "bytes")
+    public synchronized long getLastBufferedSize()
+    {
+        return lastBufferedSize;
+    }
+
+    @ManagedMetric(metricType = COUNTER, unit = "ms")
+    public synchronized long getUpgradeTime()
+    {
+        return upgradeTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getMaxUpgradeTime()
+    {
+        return maxUpgradeTime;
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "ms")
+    public synchronized long getLastUpgradeTime()
+    {
+        return lastUpgradeTime;
+    }
+
+    @ManagedOperation
+    public synchronized void reset()
+    {
+        upgradeCount = 0;
+        templateHitCount = 0;
+        templateMissCount = 0;
+        bufferedSize = 0;
+        maxBufferedSize = 0;
+        lastBufferedSize = 0;
+        upgradeTime = 0;
+        maxUpgradeTime = 0;
+        lastUpgradeTime = 0;
+    }
+
+    @Override
+    public synchronized void upgradeComplete(long aTime, long aBufferedSize, boolean aTemplateHit)
+    {
+        upgradeCount++;
+
+        if (aTemplateHit) {
+            templateHitCount++;
+        }
+        else {
+            templateMissCount++;
+        }
+
+        bufferedSize += aBufferedSize;
+        maxBufferedSize = Math.max(maxBufferedSize, aBufferedSize);
+        lastBufferedSize = aBufferedSize;
+
+        upgradeTime += aTime;
+        maxUpgradeTime = Math.max(maxUpgradeTime, aTime);
+        lastUpgradeTime = aTime;
+    }
+}
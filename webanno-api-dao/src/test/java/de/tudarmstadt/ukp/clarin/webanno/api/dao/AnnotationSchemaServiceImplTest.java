@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.EXCLUSIVE_WRITE_ACCESS;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.apache.uima.fit.factory.TypeSystemDescriptionFactory.createTypeSystemDescription;
+import static org.apache.uima.util.CasCreationUtils.mergeTypeSystems;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.text.AnnotationFS;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.metrics.CasUpgradeMetricsImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.type.CASMetadata;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class AnnotationSchemaServiceImplTest
+{
+    private CasUpgradeMetricsImpl casUpgradeMetrics;
+    private AnnotationSchemaServiceImpl sut;
+    private CasStorageSession casStorageSession;
+    private Project project;
+
+    @Before
+    public void setup() throws Exception
+    {
+        casUpgradeMetrics = new CasUpgradeMetricsImpl();
+        sut = Mockito.spy(new AnnotationSchemaServiceImpl(null, null, null, casUpgradeMetrics));
+
+        doReturn(emptyList()).when(sut).listAnnotationLayer(any());
+        doReturn(emptyList()).when(sut).listAnnotationFeature((Project) any());
+
+        project = new Project();
+        project.setId(1l);
+
+        casStorageSession = CasStorageSession.open();
+    }
+
+    @After
+    public void tearDown()
+    {
+        casStorageSession.close();
+    }
+
+    @Test
+    public void thatVerifiedCasIsStampedWithTypeSystemHash() throws Exception
+    {
+        CAS cas = makeCas(mergeTypeSystems(
+                asList(createTypeSystemDescription(), CasMetadataUtils.getInternalTypeSystem())));
+
+        assertThat(CasMetadataUtils.getTypeSystemHash(cas)).isEmpty();
+
+        assertThat(sut.upgradeCasIfRequired(asList(cas), project)).isFalse();
+
+        assertThat(CasMetadataUtils.getTypeSystemHash(cas)).isPresent();
+    }
+
+    @Test
+    public void thatOutdatedCasIsUpgradedAndStamped() throws Exception
+    {
+        CAS cas = makeCas(CasMetadataUtils.getInternalTypeSystem());
+
+        assertThat(sut.upgradeCasIfRequired(asList(cas), project)).isTrue();
+
+        assertThat(cas.getTypeSystem().getType(Token.class.getName())).isNotNull();
+        assertThat(CasMetadataUtils.getTypeSystemHash(cas)).isPresent();
+    }
+
+    @Test
+    public void thatCasWithMatchingTypeSystemHashIsNotChecked() throws Exception
+    {
+        CAS referenceCas = makeCas(mergeTypeSystems(
+                asList(createTypeSystemDescription(), CasMetadataUtils.getInternalTypeSystem())));
+        sut.upgradeCasIfRequired(asList(referenceCas), project);
+        String hash = CasMetadataUtils.getTypeSystemHash(referenceCas).get();
+
+        // The CAS is lacking the built-in types, but since it claims to have been verified against
+        // the current project type system, it is not looked at again
+        CAS cas = makeCas(CasMetadataUtils.getInternalTypeSystem());
+        CasMetadataUtils.setTypeSystemHash(cas, hash);
+
+        assertThat(sut.upgradeCasIfRequired(asList(cas), project)).isFalse();
+        assertThat(cas.getTypeSystem().getType(Token.class.getName())).isNull();
+    }
+
+    @Test
+    public void thatProjectTypeSystemIsCachedUntilLayerConfigurationChanges() throws Exception
+    {
+        sut.getFullProjectTypeSystem(project);
+        sut.getFullProjectTypeSystem(project);
+        sut.upgradeCasIfRequired(asList(makeCas(CasMetadataUtils.getInternalTypeSystem())),
+                project);
+
+        verify(sut, times(1)).listAnnotationLayer(project);
+
+        sut.beforeLayerConfigurationChanged(new LayerConfigurationChangedEvent(this, project));
+        sut.getFullProjectTypeSystem(project);
+
+        verify(sut, times(2)).listAnnotationLayer(project);
+    }
+
+    @Test
+    public void thatUpgradeToArbitraryTypeSystemClearsTypeSystemHash() throws Exception
+    {
+        CAS cas = makeCas(CasMetadataUtils.getInternalTypeSystem());
+        CasMetadataUtils.setTypeSystemHash(cas, "dummy");
+
+        sut.upgradeCas(cas, mergeTypeSystems(
+                asList(createTypeSystemDescription(), CasMetadataUtils.getInternalTypeSystem())));
+
+        assertThat(CasMetadataUtils.getTypeSystemHash(cas)).isEmpty();
+    }
+
+    @Test
+    public void thatUpgradeRetainsContentsAndReusesTemplate() throws Exception
+    {
+        TypeSystemDescription targetTypeSystem = mergeTypeSystems(
+                asList(createTypeSystemDescription(), CasMetadataUtils.getInternalTypeSystem()));
+
+        CAS cas1 = makeCas(targetTypeSystem);
+        cas1.addFsToIndexes(
+                cas1.createAnnotation(cas1.getTypeSystem().getType(Token.class.getName()), 0, 4));
+        CAS cas2 = makeCas(CasMetadataUtils.getInternalTypeSystem());
+
+        sut.upgradeCas(cas1, targetTypeSystem);
+        sut.upgradeCas(cas2, targetTypeSystem);
+
+        assertThat(cas1.getDocumentText()).isEqualTo("This is a test .");
+        assertThat(cas1.select(Token.class.getName()).map(AnnotationFS.class::cast)
+                .map(AnnotationFS::getCoveredText)).containsExactly("This");
+        assertThat(cas2.getTypeSystem().getType(Token.class.getName())).isNotNull();
+
+        assertThat(casUpgradeMetrics.getUpgradeCount()).isEqualTo(2);
+        assertThat(casUpgradeMetrics.getTemplateMissCount()).isEqualTo(1);
+        assertThat(casUpgradeMetrics.getTemplateHitCount()).isEqualTo(1);
+        assertThat(casUpgradeMetrics.getBufferedSize()).isPositive();
+    }
+
+    private CAS makeCas(TypeSystemDescription aTypeSystem) throws Exception
+    {
+        CAS cas = CasFactory.createCas(aTypeSystem);
+        casStorageSession.add("cas" + cas.hashCode(), EXCLUSIVE_WRITE_ACCESS, cas);
+        cas.setDocumentText("This is a test .");
+        cas.addFsToIndexes(cas.createAnnotation(cas.getTypeSystem()
+                .getType(CASMetadata.class.getName()), 0, 0));
+        return cas;
+    }
+}
@@ -40,13 +40,18 @@ import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Proxy;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.CASException;
 import org.apache.uima.cas.text.AnnotationFS;
@@ -55,6 +60,7 @@ import org.apache.uima.fit.factory.JCasFactory;
 import org.apache.uima.jcas.JCas;
 import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -63,13 +69,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.CasProvider;
+import de.tudarmstadt.ukp.clarin.webanno.api.CasWriteValidationMode;
 import de.tudarmstadt.ukp.clarin.webanno.api.RepositoryProperties;
 import de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasSessionException;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.BackupProperties.BackupMode;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageFormat;
 import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.ChunkedCasHistory;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CompactCasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.LegacyCasStorageFormat;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasRestoredFromHistoryEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.CasWriteValidationFailedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
 import de.tudarmstadt.ukp.clarin.webanno.api.type.CASMetadata;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
 
 public class CasStorageServiceImplTest
 {
@@ -183,6 +198,36 @@ public class CasStorageServiceImplTest
         }
     }
 
+    @Test
+    public void testLegacyCasFileIsReadAndMigratedOnWrite() throws Exception
+    {
+        try (CasStorageSession casStorageSession = openNested(true)) {
+            // Setup fixture
+            SourceDocument doc = makeSourceDocument(10l, 10l, "test");
+            String user = "test";
+            String text = "This is a test";
+            File casFile = sut.getCasFile(doc, user);
+            CasPersistenceUtils.writeSerializedCas(makeCas(text), casFile);
+            assertThat(new LegacyCasStorageFormat().accepts(readPreamble(casFile))).isTrue();
+
+            // Actual test
+            CAS cas = sut.readCas(doc, user);
+            assertThat(cas.getDocumentText()).isEqualTo(text);
+
+            sut.writeCas(doc, cas, user);
+            assertThat(new CompactCasStorageFormat().accepts(readPreamble(casFile))).isTrue();
+
+            // Exports must remain self-contained
+            File exportFile = new File(testFolder.newFolder(), user + ".ser");
+            sut.exportCas(doc, user, exportFile);
+            assertThat(new LegacyCasStorageFormat().accepts(readPreamble(exportFile))).isTrue();
+            CAS exportedCas = CasCreationUtils.createCas((TypeSystemDescription) null, null,
+                    null);
+            CasPersistenceUtils.readSerializedCas(exportedCas, exportFile);
+            assertThat(exportedCas.getDocumentText()).isEqualTo(text);
+        }
+    }
+
     @Test
     public void testThatLayerChangeEventInvalidatesCachedCas() throws Exception
     {
@@ -224,6 +269,309 @@ public class CasStorageServiceImplTest
                 .isNotEqualTo(casIdentity3);
     }
 
+    @Test
+    public void testWriteBehindCoalescesWritesAndFlushesOnSessionClose() throws Exception
+    {
+        repositoryProperties.getWriteBehind().setEnabled(true);
+        repositoryProperties.getWriteBehind().setDelay(60_000);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(11l, 11l, "test");
+        String user = "test";
+        File casFile = sut.getCasFile(doc, user);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, "This is a test");
+        }
+
+        long initialTimestamp = casFile.lastModified();
+        long initialSize = casFile.length();
+        int initialAnnotationCount;
+
+        // Actual test
+        long logicalTimestamp;
+        try (CasStorageSession session = openNested(true)) {
+            CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+            initialAnnotationCount = cas.getAnnotationIndex().size();
+
+            cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 0, 4));
+            sut.writeCas(doc, cas, user);
+            cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 5, 7));
+            sut.writeCas(doc, cas, user);
+
+            logicalTimestamp = sut.getCasTimestamp(doc, user).get();
+
+            assertThat(casFile.lastModified())
+                    .as("Writes are deferred and the CAS file remains unchanged")
+                    .isEqualTo(initialTimestamp);
+            assertThat(casFile).hasSize(initialSize);
+            assertThat(logicalTimestamp)
+                    .as("Timestamp reports the deferred write")
+                    .isGreaterThan(initialTimestamp);
+        }
+
+        try {
+            assertThat(casFile).as("Deferred writes are flushed when the session is closed")
+                    .isNotEmpty()
+                    .satisfies(f -> assertThat(f.length()).isNotEqualTo(initialSize));
+            try (CasStorageSession session = openNested(true)) {
+                assertThat(sut.getCasTimestamp(doc, user))
+                        .as("Flushing the deferred writes does not change the timestamp")
+                        .contains(logicalTimestamp);
+
+                CAS cas = sut.readCas(doc, user, UNMANAGED_ACCESS);
+                assertThat(cas.getAnnotationIndex().size())
+                        .isEqualTo(initialAnnotationCount + 2);
+            }
+        }
+        finally {
+            sut.destroy();
+        }
+    }
+
+    @Test
+    public void testWriteBehindFlushesBeforeReadingFromDisk() throws Exception
+    {
+        repositoryProperties.getWriteBehind().setEnabled(true);
+        repositoryProperties.getWriteBehind().setDelay(60_000);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(12l, 12l, "test");
+        String user = "test";
+        File casFile = sut.getCasFile(doc, user);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, "This is a test");
+        }
+
+        long initialTimestamp = casFile.lastModified();
+        int initialAnnotationCount;
+
+        try {
+            // Actual test
+            try (CasStorageSession session = openNested(true)) {
+                CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+                initialAnnotationCount = cas.getAnnotationIndex().size();
+
+                cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 0, 4));
+                sut.writeCas(doc, cas, user);
+
+                long logicalTimestamp = sut.getCasTimestamp(doc, user).get();
+                assertThat(casFile.lastModified()).isEqualTo(initialTimestamp);
+
+                CAS unmanagedCas = sut.readCas(doc, user, UNMANAGED_ACCESS);
+                assertThat(unmanagedCas.getAnnotationIndex().size())
+                        .as("Pending write is flushed before the CAS is read from disk")
+                        .isEqualTo(initialAnnotationCount + 1);
+                assertThat(casFile.lastModified()).isGreaterThan(initialTimestamp);
+                assertThat(sut.getCasTimestamp(doc, user)).contains(logicalTimestamp);
+            }
+        }
+        finally {
+            sut.destroy();
+        }
+    }
+
+    @Test
+    public void testWriteBehindDoesNotFlushCasInUse() throws Exception
+    {
+        repositoryProperties.getWriteBehind().setEnabled(true);
+        repositoryProperties.getWriteBehind().setDelay(10);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(13l, 13l, "test");
+        String user = "test";
+        File casFile = sut.getCasFile(doc, user);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, "This is a test");
+        }
+
+        long initialTimestamp = casFile.lastModified();
+
+        try {
+            // Actual test
+            try (CasStorageSession session = openNested(true)) {
+                CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+                cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 0, 4));
+                sut.writeCas(doc, cas, user);
+
+                // Give the background writer the chance to try writing the CAS
+                sleep(500);
+
+                assertThat(casFile.lastModified())
+                        .as("Background writer does not write a CAS which is in use")
+                        .isEqualTo(initialTimestamp);
+            }
+
+            assertThat(casFile.lastModified())
+                    .as("Deferred write is flushed when the CAS is returned")
+                    .isGreaterThan(initialTimestamp);
+        }
+        finally {
+            sut.destroy();
+        }
+    }
+
+    @Test
+    public void testTimestampIncreasesWithCoarseFileTimestamps() throws Exception
+    {
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(20l, 20l, "test");
+        String user = "test";
+        File casFile = sut.getCasFile(doc, user);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, "This is a test");
+        }
+
+        // Simulate a file system which records timestamps only with a coarse granularity
+        long coarseTimestamp = (casFile.lastModified() / 10_000) * 10_000;
+        casFile.setLastModified(coarseTimestamp);
+
+        // Actual test
+        List<Long> timestamps = new ArrayList<>();
+        try (CasStorageSession session = openNested(true)) {
+            timestamps.add(sut.getCasTimestamp(doc, user).get());
+        }
+        for (int i = 0; i < 3; i++) {
+            // The CAS must be loaded again so it knows about the changed file timestamp
+            sut.beforeLayerConfigurationChanged(
+                    new LayerConfigurationChangedEvent(this, doc.getProject()));
+
+            try (CasStorageSession session = openNested(true)) {
+                CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+                cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 0, i));
+                sut.writeCas(doc, cas, user);
+            }
+            casFile.setLastModified(coarseTimestamp);
+            try (CasStorageSession session = openNested(true)) {
+                timestamps.add(sut.getCasTimestamp(doc, user).get());
+            }
+        }
+
+        assertThat(timestamps)
+                .as("Every write advances the timestamp even if the file timestamp does not change")
+                .isSorted()
+                .doesNotHaveDuplicates();
+    }
+
+    @Test
+    public void testSharedReadOnlyAccessViaSnapshot() throws Exception
+    {
+        repositoryProperties.getSnapshots().setEnabled(true);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(14l, 14l, "test");
+        String user = "test";
+        String text = "This is a test";
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, text);
+        }
+
+        // Actual test
+        List<CAS> casses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            try (CasStorageSession session = openNested(true)) {
+                CAS cas = sut.readCas(doc, user, SHARED_READ_ONLY_ACCESS);
+                assertThat(cas.getDocumentText()).isEqualTo(text);
+                casses.add(cas);
+            }
+        }
+
+        assertThat(casses.get(0))
+                .as("CAS read again is not materialized from the snapshot a second time")
+                .isSameAs(casses.get(1));
+        assertThat(casses.get(1))
+                .as("CAS read repeatedly is cached")
+                .isSameAs(casses.get(2));
+
+        try (CasStorageSession session = openNested(true)) {
+            CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+            cas.addFsToIndexes(cas.createAnnotation(cas.getAnnotationType(), 0, 4));
+            sut.writeCas(doc, cas, user);
+        }
+
+        try (CasStorageSession session = openNested(true)) {
+            CAS cas = sut.readCas(doc, user, SHARED_READ_ONLY_ACCESS);
+            assertThat(cas.getAnnotationIndex().size())
+                    .as("Snapshot is replaced after the CAS has been written")
+                    .isEqualTo(casses.get(2).getAnnotationIndex().size() + 1);
+        }
+    }
+
+    @Test
+    public void testWriteValidationRestoresPreviousVersion() throws Exception
+    {
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(15l, 15l, "test");
+        String user = "test";
+        File casFile = sut.getCasFile(doc, user);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, "This is a test");
+        }
+
+        repositoryProperties.setCasStorageFormat(UnreadableCasStorageFormat.ID);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties,
+                asList(new UnreadableCasStorageFormat()), null, null);
+
+        // Actual test
+        try (CasStorageSession session = openNested(true)) {
+            CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+
+            assertThatExceptionOfType(IOException.class)
+                    .isThrownBy(() -> sut.writeCas(doc, cas, user))
+                    .withMessageContaining("cannot be read back");
+        }
+
+        assertThat(new CompactCasStorageFormat().accepts(readPreamble(casFile))).isTrue();
+        assertThat(new File(casFile.getParentFile(), user + ".ser.old")).doesNotExist();
+    }
+
+    @Test
+    public void testAsyncWriteValidationRestoresPreviousVersion() throws Exception
+    {
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(16l, 16l, "test");
+        String user = "test";
+        File casFile = sut.getCasFile(doc, user);
+        File oldCasFile = new File(casFile.getParentFile(), user + ".ser.old");
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, user, "This is a test");
+        }
+
+        List<Object> events = new ArrayList<>();
+        repositoryProperties.setCasStorageFormat(UnreadableCasStorageFormat.ID);
+        repositoryProperties.getWriteValidation().setMode(CasWriteValidationMode.ASYNC);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties,
+                asList(new UnreadableCasStorageFormat()), null, events::add);
+
+        // Actual test
+        try (CasStorageSession session = openNested(true)) {
+            CAS cas = sut.readCas(doc, user, EXCLUSIVE_WRITE_ACCESS);
+            sut.writeCas(doc, cas, user);
+
+            assertThat(new UnreadableCasStorageFormat().accepts(readPreamble(casFile))).isTrue();
+            assertThat(oldCasFile).as("Previous version is kept until validation is complete")
+                    .exists();
+        }
+
+        sut.destroy();
+
+        assertThat(new CompactCasStorageFormat().accepts(readPreamble(casFile))).isTrue();
+        assertThat(oldCasFile).doesNotExist();
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0)).isInstanceOf(CasWriteValidationFailedEvent.class);
+        assertThat(((CasWriteValidationFailedEvent) events.get(0)).isRestored()).isTrue();
+    }
+
     @Test
     public void testConcurrentAccess() throws Exception
     {
@@ -286,6 +634,209 @@ public class CasStorageServiceImplTest
             assertThat(casFile).exists().hasSize(casFileSize);
             assertThat(casFile.lastModified()).isEqualTo(casFileLastModified);
             assertThat(new File(casFile.getParentFile(), user + ".ser.old")).doesNotExist();
+            assertThat(casFile.getParentFile().list()).as("No temporary files are left behind")
+                    .containsExactly(user + ".ser");
+        }
+    }
+
+    @Test
+    public void testRecoveryOfInterruptedWrites() throws Exception
+    {
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(18l, 18l, "test");
+        File annotationFolder = sut.getAnnotationFolder(doc);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, "alice", "This is a test");
+            createCasFile(doc, "bob", "This is a test");
+        }
+
+        // A write of "alice" was interrupted before the temporary file was moved into place
+        File tempFile = new File(annotationFolder, "alice.ser.123456.tmp");
+        Files.write(tempFile.toPath(), new byte[] { 1, 2, 3 });
+        tempFile.setLastModified(System.currentTimeMillis() - 60_000);
+
+        // An older version moved the file of "bob" out of the way but did not write the new one
+        File bobFile = new File(annotationFolder, "bob.ser");
+        File bobOldFile = new File(annotationFolder, "bob.ser.old");
+        Files.move(bobFile.toPath(), bobOldFile.toPath());
+
+        // Actual test
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+        sut.recoverInterruptedWrites();
+
+        assertThat(tempFile).doesNotExist();
+        assertThat(bobOldFile).doesNotExist();
+        assertThat(annotationFolder.list()).containsExactlyInAnyOrder("alice.ser", "bob.ser");
+
+        try (CasStorageSession session = openNested(true)) {
+            assertThat(sut.readCas(doc, "bob").getDocumentText()).isEqualTo("This is a test");
+        }
+
+        // The repository is scanned only once, even if the event is received multiple times
+        Files.write(tempFile.toPath(), new byte[] { 1, 2, 3 });
+        tempFile.setLastModified(System.currentTimeMillis() - 60_000);
+        sut.recoverInterruptedWrites();
+        assertThat(tempFile).exists();
+    }
+
+    @Test
+    public void testRecoveryValidatesWritesWithPendingValidation() throws Exception
+    {
+        // Setup fixture
+        SourceDocument doc = makeSourceDocument(22l, 22l, "test");
+        File annotationFolder = sut.getAnnotationFolder(doc);
+
+        try (CasStorageSession session = openNested(true)) {
+            createCasFile(doc, "alice", "This is a test");
+            createCasFile(doc, "bob", "This is a test");
+        }
+
+        // The application terminated while the validations of both files were pending. The file
+        // of "alice" is fine, but the file of "bob" is broken.
+        File aliceFile = new File(annotationFolder, "alice.ser");
+        File aliceOldFile = new File(annotationFolder, "alice.ser.old");
+        Files.copy(aliceFile.toPath(), aliceOldFile.toPath());
+
+        File bobFile = new File(annotationFolder, "bob.ser");
+        File bobOldFile = new File(annotationFolder, "bob.ser.old");
+        Files.copy(bobFile.toPath(), bobOldFile.toPath());
+        Files.write(bobFile.toPath(), new byte[] { 1, 2, 3 });
+
+        // Actual test
+        List<Object> events = new ArrayList<>();
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties, null,
+                null, events::add);
+        sut.recoverInterruptedWrites();
+
+        assertThat(aliceOldFile).doesNotExist();
+        assertThat(bobOldFile).doesNotExist();
+        assertThat(annotationFolder.list()).containsExactlyInAnyOrder("alice.ser", "bob.ser");
+
+        try (CasStorageSession session = openNested(true)) {
+            assertThat(sut.readCas(doc, "alice").getDocumentText()).isEqualTo("This is a test");
+            assertThat(sut.readCas(doc, "bob").getDocumentText()).isEqualTo("This is a test");
+        }
+
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0)).isInstanceOf(CasWriteValidationFailedEvent.class);
+        CasWriteValidationFailedEvent event = (CasWriteValidationFailedEvent) events.get(0);
+        assertThat(event.getUser()).isEqualTo("bob");
+        assertThat(event.getDocument().getId()).isEqualTo(doc.getId());
+        assertThat(event.isRestored()).isTrue();
+    }
+
+    @Test
+    public void testChunkedHistoryCanBeRestored() throws Exception
+    {
+        // Setup fixture
+        backupProperties.setInterval(1);
+        backupProperties.setMode(BackupMode.CHUNKED);
+        List<Object> events = new ArrayList<>();
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties, null,
+                null, events::add);
+
+        SourceDocument doc = makeSourceDocument(19l, 19l, "test");
+        String user = "test";
+        File annotationFolder = sut.getAnnotationFolder(doc);
+
+        try (CasStorageSession session = openNested(true)) {
+            JCas first = JCasFactory.createText("First version");
+            session.add("first", EXCLUSIVE_WRITE_ACCESS, first.getCas());
+            sut.writeCas(doc, first.getCas(), user);
+
+            // Wait for the backup interval to pass
+            sleep(1100);
+
+            JCas second = JCasFactory.createText("Second version");
+            session.add("second", EXCLUSIVE_WRITE_ACCESS, second.getCas());
+            sut.writeCas(doc, second.getCas(), user);
+        }
+
+        // The second version is chunked in the background
+        awaitPendingHistory(annotationFolder);
+
+        // The first backup is a full copy (checkpoint), the second one only a manifest
+        List<Long> history = sut.listCasHistory(doc, user);
+        assertThat(history).hasSize(2);
+        assertThat(annotationFolder.list()).filteredOn(name -> name.endsWith(".bak")).hasSize(1);
+        assertThat(annotationFolder.list())
+                .filteredOn(name -> name.endsWith(ChunkedCasHistory.MANIFEST_SUFFIX)).hasSize(1);
+        assertThat(new File(annotationFolder.getParentFile().getParentFile().getParentFile(),
+                CasStorageServiceImpl.HISTORY_CHUNK_FOLDER)).isDirectory();
+
+        // Actual test
+        try (CasStorageSession session = openNested(true)) {
+            sut.restoreCasFromHistory(doc, user, history.get(0));
+            assertThat(sut.readCas(doc, user).getDocumentText()).isEqualTo("First version");
+
+            sut.restoreCasFromHistory(doc, user, history.get(1));
+            assertThat(sut.readCas(doc, user).getDocumentText()).isEqualTo("Second version");
+        }
+
+        assertThat(events).hasSize(2).allMatch(e -> e instanceof CasRestoredFromHistoryEvent);
+        assertThat(events).extracting(e -> ((CasRestoredFromHistoryEvent) e).getVersion())
+                .containsExactly(history.get(0), history.get(1));
+
+        assertThatExceptionOfType(FileNotFoundException.class)
+                .isThrownBy(() -> sut.restoreCasFromHistory(doc, user, 1l));
+
+        sut.destroy();
+    }
+
+    @Test
+    public void testChunkedHistoryOnlyStoresChangedData() throws Exception
+    {
+        // Setup fixture
+        backupProperties.setInterval(1);
+        backupProperties.setMode(BackupMode.CHUNKED);
+        sut = new CasStorageServiceImpl(null, null, repositoryProperties, backupProperties);
+
+        SourceDocument doc = makeSourceDocument(21l, 21l, "test");
+        String user = "test";
+        File annotationFolder = sut.getAnnotationFolder(doc);
+        File chunkFolder = new File(annotationFolder.getParentFile().getParentFile()
+                .getParentFile(), CasStorageServiceImpl.HISTORY_CHUNK_FOLDER);
+
+        JCas jcas = JCasFactory.createText(repeat("This is a test.\n", 20_000));
+        for (int i = 0; i < 20_000; i++) {
+            new Token(jcas, i * 16, i * 16 + 4).addToIndexes();
+        }
+
+        try (CasStorageSession session = openNested(true)) {
+            session.add("jcas", EXCLUSIVE_WRITE_ACCESS, jcas.getCas());
+
+            // The first version becomes a full copy
+            sut.writeCas(doc, jcas.getCas(), user);
+            sleep(1100);
+
+            // The second version is the first one to be chunked
+            new Token(jcas, 0, 15).addToIndexes();
+            sut.writeCas(doc, jcas.getCas(), user);
+            awaitPendingHistory(annotationFolder);
+            long sizeAfterSecond = FileUtils.sizeOfDirectory(chunkFolder);
+            sleep(1100);
+
+            // The third version only adds the chunks around the change
+            new Token(jcas, 16, 31).addToIndexes();
+            sut.writeCas(doc, jcas.getCas(), user);
+            awaitPendingHistory(annotationFolder);
+            long added = FileUtils.sizeOfDirectory(chunkFolder) - sizeAfterSecond;
+
+            assertThat(sut.listCasHistory(doc, user)).hasSize(3);
+            assertThat(added).isGreaterThan(0).isLessThan(sizeAfterSecond / 4);
+        }
+
+        sut.destroy();
+    }
+
+    private void awaitPendingHistory(File aAnnotationFolder) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (aAnnotationFolder.list((dir, name) -> name.endsWith(".pending")).length > 0) {
+            assertThat(System.currentTimeMillis()).as("Pending history versions chunked")
+                    .isLessThan(deadline);
+            sleep(50);
         }
     }
 
@@ -648,6 +1199,11 @@ public class CasStorageServiceImplTest
         return casTemplate;
     }
 
+    private byte[] readPreamble(File aFile) throws IOException
+    {
+        return Arrays.copyOf(Files.readAllBytes(aFile.toPath()), CasStorageFormat.PREAMBLE_LENGTH);
+    }
+
     private SourceDocument makeSourceDocument(long aProjectId, long aDocumentId, String aDocName)
     {
         Project project = new Project();
@@ -660,4 +1216,42 @@ public class CasStorageServiceImplTest
 
         return doc;
     }
+
+    /**
+     * Storage format which writes files that cannot be read anymore.
+     */
+    private static class UnreadableCasStorageFormat
+        implements CasStorageFormat
+    {
+        static final String ID = "unreadable";
+
+        private static final byte[] MAGIC = { 'B', 'R', 'K', 'N' };
+
+        @Override
+        public String getId()
+        {
+            return ID;
+        }
+
+        @Override
+        public boolean accepts(byte[] aPreamble)
+        {
+            return aPreamble.length >= MAGIC.length
+                    && Arrays.equals(aPreamble, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+        }
+
+        @Override
+        public void write(CAS aCas, OutputStream aOutputStream, File aBlobFolder)
+            throws IOException
+        {
+            aOutputStream.write(MAGIC);
+        }
+
+        @Override
+        public void read(CAS aCas, InputStream aInputStream, File aBlobFolder)
+            throws IOException
+        {
+            throw new IOException("Unreadable");
+        }
+    }
 }
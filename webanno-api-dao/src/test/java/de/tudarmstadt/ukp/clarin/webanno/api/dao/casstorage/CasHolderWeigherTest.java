@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.fit.factory.CasFactory;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class CasHolderWeigherTest
+{
+    private CasHolderWeigher sut = new CasHolderWeigher();
+
+    @Test
+    public void thatLargerCasWeighsMore() throws Exception
+    {
+        CAS small = makeCas(10);
+        CAS large = makeCas(10_000);
+
+        int smallWeight = sut.weigh(null, new CasHolder(null, small));
+        int largeWeight = sut.weigh(null, new CasHolder(null, large));
+
+        assertThat(smallWeight).isGreaterThan(1);
+        assertThat(largeWeight).isGreaterThan(smallWeight);
+        assertThat((long) largeWeight)
+                .isGreaterThanOrEqualTo(10_000 * CasHolderWeigher.BYTES_PER_FEATURE_STRUCTURE);
+    }
+
+    @Test
+    public void thatHolderWithoutCasWeighsLittle() throws Exception
+    {
+        assertThat(sut.weigh(null, new CasHolder(null, new Exception()))).isEqualTo(1);
+    }
+
+    private CAS makeCas(int aTokenCount) throws Exception
+    {
+        CAS cas = CasFactory.createCas();
+        cas.setDocumentText(StringUtils.repeat("word ", aTokenCount));
+        Type tokenType = cas.getTypeSystem().getType(Token.class.getName());
+        for (int i = 0; i < aTokenCount; i++) {
+            cas.addFsToIndexes(cas.createAnnotation(tokenType, i * 5, i * 5 + 4));
+        }
+        return cas;
+    }
+}
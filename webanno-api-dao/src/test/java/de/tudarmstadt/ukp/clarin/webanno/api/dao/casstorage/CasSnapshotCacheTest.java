@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CasSnapshotCacheTest
+{
+    public @Rule TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File casFile;
+
+    @Before
+    public void setup() throws Exception
+    {
+        casFile = testFolder.newFile("user.ser");
+        Files.write(casFile.toPath(), new byte[] { 1, 2, 3, 4, 5 });
+    }
+
+    @Test
+    public void thatSnapshotIsUnmappedWhenInvalidated() throws Exception
+    {
+        CasSnapshotCache sut = new CasSnapshotCache(1024 * 1024);
+        CasKey key = new CasKey(1, 1, "user");
+
+        CasSnapshot snapshot = sut.get(key, casFile).get();
+        snapshot.close();
+        assertThat(sut.getMappedSize()).isEqualTo(casFile.length());
+
+        sut.invalidate(key);
+
+        assertThat(snapshot.isMapped()).isFalse();
+        assertThat(sut.getMappedSize()).isZero();
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(snapshot::openStream);
+    }
+
+    @Test
+    public void thatSnapshotInUseIsUnmappedOnlyAfterItHasBeenClosed() throws Exception
+    {
+        CasSnapshotCache sut = new CasSnapshotCache(1024 * 1024);
+        CasKey key = new CasKey(1, 1, "user");
+
+        try (CasSnapshot snapshot = sut.get(key, casFile).get()) {
+            sut.invalidate(key);
+
+            assertThat(snapshot.isMapped()).isTrue();
+            assertThat(sut.getMappedSize()).isEqualTo(casFile.length());
+            try (InputStream is = snapshot.openStream()) {
+                assertThat(is.read()).isEqualTo(1);
+            }
+        }
+
+        assertThat(sut.getMappedSize()).isZero();
+    }
+
+    @Test
+    public void thatEvictedSnapshotIsUnmapped() throws Exception
+    {
+        // Room for only one snapshot since every snapshot occupies at least one page
+        CasSnapshotCache sut = new CasSnapshotCache(CasSnapshotCache.PAGE_SIZE);
+        CasKey key1 = new CasKey(1, 1, "user");
+        CasKey key2 = new CasKey(1, 2, "user");
+
+        CasSnapshot snapshot1 = sut.get(key1, casFile).get();
+        snapshot1.close();
+        CasSnapshot snapshot2 = sut.get(key2, casFile).get();
+        snapshot2.close();
+
+        assertThat(sut.size()).isEqualTo(1);
+        assertThat(snapshot1.isMapped()).isFalse();
+        assertThat(snapshot2.isMapped()).isTrue();
+        assertThat(sut.getMappedSize()).isEqualTo(casFile.length());
+    }
+
+    @Test
+    public void thatSnapshotOfChangedFileIsReplaced() throws Exception
+    {
+        CasSnapshotCache sut = new CasSnapshotCache(1024 * 1024);
+        CasKey key = new CasKey(1, 1, "user");
+
+        CasSnapshot snapshot1 = sut.get(key, casFile).get();
+        snapshot1.close();
+
+        Files.write(casFile.toPath(), new byte[] { 1, 2, 3 });
+
+        assertThat(sut.getMaterializedCas(key, casFile)).isEmpty();
+        Optional<CasSnapshot> snapshot2 = sut.get(key, casFile);
+        snapshot2.get().close();
+
+        assertThat(snapshot2.get()).isNotSameAs(snapshot1);
+        assertThat(snapshot1.isMapped()).isFalse();
+        assertThat(sut.getMappedSize()).isEqualTo(3);
+    }
+
+    @Test
+    public void thatWeightIsRoundedToPages() throws Exception
+    {
+        CasSnapshotCache sut = new CasSnapshotCache(1024 * 1024);
+
+        try (CasSnapshot snapshot = sut.get(new CasKey(1, 1, "user"), casFile).get()) {
+            assertThat(CasSnapshotCache.weigh(snapshot)).isEqualTo(CasSnapshotCache.PAGE_SIZE);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkedCasHistoryTest
+{
+    public @Rule TemporaryFolder testFolder = new TemporaryFolder();
+
+    private ChunkedCasHistory sut;
+    private File chunkFolder;
+
+    @Before
+    public void setup() throws Exception
+    {
+        sut = new ChunkedCasHistory();
+        chunkFolder = testFolder.newFolder();
+    }
+
+    @Test
+    public void thatRoundTripWorks() throws Exception
+    {
+        byte[] data = randomBytes(1, 500_000);
+        File manifest = storeVersion(data);
+
+        assertThat(restore(manifest)).isEqualTo(data);
+    }
+
+    @Test
+    public void thatEmptyFileCanBeStored() throws Exception
+    {
+        File manifest = storeVersion(new byte[0]);
+
+        assertThat(restore(manifest)).isEmpty();
+        assertThat(countChunks()).isZero();
+    }
+
+    @Test
+    public void thatUnchangedDataIsNotStoredAgain() throws Exception
+    {
+        byte[] data = randomBytes(2, 500_000);
+        storeVersion(data);
+        long chunks = countChunks();
+
+        long added = sut.store(new ByteArrayInputStream(data),
+                new File(testFolder.getRoot(), "second.manifest"), chunkFolder);
+
+        assertThat(added).isZero();
+        assertThat(countChunks()).isEqualTo(chunks);
+    }
+
+    @Test
+    public void thatInsertionOnlyAddsFewChunks() throws Exception
+    {
+        byte[] data = randomBytes(3, 500_000);
+        storeVersion(data);
+
+        // Insert some data near the beginning - all chunks after the insertion point are shifted
+        byte[] insertion = randomBytes(4, 100);
+        byte[] modified = new byte[data.length + insertion.length];
+        System.arraycopy(data, 0, modified, 0, 1000);
+        System.arraycopy(insertion, 0, modified, 1000, insertion.length);
+        System.arraycopy(data, 1000, modified, 1000 + insertion.length, data.length - 1000);
+        File manifest = new File(testFolder.getRoot(), "modified.manifest");
+        long added = sut.store(new ByteArrayInputStream(modified), manifest, chunkFolder);
+
+        assertThat(added).isLessThan(modified.length / 4);
+        assertThat(restore(manifest)).isEqualTo(modified);
+    }
+
+    @Test
+    public void thatChunksAreCompressed() throws Exception
+    {
+        byte[] data = "This is a test.\n".repeat(50_000).getBytes(UTF_8);
+        File manifest = new File(testFolder.getRoot(), "text.manifest");
+        long added = sut.store(new ByteArrayInputStream(data), manifest, chunkFolder);
+
+        assertThat(added).isLessThan(data.length / 10);
+        assertThat(restore(manifest)).isEqualTo(data);
+    }
+
+    @Test
+    public void thatUnreferencedChunksArePruned() throws Exception
+    {
+        File first = storeVersion(randomBytes(5, 200_000));
+        File second = storeVersion(randomBytes(6, 200_000));
+        long chunksOfFirst = countChunks() - countChunks(second);
+
+        Files.delete(first.toPath());
+
+        int removed = sut.pruneChunks(chunkFolder, () -> asList(second));
+
+        assertThat((long) removed).isEqualTo(chunksOfFirst);
+        assertThat(restore(second)).hasSize(200_000);
+    }
+
+    @Test
+    public void thatStoreWaitsForPruning() throws Exception
+    {
+        storeVersion(randomBytes(8, 100_000));
+        File manifest = new File(testFolder.getRoot(), "concurrent.manifest");
+        byte[] data = randomBytes(9, 100_000);
+        Thread writer = new Thread(() -> {
+            try {
+                sut.store(new ByteArrayInputStream(data), manifest, chunkFolder);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        // The manifests are collected while the chunk folder is locked, so a version stored in
+        // the meantime cannot lose its chunks
+        sut.pruneChunks(chunkFolder, () -> {
+            writer.start();
+            try {
+                writer.join(500);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            assertThat(writer.isAlive()).isTrue();
+            assertThat(manifest).doesNotExist();
+            return emptyList();
+        });
+        writer.join();
+
+        assertThat(restore(manifest)).isEqualTo(data);
+    }
+
+    @Test
+    public void thatDamagedChunkIsDetected() throws Exception
+    {
+        File manifest = storeVersion(randomBytes(7, 100_000));
+
+        try (Stream<Path> files = Files.walk(chunkFolder.toPath())) {
+            Path chunk = files.filter(Files::isRegularFile).findFirst().get();
+            byte[] data = Files.readAllBytes(chunk);
+            data[0]++;
+            Files.write(chunk, data);
+        }
+
+        assertThatExceptionOfType(IOException.class) //
+                .isThrownBy(() -> restore(manifest)) //
+                .withMessageContaining("is damaged");
+    }
+
+    private File storeVersion(byte[] aData) throws IOException
+    {
+        File manifest = File.createTempFile("version", ".manifest", testFolder.getRoot());
+        sut.store(new ByteArrayInputStream(aData), manifest, chunkFolder);
+        return manifest;
+    }
+
+    private byte[] restore(File aManifest) throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        sut.restore(aManifest, chunkFolder, bos);
+        return bos.toByteArray();
+    }
+
+    private long countChunks() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(chunkFolder.toPath())) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private long countChunks(File aManifest) throws IOException
+    {
+        // Skip the header line
+        return Files.readAllLines(aManifest.toPath()).stream().skip(1) //
+                .filter(line -> !line.isEmpty()) //
+                .distinct() //
+                .count();
+    }
+
+    private static byte[] randomBytes(long aSeed, int aLength)
+    {
+        byte[] data = new byte[aLength];
+        new Random(aSeed).nextBytes(data);
+        return data;
+    }
+}
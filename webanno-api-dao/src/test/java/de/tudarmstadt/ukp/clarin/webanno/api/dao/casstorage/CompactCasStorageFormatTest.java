@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.cas.Type;
+import org.apache.uima.cas.impl.CASImpl;
+import org.apache.uima.fit.factory.CasFactory;
+import org.apache.uima.jcas.tcas.DocumentAnnotation;
+import org.apache.uima.resource.metadata.TypeSystemDescription;
+import org.apache.uima.util.CasCreationUtils;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.tudarmstadt.ukp.dkpro.core.api.metadata.type.DocumentMetaData;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Sentence;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+public class CompactCasStorageFormatTest
+{
+    public @Rule TemporaryFolder testFolder = new TemporaryFolder();
+
+    {
+        System.setProperty(CASImpl.ALWAYS_HOLD_ONTO_FSS, "true");
+    }
+
+    private CompactCasStorageFormat sut;
+    private File blobFolder;
+
+    @Before
+    public void setup() throws Exception
+    {
+        sut = new CompactCasStorageFormat();
+        blobFolder = testFolder.newFolder();
+    }
+
+    @Test
+    public void thatRoundTripWorks() throws Exception
+    {
+        CAS cas = makeCas(100);
+
+        File file = testFolder.newFile();
+        sut.write(cas, file, blobFolder);
+
+        assertThat(sut.accepts(readPreamble(file))).isTrue();
+        assertThat(new LegacyCasStorageFormat().accepts(readPreamble(file))).isFalse();
+
+        CAS cas2 = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+        sut.read(cas2, file, blobFolder);
+
+        assertThat(cas2.getDocumentText()).isEqualTo(cas.getDocumentText());
+        assertThat(cas2.select(Token.class.getName()).count())
+                .isEqualTo(cas.select(Token.class.getName()).count());
+        assertThat(cas2.select(DocumentAnnotation.class).asList())
+                .extracting(fs -> fs.getType().getName())
+                .containsExactly(DocumentMetaData.class.getName());
+    }
+
+    @Test
+    public void thatTypeSystemIsStoredOnlyOnce() throws Exception
+    {
+        CAS cas = makeCas(10);
+
+        sut.write(cas, testFolder.newFile(), blobFolder);
+        sut.write(cas, testFolder.newFile(), blobFolder);
+        sut.write(makeCas(10), testFolder.newFile(), blobFolder);
+
+        assertThat(blobFolder.listFiles()).hasSize(1);
+    }
+
+    @Test
+    public void thatLegacyFileIsDetected() throws Exception
+    {
+        File file = testFolder.newFile();
+        new LegacyCasStorageFormat().write(makeCas(10), file, blobFolder);
+
+        assertThat(sut.accepts(readPreamble(file))).isFalse();
+        assertThat(new LegacyCasStorageFormat().accepts(readPreamble(file))).isTrue();
+    }
+
+    @Ignore("Benchmark - run manually")
+    @Test
+    public void benchmarkAgainstLegacyFormat() throws Exception
+    {
+        int sentences = 10_000;
+        int iterations = 20;
+
+        CAS cas = makeCas(sentences);
+
+        for (CasStorageFormat format : Arrays.asList(new LegacyCasStorageFormat(), sut)) {
+            File file = testFolder.newFile();
+
+            // Warm up
+            for (int i = 0; i < 3; i++) {
+                format.write(cas, file, blobFolder);
+                format.read(CasCreationUtils.createCas((TypeSystemDescription) null, null, null),
+                        file, blobFolder);
+            }
+
+            long writeTime = 0;
+            long readTime = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = nanoTime();
+                format.write(cas, file, blobFolder);
+                writeTime += nanoTime() - start;
+
+                CAS target = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+                start = nanoTime();
+                format.read(target, file, blobFolder);
+                readTime += nanoTime() - start;
+            }
+
+            System.out.printf("%-8s save: %5dms  load: %5dms  size: %,10d bytes%n",
+                    format.getId(), NANOSECONDS.toMillis(writeTime / iterations),
+                    NANOSECONDS.toMillis(readTime / iterations), file.length());
+        }
+    }
+
+    private CAS makeCas(int aSentences) throws Exception
+    {
+        int tokensPerSentence = 10;
+        String token = "token ";
+
+        CAS cas = CasFactory.createCas();
+        cas.setDocumentText(StringUtils.repeat(token, aSentences * tokensPerSentence));
+        DocumentMetaData.create(cas);
+
+        Type tokenType = cas.getTypeSystem().getType(Token.class.getName());
+        Type sentenceType = cas.getTypeSystem().getType(Sentence.class.getName());
+        int offset = 0;
+        for (int s = 0; s < aSentences; s++) {
+            int sentenceBegin = offset;
+            for (int t = 0; t < tokensPerSentence; t++) {
+                cas.addFsToIndexes(
+                        cas.createAnnotation(tokenType, offset, offset + token.length() - 1));
+                offset += token.length();
+            }
+            cas.addFsToIndexes(cas.createAnnotation(sentenceType, sentenceBegin, offset - 1));
+        }
+
+        return cas;
+    }
+
+    private byte[] readPreamble(File aFile) throws Exception
+    {
+        return Arrays.copyOf(Files.readAllBytes(aFile.toPath()), CasStorageFormat.PREAMBLE_LENGTH);
+    }
+}
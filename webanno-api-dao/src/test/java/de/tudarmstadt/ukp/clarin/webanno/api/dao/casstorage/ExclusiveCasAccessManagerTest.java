@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+public class ExclusiveCasAccessManagerTest
+{
+    private ExclusiveCasAccessManager sut;
+
+    @Before
+    public void setup()
+    {
+        sut = new ExclusiveCasAccessManager(1000, 0);
+    }
+
+    @After
+    public void teardown()
+    {
+        sut.close();
+    }
+
+    @Test
+    public void thatSameHolderIsReturnedForSameKey() throws Exception
+    {
+        CasKey key = new CasKey(1, 1, "user");
+
+        CasHolder holder = sut.borrow(key);
+        sut.release(key, holder);
+
+        assertThat(sut.borrow(key)).isSameAs(holder);
+        assertThat(sut.getHolder(key)).containsSame(holder);
+    }
+
+    @Test
+    public void thatBorrowTimesOutWhileCasIsBorrowed() throws Exception
+    {
+        CasKey key = new CasKey(1, 1, "user");
+        sut.borrow(key);
+
+        assertThatExceptionOfType(NoSuchElementException.class)
+                .isThrownBy(() -> sut.borrow(key, 50))
+                .withMessageContaining("borrowed by [" + Thread.currentThread().getName() + "]");
+        assertThat(sut.getTimeoutCount()).isEqualTo(1);
+        assertThat(sut.getOwners()).hasSize(1);
+
+        // Other CASes are not affected
+        assertThat(sut.borrow(new CasKey(1, 2, "user"), 50)).isNotNull();
+    }
+
+    @Test
+    public void thatCasCanBeReleasedByOtherThread() throws Exception
+    {
+        CasKey key = new CasKey(1, 1, "user");
+        CasHolder holder = sut.borrow(key);
+
+        Thread releaser = new Thread(() -> sut.release(key, holder));
+        releaser.start();
+
+        assertThat(sut.borrow(key, 1000)).isSameAs(holder);
+        releaser.join();
+    }
+
+    @Test
+    public void thatInvalidHolderIsReplaced() throws Exception
+    {
+        CasKey key = new CasKey(1, 1, "user");
+
+        CasHolder holder = sut.borrow(key);
+        holder.setDeleted(true);
+        sut.release(key, holder);
+        assertThat(sut.getHolder(key)).isEmpty();
+
+        CasHolder holder2 = sut.borrow(key);
+        assertThat(holder2).isNotSameAs(holder);
+
+        // A holder with an outdated type system is replaced on borrow - unless it is dirty
+        sut.release(key, holder2);
+        holder2.markDirty(new SourceDocument());
+        holder2.setTypeSystemOutdated(true);
+        assertThat(sut.borrow(key)).isSameAs(holder2);
+    }
+
+    @Test
+    public void thatReleasingHolderWhichIsNotBorrowedFails() throws Exception
+    {
+        CasKey key = new CasKey(1, 1, "user");
+        CasHolder holder = sut.borrow(key);
+        sut.release(key, holder);
+
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> sut.release(key, holder));
+    }
+
+    @Test
+    public void thatIdleCasesAreEvictedUnlessDirty() throws Exception
+    {
+        CasKey idleKey = new CasKey(1, 1, "user");
+        CasKey dirtyKey = new CasKey(1, 2, "user");
+        CasKey borrowedKey = new CasKey(1, 3, "user");
+
+        sut.release(idleKey, sut.borrow(idleKey));
+        CasHolder dirtyHolder = sut.borrow(dirtyKey);
+        dirtyHolder.markDirty(new SourceDocument());
+        sut.release(dirtyKey, dirtyHolder);
+        sut.borrow(borrowedKey);
+
+        sut.evictIdle();
+
+        assertThat(sut.getHolder(idleKey)).isEmpty();
+        assertThat(sut.getHolder(dirtyKey)).isPresent();
+        assertThat(sut.getHolder(borrowedKey)).isPresent();
+        assertThat(sut.getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void thatConcurrentBorrowersAreMutuallyExclusive() throws Exception
+    {
+        CasKey key = new CasKey(1, 1, "user");
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        int threads = 8;
+        int iterations = 1000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        CasHolder holder = sut.borrow(key, 10_000);
+                        if (inside.incrementAndGet() != 1) {
+                            violations.incrementAndGet();
+                        }
+                        inside.decrementAndGet();
+                        sut.release(key, holder);
+
+                        // Evicting concurrently must not break mutual exclusion
+                        if (i % 100 == 0) {
+                            sut.evictIdle();
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(violations.get()).isZero();
+        assertThat(sut.getBorrowCount()).isEqualTo(threads * iterations);
+    }
+
+    @Ignore("Benchmark - run manually")
+    @Test
+    public void benchmarkAgainstKeyedObjectPool() throws Exception
+    {
+        int threads = 32;
+        int keys = 64;
+        int iterations = 200_000;
+
+        GenericKeyedObjectPoolConfig<CasHolder> config = new GenericKeyedObjectPoolConfig<>();
+        config.setMaxTotalPerKey(1);
+        config.setMinIdlePerKey(0);
+        config.setTestOnReturn(true);
+        config.setTestOnBorrow(true);
+        config.setJmxEnabled(false);
+        GenericKeyedObjectPool<CasKey, CasHolder> pool = new GenericKeyedObjectPool<>(
+                new BaseKeyedPooledObjectFactory<CasKey, CasHolder>()
+                {
+                    @Override
+                    public CasHolder create(CasKey aKey)
+                    {
+                        return new CasHolder(aKey);
+                    }
+
+                    @Override
+                    public PooledObject<CasHolder> wrap(CasHolder aHolder)
+                    {
+                        return new DefaultPooledObject<>(aHolder);
+                    }
+
+                    @Override
+                    public boolean validateObject(CasKey aKey, PooledObject<CasHolder> aP)
+                    {
+                        CasHolder holder = aP.getObject();
+                        return !holder.isDeleted()
+                                && (holder.isDirty() || !holder.isTypeSystemOutdated());
+                    }
+                }, config);
+
+        ExclusiveCasAccessManager manager = new ExclusiveCasAccessManager(60_000, 0);
+
+        // Run twice - the first round serves as warm-up
+        for (int round = 0; round < 2; round++) {
+            long poolTime = run(threads, keys, iterations, key -> {
+                CasHolder holder = pool.borrowObject(key);
+                pool.returnObject(key, holder);
+            });
+
+            long managerTime = run(threads, keys, iterations, key -> {
+                CasHolder holder = manager.borrow(key);
+                manager.release(key, holder);
+            });
+
+            System.out.printf("pool: %5dms  manager: %5dms%n", NANOSECONDS.toMillis(poolTime),
+                    NANOSECONDS.toMillis(managerTime));
+        }
+
+        pool.close();
+        manager.close();
+    }
+
+    private long run(int aThreads, int aKeys, int aIterations, BorrowAndRelease aAction)
+        throws Exception
+    {
+        CasKey[] keys = new CasKey[aKeys];
+        for (int i = 0; i < aKeys; i++) {
+            keys[i] = new CasKey(1, i, "user");
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(aThreads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < aThreads; t++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < aIterations / aThreads; i++) {
+                        aAction.apply(keys[ThreadLocalRandom.current().nextInt(aKeys)]);
+                    }
+                    return null;
+                }));
+            }
+
+            long begin = nanoTime();
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, SECONDS);
+            }
+            return nanoTime() - begin;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private static interface BorrowAndRelease
+    {
+        void apply(CasKey aKey) throws Exception;
+    }
+}
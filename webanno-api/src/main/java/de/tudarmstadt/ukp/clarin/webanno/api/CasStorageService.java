@@ -19,6 +19,7 @@ package de.tudarmstadt.ukp.clarin.webanno.api;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 
 import org.apache.uima.cas.CAS;
@@ -141,6 +142,54 @@ public interface CasStorageService
 
     boolean existsCas(SourceDocument aDocument, String aUser) throws IOException;
 
+    /**
+     * Writes a self-contained copy of the stored CAS to the given file, e.g. for inclusion in a
+     * project export. Depending on the internal storage format, the file in the storage (cf.
+     * {@link #getCasFile}) may depend on additional data stored elsewhere and therefore should not
+     * be copied directly.
+     * 
+     * @param aDocument
+     *            the document to export the CAS for.
+     * @param aUser
+     *            the user to export the CAS for.
+     * @param aTarget
+     *            the file to write the CAS to.
+     * @throws IOException
+     *             if the CAS could not be exported.
+     */
+    void exportCas(SourceDocument aDocument, String aUser, File aTarget) throws IOException;
+
+    /**
+     * Lists the versions of the CAS kept in the internal backup history.
+     * 
+     * @param aDocument
+     *            the document.
+     * @param aUser
+     *            the user owning the CAS.
+     * @return the timestamps of the history versions (oldest one first).
+     * @throws IOException
+     *             if the history could not be accessed.
+     */
+    List<Long> listCasHistory(SourceDocument aDocument, String aUser) throws IOException;
+
+    /**
+     * Replaces the stored CAS with a version from the internal backup history. The version being
+     * replaced is added to the history before. Any copies of the CAS held in memory are dropped.
+     * 
+     * @param aDocument
+     *            the document.
+     * @param aUser
+     *            the user owning the CAS.
+     * @param aTimestamp
+     *            the timestamp of the history version as returned by {@link #listCasHistory}.
+     * @throws IOException
+     *             if the history version does not exist or could not be restored.
+     * @throws CasSessionException
+     *             if no CAS storage session in available for the current thread.
+     */
+    void restoreCasFromHistory(SourceDocument aDocument, String aUser, long aTimestamp)
+        throws IOException, CasSessionException;
+
     /**
      * Runs {@code CasDoctor} in repair mode on the given CAS (if repairs are active), otherwise it
      * runs only in analysis mode.
@@ -157,6 +206,20 @@ public interface CasStorageService
      */
     void analyzeAndRepair(SourceDocument aDocument, String aUsername, CAS aCas);
 
+    /**
+     * Returns a timestamp which changes whenever the CAS is changed through this service. Changes
+     * which have not been written to disk yet are included. The timestamp is strictly increasing
+     * for every change, even if the file system records modification times only with a coarse
+     * granularity, so it can be used to detect concurrent modifications.
+     * 
+     * @param aDocument
+     *            the document
+     * @param aUser
+     *            the user owning the CAS
+     * @return the timestamp or nothing if the CAS does not exist.
+     * @throws IOException
+     *             if there was a problem accessing the CAS.
+     */
     Optional<Long> getCasTimestamp(SourceDocument aDocument, String aUser) throws IOException;
 
     /**
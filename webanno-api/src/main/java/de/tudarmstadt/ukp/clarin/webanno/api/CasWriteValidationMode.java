@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api;
+
+/**
+ * Controls if and when a CAS file is read back after it has been written to ensure that the file
+ * is not broken.
+ */
+public enum CasWriteValidationMode
+{
+    /**
+     * Validate every written CAS file before the write completes. If the validation fails, the
+     * previous version of the file is restored and the write fails.
+     */
+    ALWAYS,
+
+    /**
+     * Like {@link #ALWAYS}, but only a configurable percentage of the writes is validated.
+     */
+    SAMPLED,
+
+    /**
+     * Validate every written CAS file in the background after the write has completed. The
+     * previous version of the file is retained until the validation is complete. If the validation
+     * fails, the previous version of the file is restored.
+     */
+    ASYNC;
+}
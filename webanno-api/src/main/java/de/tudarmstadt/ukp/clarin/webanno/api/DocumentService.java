@@ -310,6 +310,19 @@ public interface DocumentService
      */
     File getCasFile(SourceDocument document, String user) throws IOException;
 
+    /**
+     * Write a self-contained copy of the serialized CAS annotation document to the given file. Use
+     * this instead of copying the file obtained from {@link #getCasFile} when exporting.
+     *
+     * @param document
+     *            the source document.
+     * @param user
+     *            the username.
+     * @param target
+     *            the file to write the serialized CAS to.
+     */
+    void exportCas(SourceDocument document, String user, File target) throws IOException;
+
     /**
      * Get the annotation document.
      *
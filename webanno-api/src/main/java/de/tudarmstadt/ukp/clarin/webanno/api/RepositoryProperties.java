@@ -18,9 +18,11 @@
 package de.tudarmstadt.ukp.clarin.webanno.api;
 
 import java.io.File;
+import java.time.Duration;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 
 import de.tudarmstadt.ukp.clarin.webanno.support.SettingsUtil;
 
@@ -29,6 +31,12 @@ import de.tudarmstadt.ukp.clarin.webanno.support.SettingsUtil;
 public class RepositoryProperties
 {
     private File path;
+    private String casStorageFormat;
+    private boolean syncWrites = true;
+    private final WriteBehindOptions writeBehind = new WriteBehindOptions();
+    private final SharedCacheOptions sharedCache = new SharedCacheOptions();
+    private final SnapshotOptions snapshots = new SnapshotOptions();
+    private final WriteValidationOptions writeValidation = new WriteValidationOptions();
 
     public File getPath()
     {
@@ -46,4 +54,218 @@ public class RepositoryProperties
     {
         path = aPath;
     }
+
+    /**
+     * @return the identifier of the format in which annotation CASes are written or {@code null}
+     *         to use the default format.
+     */
+    public String getCasStorageFormat()
+    {
+        return casStorageFormat;
+    }
+
+    public void setCasStorageFormat(String aCasStorageFormat)
+    {
+        casStorageFormat = aCasStorageFormat;
+    }
+
+    /**
+     * @return whether annotation CASes are forced to the storage device before they replace the
+     *         previous version of the file.
+     */
+    public boolean isSyncWrites()
+    {
+        return syncWrites;
+    }
+
+    public void setSyncWrites(boolean aSyncWrites)
+    {
+        syncWrites = aSyncWrites;
+    }
+
+    public WriteBehindOptions getWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    public SharedCacheOptions getSharedCache()
+    {
+        return sharedCache;
+    }
+
+    public SnapshotOptions getSnapshots()
+    {
+        return snapshots;
+    }
+
+    public WriteValidationOptions getWriteValidation()
+    {
+        return writeValidation;
+    }
+
+    public static class WriteBehindOptions
+    {
+        private boolean enabled = false;
+        private long delay = 1000;
+        private int maxPending = 1000;
+        private int threads = 2;
+
+        /**
+         * @return whether writing annotation CASes to disk may be deferred to a background writer.
+         */
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        public void setEnabled(boolean aEnabled)
+        {
+            enabled = aEnabled;
+        }
+
+        /**
+         * @return the time in milliseconds during which subsequent writes to the same CAS are
+         *         collected before the CAS is written to disk.
+         */
+        public long getDelay()
+        {
+            return delay;
+        }
+
+        public void setDelay(long aDelay)
+        {
+            delay = aDelay;
+        }
+
+        /**
+         * @return the maximum number of CASes waiting to be written. If this number is reached,
+         *         further CASes are written immediately.
+         */
+        public int getMaxPending()
+        {
+            return maxPending;
+        }
+
+        public void setMaxPending(int aMaxPending)
+        {
+            maxPending = aMaxPending;
+        }
+
+        /**
+         * @return the number of background threads writing CASes to disk.
+         */
+        public int getThreads()
+        {
+            return threads;
+        }
+
+        public void setThreads(int aThreads)
+        {
+            threads = aThreads;
+        }
+    }
+
+    public static class SharedCacheOptions
+    {
+        private DataSize size;
+        private Duration idleTimeout = Duration.ofMinutes(5);
+
+        /**
+         * @return the estimated amount of heap memory the CASes in the shared read-only cache may
+         *         occupy. If not set, a quarter of the maximum heap size is used.
+         */
+        public DataSize getSize()
+        {
+            if (size != null) {
+                return size;
+            }
+
+            return DataSize.ofBytes(Runtime.getRuntime().maxMemory() / 4);
+        }
+
+        public void setSize(DataSize aSize)
+        {
+            size = aSize;
+        }
+
+        /**
+         * @return the time after which a CAS that has not been accessed is dropped from the shared
+         *         read-only cache.
+         */
+        public Duration getIdleTimeout()
+        {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(Duration aIdleTimeout)
+        {
+            idleTimeout = aIdleTimeout;
+        }
+    }
+
+    public static class SnapshotOptions
+    {
+        private boolean enabled = false;
+        private DataSize size = DataSize.ofGigabytes(1);
+
+        /**
+         * @return whether CASes for shared read-only access are materialized from memory-mapped
+         *         snapshots of their files.
+         */
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        public void setEnabled(boolean aEnabled)
+        {
+            enabled = aEnabled;
+        }
+
+        /**
+         * @return the maximum total size of the files mapped into memory.
+         */
+        public DataSize getSize()
+        {
+            return size;
+        }
+
+        public void setSize(DataSize aSize)
+        {
+            size = aSize;
+        }
+    }
+
+    public static class WriteValidationOptions
+    {
+        private CasWriteValidationMode mode = CasWriteValidationMode.ALWAYS;
+        private int sampleRate = 10;
+
+        /**
+         * @return if and when a written CAS file is read back to ensure it is not broken.
+         */
+        public CasWriteValidationMode getMode()
+        {
+            return mode;
+        }
+
+        public void setMode(CasWriteValidationMode aMode)
+        {
+            mode = aMode;
+        }
+
+        /**
+         * @return the percentage of writes which are validated in the
+         *         {@link CasWriteValidationMode#SAMPLED} mode.
+         */
+        public int getSampleRate()
+        {
+            return sampleRate;
+        }
+
+        public void setSampleRate(int aSampleRate)
+        {
+            sampleRate = aSampleRate;
+        }
+    }
 }
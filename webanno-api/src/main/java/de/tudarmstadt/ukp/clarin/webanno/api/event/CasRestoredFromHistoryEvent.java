@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.event;
+
+import org.springframework.context.ApplicationEvent;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Published when a CAS file has been replaced by a version from its history.
+ */
+public class CasRestoredFromHistoryEvent
+    extends ApplicationEvent
+{
+    private static final long serialVersionUID = -2395270331960516838L;
+
+    private final SourceDocument document;
+    private final String user;
+    private final long version;
+
+    public CasRestoredFromHistoryEvent(Object aSource, SourceDocument aDocument, String aUser,
+            long aVersion)
+    {
+        super(aSource);
+        document = aDocument;
+        user = aUser;
+        version = aVersion;
+    }
+
+    public SourceDocument getDocument()
+    {
+        return document;
+    }
+
+    public String getUser()
+    {
+        return user;
+    }
+
+    /**
+     * @return the timestamp identifying the history version which has been restored.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.api.event;
+
+import org.springframework.context.ApplicationEvent;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Published when a CAS file could not be read back after it has been written.
+ */
+public class CasWriteValidationFailedEvent
+    extends ApplicationEvent
+{
+    private static final long serialVersionUID = 3461256795512873163L;
+
+    private final SourceDocument document;
+    private final String user;
+    private final boolean restored;
+
+    public CasWriteValidationFailedEvent(Object aSource, SourceDocument aDocument, String aUser,
+            boolean aRestored)
+    {
+        super(aSource);
+        document = aDocument;
+        user = aUser;
+        restored = aRestored;
+    }
+
+    public SourceDocument getDocument()
+    {
+        return document;
+    }
+
+    public String getUser()
+    {
+        return user;
+    }
+
+    /**
+     * @return whether the previous version of the CAS file has been restored.
+     */
+    public boolean isRestored()
+    {
+        return restored;
+    }
+}
@@ -57,9 +57,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.flipkart.zjsonpatch.JsonDiff;
 import com.googlecode.wicket.jquery.ui.settings.JQueryUILibrarySettings;
 import com.googlecode.wicket.jquery.ui.widget.menu.IMenuItem;
 
@@ -89,6 +87,9 @@ import de.tudarmstadt.ukp.clarin.webanno.brat.message.SpanAnnotationResponse;
 import de.tudarmstadt.ukp.clarin.webanno.brat.message.VisualOptions;
 import de.tudarmstadt.ukp.clarin.webanno.brat.metrics.BratMetrics;
 import de.tudarmstadt.ukp.clarin.webanno.brat.metrics.BratMetrics.RenderType;
+import de.tudarmstadt.ukp.clarin.webanno.brat.render.BratDifferentialRenderer;
+import de.tudarmstadt.ukp.clarin.webanno.brat.render.BratRenderCache;
+import de.tudarmstadt.ukp.clarin.webanno.brat.render.BratRenderCache.CachedRendering;
 import de.tudarmstadt.ukp.clarin.webanno.brat.render.BratRenderer;
 import de.tudarmstadt.ukp.clarin.webanno.brat.render.model.NormalizationQueryResult;
 import de.tudarmstadt.ukp.clarin.webanno.brat.render.model.Offsets;
@@ -140,13 +141,14 @@ public class BratAnnotationEditor
     private @SpringBean AnnotationEditorExtensionRegistry extensionRegistry;
     private @SpringBean FeatureSupportRegistry featureSupportRegistry;
     private @SpringBean BratMetrics metrics;
+    private @SpringBean BratRenderCache renderCache;
     private @SpringBean BratAnnotationEditorProperties bratProperties;
 
     private WebMarkupContainer vis;
     private AbstractAjaxBehavior requestHandler;
 
-    private transient JsonNode lastRenederedJsonParsed;
-    private String lastRenderedJson;
+    // Only kept in memory - if the page is restored from the page store, we do a full rendering
+    private transient BratDifferentialRenderer differentialRenderer;
     private int lastRenderedWindowStart = -1;
 
     public BratAnnotationEditor(String id, IModel<AnnotatorState> aModel,
@@ -540,16 +542,14 @@ public class BratAnnotationEditor
         StopWatch timer = new StopWatch();
         timer.start();
 
-        GetDocumentResponse response = new GetDocumentResponse();
         String json;
         if (getModelObject().getProject() != null) {
-            render(response, aCas);
-            json = toJson(response);
-            lastRenderedJson = json;
-            lastRenederedJsonParsed = null;
+            JsonNode current = renderResponse(aCas);
+            json = toJson(current);
+            getDifferentialRenderer().setLastRendered(current);
         }
         else {
-            json = toJson(response);
+            json = toJson(new GetDocumentResponse());
         }
 
         timer.stop();
@@ -657,18 +657,13 @@ public class BratAnnotationEditor
         StopWatch timer = new StopWatch();
         timer.start();
 
-        GetDocumentResponse response = new GetDocumentResponse();
-        render(response, aCas);
-
-        ObjectMapper mapper = JSONUtil.getObjectMapper();
-        JsonNode current = mapper.valueToTree(response);
+        JsonNode current = renderResponse(aCas);
         String json = toJson(current);
 
         // By default, we do a full rendering...
         RenderType renderType = FULL;
         String cmd = "renderData";
         String responseJson = json;
-        JsonNode diff;
         String diffJsonStr = null;
 
         // Here, we try to balance server CPU load against network load. So if we have a chance
@@ -684,25 +679,12 @@ public class BratAnnotationEditor
 
         if (tryDifferentialUpdate) {
             // ... try to render diff
-            JsonNode previous = null;
-            try {
-                if (lastRenederedJsonParsed != null) {
-                    previous = lastRenederedJsonParsed;
-                }
-                else {
-                    previous = lastRenderedJson != null ? mapper.readTree(lastRenderedJson) : null;
-                }
-            }
-            catch (IOException e) {
-                LOG.error("Unable to generate diff, falling back to full render.", e);
-                // Fall-through
-            }
+            ArrayNode diff = getDifferentialRenderer().diff(current);
 
-            if (previous != null && current != null) {
-                diff = JsonDiff.asJson(previous, current);
+            if (diff != null) {
                 diffJsonStr = diff.toString();
 
-                if (diff instanceof ArrayNode && ((ArrayNode) diff).isEmpty()) {
+                if (diff.isEmpty()) {
                     // No difference? Well, don't render at all :)
                     renderType = SKIP;
                 }
@@ -714,16 +696,10 @@ public class BratAnnotationEditor
                     responseJson = diffJsonStr;
                     renderType = DIFFERENTIAL;
                 }
-
-                // LOG.info("Diff: " + diff);
-                // LOG.info("Full: {} Patch: {} Diff time: {}", json.length(), diff.length(),
-                // timer);
             }
         }
 
-        // Storing the last rendered JSON as string because JsonNodes are not serializable.
-        lastRenderedJson = json;
-        lastRenederedJsonParsed = current;
+        getDifferentialRenderer().setLastRendered(current);
         lastRenderedWindowStart = aState.getWindowBeginOffset();
 
         timer.stop();
@@ -739,12 +715,42 @@ public class BratAnnotationEditor
                 + responseJson + "]);");
     }
 
-    private void render(GetDocumentResponse response, CAS aCas)
+    private BratDifferentialRenderer getDifferentialRenderer()
     {
-        AnnotatorState aState = getModelObject();
-        VDocument vdoc = render(aCas, aState.getWindowBeginOffset(), aState.getWindowEndOffset());
+        if (differentialRenderer == null) {
+            differentialRenderer = new BratDifferentialRenderer();
+        }
+        return differentialRenderer;
+    }
+
+    private JsonNode renderResponse(CAS aCas)
+    {
+        AnnotatorState state = getModelObject();
+
+        // Extensions may contribute to the rendering based on state which is not part of the
+        // cache key, so we can only use the cache if there are none
+        Optional<List<Object>> cacheKey = extensionRegistry.getExtensions().isEmpty()
+                ? renderCache.createKey(state, isHighlightEnabled())
+                : Optional.empty();
+
+        if (cacheKey.isPresent()) {
+            Optional<CachedRendering> cached = renderCache.get(cacheKey.get());
+            metrics.renderCacheAccess(cached.isPresent());
+            if (cached.isPresent()) {
+                fireRenderAnnotationsEvent(aCas, cached.get().getVDocument());
+                return cached.get().getResponse();
+            }
+        }
+
+        VDocument vdoc = render(aCas, state.getWindowBeginOffset(), state.getWindowEndOffset());
+        GetDocumentResponse response = new GetDocumentResponse();
         BratRenderer renderer = new BratRenderer(annotationService, coloringService);
-        renderer.render(response, aState, vdoc, aCas);
+        renderer.render(response, state, vdoc, aCas);
+        JsonNode json = JSONUtil.getObjectMapper().valueToTree(response);
+
+        cacheKey.ifPresent(key -> renderCache.put(key, vdoc, json));
+
+        return json;
     }
 
     private String bratInitCommand()
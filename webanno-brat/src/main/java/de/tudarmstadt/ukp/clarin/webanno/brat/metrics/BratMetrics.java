@@ -25,4 +25,6 @@ public interface BratMetrics
     }
 
     void renderComplete(RenderType aType, long aTime, String aFull, String aDiff);
+
+    void renderCacheAccess(boolean aHit);
 }
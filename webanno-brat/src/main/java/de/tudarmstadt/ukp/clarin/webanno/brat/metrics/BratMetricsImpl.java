@@ -18,6 +18,9 @@
 package de.tudarmstadt.ukp.clarin.webanno.brat.metrics;
 
 import static org.springframework.jmx.support.MetricType.COUNTER;
+import static org.springframework.jmx.support.MetricType.GAUGE;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedOperation;
@@ -46,6 +49,9 @@ public class BratMetricsImpl
     private long maxRenderTime = 0;
     private long lastRenderTime = 0;
 
+    private final AtomicLong renderCacheHitCount = new AtomicLong();
+    private final AtomicLong renderCacheMissCount = new AtomicLong();
+
     @ManagedMetric(metricType = COUNTER)
     public long getFullRenderCount()
     {
@@ -112,6 +118,26 @@ public class BratMetricsImpl
         return sentRenderedSize;
     }
 
+    @ManagedMetric(metricType = COUNTER)
+    public long getRenderCacheHitCount()
+    {
+        return renderCacheHitCount.get();
+    }
+
+    @ManagedMetric(metricType = COUNTER)
+    public long getRenderCacheMissCount()
+    {
+        return renderCacheMissCount.get();
+    }
+
+    @ManagedMetric(metricType = GAUGE, unit = "percent")
+    public double getRenderCacheHitRate()
+    {
+        long hits = renderCacheHitCount.get();
+        long total = hits + renderCacheMissCount.get();
+        return total == 0 ? 0.0 : (hits * 100.0) / total;
+    }
+
     @ManagedOperation
     public void reset()
     {
@@ -125,6 +151,8 @@ public class BratMetricsImpl
         renderTime = 0;
         maxRenderTime = 0;
         lastRenderTime = 0;
+        renderCacheHitCount.set(0);
+        renderCacheMissCount.set(0);
     }
 
     @Override
@@ -156,4 +184,15 @@ public class BratMetricsImpl
         maxRenderTime = Math.max(maxRenderTime, aTime);
         lastRenderTime = aTime;
     }
+
+    @Override
+    public void renderCacheAccess(boolean aHit)
+    {
+        if (aHit) {
+            renderCacheHitCount.incrementAndGet();
+        }
+        else {
+            renderCacheMissCount.incrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.brat.render;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Generates JSON patches (RFC 6902) between consecutive renderings of the brat view.
+ * <p>
+ * The entities, relations and comments produced from the {@code VSpan}, {@code VArc} and
+ * {@code VComment} objects are tracked by the VID they were rendered for. Added, removed, moved
+ * and changed objects are turned directly into patch operations. All other members of the
+ * response (text, offsets, markers, etc.) are compared as a whole and replaced if they differ.
+ * This avoids running a generic tree diff over the entire response.
+ * <p>
+ * The last rendered state is only held in memory. Callers should keep instances of this class in
+ * transient fields so the state does not end up in the page store - if it is lost, no patch can
+ * be generated and a full rendering is required.
+ */
+public class BratDifferentialRenderer
+{
+    /**
+     * Members which are tracked per object. The value is the number of leading array elements of
+     * each object which identify it - the VID and for comments also the comment type.
+     */
+    private static final Map<String, Integer> KEYED_MEMBERS = new HashMap<>();
+
+    static {
+        KEYED_MEMBERS.put("entities", 1);
+        KEYED_MEMBERS.put("relations", 1);
+        KEYED_MEMBERS.put("comments", 2);
+    }
+
+    /**
+     * If more operations than this would be needed to patch a member, then the member is
+     * replaced as a whole.
+     */
+    private static final int MIN_OPS_BEFORE_REPLACE = 10;
+
+    private final JsonNodeFactory nodeFactory = JsonNodeFactory.instance;
+
+    private JsonNode lastRendered;
+
+    /**
+     * Records the given response as the state which is present on the client side.
+     *
+     * @param aRendered
+     *            the response sent to the client.
+     */
+    public void setLastRendered(JsonNode aRendered)
+    {
+        lastRendered = aRendered;
+    }
+
+    /**
+     * Generates a patch which turns the last rendered response into the given response.
+     *
+     * @param aCurrent
+     *            the new response.
+     * @return the patch operations which may be empty if nothing changed or {@code null} if no
+     *         patch can be generated, e.g. because nothing has been rendered yet.
+     */
+    public ArrayNode diff(JsonNode aCurrent)
+    {
+        if (!(lastRendered instanceof ObjectNode) || !(aCurrent instanceof ObjectNode)) {
+            return null;
+        }
+
+        ArrayNode patch = nodeFactory.arrayNode();
+
+        Set<String> members = new LinkedHashSet<>();
+        lastRendered.fieldNames().forEachRemaining(members::add);
+        aCurrent.fieldNames().forEachRemaining(members::add);
+
+        for (String member : members) {
+            JsonNode previous = lastRendered.get(member);
+            JsonNode current = aCurrent.get(member);
+            String path = "/" + escape(member);
+
+            if (current == null) {
+                patch.add(op("remove", path));
+            }
+            else if (previous == null) {
+                patch.add(op("add", path).set("value", current));
+            }
+            else if (KEYED_MEMBERS.containsKey(member)) {
+                diffKeyed(patch, path, previous, current, KEYED_MEMBERS.get(member));
+            }
+            else if (!previous.equals(current)) {
+                patch.add(op("replace", path).set("value", current));
+            }
+        }
+
+        return patch;
+    }
+
+    private void diffKeyed(ArrayNode aPatch, String aPath, JsonNode aPrevious, JsonNode aCurrent,
+            int aKeyLength)
+    {
+        List<String> previousKeys = keys(aPrevious, aKeyLength);
+        List<String> currentKeys = keys(aCurrent, aKeyLength);
+
+        // If we cannot identify the objects, we can only compare the member as a whole
+        if (previousKeys == null || currentKeys == null) {
+            if (!aPrevious.equals(aCurrent)) {
+                aPatch.add(op("replace", aPath).set("value", aCurrent));
+            }
+            return;
+        }
+
+        int maxOps = Math.max(MIN_OPS_BEFORE_REPLACE, aCurrent.size() / 2);
+        ArrayNode ops = nodeFactory.arrayNode();
+
+        // The working copy mirrors the state of the array on the client while the operations are
+        // applied one after the other
+        List<String> workingKeys = new ArrayList<>(previousKeys);
+        List<JsonNode> working = new ArrayList<>();
+        aPrevious.forEach(working::add);
+
+        Map<String, Integer> currentIndex = new HashMap<>();
+        for (int i = 0; i < currentKeys.size(); i++) {
+            currentIndex.put(currentKeys.get(i), i);
+        }
+
+        // Remove the objects which are gone - back to front so the indexes remain valid
+        for (int i = workingKeys.size() - 1; i >= 0; i--) {
+            if (!currentIndex.containsKey(workingKeys.get(i))) {
+                ops.add(op("remove", aPath + "/" + i));
+                workingKeys.remove(i);
+                working.remove(i);
+            }
+        }
+
+        // Now the working copy only contains objects which are also in the new state. Walk the
+        // new state and add, move or replace objects until both are the same.
+        for (int i = 0; i < currentKeys.size(); i++) {
+            if (ops.size() > maxOps) {
+                aPatch.add(op("replace", aPath).set("value", aCurrent));
+                return;
+            }
+
+            String key = currentKeys.get(i);
+            JsonNode value = aCurrent.get(i);
+
+            if (i >= workingKeys.size() || !key.equals(workingKeys.get(i))) {
+                // The objects before i are already in place, so if the object exists, it is
+                // further back
+                int j = workingKeys.indexOf(key);
+                if (j == -1) {
+                    ops.add(op("add", aPath + "/" + i).set("value", value));
+                    workingKeys.add(i, key);
+                    working.add(i, value);
+                    continue;
+                }
+
+                if (j == i + 1) {
+                    // The object at i has moved further back. Move it to its new position
+                    // instead of pulling all the following objects forward one by one.
+                    int target = Math.min(currentIndex.get(workingKeys.get(i)),
+                            workingKeys.size() - 1);
+                    ops.add(op("move", aPath + "/" + target).put("from", aPath + "/" + i));
+                    workingKeys.add(target, workingKeys.remove(i));
+                    working.add(target, working.remove(i));
+                }
+                else {
+                    ops.add(op("move", aPath + "/" + i).put("from", aPath + "/" + j));
+                    workingKeys.add(i, workingKeys.remove(j));
+                    working.add(i, working.remove(j));
+                }
+            }
+
+            if (!Objects.equals(working.get(i), value)) {
+                ops.add(op("replace", aPath + "/" + i).set("value", value));
+                working.set(i, value);
+            }
+        }
+
+        if (ops.size() > maxOps) {
+            aPatch.add(op("replace", aPath).set("value", aCurrent));
+        }
+        else {
+            aPatch.addAll(ops);
+        }
+    }
+
+    /**
+     * @return the keys of the objects in the given array or {@code null} if the objects cannot be
+     *         identified unambiguously.
+     */
+    private static List<String> keys(JsonNode aArray, int aKeyLength)
+    {
+        if (!aArray.isArray()) {
+            return null;
+        }
+
+        List<String> keys = new ArrayList<>(aArray.size());
+        Set<String> seen = new HashSet<>();
+        for (Iterator<JsonNode> i = aArray.elements(); i.hasNext();) {
+            JsonNode element = i.next();
+            if (!element.isArray() || element.size() < aKeyLength) {
+                return null;
+            }
+
+            StringBuilder key = new StringBuilder();
+            for (int k = 0; k < aKeyLength; k++) {
+                key.append(element.get(k).toString()).append('\u0000');
+            }
+
+            String k = key.toString();
+            if (!seen.add(k)) {
+                return null;
+            }
+            keys.add(k);
+        }
+
+        return keys;
+    }
+
+    private ObjectNode op(String aOp, String aPath)
+    {
+        ObjectNode op = nodeFactory.objectNode();
+        op.put("op", aOp);
+        op.put("path", aPath);
+        return op;
+    }
+
+    private static String escape(String aName)
+    {
+        return aName.replace("~", "~0").replace("/", "~1");
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.brat.render;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.AnnotationEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotationPreference;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VDocument;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+
+/**
+ * Caches the rendering of the brat view for a window of a document. When nothing that affects
+ * the rendering has changed since the last request, e.g. when only a dialog has been opened, the
+ * pre-rendering and the brat conversion can be skipped.
+ * <p>
+ * The cache key includes the time at which the CAS was last written. The CAS must thus be
+ * written before it is rendered, which is what the annotation pages do after every action.
+ * Additionally, all renderings of a document are dropped as soon as an annotation in it is
+ * changed, so a rendering cannot be served in case the timestamp does not advance.
+ */
+@Component
+public class BratRenderCache
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final DocumentService documentService;
+    private final Cache<List<Object>, CachedRendering> cache;
+
+    @Autowired
+    public BratRenderCache(DocumentService aDocumentService)
+    {
+        documentService = aDocumentService;
+        cache = Caffeine.newBuilder().expireAfterAccess(5, MINUTES).maximumSize(500).build();
+    }
+
+    /**
+     * Builds the cache key for rendering the current window in the given state.
+     *
+     * @param aState
+     *            the annotator state.
+     * @param aHighlightEnabled
+     *            whether the selected annotation is highlighted.
+     * @return the key or nothing if the rendering cannot be cached, e.g. because the CAS has not
+     *         been written yet.
+     */
+    public Optional<List<Object>> createKey(AnnotatorState aState, boolean aHighlightEnabled)
+    {
+        if (aState.getDocument() == null || aState.getUser() == null) {
+            return Optional.empty();
+        }
+
+        Optional<Long> casTimestamp;
+        try {
+            casTimestamp = documentService.getAnnotationCasTimestamp(aState.getDocument(),
+                    aState.getUser().getUsername());
+        }
+        catch (IOException e) {
+            log.warn("Unable to obtain CAS timestamp - not caching rendering", e);
+            return Optional.empty();
+        }
+
+        if (!casTimestamp.isPresent()) {
+            return Optional.empty();
+        }
+
+        Object selection = aHighlightEnabled && aState.getSelection().getAnnotation().isSet()
+                ? aState.getSelection().getAnnotation().toString()
+                : null;
+
+        return Optional.of(asList(aState.getProject().getId(), aState.getDocument().getId(),
+                aState.getUser().getUsername(), aState.getMode(), casTimestamp.get(),
+                aState.getWindowBeginOffset(), aState.getWindowEndOffset(),
+                aState.getFirstVisibleUnitIndex(), aState.getScriptDirection(), selection,
+                preferencesFingerprint(aState.getPreferences()),
+                layersFingerprint(aState.getAnnotationLayers()),
+                layersFingerprint(aState.getAllAnnotationLayers())));
+    }
+
+    public Optional<CachedRendering> get(List<Object> aKey)
+    {
+        return Optional.ofNullable(cache.getIfPresent(aKey));
+    }
+
+    public void put(List<Object> aKey, VDocument aVDocument, JsonNode aResponse)
+    {
+        cache.put(aKey, new CachedRendering(aVDocument, aResponse));
+    }
+
+    @EventListener
+    public void onLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
+    {
+        // Label features, coloring rules and similar settings are not part of the key
+        cache.asMap().keySet()
+                .removeIf(key -> Objects.equals(key.get(0), aEvent.getProject().getId()));
+    }
+
+    @EventListener
+    public void onAnnotationEvent(AnnotationEvent aEvent)
+    {
+        // The renderings of other users are dropped as well because e.g. the curation view
+        // includes the annotations of the annotators. Bulk events may not specify a document.
+        if (aEvent.getDocument() != null) {
+            cache.asMap().keySet().removeIf(
+                    key -> Objects.equals(key.get(1), aEvent.getDocument().getId()));
+        }
+        else if (aEvent.getProject() != null) {
+            cache.asMap().keySet()
+                    .removeIf(key -> Objects.equals(key.get(0), aEvent.getProject().getId()));
+        }
+    }
+
+    private static List<Object> preferencesFingerprint(AnnotationPreference aPreferences)
+    {
+        // Only the settings which affect the rendered document data - the window size is already
+        // reflected in the window offsets
+        return asList(new HashMap<>(aPreferences.getColorPerLayer()),
+                aPreferences.getReadonlyLayerColoringBehaviour(), aPreferences.getFontZoom());
+    }
+
+    private static List<String> layersFingerprint(List<AnnotationLayer> aLayers)
+    {
+        return aLayers.stream()
+                .map(layer -> layer.getId() + ":" + layer.isEnabled() + ":" + layer.isReadonly())
+                .collect(toList());
+    }
+
+    public static class CachedRendering
+    {
+        private final VDocument vdocument;
+        private final JsonNode response;
+
+        public CachedRendering(VDocument aVDocument, JsonNode aResponse)
+        {
+            vdocument = aVDocument;
+            response = aResponse;
+        }
+
+        public VDocument getVDocument()
+        {
+            return vdocument;
+        }
+
+        public JsonNode getResponse()
+        {
+            return response;
+        }
+    }
+}
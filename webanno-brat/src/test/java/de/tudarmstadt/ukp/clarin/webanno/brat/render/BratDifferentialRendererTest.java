@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.brat.render;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.flipkart.zjsonpatch.JsonPatch;
+
+public class BratDifferentialRendererTest
+{
+    private ObjectMapper mapper;
+    private JsonNode base;
+
+    @Before
+    public void setup() throws Exception
+    {
+        mapper = new ObjectMapper();
+        base = read("brat_normal.json");
+    }
+
+    @Test
+    public void thatNoDiffIsPossibleWithoutPreviousRendering() throws Exception
+    {
+        BratDifferentialRenderer sut = new BratDifferentialRenderer();
+
+        assertThat(sut.diff(base)).isNull();
+    }
+
+    @Test
+    public void thatUnchangedDocumentYieldsEmptyPatch() throws Exception
+    {
+        BratDifferentialRenderer sut = new BratDifferentialRenderer();
+        sut.setLastRendered(base);
+
+        assertThat(sut.diff(base.deepCopy())).isEmpty();
+    }
+
+    @Test
+    public void thatAddedEntityIsPatched() throws Exception
+    {
+        assertPatchApplies(read("brat_added_entity_near_middle.json"));
+    }
+
+    @Test
+    public void thatRemovedEntityIsPatched() throws Exception
+    {
+        assertPatchApplies(read("brat_removed_entity_in_middle.json"));
+        assertPatchApplies(read("brat_removed_entity_near_end.json"));
+    }
+
+    @Test
+    public void thatMovedAndChangedEntitiesArePatched() throws Exception
+    {
+        ObjectNode current = (ObjectNode) base.deepCopy();
+        ArrayNode entities = (ArrayNode) current.get("entities");
+        JsonNode first = entities.remove(0);
+        entities.add(first);
+        ((ArrayNode) entities.get(0)).set(3, mapper.getNodeFactory().textNode("CHANGED"));
+
+        ArrayNode patch = assertPatchApplies(current);
+
+        assertThat(patch).hasSize(2);
+    }
+
+    @Test
+    public void thatOtherMembersAreReplacedAsWhole() throws Exception
+    {
+        ObjectNode current = (ObjectNode) base.deepCopy();
+        current.put("text", "Some other text");
+
+        ArrayNode patch = assertPatchApplies(current);
+
+        assertThat(patch).hasSize(1);
+        assertThat(patch.get(0).get("op").asText()).isEqualTo("replace");
+        assertThat(patch.get(0).get("path").asText()).isEqualTo("/text");
+    }
+
+    private ArrayNode assertPatchApplies(JsonNode aCurrent)
+    {
+        BratDifferentialRenderer sut = new BratDifferentialRenderer();
+        sut.setLastRendered(base);
+
+        ArrayNode patch = sut.diff(aCurrent);
+
+        assertThat(JsonPatch.apply(patch, base)).isEqualTo(aCurrent);
+
+        return patch;
+    }
+
+    private JsonNode read(String aFile) throws Exception
+    {
+        return mapper.readTree(new File("src/test/resources/" + aFile));
+    }
+}
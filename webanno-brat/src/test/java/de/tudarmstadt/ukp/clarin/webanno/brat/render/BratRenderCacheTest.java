@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.brat.render;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.event.BulkAnnotationEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorStateImpl;
+import de.tudarmstadt.ukp.clarin.webanno.api.annotation.rendering.model.VDocument;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.Mode;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
+
+public class BratRenderCacheTest
+{
+    private @Mock DocumentService documentService;
+
+    private BratRenderCache sut;
+    private Project project;
+    private SourceDocument document1;
+    private SourceDocument document2;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        document1 = new SourceDocument();
+        document1.setId(1l);
+        document1.setName("doc1");
+        document1.setProject(project);
+
+        document2 = new SourceDocument();
+        document2.setId(2l);
+        document2.setName("doc2");
+        document2.setProject(project);
+
+        when(documentService.getAnnotationCasTimestamp(document1, "user"))
+                .thenReturn(Optional.of(1000l));
+        when(documentService.getAnnotationCasTimestamp(document2, "user"))
+                .thenReturn(Optional.of(1000l));
+
+        sut = new BratRenderCache(documentService);
+    }
+
+    @Test
+    public void thatRenderingIsNotCachedWithoutCas() throws Exception
+    {
+        when(documentService.getAnnotationCasTimestamp(document1, "user"))
+                .thenReturn(Optional.empty());
+
+        assertThat(sut.createKey(state(document1), false)).isEmpty();
+    }
+
+    @Test
+    public void thatUnknownRenderingIsMiss() throws Exception
+    {
+        List<Object> key = sut.createKey(state(document1), false).get();
+
+        assertThat(sut.get(key)).isEmpty();
+    }
+
+    @Test
+    public void thatCachedRenderingIsHit() throws Exception
+    {
+        VDocument vdoc = new VDocument();
+        sut.put(sut.createKey(state(document1), false).get(), vdoc,
+                JsonNodeFactory.instance.objectNode());
+
+        // A new state for the same window yields an equal key
+        assertThat(sut.get(sut.createKey(state(document1), false).get()))
+                .hasValueSatisfying(cached -> assertThat(cached.getVDocument()).isSameAs(vdoc));
+    }
+
+    @Test
+    public void thatWrittenCasIsMiss() throws Exception
+    {
+        sut.put(sut.createKey(state(document1), false).get(), new VDocument(),
+                JsonNodeFactory.instance.objectNode());
+
+        when(documentService.getAnnotationCasTimestamp(document1, "user"))
+                .thenReturn(Optional.of(2000l));
+
+        assertThat(sut.get(sut.createKey(state(document1), false).get())).isEmpty();
+    }
+
+    @Test
+    public void thatChangedViewIsMiss() throws Exception
+    {
+        sut.put(sut.createKey(state(document1), false).get(), new VDocument(),
+                JsonNodeFactory.instance.objectNode());
+
+        AnnotatorState state = state(document1);
+        state.toggleScriptDirection();
+
+        assertThat(sut.get(sut.createKey(state, false).get())).isEmpty();
+    }
+
+    @Test
+    public void thatAnnotationEventInvalidatesRenderingsOfDocument() throws Exception
+    {
+        List<Object> key1 = sut.createKey(state(document1), false).get();
+        List<Object> key2 = sut.createKey(state(document2), false).get();
+        sut.put(key1, new VDocument(), JsonNodeFactory.instance.objectNode());
+        sut.put(key2, new VDocument(), JsonNodeFactory.instance.objectNode());
+
+        // The CAS timestamp is deliberately left unchanged here
+        sut.onAnnotationEvent(new BulkAnnotationEvent(this, document1, "other", null));
+
+        assertThat(sut.get(key1)).isEmpty();
+        assertThat(sut.get(key2)).isPresent();
+    }
+
+    @Test
+    public void thatProjectAnnotationEventInvalidatesRenderingsOfProject() throws Exception
+    {
+        List<Object> key1 = sut.createKey(state(document1), false).get();
+        List<Object> key2 = sut.createKey(state(document2), false).get();
+        sut.put(key1, new VDocument(), JsonNodeFactory.instance.objectNode());
+        sut.put(key2, new VDocument(), JsonNodeFactory.instance.objectNode());
+
+        sut.onAnnotationEvent(new BulkAnnotationEvent(this, project, "user", null));
+
+        assertThat(sut.get(key1)).isEmpty();
+        assertThat(sut.get(key2)).isEmpty();
+    }
+
+    @Test
+    public void thatLayerConfigurationChangeInvalidatesRenderings() throws Exception
+    {
+        List<Object> key = sut.createKey(state(document1), false).get();
+        sut.put(key, new VDocument(), JsonNodeFactory.instance.objectNode());
+
+        sut.onLayerConfigurationChanged(new LayerConfigurationChangedEvent(this, project));
+
+        assertThat(sut.get(key)).isEmpty();
+    }
+
+    private AnnotatorState state(SourceDocument aDocument)
+    {
+        AnnotatorState state = new AnnotatorStateImpl(Mode.ANNOTATION);
+        state.setProject(project);
+        state.setDocument(aDocument, asList(document1, document2));
+        state.setUser(new User("user"));
+        return state;
+    }
+}
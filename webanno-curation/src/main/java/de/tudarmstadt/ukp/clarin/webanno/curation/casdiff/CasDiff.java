@@ -30,9 +30,9 @@ import static org.apache.uima.fit.util.CasUtil.selectCovered;
 
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -41,6 +41,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -75,7 +76,12 @@ public class CasDiff
 
     private Map<String, List<CAS>> cases = new LinkedHashMap<>();
 
-    private final Map<Position, ConfigurationSet> configSets = new TreeMap<>();
+    private final ConfigurationSetIndex configSets = new ConfigurationSetIndex();
+
+    // Configurations of the configuration set currently being built indexed by fingerprint. This
+    // is only used while the diff is being built and is not retained by the diff result.
+    private ConfigurationSet indexedSet;
+    private final Map<Integer, List<Configuration>> configurationIndex = new HashMap<>();
 
     private final Map<String, String[]> sortedFeaturesCache = new HashMap<>();
 
@@ -162,6 +168,34 @@ public class CasDiff
     public static CasDiff doDiff(Iterable<? extends DiffAdapter> aAdapters,
             LinkCompareBehavior aLinkCompareBehavior, Map<String, List<CAS>> aCasMap, int aBegin,
             int aEnd)
+    {
+        return doDiff(aAdapters, aLinkCompareBehavior, aCasMap, aBegin, aEnd, 0);
+    }
+
+    /**
+     * Calculate the differences between CASes which are part of a larger collection of CASes. The
+     * CAS at index {@code i} of each list is assigned the CAS ID {@code aCasIdOffset + i}, so the
+     * positions in the diff are the same as if the CASes before the offset had been passed as
+     * {@code null}. This allows calculating the diff over a single document without padding the
+     * lists for all the other documents.
+     * 
+     * @param aAdapters
+     *            a set of diff adapters telling how the diff algorithm should handle different
+     *            features
+     * @param aCasMap
+     *            a set of CASes, each associated with an ID
+     * @param aBegin
+     *            begin of the span for which differences should be calculated or {@code -1}.
+     * @param aEnd
+     *            end of the span for which differences should be calculated or {@code -1}.
+     * @param aCasIdOffset
+     *            the CAS ID of the first CAS in each list.
+     * @return a diff.
+     * @see OffsetCasList
+     */
+    public static CasDiff doDiff(Iterable<? extends DiffAdapter> aAdapters,
+            LinkCompareBehavior aLinkCompareBehavior, Map<String, List<CAS>> aCasMap, int aBegin,
+            int aEnd, int aCasIdOffset)
     {
         if (aCasMap.isEmpty()) {
             return new CasDiff(0, 0, aAdapters, aLinkCompareBehavior);
@@ -179,7 +213,7 @@ public class CasDiff
         CasDiff diff = new CasDiff(aBegin, aEnd, aAdapters, aLinkCompareBehavior);
 
         for (Entry<String, List<CAS>> e : aCasMap.entrySet()) {
-            int casId = 0;
+            int casId = aCasIdOffset;
             for (CAS cas : e.getValue()) {
                 for (DiffAdapter adapter : aAdapters) {
                     // null elements in the list can occur if a user has never worked on a CAS
@@ -189,6 +223,13 @@ public class CasDiff
             }
         }
 
+        // Group the annotations seen in all the CASes by position
+        LOG.debug("Building configuration sets from [" + diff.configSets.getPendingCount()
+                + "] annotations");
+        diff.configSets.build(diff::addConfiguration);
+        diff.indexedSet = null;
+        diff.configurationIndex.clear();
+
         LOG.trace("CASDiff completed in {} ms", System.currentTimeMillis() - startTime);
 
         return diff;
@@ -270,7 +311,8 @@ public class CasDiff
         // Remember that we have already seen this CAS.
         List<CAS> casList = cases.get(aCasGroupId);
         if (casList == null) {
-            casList = new ArrayList<>();
+            // The first CAS added to a group determines the offset of the CAS IDs in the group
+            casList = new OffsetCasList(aCasId);
             cases.put(aCasGroupId, casList);
         }
 
@@ -333,9 +375,6 @@ public class CasDiff
         LOG.debug("CAS group [" + aCasGroupId + "] CAS [" + aCasId + "] contains ["
                 + annotations.size() + "] annotations of type [" + aType + "]");
 
-        int posBefore = configSets.keySet().size();
-        LOG.debug("Positions before: [" + posBefore + "]");
-
         for (AnnotationFS fs : annotations) {
             List<Position> positions = new ArrayList<>();
 
@@ -346,34 +385,33 @@ public class CasDiff
             positions.addAll(
                     getAdapter(aType).generateSubPositions(aCasId, fs, linkCompareBehavior));
 
+            // The FS is merged into the configuration set at each position once all CASes
+            // have been added - cf. ConfigurationSetIndex.build()
             for (Position pos : positions) {
-                ConfigurationSet configSet = configSets.get(pos);
-                if (configSet == null) {
-                    configSet = new ConfigurationSet(pos);
-                    configSets.put(pos, configSet);
-                }
-
-                // REC: appears to be left-over debug code that can be removed...
-                // if (pos.getClass() != configSet.position.getClass()) {
-                // pos.compareTo(configSet.position);
-                // }
-
-                assert pos.getClass() == configSet.position.getClass() : "Position type mismatch ["
-                        + pos.getClass() + "] vs [" + configSet.position.getClass() + "]";
-
-                // Merge FS into current set
-                addConfiguration(configSet, aCasGroupId, fs);
+                configSets.addPending(pos, aCasGroupId, fs);
             }
         }
 
-        LOG.debug("Positions after: [" + configSets.keySet().size() + "] (delta: "
-                + (configSets.keySet().size() - posBefore) + ")");
-
         //
         // // Remember that we have processed the type
         // entryTypes.add(aType);
     }
 
+    /**
+     * @return the configurations of the given set which have the given fingerprint. Only
+     *         configurations with the same fingerprint can be equal.
+     */
+    private List<Configuration> getIndexedConfigurations(ConfigurationSet aSet, int aFingerprint)
+    {
+        // The annotations of a configuration set are collected consecutively, so only the index
+        // of the set currently being built needs to be kept
+        if (indexedSet != aSet) {
+            configurationIndex.clear();
+            indexedSet = aSet;
+        }
+        return configurationIndex.computeIfAbsent(aFingerprint, k -> new ArrayList<>());
+    }
+
     private void addConfiguration(ConfigurationSet aSet, String aCasGroupId, FeatureStructure aFS)
     {
         if (aFS instanceof SofaFS) {
@@ -381,9 +419,11 @@ public class CasDiff
         }
 
         if (aSet.position.getFeature() == null) {
-            // Check if this configuration is already present
+            // Check if this configuration is already present - only configurations with the same
+            // fingerprint can be equal
+            List<Configuration> candidates = getIndexedConfigurations(aSet, fingerprintFS(aFS));
             Configuration configuration = null;
-            for (Configuration cfg : aSet.configurations) {
+            for (Configuration cfg : candidates) {
                 // Handle main positions
                 if (equalsFS(cfg.getRepresentative(cases), aFS)) {
                     configuration = cfg;
@@ -395,6 +435,7 @@ public class CasDiff
             if (configuration == null) {
                 configuration = new Configuration(aSet.position);
                 aSet.configurations.add(configuration);
+                candidates.add(configuration);
             }
 
             configuration.add(aCasGroupId, aFS);
@@ -416,7 +457,9 @@ public class CasDiff
                 DiffAdapter adapter = getAdapter(aFS.getType().getName());
                 LinkFeatureDecl decl = adapter.getLinkFeature(aSet.position.getFeature());
 
-                // Check if this configuration is already present
+                // Check if this configuration is already present - only configurations with the
+                // same link target or role respectively can be equal
+                List<Configuration> candidates;
                 Configuration configuration = null;
                 switch (aSet.position.getLinkCompareBehavior()) {
                 case LINK_TARGET_AS_LABEL: {
@@ -429,7 +472,9 @@ public class CasDiff
                     AnnotationFS target = (AnnotationFS) link.getFeatureValue(
                             link.getType().getFeatureByBaseName(decl.getTargetFeature()));
 
-                    cfgLoop: for (Configuration cfg : aSet.configurations) {
+                    candidates = getIndexedConfigurations(aSet,
+                            target != null ? 31 * target.getBegin() + target.getEnd() : 0);
+                    cfgLoop: for (Configuration cfg : candidates) {
                         FeatureStructure repFS = cfg.getRepresentative(cases);
                         AID repAID = cfg.getRepresentativeAID();
                         FeatureStructure repLink = ((ArrayFS) repFS.getFeatureValue(
@@ -457,7 +502,8 @@ public class CasDiff
                     String role = link.getStringValue(
                             link.getType().getFeatureByBaseName(decl.getRoleFeature()));
 
-                    cfgLoop: for (Configuration cfg : aSet.configurations) {
+                    candidates = getIndexedConfigurations(aSet, role.hashCode());
+                    cfgLoop: for (Configuration cfg : candidates) {
                         FeatureStructure repFS = cfg.getRepresentative(cases);
                         AID repAID = cfg.getRepresentativeAID();
                         FeatureStructure repLink = ((ArrayFS) repFS.getFeatureValue(
@@ -483,6 +529,7 @@ public class CasDiff
                 if (configuration == null) {
                     configuration = new Configuration(aSet.position);
                     aSet.configurations.add(configuration);
+                    candidates.add(configuration);
                 }
 
                 configuration.add(aCasGroupId, aFS, aSet.position.getFeature(), i);
@@ -565,7 +612,65 @@ public class CasDiff
 
     public Collection<Position> getPositions()
     {
-        return configSets.keySet();
+        return configSets.getPositions();
+    }
+
+    /**
+     * Derives the diff over a subset of the CAS groups from this diff without inspecting the CASes
+     * again. The result is equivalent to calling {@link #doDiff} only with the CASes of the given
+     * groups. This allows e.g. calculating the diffs for all pairs of annotators from a single
+     * diff over all annotators.
+     * 
+     * @param aCasGroupIds
+     *            the IDs of the CAS groups to retain.
+     * @return the diff over the given CAS groups.
+     */
+    public CasDiff project(Collection<String> aCasGroupIds)
+    {
+        CasDiff projection = new CasDiff(begin, end, typeAdapters.values(), linkCompareBehavior);
+        projection.recurseIntoLinkFeatures = recurseIntoLinkFeatures;
+
+        for (String casGroupId : aCasGroupIds) {
+            List<CAS> casList = cases.get(casGroupId);
+            if (casList != null) {
+                projection.cases.put(casGroupId, casList);
+            }
+        }
+
+        for (ConfigurationSet set : configSets.getConfigurationSets()) {
+            ConfigurationSet projectedSet = new ConfigurationSet(set.position);
+            for (String casGroupId : set.casGroupIds) {
+                if (projection.cases.containsKey(casGroupId)) {
+                    projectedSet.casGroupIds.add(casGroupId);
+                }
+            }
+
+            // If none of the retained CAS groups has seen this position, then a diff over only
+            // these groups would not contain it either.
+            if (projectedSet.casGroupIds.isEmpty()) {
+                continue;
+            }
+
+            for (Configuration cfg : set.configurations) {
+                Configuration projectedCfg = new Configuration(cfg.position);
+                for (Entry<String, AID> e : cfg.fsAddresses.entrySet()) {
+                    if (projection.cases.containsKey(e.getKey())) {
+                        projectedCfg.fsAddresses.put(e.getKey(), e.getValue());
+                        if (cfg.stackedCasGroupIds.contains(e.getKey())) {
+                            projectedCfg.stackedCasGroupIds.add(e.getKey());
+                        }
+                    }
+                }
+
+                if (!projectedCfg.fsAddresses.isEmpty()) {
+                    projectedSet.configurations.add(projectedCfg);
+                }
+            }
+
+            projection.configSets.append(projectedSet);
+        }
+
+        return projection;
     }
 
     /**
@@ -617,19 +722,6 @@ public class CasDiff
 
         assert type1.getNumberOfFeatures() == type2.getNumberOfFeatures();
 
-        // Sort features by name to be independent over implementation details that may change the
-        // order of the features as returned from Type.getFeatures().
-        String[] cachedSortedFeatures = sortedFeaturesCache.get(type1.getName());
-        if (cachedSortedFeatures == null) {
-            cachedSortedFeatures = new String[type1.getNumberOfFeatures()];
-            int i = 0;
-            for (Feature f : aFS1.getType().getFeatures()) {
-                cachedSortedFeatures[i] = f.getShortName();
-                i++;
-            }
-            sortedFeaturesCache.put(type1.getName(), cachedSortedFeatures);
-        }
-
         DiffAdapter adapter = typeAdapters.get(type1.getName());
 
         if (adapter == null) {
@@ -637,19 +729,7 @@ public class CasDiff
             return true;
         }
 
-        // Only consider label features. In particular these must not include position features
-        // such as begin, end, etc.
-        List<String> sortedFeatures = new ArrayList<>(asList(cachedSortedFeatures));
-        Set<String> labelFeatures = adapter.getLabelFeatures();
-        sortedFeatures.removeIf(f -> !labelFeatures.contains(f));
-
-        if (!recurseIntoLinkFeatures) {
-            // #1795 Chili REC: We can/should change CasDiff2 such that it does not recurse into
-            // link features (or rather into any features that are covered by their own
-            // sub-positions). So when when comparing two spans that differ only in their slots
-            // (sub-positions) the main position could still exhibit agreement.
-            sortedFeatures.removeIf(f -> adapter.getLinkFeature(f) != null);
-        }
+        String[] sortedFeatures = getSortedFeatures(type1, adapter);
 
         nextFeature: for (String feature : sortedFeatures) {
             Feature f1 = type1.getFeatureByBaseName(feature);
@@ -782,6 +862,109 @@ public class CasDiff
         return true;
     }
 
+    /**
+     * Get the features which are considered when comparing feature structures of the given type.
+     */
+    private String[] getSortedFeatures(Type aType, DiffAdapter aAdapter)
+    {
+        String[] cachedSortedFeatures = sortedFeaturesCache.get(aType.getName());
+        if (cachedSortedFeatures != null) {
+            return cachedSortedFeatures;
+        }
+
+        // Sort features by name to be independent over implementation details that may change the
+        // order of the features as returned from Type.getFeatures().
+        List<String> sortedFeatures = new ArrayList<>();
+        for (Feature f : aType.getFeatures()) {
+            sortedFeatures.add(f.getShortName());
+        }
+
+        // Only consider label features. In particular these must not include position features
+        // such as begin, end, etc.
+        Set<String> labelFeatures = aAdapter.getLabelFeatures();
+        sortedFeatures.removeIf(f -> !labelFeatures.contains(f));
+
+        if (!recurseIntoLinkFeatures) {
+            // #1795 Chili REC: We can/should change CasDiff2 such that it does not recurse into
+            // link features (or rather into any features that are covered by their own
+            // sub-positions). So when when comparing two spans that differ only in their slots
+            // (sub-positions) the main position could still exhibit agreement.
+            sortedFeatures.removeIf(f -> aAdapter.getLinkFeature(f) != null);
+        }
+
+        cachedSortedFeatures = sortedFeatures.toArray(new String[sortedFeatures.size()]);
+        sortedFeaturesCache.put(aType.getName(), cachedSortedFeatures);
+        return cachedSortedFeatures;
+    }
+
+    /**
+     * Calculate a fingerprint over the features values of the given feature structure. Feature
+     * structures which are equal according to {@link #equalsFS} always have the same fingerprint,
+     * so only configurations with a matching fingerprint need to be compared in detail. Unset
+     * features and default values contribute the same to the fingerprint because
+     * {@link #equalsFS} does not distinguish between them either.
+     */
+    private int fingerprintFS(FeatureStructure aFS)
+    {
+        Type type = aFS.getType();
+
+        DiffAdapter adapter = typeAdapters.get(type.getName());
+
+        // Without an adapter, all feature structures of a type are considered equal
+        if (adapter == null) {
+            return 0;
+        }
+
+        int fingerprint = type.getName().hashCode();
+        for (String feature : getSortedFeatures(type, adapter)) {
+            Feature f = type.getFeatureByBaseName(feature);
+
+            int value = 0;
+            if (f != null) {
+                switch (f.getRange().getName()) {
+                case CAS.TYPE_NAME_BOOLEAN:
+                    value = aFS.getBooleanValue(f) ? 1 : 0;
+                    break;
+                case CAS.TYPE_NAME_BYTE:
+                    value = aFS.getByteValue(f);
+                    break;
+                case CAS.TYPE_NAME_DOUBLE: {
+                    // 0.0 and -0.0 are equal but have different hash codes
+                    double d = aFS.getDoubleValue(f);
+                    value = d == 0.0d ? 0 : Double.hashCode(d);
+                    break;
+                }
+                case CAS.TYPE_NAME_FLOAT: {
+                    float fl = aFS.getFloatValue(f);
+                    value = fl == 0.0f ? 0 : Float.hashCode(fl);
+                    break;
+                }
+                case CAS.TYPE_NAME_INTEGER:
+                    value = aFS.getIntValue(f);
+                    break;
+                case CAS.TYPE_NAME_LONG:
+                    value = Long.hashCode(aFS.getLongValue(f));
+                    break;
+                case CAS.TYPE_NAME_SHORT:
+                    value = aFS.getShortValue(f);
+                    break;
+                case CAS.TYPE_NAME_STRING: {
+                    String str = aFS.getStringValue(f);
+                    value = str != null ? str.hashCode() : 0;
+                    break;
+                }
+                default:
+                    // Feature structure values are only compared in detail
+                    break;
+                }
+            }
+
+            fingerprint = 31 * fingerprint + value;
+        }
+
+        return fingerprint;
+    }
+
     private boolean equalsAnnotationFS(AnnotationFS aFS1, AnnotationFS aFS2)
     {
         // Null check
@@ -810,10 +993,10 @@ public class CasDiff
         private final Map<String, AID> fsAddresses = new TreeMap<>();
 
         /**
-         * Flag indicating that there is at least once CAS group containing more than one annotation
-         * at this position - i.e. a stacked annotation.
+         * The CAS groups containing more than one annotation at this position - i.e. a stacked
+         * annotation.
          */
-        private boolean stacked = false;
+        private final Set<String> stackedCasGroupIds = new HashSet<>();
 
         public Set<String> getCasGroupIds()
         {
@@ -832,14 +1015,14 @@ public class CasDiff
 
         public boolean isStacked()
         {
-            return stacked;
+            return !stackedCasGroupIds.isEmpty();
         }
 
         private void add(String aCasGroupId, FeatureStructure aFS)
         {
             AID old = fsAddresses.put(aCasGroupId, new AID(getAddr(aFS)));
             if (old != null) {
-                stacked = true;
+                stackedCasGroupIds.add(aCasGroupId);
             }
         }
 
@@ -847,7 +1030,7 @@ public class CasDiff
         {
             AID old = fsAddresses.put(aCasGroupId, new AID(getAddr(aFS), aFeature, aSlot));
             if (old != null) {
-                stacked = true;
+                stackedCasGroupIds.add(aCasGroupId);
             }
         }
 
@@ -930,6 +1113,60 @@ public class CasDiff
         }
     }
 
+    /**
+     * A list of CASes in which the first CAS is located at a given offset. All the positions
+     * before the offset are {@code null} without taking up any space. Such a list can be used to
+     * look up the CASes of a diff calculated with a CAS ID offset by the CAS IDs of its positions.
+     */
+    public static class OffsetCasList
+        extends AbstractList<CAS>
+    {
+        private final int offset;
+        private final List<CAS> cases;
+
+        public OffsetCasList(int aOffset)
+        {
+            this(aOffset, new ArrayList<>());
+        }
+
+        /**
+         * @param aOffset
+         *            the index of the first CAS.
+         * @param aCases
+         *            the CASes starting at the offset. Changes to this list are reflected in the
+         *            offset list.
+         */
+        public OffsetCasList(int aOffset, List<CAS> aCases)
+        {
+            offset = aOffset;
+            cases = aCases;
+        }
+
+        @Override
+        public CAS get(int aIndex)
+        {
+            Objects.checkIndex(aIndex, size());
+            return aIndex < offset ? null : cases.get(aIndex - offset);
+        }
+
+        @Override
+        public int size()
+        {
+            return offset + cases.size();
+        }
+
+        @Override
+        public void add(int aIndex, CAS aCas)
+        {
+            // CASes can only be appended
+            if (aIndex != size()) {
+                throw new UnsupportedOperationException();
+            }
+            cases.add(aCas);
+            modCount++;
+        }
+    }
+
     /**
      * A description of the differences between CASes.
      */
@@ -938,18 +1175,54 @@ public class CasDiff
     {
         private static final long serialVersionUID = 5208017972858534258L;
 
-        private final Map<Position, ConfigurationSet> data;
+        private final ConfigurationSetIndex data;
         private final Set<String> casGroupIds;
         private final Map<ConfigurationSet, Boolean> completenessCache = new HashMap<>();
         private final boolean cachedHasDifferences;
 
         private DiffResult(CasDiff aDiff)
         {
-            data = Collections.unmodifiableMap(aDiff.configSets);
-            casGroupIds = new LinkedHashSet<>(aDiff.cases.keySet());
+            this(aDiff.configSets, new LinkedHashSet<>(aDiff.cases.keySet()));
+        }
+
+        private DiffResult(ConfigurationSetIndex aData, Set<String> aCasGroupIds)
+        {
+            data = aData;
+            casGroupIds = aCasGroupIds;
             cachedHasDifferences = !getDifferingConfigurationSets().isEmpty();
         }
 
+        /**
+         * Combine the results of diffs over disjoint sets of documents into a single result. This
+         * allows re-using the result for a document as long as the document does not change.
+         * 
+         * @param aResults
+         *            the results to combine. They must have been calculated over the same CAS
+         *            groups and they must be given in the order of the CAS IDs they cover.
+         * @return the combined result.
+         */
+        public static DiffResult merge(List<DiffResult> aResults)
+        {
+            if (aResults.isEmpty()) {
+                throw new IllegalArgumentException("At least one result is required");
+            }
+
+            Set<String> casGroupIds = aResults.get(0).casGroupIds;
+            ConfigurationSetIndex data = new ConfigurationSetIndex();
+            for (DiffResult result : aResults) {
+                if (!casGroupIds.equals(result.casGroupIds)) {
+                    throw new IllegalArgumentException("CAS groups mismatch: " + casGroupIds
+                            + " vs " + result.casGroupIds);
+                }
+
+                for (ConfigurationSet set : result.getConfigurationSets()) {
+                    data.append(set);
+                }
+            }
+
+            return new DiffResult(data, new LinkedHashSet<>(casGroupIds));
+        }
+
         public boolean hasDifferences()
         {
             return cachedHasDifferences;
@@ -957,12 +1230,12 @@ public class CasDiff
 
         public Collection<Position> getPositions()
         {
-            return data.keySet();
+            return data.getPositions();
         }
 
         public Collection<ConfigurationSet> getConfigurationSets()
         {
-            return data.values();
+            return data.getConfigurationSets();
         }
 
         /**
@@ -992,6 +1265,11 @@ public class CasDiff
                         "Configuration set does not belong to this diff or positions mismatch");
             }
 
+            return isAgreementUnchecked(aConfigurationSet);
+        }
+
+        private boolean isAgreementUnchecked(ConfigurationSet aConfigurationSet)
+        {
             // If there is only a single configuration in the set, we call it an agreement
             if (aConfigurationSet.configurations.size() == 1) {
                 return true;
@@ -1025,6 +1303,11 @@ public class CasDiff
                         "Configuration set does not belong to this diff or positions mismatch");
             }
 
+            return isCompleteUnchecked(aConfigurationSet);
+        }
+
+        private boolean isCompleteUnchecked(ConfigurationSet aConfigurationSet)
+        {
             Boolean complete = completenessCache.get(aConfigurationSet);
             if (complete == null) {
                 HashSet<String> unseenGroupCasIDs = new HashSet<>(casGroupIds);
@@ -1041,9 +1324,9 @@ public class CasDiff
         public Map<Position, ConfigurationSet> getDifferingConfigurationSets()
         {
             Map<Position, ConfigurationSet> diffs = new LinkedHashMap<>();
-            for (Entry<Position, ConfigurationSet> e : data.entrySet()) {
-                if (!isAgreement(e.getValue())) {
-                    diffs.put(e.getKey(), e.getValue());
+            for (ConfigurationSet set : data.getConfigurationSets()) {
+                if (!isAgreementUnchecked(set)) {
+                    diffs.put(set.position, set);
                 }
             }
 
@@ -1053,9 +1336,9 @@ public class CasDiff
         public Map<Position, ConfigurationSet> getIncompleteConfigurationSets()
         {
             Map<Position, ConfigurationSet> diffs = new LinkedHashMap<>();
-            for (Entry<Position, ConfigurationSet> e : data.entrySet()) {
-                if (!isComplete(e.getValue())) {
-                    diffs.put(e.getKey(), e.getValue());
+            for (ConfigurationSet set : data.getConfigurationSets()) {
+                if (!isCompleteUnchecked(set)) {
+                    diffs.put(set.position, set);
                 }
             }
 
@@ -1069,14 +1352,7 @@ public class CasDiff
 
         public int size(String aType)
         {
-            int n = 0;
-            for (Position pos : data.keySet()) {
-                if (pos.getType().equals(aType)) {
-                    n++;
-                }
-            }
-
-            return n;
+            return data.size(aType);
         }
 
         public void print(PrintStream aOut)
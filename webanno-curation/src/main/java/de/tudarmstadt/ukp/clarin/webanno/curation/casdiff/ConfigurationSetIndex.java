@@ -0,0 +1,423 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casdiff;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntBinaryOperator;
+
+import org.apache.uima.cas.FeatureStructure;
+
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.ConfigurationSet;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.Position;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.relation.RelationPosition;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.span.SpanPosition;
+
+/**
+ * Index of the configuration sets of a diff by their position. The index is partitioned by type.
+ * Within a partition, the positions are kept in arrays sorted in their natural order together with
+ * their CAS ID and offsets as primitive values. Primary positions are compared by these primitive
+ * values, so only link sub-positions need the full {@link Position#compareTo} comparison.
+ * <p>
+ * The annotations seen while calculating a diff are first collected in bulk using
+ * {@link #addPending}. When the index is {@link #build built}, they are sorted once and annotations
+ * at the same position are grouped into a configuration set.
+ */
+class ConfigurationSetIndex
+    implements Serializable
+{
+    private static final long serialVersionUID = -5606829612693049137L;
+
+    // Per entry: CAS ID, primary position flag and up to four offsets
+    private static final int STRIDE = 6;
+    private static final int CAS_ID = 0;
+    private static final int PRIMARY = 1;
+    private static final int OFFSETS = 2;
+
+    private final Map<String, Partition> partitions = new TreeMap<>();
+    private int size;
+
+    private transient List<Position> positions;
+    private transient List<ConfigurationSet> configurationSets;
+
+    /**
+     * Receives the annotations grouped into a configuration set when the index is built.
+     */
+    interface ConfigurationCollector
+    {
+        void collect(ConfigurationSet aSet, String aCasGroupId, FeatureStructure aFS);
+    }
+
+    /**
+     * Remember an annotation seen at the given position. The annotation becomes part of the index
+     * only when the index is {@link #build built}.
+     */
+    void addPending(Position aPosition, String aCasGroupId, FeatureStructure aFS)
+    {
+        partitions.computeIfAbsent(aPosition.getType(), k -> new Partition())
+                .addPending(aPosition, aCasGroupId, aFS);
+    }
+
+    int getPendingCount()
+    {
+        int n = 0;
+        for (Partition p : partitions.values()) {
+            n += p.pendingSize;
+        }
+        return n;
+    }
+
+    /**
+     * Sort the pending annotations and group them into configuration sets. The annotations at a
+     * particular position are passed to the collector in the order in which they were added.
+     */
+    void build(ConfigurationCollector aCollector)
+    {
+        for (Partition p : partitions.values()) {
+            size += p.build(aCollector);
+        }
+        invalidateViews();
+    }
+
+    /**
+     * Add a configuration set after all the configuration sets of the same type which are already
+     * in the index. The configuration sets of a type must be appended in their natural order.
+     */
+    void append(ConfigurationSet aSet)
+    {
+        partitions.computeIfAbsent(aSet.getPosition().getType(), k -> new Partition())
+                .append(aSet);
+        size++;
+        invalidateViews();
+    }
+
+    ConfigurationSet get(Position aPosition)
+    {
+        Partition p = partitions.get(aPosition.getType());
+        if (p == null) {
+            return null;
+        }
+
+        int i = p.find(aPosition);
+        return i >= 0 ? p.sets[i] : null;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    int size(String aType)
+    {
+        Partition p = partitions.get(aType);
+        return p != null ? p.size : 0;
+    }
+
+    /**
+     * @return all positions in their natural order.
+     */
+    List<Position> getPositions()
+    {
+        if (positions == null) {
+            List<Position> list = new ArrayList<>(size);
+            for (ConfigurationSet set : getConfigurationSets()) {
+                list.add(set.getPosition());
+            }
+            positions = unmodifiableList(list);
+        }
+        return positions;
+    }
+
+    /**
+     * @return all configuration sets in the natural order of their positions.
+     */
+    List<ConfigurationSet> getConfigurationSets()
+    {
+        if (configurationSets == null) {
+            // Positions are ordered by CAS ID first and then by type, so we need to interleave
+            // the partitions.
+            List<ConfigurationSet> list = new ArrayList<>(size);
+            Partition[] parts = partitions.values().toArray(new Partition[partitions.size()]);
+            int[] cursors = new int[parts.length];
+            while (list.size() < size) {
+                int casId = Integer.MAX_VALUE;
+                for (int n = 0; n < parts.length; n++) {
+                    if (cursors[n] < parts[n].size) {
+                        casId = Math.min(casId, parts[n].keys[cursors[n] * STRIDE + CAS_ID]);
+                    }
+                }
+
+                for (int n = 0; n < parts.length; n++) {
+                    while (cursors[n] < parts[n].size
+                            && parts[n].keys[cursors[n] * STRIDE + CAS_ID] == casId) {
+                        list.add(parts[n].sets[cursors[n]]);
+                        cursors[n]++;
+                    }
+                }
+            }
+            configurationSets = unmodifiableList(list);
+        }
+        return configurationSets;
+    }
+
+    private void invalidateViews()
+    {
+        positions = null;
+        configurationSets = null;
+    }
+
+    private static void setKeys(int[] aKeys, int aIndex, Position aPosition)
+    {
+        int o = aIndex * STRIDE;
+        aKeys[o + CAS_ID] = aPosition.getCasId();
+        boolean primary = aPosition.getFeature() == null
+                && aPosition.getLinkCompareBehavior() == null;
+        if (primary && aPosition instanceof SpanPosition) {
+            SpanPosition pos = (SpanPosition) aPosition;
+            aKeys[o + PRIMARY] = 1;
+            aKeys[o + OFFSETS] = pos.getBegin();
+            aKeys[o + OFFSETS + 1] = pos.getEnd();
+            aKeys[o + OFFSETS + 2] = 0;
+            aKeys[o + OFFSETS + 3] = 0;
+        }
+        else if (primary && aPosition instanceof RelationPosition) {
+            RelationPosition pos = (RelationPosition) aPosition;
+            aKeys[o + PRIMARY] = 1;
+            aKeys[o + OFFSETS] = pos.getSourceBegin();
+            aKeys[o + OFFSETS + 1] = pos.getSourceEnd();
+            aKeys[o + OFFSETS + 2] = pos.getTargetBegin();
+            aKeys[o + OFFSETS + 3] = pos.getTargetEnd();
+        }
+        else {
+            aKeys[o + PRIMARY] = 0;
+        }
+    }
+
+    /**
+     * Compares two positions of the same type consistently with {@link Position#compareTo}.
+     */
+    private static int compare(int[] aKeys1, int aIndex1, Position aPos1, int[] aKeys2,
+            int aIndex2, Position aPos2)
+    {
+        int o1 = aIndex1 * STRIDE;
+        int o2 = aIndex2 * STRIDE;
+
+        int cmp = Integer.compare(aKeys1[o1 + CAS_ID], aKeys2[o2 + CAS_ID]);
+        if (cmp != 0) {
+            return cmp;
+        }
+
+        if (aKeys1[o1 + PRIMARY] == 0 || aKeys2[o2 + PRIMARY] == 0) {
+            return aPos1.compareTo(aPos2);
+        }
+
+        // Begin ascending, end descending - same as the positions do
+        for (int n = 0; n < 4; n++) {
+            int v1 = aKeys1[o1 + OFFSETS + n];
+            int v2 = aKeys2[o2 + OFFSETS + n];
+            if (v1 != v2) {
+                return n % 2 == 0 ? Integer.compare(v1, v2) : Integer.compare(v2, v1);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Stable merge sort of the given indexes.
+     */
+    private static void sort(int[] aIdx, int[] aTmp, int aFrom, int aTo, IntBinaryOperator aCmp)
+    {
+        if (aTo - aFrom < 2) {
+            return;
+        }
+
+        int mid = (aFrom + aTo) >>> 1;
+        sort(aIdx, aTmp, aFrom, mid, aCmp);
+        sort(aIdx, aTmp, mid, aTo, aCmp);
+
+        // Already in order - this is the common case since annotations are added in CAS order
+        if (aCmp.applyAsInt(aIdx[mid - 1], aIdx[mid]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(aIdx, aFrom, aTmp, aFrom, aTo - aFrom);
+        int i = aFrom;
+        int j = mid;
+        int k = aFrom;
+        while (i < mid && j < aTo) {
+            aIdx[k++] = aCmp.applyAsInt(aTmp[i], aTmp[j]) <= 0 ? aTmp[i++] : aTmp[j++];
+        }
+        while (i < mid) {
+            aIdx[k++] = aTmp[i++];
+        }
+        while (j < aTo) {
+            aIdx[k++] = aTmp[j++];
+        }
+    }
+
+    private static class Partition
+        implements Serializable
+    {
+        private static final long serialVersionUID = 3979137462541325727L;
+
+        private Position[] positions = new Position[0];
+        private ConfigurationSet[] sets = new ConfigurationSet[0];
+        private int[] keys = new int[0];
+        private int size;
+
+        private transient Position[] pendingPositions;
+        private transient String[] pendingCasGroupIds;
+        private transient FeatureStructure[] pendingFSes;
+        private transient int[] pendingKeys;
+        private transient int pendingSize;
+
+        private void addPending(Position aPosition, String aCasGroupId, FeatureStructure aFS)
+        {
+            if (pendingPositions == null) {
+                pendingPositions = new Position[16];
+                pendingCasGroupIds = new String[16];
+                pendingFSes = new FeatureStructure[16];
+                pendingKeys = new int[16 * STRIDE];
+            }
+            else if (pendingSize == pendingPositions.length) {
+                int capacity = pendingSize * 2;
+                pendingPositions = Arrays.copyOf(pendingPositions, capacity);
+                pendingCasGroupIds = Arrays.copyOf(pendingCasGroupIds, capacity);
+                pendingFSes = Arrays.copyOf(pendingFSes, capacity);
+                pendingKeys = Arrays.copyOf(pendingKeys, capacity * STRIDE);
+            }
+
+            pendingPositions[pendingSize] = aPosition;
+            pendingCasGroupIds[pendingSize] = aCasGroupId;
+            pendingFSes[pendingSize] = aFS;
+            setKeys(pendingKeys, pendingSize, aPosition);
+            pendingSize++;
+        }
+
+        private int build(ConfigurationCollector aCollector)
+        {
+            if (pendingSize == 0) {
+                return 0;
+            }
+
+            if (size > 0) {
+                throw new IllegalStateException("Index has already been built");
+            }
+
+            int[] idx = new int[pendingSize];
+            for (int i = 0; i < pendingSize; i++) {
+                idx[i] = i;
+            }
+            sort(idx, new int[pendingSize], 0, pendingSize, (i, j) -> compare(pendingKeys, i,
+                    pendingPositions[i], pendingKeys, j, pendingPositions[j]));
+
+            // Count the distinct positions to size the arrays exactly
+            int distinct = 1;
+            for (int n = 1; n < pendingSize; n++) {
+                if (compare(pendingKeys, idx[n - 1], pendingPositions[idx[n - 1]], pendingKeys,
+                        idx[n], pendingPositions[idx[n]]) != 0) {
+                    distinct++;
+                }
+            }
+
+            positions = new Position[distinct];
+            sets = new ConfigurationSet[distinct];
+            keys = new int[distinct * STRIDE];
+
+            ConfigurationSet set = null;
+            for (int n = 0; n < pendingSize; n++) {
+                int i = idx[n];
+                if (set == null || compare(pendingKeys, idx[n - 1], pendingPositions[idx[n - 1]],
+                        pendingKeys, i, pendingPositions[i]) != 0) {
+                    set = new ConfigurationSet(pendingPositions[i]);
+                    positions[size] = pendingPositions[i];
+                    sets[size] = set;
+                    System.arraycopy(pendingKeys, i * STRIDE, keys, size * STRIDE, STRIDE);
+                    size++;
+                }
+
+                assert pendingPositions[i].getClass() == set.getPosition()
+                        .getClass() : "Position type mismatch [" + pendingPositions[i].getClass()
+                                + "] vs [" + set.getPosition().getClass() + "]";
+
+                aCollector.collect(set, pendingCasGroupIds[i], pendingFSes[i]);
+            }
+
+            pendingPositions = null;
+            pendingCasGroupIds = null;
+            pendingFSes = null;
+            pendingKeys = null;
+            pendingSize = 0;
+
+            return size;
+        }
+
+        private void append(ConfigurationSet aSet)
+        {
+            if (size == positions.length) {
+                int capacity = Math.max(16, size * 2);
+                positions = Arrays.copyOf(positions, capacity);
+                sets = Arrays.copyOf(sets, capacity);
+                keys = Arrays.copyOf(keys, capacity * STRIDE);
+            }
+
+            positions[size] = aSet.getPosition();
+            sets[size] = aSet;
+            setKeys(keys, size, aSet.getPosition());
+
+            assert size == 0 || compare(keys, size - 1, positions[size - 1], keys, size,
+                    positions[size]) < 0 : "Configuration sets must be appended in order";
+
+            size++;
+        }
+
+        /**
+         * @return the index of the given position or a negative value if it is not in the
+         *         partition.
+         */
+        private int find(Position aPosition)
+        {
+            int[] probe = new int[STRIDE];
+            setKeys(probe, 0, aPosition);
+
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(keys, mid, positions[mid], probe, 0, aPosition);
+                if (cmp < 0) {
+                    low = mid + 1;
+                }
+                else if (cmp > 0) {
+                    high = mid - 1;
+                }
+                else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
+}
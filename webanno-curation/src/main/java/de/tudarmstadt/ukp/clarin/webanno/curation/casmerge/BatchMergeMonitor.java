@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casmerge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.RUNNING;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+
+/**
+ * Progress information of a {@link BatchMergeService#mergeProject batch merge}. The counters are
+ * updated by the merge workers and can be polled from any thread.
+ */
+public class BatchMergeMonitor
+{
+    private final Queue<LogMessage> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger merged = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private volatile BatchMergeTaskState state = NOT_STARTED;
+    private volatile int total = 0;
+    private volatile long startTime = -1;
+    private volatile long endTime = -1;
+
+    void start(int aTotal)
+    {
+        total = aTotal;
+        startTime = System.currentTimeMillis();
+        state = RUNNING;
+    }
+
+    void finish()
+    {
+        endTime = System.currentTimeMillis();
+    }
+
+    void setState(BatchMergeTaskState aState)
+    {
+        state = aState;
+    }
+
+    public BatchMergeTaskState getState()
+    {
+        return state;
+    }
+
+    void incrementMerged()
+    {
+        merged.incrementAndGet();
+    }
+
+    void incrementSkipped()
+    {
+        skipped.incrementAndGet();
+    }
+
+    void incrementFailed()
+    {
+        failed.incrementAndGet();
+    }
+
+    public void addMessage(LogMessage aMessage)
+    {
+        messages.add(aMessage);
+    }
+
+    public Queue<LogMessage> getMessages()
+    {
+        return messages;
+    }
+
+    public int getTotal()
+    {
+        return total;
+    }
+
+    public int getMerged()
+    {
+        return merged.get();
+    }
+
+    public int getSkipped()
+    {
+        return skipped.get();
+    }
+
+    public int getFailed()
+    {
+        return failed.get();
+    }
+
+    public int getProcessed()
+    {
+        return getMerged() + getSkipped() + getFailed();
+    }
+
+    /**
+     * @return the progress in percent.
+     */
+    public int getProgress()
+    {
+        return total == 0 ? 100 : (getProcessed() * 100) / total;
+    }
+
+    public boolean isFinished()
+    {
+        return endTime != -1;
+    }
+
+    public long getEndTime()
+    {
+        return endTime;
+    }
+
+    /**
+     * @return the time since the merge was started, or the total duration once it is finished.
+     */
+    public long getDuration()
+    {
+        if (startTime == -1) {
+            return 0;
+        }
+
+        return (endTime != -1 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /**
+     * @return the number of documents merged per second so far.
+     */
+    public double getThroughput()
+    {
+        long duration = getDuration();
+        return duration == 0 ? 0.0 : (getMerged() * 1000.0) / duration;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casmerge;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+
+public interface BatchMergeService
+{
+    String SERVICE_NAME = "batchMergeService";
+
+    /**
+     * Auto-merges all curatable documents of the given project into their curation CASes. Only
+     * positions on which all annotators who have finished the document agree are merged. The
+     * documents are processed in parallel with a bounded number of workers. The method blocks
+     * until all documents have been processed or the calling thread is interrupted.
+     * <p>
+     * Documents for which curation has been finished are never touched. Documents which already
+     * have a curation CAS are only re-merged if {@code aOverwriteExisting} is set.
+     *
+     * @param aProject
+     *            the project.
+     * @param aMergeIncompleteAnnotations
+     *            whether to merge positions which have not been annotated by all annotators.
+     * @param aOverwriteExisting
+     *            whether to replace existing curation CASes.
+     * @param aMonitor
+     *            receives progress information while the merge is running.
+     * @throws InterruptedException
+     *             if the calling thread is interrupted while waiting for the workers.
+     */
+    void mergeProject(Project aProject, boolean aMergeIncompleteAnnotations,
+            boolean aOverwriteExisting, BatchMergeMonitor aMonitor)
+        throws InterruptedException;
+
+    /**
+     * Runs {@link #mergeProject} in the background. Batch merges are queued and run one at a time.
+     * If a merge of the same project is already queued or running, the handle of that task is
+     * returned instead of starting a new one.
+     *
+     * @param aProject
+     *            the project.
+     * @param aMergeIncompleteAnnotations
+     *            whether to merge positions which have not been annotated by all annotators.
+     * @param aOverwriteExisting
+     *            whether to replace existing curation CASes.
+     * @param aUsername
+     *            the user starting the task.
+     * @return the handle to access the task.
+     */
+    BatchMergeTaskHandle startMergeTask(Project aProject, boolean aMergeIncompleteAnnotations,
+            boolean aOverwriteExisting, String aUsername);
+
+    /**
+     * @return the monitor of the given task or {@code null} if the task does not exist (anymore).
+     */
+    BatchMergeMonitor getTaskMonitor(BatchMergeTaskHandle aHandle);
+
+    boolean cancelTask(BatchMergeTaskHandle aHandle);
+}
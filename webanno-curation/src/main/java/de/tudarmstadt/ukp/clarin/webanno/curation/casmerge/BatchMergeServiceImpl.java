@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casmerge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.NO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.EXCLUSIVE_WRITE_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.doDiffSingle;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.getDiffAdapters;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.LinkCompareBehavior.LINK_ROLE_AS_LABEL;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.COMPLETED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.RUNNING;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.CURATION_FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransition.ANNOTATION_IN_PROGRESS_TO_CURATION_IN_PROGRESS;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.stream.Collectors.toList;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.uima.cas.CAS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.concurrent.DelegatingSecurityContextCallable;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
+
+@Component(BatchMergeService.SERVICE_NAME)
+public class BatchMergeServiceImpl
+    implements BatchMergeService, DisposableBean
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final AnnotationSchemaService schemaService;
+    private final DocumentService documentService;
+    private final CurationDocumentService curationDocumentService;
+    private final CasStorageService casStorageService;
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    private final Map<BatchMergeTaskHandle, TaskInfo> tasks = new ConcurrentHashMap<>();
+    private final ExecutorService taskExecutorService;
+    private final ScheduledExecutorService cleaningScheduler;
+
+    @Autowired
+    public BatchMergeServiceImpl(AnnotationSchemaService aSchemaService,
+            DocumentService aDocumentService, CurationDocumentService aCurationDocumentService,
+            CasStorageService aCasStorageService)
+    {
+        schemaService = aSchemaService;
+        documentService = aDocumentService;
+        curationDocumentService = aCurationDocumentService;
+        casStorageService = aCasStorageService;
+
+        // Leave half of the cores to the interactive users - a batch merge may run for hours
+        threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "batch-merge-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Each task already uses all the workers, so running several tasks at the same time
+        // would not make them finish any sooner
+        taskExecutorService = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "batch-merge-task");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        cleaningScheduler = Executors.newScheduledThreadPool(1);
+        cleaningScheduler.scheduleAtFixedRate(this::cleanUp, 15, 15, MINUTES);
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        taskExecutorService.shutdownNow();
+        cleaningScheduler.shutdownNow();
+        executor.shutdownNow();
+        tasks.clear();
+    }
+
+    @Override
+    public void mergeProject(Project aProject, boolean aMergeIncompleteAnnotations,
+            boolean aOverwriteExisting, BatchMergeMonitor aMonitor)
+        throws InterruptedException
+    {
+        // The layers and diff adapters only depend on the project, so they are set up once and
+        // shared by all workers. Adapters are not modified by the diff.
+        List<AnnotationLayer> layers = schemaService.listAnnotationLayer(aProject).stream()
+                .filter(layer -> layer.isEnabled())
+                .filter(layer -> !Token.class.getName().equals(layer.getName()))
+                .collect(toList());
+        List<DiffAdapter> adapters = getDiffAdapters(schemaService, layers);
+
+        List<SourceDocument> documents = curationDocumentService
+                .listCuratableSourceDocuments(aProject);
+
+        aMonitor.start(documents.size());
+
+        // The workers need the security context of the caller, e.g. to write the curation CAS
+        SecurityContext securityContext = SecurityContextHolder.getContext();
+
+        // Only keep as many documents in flight as there are workers. This bounds the number of
+        // CASes held in memory at any time and makes cancellation cheap.
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> pending = new ArrayList<>();
+        Iterator<SourceDocument> documentIterator = documents.iterator();
+        try {
+            while (documentIterator.hasNext() || !pending.isEmpty()) {
+                while (documentIterator.hasNext() && pending.size() < threads) {
+                    SourceDocument document = documentIterator.next();
+                    Callable<Void> task = () -> {
+                        mergeDocument(document, adapters, aMergeIncompleteAnnotations,
+                                aOverwriteExisting, aMonitor);
+                        return null;
+                    };
+                    pending.add(completionService.submit(
+                            DelegatingSecurityContextCallable.create(task, securityContext)));
+                }
+
+                Future<Void> done = completionService.take();
+                pending.remove(done);
+                try {
+                    done.get();
+                }
+                catch (ExecutionException e) {
+                    // mergeDocument handles its own errors, so this should not happen
+                    log.error("Batch merge worker failed", e.getCause());
+                }
+
+                if (log.isDebugEnabled() && aMonitor.getProcessed() % 100 == 0) {
+                    log.debug("Batch merge of project {}: {}/{} documents ({} docs/s)",
+                            aProject.getName(), aMonitor.getProcessed(), aMonitor.getTotal(),
+                            String.format("%.2f", aMonitor.getThroughput()));
+                }
+            }
+        }
+        finally {
+            pending.forEach(future -> future.cancel(true));
+            aMonitor.finish();
+        }
+
+        aMonitor.setState(COMPLETED);
+
+        log.info("Batch merge of project {} completed: {} merged, {} skipped, {} failed in {}ms "
+                + "({} docs/s)", aProject.getName(), aMonitor.getMerged(), aMonitor.getSkipped(),
+                aMonitor.getFailed(), aMonitor.getDuration(),
+                String.format("%.2f", aMonitor.getThroughput()));
+    }
+
+    @Override
+    public synchronized BatchMergeTaskHandle startMergeTask(Project aProject,
+            boolean aMergeIncompleteAnnotations, boolean aOverwriteExisting, String aUsername)
+    {
+        // A second merge of the same project would only skip the documents merged by the first
+        for (Entry<BatchMergeTaskHandle, TaskInfo> e : tasks.entrySet()) {
+            TaskInfo info = e.getValue();
+            if (info.task.getProject().getId().equals(aProject.getId())
+                    && asList(NOT_STARTED, RUNNING).contains(info.task.getMonitor().getState())
+                    && !info.future.isDone()) {
+                log.debug("Joining running batch merge task for project [{}]",
+                        aProject.getName());
+                return e.getKey();
+            }
+        }
+
+        BatchMergeTaskHandle handle = new BatchMergeTaskHandle();
+        BatchMergeMonitor monitor = new BatchMergeMonitor();
+        BatchMergeTask task = new BatchMergeTask(handle, monitor, this, aProject,
+                aMergeIncompleteAnnotations, aOverwriteExisting, aUsername);
+
+        // The task needs the security context of the caller, e.g. to write the curation CAS
+        tasks.put(handle, new TaskInfo(taskExecutorService.submit(DelegatingSecurityContextRunnable
+                .create(task, SecurityContextHolder.getContext())), task));
+
+        return handle;
+    }
+
+    @Override
+    public BatchMergeMonitor getTaskMonitor(BatchMergeTaskHandle aHandle)
+    {
+        TaskInfo task = tasks.get(aHandle);
+
+        if (task == null) {
+            return null;
+        }
+
+        return task.task.getMonitor();
+    }
+
+    @Override
+    public boolean cancelTask(BatchMergeTaskHandle aHandle)
+    {
+        TaskInfo task = tasks.get(aHandle);
+
+        if (task == null) {
+            return false;
+        }
+
+        task.future.cancel(true);
+
+        // A task which was cancelled before it started never runs and never updates its monitor
+        if (task.task.getMonitor().getState() == NOT_STARTED) {
+            task.task.getMonitor().finish();
+            task.task.getMonitor().setState(CANCELLED);
+        }
+
+        return true;
+    }
+
+    private void cleanUp()
+    {
+        for (Entry<BatchMergeTaskHandle, TaskInfo> e : tasks.entrySet()) {
+            BatchMergeMonitor monitor = e.getValue().task.getMonitor();
+
+            // Do not clean up running tasks or tasks that have not started yet
+            if (asList(NOT_STARTED, RUNNING).contains(monitor.getState())) {
+                continue;
+            }
+
+            // Remove task info from the tasks map one hour after completion/failure/etc.
+            long age = System.currentTimeMillis() - monitor.getEndTime();
+            if (age > Duration.ofHours(1).toMillis()) {
+                log.info("Cleaning up stale batch merge task for project [{}]",
+                        e.getValue().task.getProject().getName());
+                tasks.remove(e.getKey());
+            }
+        }
+    }
+
+    private void mergeDocument(SourceDocument aDocument, List<DiffAdapter> aAdapters,
+            boolean aMergeIncompleteAnnotations, boolean aOverwriteExisting,
+            BatchMergeMonitor aMonitor)
+    {
+        if (CURATION_FINISHED.equals(aDocument.getState())) {
+            aMonitor.incrementSkipped();
+            return;
+        }
+
+        // Sessions are bound to a thread, so each worker needs its own session
+        try (CasStorageSession session = CasStorageSession.openNested()) {
+            // Cheap check to avoid loading the annotator CASes of documents which are skipped
+            // anyway. It is repeated below while holding the lock on the curation CAS.
+            if (!aOverwriteExisting && curationDocumentService.existsCurationCas(aDocument)) {
+                aMonitor.incrementSkipped();
+                return;
+            }
+
+            List<AnnotationDocument> finishedDocuments = documentService
+                    .listAnnotationDocuments(aDocument).stream()
+                    .filter(adoc -> FINISHED.equals(adoc.getState()))
+                    .collect(toList());
+
+            if (finishedDocuments.isEmpty()) {
+                aMonitor.incrementSkipped();
+                return;
+            }
+
+            // Obtain exclusive access to the curation CAS and keep it until the session is closed,
+            // so a curator cannot create the curation CAS between our check and our write. If
+            // there is no curation CAS yet, it is initialized from a copy of some annotation
+            // document. This is an exceptional case where UNMANAGED_ACCESS is the correct choice.
+            AtomicBoolean created = new AtomicBoolean();
+            CAS mergeCas = casStorageService.readOrCreateCas(aDocument, CURATION_USER,
+                    NO_CAS_UPGRADE, () -> {
+                        created.set(true);
+                        return documentService.readAnnotationCas(finishedDocuments.get(0),
+                                UNMANAGED_ACCESS);
+                    }, EXCLUSIVE_WRITE_ACCESS);
+
+            if (!created.get() && !aOverwriteExisting) {
+                aMonitor.incrementSkipped();
+                return;
+            }
+
+            try {
+                Map<String, CAS> casses = new LinkedHashMap<>();
+                for (AnnotationDocument adoc : finishedDocuments) {
+                    casses.put(adoc.getUser(), documentService.readAnnotationCas(aDocument,
+                            adoc.getUser(), AUTO_CAS_UPGRADE, SHARED_READ_ONLY_ACCESS));
+                }
+
+                DiffResult diff = doDiffSingle(aAdapters, LINK_ROLE_AS_LABEL, casses, 0,
+                        mergeCas.getDocumentText().length()).toResult();
+
+                // CasMerge caches adapters per instance and is not thread-safe, so each document
+                // gets its own instance. Per-annotation events would flood the listeners.
+                CasMerge casMerge = new CasMerge(schemaService);
+                casMerge.setSilenceEvents(true);
+                casMerge.setMergeIncompleteAnnotations(aMergeIncompleteAnnotations);
+                casMerge.reMergeCas(diff, aDocument, CURATION_USER, mergeCas, casses);
+
+                curationDocumentService.writeCurationCas(mergeCas, aDocument, true);
+            }
+            catch (Exception e) {
+                // Do not leave the unmerged copy of the annotation document behind - the curation
+                // page would otherwise pick it up as if it were the merge result
+                if (created.get()) {
+                    curationDocumentService.deleteCurationCas(aDocument);
+                }
+                throw e;
+            }
+
+            documentService.transitionSourceDocumentState(aDocument,
+                    ANNOTATION_IN_PROGRESS_TO_CURATION_IN_PROGRESS);
+
+            aMonitor.incrementMerged();
+        }
+        catch (Exception e) {
+            log.error("Unable to merge document {} in project {}", aDocument.getName(),
+                    aDocument.getProject().getName(), e);
+            aMonitor.addMessage(LogMessage.error(this, "Unable to merge document [%s]: %s",
+                    aDocument.getName(), e.getMessage()));
+            aMonitor.incrementFailed();
+        }
+    }
+
+    private static class TaskInfo
+    {
+        private final Future<?> future;
+        private final BatchMergeTask task;
+
+        public TaskInfo(Future<?> aFuture, BatchMergeTask aTask)
+        {
+            future = aFuture;
+            task = aTask;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casmerge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.FAILED;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.Logging;
+
+class BatchMergeTask
+    implements Runnable
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final BatchMergeTaskHandle handle;
+    private final BatchMergeMonitor monitor;
+    private final BatchMergeService batchMergeService;
+    private final Project project;
+    private final boolean mergeIncompleteAnnotations;
+    private final boolean overwriteExisting;
+    private final String username;
+
+    public BatchMergeTask(BatchMergeTaskHandle aHandle, BatchMergeMonitor aMonitor,
+            BatchMergeService aBatchMergeService, Project aProject,
+            boolean aMergeIncompleteAnnotations, boolean aOverwriteExisting, String aUsername)
+    {
+        handle = aHandle;
+        monitor = aMonitor;
+        batchMergeService = aBatchMergeService;
+        project = aProject;
+        mergeIncompleteAnnotations = aMergeIncompleteAnnotations;
+        overwriteExisting = aOverwriteExisting;
+        username = aUsername;
+    }
+
+    @Override
+    public void run()
+    {
+        try {
+            // We are in a new thread. Set up thread-specific MDC
+            Logging.setMDC(project.getId(), username);
+
+            batchMergeService.mergeProject(project, mergeIncompleteAnnotations, overwriteExisting,
+                    monitor);
+        }
+        catch (InterruptedException e) {
+            monitor.setState(CANCELLED);
+        }
+        catch (Throwable e) {
+            monitor.addMessage(LogMessage.error(this, "Unexpected error during batch merge: %s",
+                    ExceptionUtils.getRootCauseMessage(e)));
+            monitor.setState(FAILED);
+            log.error("Unexpected error during batch merge", e);
+        }
+        finally {
+            Logging.clearMDC();
+        }
+    }
+
+    public BatchMergeTaskHandle getHandle()
+    {
+        return handle;
+    }
+
+    public BatchMergeMonitor getMonitor()
+    {
+        return monitor;
+    }
+
+    public Project getProject()
+    {
+        return project;
+    }
+}
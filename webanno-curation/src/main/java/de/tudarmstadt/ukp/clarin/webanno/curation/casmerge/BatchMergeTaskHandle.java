@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casmerge;
+
+import java.io.Serializable;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.RandomUtils;
+
+public class BatchMergeTaskHandle
+    implements Serializable
+{
+    private static final long serialVersionUID = -6320587317624785208L;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private static final long INSTANCE_ID = RandomUtils.nextLong();
+
+    // Handles are kept in the UI state, so they may survive a restart of the application. The
+    // instance ID tells such handles apart from the handles of the current instance.
+    private final long instanceId;
+
+    // This is the id of the task within the instance.
+    private final long runId;
+
+    public BatchMergeTaskHandle()
+    {
+        runId = NEXT_ID.getAndIncrement();
+        instanceId = INSTANCE_ID;
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        if (!(other instanceof BatchMergeTaskHandle)) {
+            return false;
+        }
+        BatchMergeTaskHandle castOther = (BatchMergeTaskHandle) other;
+        return Objects.equals(instanceId, castOther.instanceId)
+                && Objects.equals(runId, castOther.runId);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(instanceId, runId);
+    }
+}
@@ -33,6 +33,7 @@ import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUt
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.selectTokens;
 import static de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil.setFeature;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
@@ -49,6 +50,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -57,6 +59,7 @@ import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Feature;
 import org.apache.uima.cas.FeatureStructure;
 import org.apache.uima.cas.Type;
+import org.apache.uima.cas.TypeSystem;
 import org.apache.uima.cas.impl.CASCompleteSerializer;
 import org.apache.uima.cas.impl.CASImpl;
 import org.apache.uima.cas.text.AnnotationFS;
@@ -229,16 +232,41 @@ public class CasMerge
             layerNames.add(0, Sentence.class.getName());
         }
 
+        // Group the positions by layer in a single pass instead of filtering all positions again
+        // for every layer in every merge stage
+        Map<String, List<SpanPosition>> spanPositionsByLayer = new HashMap<>();
+        Map<String, List<SpanPosition>> slotPositionsByLayer = new HashMap<>();
+        Map<String, List<RelationPosition>> relationPositionsByLayer = new HashMap<>();
+        for (Position pos : aDiff.getPositions()) {
+            if (pos instanceof SpanPosition) {
+                SpanPosition spanPos = (SpanPosition) pos;
+                // Slot features are span sub-positions
+                Map<String, List<SpanPosition>> target = spanPos.getFeature() == null
+                        ? spanPositionsByLayer
+                        : slotPositionsByLayer;
+                target.computeIfAbsent(pos.getType(), k -> new ArrayList<>()).add(spanPos);
+            }
+            else if (pos instanceof RelationPosition) {
+                relationPositionsByLayer.computeIfAbsent(pos.getType(), k -> new ArrayList<>())
+                        .add((RelationPosition) pos);
+            }
+        }
+
+        // The representatives of all positions are resolved against the same CASes
+        Map<String, List<CAS>> casMap = new LinkedHashMap<>();
+        aCases.forEach((k, v) -> casMap.put(k, asList(v)));
+
+        // The target CAS only receives annotations through this merge, so we can track them in
+        // an offset index instead of selecting from the CAS for every conflict check
+        OffsetIndex targetIndex = new OffsetIndex(aTargetCas);
+
         // First we process the SPAN layers since other layers can refer to them (via slot features
         // or as relation layers).
         // We process layer by layer so that we can order the layers (important to process tokens
         // and sentences before the others)
         for (String layerName : layerNames) {
-            List<SpanPosition> positions = aDiff.getPositions().stream()
-                    .filter(pos -> layerName.equals(pos.getType()))
-                    .filter(pos -> pos instanceof SpanPosition).map(pos -> (SpanPosition) pos)
-                    // We don't process slot features here (they are span sub-positions)
-                    .filter(pos -> pos.getFeature() == null).collect(Collectors.toList());
+            List<SpanPosition> positions = spanPositionsByLayer.getOrDefault(layerName,
+                    emptyList());
 
             if (positions.isEmpty()) {
                 continue;
@@ -246,6 +274,8 @@ public class CasMerge
 
             LOG.debug("Processing {} span positions on layer {}", positions.size(), layerName);
 
+            AnnotationLayer layer = type2layer.get(layerName);
+
             // First we merge the spans so that we can attach the relations to something later.
             // Slots are also excluded for the moment
             for (SpanPosition position : positions) {
@@ -257,13 +287,10 @@ public class CasMerge
                 }
 
                 try {
-                    Map<String, List<CAS>> casMap = new LinkedHashMap<>();
-                    aCases.forEach((k, v) -> casMap.put(k, asList(v)));
                     AnnotationFS sourceFS = (AnnotationFS) cfgs.getConfigurations().get(0)
                             .getRepresentative(casMap);
                     CasMergeOperationResult result = mergeSpanAnnotation(aTargetDocument,
-                            aTargetUsername, type2layer.get(position.getType()), aTargetCas,
-                            sourceFS, false);
+                            aTargetUsername, layer, aTargetCas, targetIndex, sourceFS, false);
                     LOG.trace(" `-> merged annotation with agreement");
 
                     switch (result.getState()) {
@@ -284,11 +311,8 @@ public class CasMerge
 
         // After the spans are in place, we can merge the slot features
         for (String layerName : layerNames) {
-            List<SpanPosition> positions = aDiff.getPositions().stream()
-                    .filter(pos -> layerName.equals(pos.getType()))
-                    .filter(pos -> pos instanceof SpanPosition).map(pos -> (SpanPosition) pos)
-                    // We only process slot features here
-                    .filter(pos -> pos.getFeature() != null).collect(Collectors.toList());
+            List<SpanPosition> positions = slotPositionsByLayer.getOrDefault(layerName,
+                    emptyList());
 
             if (positions.isEmpty()) {
                 continue;
@@ -296,6 +320,8 @@ public class CasMerge
 
             LOG.debug("Processing {} slot positions on layer [{}]", positions.size(), layerName);
 
+            AnnotationLayer layer = type2layer.get(layerName);
+
             for (SpanPosition position : positions) {
                 LOG.trace(" |   processing {}", position);
                 ConfigurationSet cfgs = aDiff.getConfigurationSet(position);
@@ -305,14 +331,11 @@ public class CasMerge
                 }
 
                 try {
-                    Map<String, List<CAS>> casMap = new LinkedHashMap<>();
-                    aCases.forEach((k, v) -> casMap.put(k, asList(v)));
                     AnnotationFS sourceFS = (AnnotationFS) cfgs.getConfigurations().get(0)
                             .getRepresentative(casMap);
                     AID sourceFsAid = cfgs.getConfigurations().get(0).getRepresentativeAID();
-                    mergeSlotFeature(aTargetDocument, aTargetUsername,
-                            type2layer.get(position.getType()), aTargetCas, sourceFS,
-                            sourceFsAid.feature, sourceFsAid.index);
+                    mergeSlotFeature(aTargetDocument, aTargetUsername, layer, aTargetCas,
+                            targetIndex, sourceFS, sourceFsAid.feature, sourceFsAid.index);
                     LOG.trace(" `-> merged annotation with agreement");
                 }
                 catch (AnnotationException e) {
@@ -324,10 +347,8 @@ public class CasMerge
 
         // Finally, we merge the relations
         for (String layerName : layerNames) {
-            List<RelationPosition> positions = aDiff.getPositions().stream()
-                    .filter(pos -> layerName.equals(pos.getType()))
-                    .filter(pos -> pos instanceof RelationPosition)
-                    .map(pos -> (RelationPosition) pos).collect(Collectors.toList());
+            List<RelationPosition> positions = relationPositionsByLayer.getOrDefault(layerName,
+                    emptyList());
 
             if (positions.isEmpty()) {
                 continue;
@@ -336,6 +357,8 @@ public class CasMerge
             LOG.debug("Processing {} relation positions on layer [{}]", positions.size(),
                     layerName);
 
+            AnnotationLayer layer = type2layer.get(layerName);
+
             for (RelationPosition position : positions) {
                 LOG.trace(" |   processing {}", position);
                 ConfigurationSet cfgs = aDiff.getConfigurationSet(position);
@@ -345,13 +368,10 @@ public class CasMerge
                 }
 
                 try {
-                    Map<String, List<CAS>> casMap = new LinkedHashMap<>();
-                    aCases.forEach((k, v) -> casMap.put(k, asList(v)));
                     AnnotationFS sourceFS = (AnnotationFS) cfgs.getConfigurations().get(0)
                             .getRepresentative(casMap);
                     CasMergeOperationResult result = mergeRelationAnnotation(aTargetDocument,
-                            aTargetUsername, type2layer.get(position.getType()), aTargetCas,
-                            sourceFS, false);
+                            aTargetUsername, layer, aTargetCas, targetIndex, sourceFS, false);
                     LOG.trace(" `-> merged annotation with agreement");
 
                     switch (result.getState()) {
@@ -370,6 +390,8 @@ public class CasMerge
             }
         }
 
+        // The individual annotation events are silenced during the merge - listeners are informed
+        // once about all the changes
         if (eventPublisher != null) {
             eventPublisher.publishEvent(
                     new BulkAnnotationEvent(this, aTargetDocument, aTargetUsername, null));
@@ -408,23 +430,44 @@ public class CasMerge
         }
     }
 
-    private static boolean existsEquivalentAt(CAS aCas, TypeAdapter aAdapter, AnnotationFS aFs)
+    /**
+     * Selects the annotations of the given type at exactly the given offsets in the target CAS.
+     * If an offset index of the target CAS is available, it is used instead of the CAS indexes.
+     */
+    private static List<AnnotationFS> selectAtTarget(CAS aTargetCas, OffsetIndex aTargetIndex,
+            Type aType, int aBegin, int aEnd)
     {
-        return selectAt(aCas, aFs.getType(), aFs.getBegin(), aFs.getEnd()).stream() //
+        if (aTargetIndex != null) {
+            return aTargetIndex.select(aType, aBegin, aEnd);
+        }
+
+        return selectAt(aTargetCas, aType, aBegin, aEnd);
+    }
+
+    private static boolean existsEquivalentAt(CAS aCas, OffsetIndex aTargetIndex,
+            TypeAdapter aAdapter, AnnotationFS aFs)
+    {
+        return selectAtTarget(aCas, aTargetIndex, aFs.getType(), aFs.getBegin(), aFs.getEnd())
+                .stream() //
                 .filter(cand -> aAdapter.equivalents(aFs, cand,
                         (_fs, _f) -> !shouldIgnoreFeatureOnMerge(_fs, _f))) //
                 .findAny().isPresent();
     }
 
     private static List<AnnotationFS> selectCandidateRelationsAt(CAS aTargetCas,
-            AnnotationFS aSourceFs, AnnotationFS aSourceOriginFs, AnnotationFS aSourceTargetFs)
+            OffsetIndex aTargetIndex, AnnotationFS aSourceFs, AnnotationFS aSourceOriginFs,
+            AnnotationFS aSourceTargetFs)
     {
         Type type = aSourceFs.getType();
         Type targetType = CasUtil.getType(aTargetCas, aSourceFs.getType().getName());
         Feature sourceFeat = type.getFeatureByBaseName(FEAT_REL_SOURCE);
         Feature targetFeat = type.getFeatureByBaseName(FEAT_REL_TARGET);
-        return selectCovered(aTargetCas, targetType, aSourceFs.getBegin(), aSourceFs.getEnd())
-                .stream()
+        // A relation always has the offsets of its target, so a relation with the same endpoints
+        // can only be found at the offsets of the source relation
+        List<AnnotationFS> candidates = aTargetIndex != null
+                ? aTargetIndex.select(targetType, aSourceFs.getBegin(), aSourceFs.getEnd())
+                : selectCovered(aTargetCas, targetType, aSourceFs.getBegin(), aSourceFs.getEnd());
+        return candidates.stream()
                 .filter(fs -> fs.getFeatureValue(sourceFeat).equals(aSourceOriginFs)
                         && fs.getFeatureValue(targetFeat).equals(aSourceTargetFs))
                 .collect(toList());
@@ -465,11 +508,13 @@ public class CasMerge
         }
     }
 
-    private static List<AnnotationFS> getCandidateAnnotations(CAS aTargetCas, TypeAdapter aAdapter,
-            AnnotationFS aSource)
+    private static List<AnnotationFS> getCandidateAnnotations(CAS aTargetCas,
+            OffsetIndex aTargetIndex, TypeAdapter aAdapter, AnnotationFS aSource)
     {
+        // Equivalent annotations always have the same offsets as the source
         Type targetType = CasUtil.getType(aTargetCas, aSource.getType().getName());
-        return selectCovered(aTargetCas, targetType, aSource.getBegin(), aSource.getEnd()).stream()
+        return selectAtTarget(aTargetCas, aTargetIndex, targetType, aSource.getBegin(),
+                aSource.getEnd()).stream()
                 .filter(fs -> aAdapter.equivalents(fs, aSource,
                         (_fs, _f) -> !shouldIgnoreFeatureOnMerge(_fs, _f)))
                 .collect(toList());
@@ -479,21 +524,30 @@ public class CasMerge
             AnnotationLayer aAnnotationLayer, CAS aTargetCas, AnnotationFS aSourceFs,
             boolean aAllowStacking)
         throws AnnotationException
+    {
+        return mergeSpanAnnotation(aDocument, aUsername, aAnnotationLayer, aTargetCas, null,
+                aSourceFs, aAllowStacking);
+    }
+
+    private CasMergeOperationResult mergeSpanAnnotation(SourceDocument aDocument,
+            String aUsername, AnnotationLayer aAnnotationLayer, CAS aTargetCas,
+            OffsetIndex aTargetIndex, AnnotationFS aSourceFs, boolean aAllowStacking)
+        throws AnnotationException
     {
         SpanAdapter adapter = (SpanAdapter) adapterCache.get(aAnnotationLayer);
         if (silenceEvents) {
             adapter.silenceEvents();
         }
 
-        if (existsEquivalentAt(aTargetCas, adapter, aSourceFs)) {
+        if (existsEquivalentAt(aTargetCas, aTargetIndex, adapter, aSourceFs)) {
             throw new AlreadyMergedException(
                     "The annotation already exists in the target document.");
         }
 
         // a) if stacking allowed add this new annotation to the mergeview
         Type targetType = CasUtil.getType(aTargetCas, adapter.getAnnotationTypeName());
-        List<AnnotationFS> existingAnnos = selectAt(aTargetCas, targetType, aSourceFs.getBegin(),
-                aSourceFs.getEnd());
+        List<AnnotationFS> existingAnnos = selectAtTarget(aTargetCas, aTargetIndex, targetType,
+                aSourceFs.getBegin(), aSourceFs.getEnd());
         if (existingAnnos.isEmpty() || aAllowStacking) {
             // Create the annotation via the adapter - this also takes care of attaching to an
             // annotation if necessary
@@ -511,6 +565,11 @@ public class CasMerge
                 adapter.delete(aDocument, aUsername, aTargetCas, new VID(mergedSpan));
                 throw e;
             }
+
+            if (aTargetIndex != null) {
+                aTargetIndex.add(mergedSpan);
+            }
+
             return new CasMergeOperationResult(CasMergeOperationResult.ResultState.CREATED,
                     mergedSpanAddr);
         }
@@ -528,13 +587,22 @@ public class CasMerge
             String aUsername, AnnotationLayer aAnnotationLayer, CAS aTargetCas,
             AnnotationFS aSourceFs, boolean aAllowStacking)
         throws AnnotationException
+    {
+        return mergeRelationAnnotation(aDocument, aUsername, aAnnotationLayer, aTargetCas, null,
+                aSourceFs, aAllowStacking);
+    }
+
+    private CasMergeOperationResult mergeRelationAnnotation(SourceDocument aDocument,
+            String aUsername, AnnotationLayer aAnnotationLayer, CAS aTargetCas,
+            OffsetIndex aTargetIndex, AnnotationFS aSourceFs, boolean aAllowStacking)
+        throws AnnotationException
     {
         RelationAdapter relationAdapter = (RelationAdapter) adapterCache.get(aAnnotationLayer);
         if (silenceEvents) {
             relationAdapter.silenceEvents();
         }
 
-        if (existsEquivalentAt(aTargetCas, relationAdapter, aSourceFs)) {
+        if (existsEquivalentAt(aTargetCas, aTargetIndex, relationAdapter, aSourceFs)) {
             throw new AlreadyMergedException(
                     "The annotation already exists in the target document.");
         }
@@ -546,10 +614,10 @@ public class CasMerge
 
         SpanAdapter spanAdapter = (SpanAdapter) adapterCache.get(aAnnotationLayer.getAttachType());
 
-        List<AnnotationFS> candidateOrigins = getCandidateAnnotations(aTargetCas, spanAdapter,
-                originFsClicked);
-        List<AnnotationFS> candidateTargets = getCandidateAnnotations(aTargetCas, spanAdapter,
-                targetFsClicked);
+        List<AnnotationFS> candidateOrigins = getCandidateAnnotations(aTargetCas, aTargetIndex,
+                spanAdapter, originFsClicked);
+        List<AnnotationFS> candidateTargets = getCandidateAnnotations(aTargetCas, aTargetIndex,
+                spanAdapter, targetFsClicked);
 
         // check if target/source exists in the mergeview
         if (candidateOrigins.isEmpty() || candidateTargets.isEmpty()) {
@@ -582,13 +650,17 @@ public class CasMerge
             }
         }
 
-        List<AnnotationFS> existingAnnos = selectCandidateRelationsAt(aTargetCas, aSourceFs,
-                originFs, targetFs);
+        List<AnnotationFS> existingAnnos = selectCandidateRelationsAt(aTargetCas, aTargetIndex,
+                aSourceFs, originFs, targetFs);
         if (existingAnnos.isEmpty() || aAllowStacking) {
             AnnotationFS mergedRelation = relationAdapter.add(aDocument, aUsername, originFs,
                     targetFs, aTargetCas);
             try {
                 copyFeatures(aDocument, aUsername, relationAdapter, mergedRelation, aSourceFs);
+
+                if (aTargetIndex != null) {
+                    aTargetIndex.add(mergedRelation);
+                }
             }
             catch (AnnotationException e) {
                 // If there was an error while setting the features, then we skip the entire
@@ -610,13 +682,23 @@ public class CasMerge
             AnnotationLayer aAnnotationLayer, CAS aTargetCas, AnnotationFS aSourceFs,
             String aSourceFeature, int aSourceSlotIndex)
         throws AnnotationException
+    {
+        return mergeSlotFeature(aDocument, aUsername, aAnnotationLayer, aTargetCas, null,
+                aSourceFs, aSourceFeature, aSourceSlotIndex);
+    }
+
+    private CasMergeOperationResult mergeSlotFeature(SourceDocument aDocument, String aUsername,
+            AnnotationLayer aAnnotationLayer, CAS aTargetCas, OffsetIndex aTargetIndex,
+            AnnotationFS aSourceFs, String aSourceFeature, int aSourceSlotIndex)
+        throws AnnotationException
     {
         TypeAdapter adapter = adapterCache.get(aAnnotationLayer);
         if (silenceEvents) {
             adapter.silenceEvents();
         }
 
-        List<AnnotationFS> candidateHosts = getCandidateAnnotations(aTargetCas, adapter, aSourceFs);
+        List<AnnotationFS> candidateHosts = getCandidateAnnotations(aTargetCas, aTargetIndex,
+                adapter, aSourceFs);
 
         AnnotationFS targetFs;
         if (candidateHosts.size() == 0) {
@@ -641,7 +723,7 @@ public class CasMerge
                     if (li == liIndex) {
                         slotFeature = feat;
 
-                        List<AnnotationFS> targets = checkAndGetTargets(aTargetCas,
+                        List<AnnotationFS> targets = checkAndGetTargets(aTargetCas, aTargetIndex,
                                 selectAnnotationByAddr(aSourceFs.getCAS(), link.targetAddr));
                         targetFs = targets.get(0);
                         link.targetAddr = getAddr(targetFs);
@@ -668,12 +750,14 @@ public class CasMerge
                 getAddr(mergeFs));
     }
 
-    private static List<AnnotationFS> checkAndGetTargets(CAS aCas, AnnotationFS aOldTarget)
+    private static List<AnnotationFS> checkAndGetTargets(CAS aCas, OffsetIndex aTargetIndex,
+            AnnotationFS aOldTarget)
         throws UnfulfilledPrerequisitesException
     {
+        // Equivalent annotations always have the same offsets as the old target
         Type casType = CasUtil.getType(aCas, aOldTarget.getType().getName());
-        List<AnnotationFS> targets = selectCovered(aCas, casType, aOldTarget.getBegin(),
-                aOldTarget.getEnd())
+        List<AnnotationFS> targets = selectAtTarget(aCas, aTargetIndex, casType,
+                aOldTarget.getBegin(), aOldTarget.getEnd())
                         .stream()
                         .filter(fs -> isEquivalentSpanAnnotation(fs, aOldTarget,
                                 (_fs, _f) -> !shouldIgnoreFeatureOnMerge(_fs, _f)))
@@ -699,4 +783,56 @@ public class CasMerge
                 || aFeature.getName().equals(CAS.FEATURE_FULL_NAME_BEGIN)
                 || aFeature.getName().equals(CAS.FEATURE_FULL_NAME_END);
     }
+
+    /**
+     * Offset-indexed view of the annotations in the target CAS. The annotations of a type are
+     * indexed when the type is first accessed. Annotations created afterwards must be
+     * {@link #add added} explicitly.
+     */
+    private static class OffsetIndex
+    {
+        private final CAS cas;
+        private final Map<String, Map<Long, List<AnnotationFS>>> index = new HashMap<>();
+
+        public OffsetIndex(CAS aCas)
+        {
+            cas = aCas;
+        }
+
+        public List<AnnotationFS> select(Type aType, int aBegin, int aEnd)
+        {
+            List<AnnotationFS> annotations = getTypeIndex(aType).get(key(aBegin, aEnd));
+            return annotations != null ? new ArrayList<>(annotations) : emptyList();
+        }
+
+        public void add(AnnotationFS aFs)
+        {
+            // Only update the types which are already indexed - the others pick the annotation
+            // up from the CAS when they are first accessed
+            TypeSystem ts = cas.getTypeSystem();
+            for (Entry<String, Map<Long, List<AnnotationFS>>> e : index.entrySet()) {
+                if (ts.subsumes(ts.getType(e.getKey()), aFs.getType())) {
+                    e.getValue().computeIfAbsent(key(aFs.getBegin(), aFs.getEnd()),
+                            k -> new ArrayList<>()).add(aFs);
+                }
+            }
+        }
+
+        private Map<Long, List<AnnotationFS>> getTypeIndex(Type aType)
+        {
+            return index.computeIfAbsent(aType.getName(), k -> {
+                Map<Long, List<AnnotationFS>> typeIndex = new HashMap<>();
+                for (AnnotationFS fs : cas.getAnnotationIndex(aType)) {
+                    typeIndex.computeIfAbsent(key(fs.getBegin(), fs.getEnd()),
+                            _k -> new ArrayList<>()).add(fs);
+                }
+                return typeIndex;
+            });
+        }
+
+        private static long key(int aBegin, int aEnd)
+        {
+            return ((long) aBegin << 32) | (aEnd & 0xFFFFFFFFL);
+        }
+    }
 }
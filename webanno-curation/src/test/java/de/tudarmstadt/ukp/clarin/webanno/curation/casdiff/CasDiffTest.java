@@ -32,12 +32,15 @@ import static java.util.Arrays.asList;
 import static org.apache.uima.fit.factory.JCasFactory.createJCas;
 import static org.apache.uima.fit.util.JCasUtil.select;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Type;
@@ -54,8 +57,11 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.ConfigurationSet;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.DiffResult;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.OffsetCasList;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.Position;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.relation.RelationDiffAdapter;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.span.SpanDiffAdapter;
 import de.tudarmstadt.ukp.dkpro.core.api.lexmorph.type.pos.POS;
@@ -299,6 +305,105 @@ public class CasDiffTest
         // assertEquals(0, agreement.getIncompleteSetsByPosition().size());
     }
 
+    @Test
+    public void positionsAreSortedTest() throws Exception
+    {
+        Map<String, List<CAS>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", asList(
+                load("casdiff/relationDistance/user1.conll").get("user1").get(0),
+                load("casdiff/someDifferences/user1.conll").get("user1").get(0)));
+        casByUser.put("user2", asList(
+                load("casdiff/relationDistance/user2.conll").get("user1").get(0),
+                load("casdiff/someDifferences/user2.conll").get("user1").get(0)));
+
+        List<? extends DiffAdapter> diffAdapters = asList(POS_DIFF_ADAPTER,
+                new RelationDiffAdapter(Dependency.class.getName(), "Dependent", "Governor",
+                        "DependencyType"));
+
+        DiffResult result = doDiff(diffAdapters, LINK_TARGET_AS_LABEL, casByUser).toResult();
+
+        List<Position> positions = new ArrayList<>(result.getPositions());
+        assertEquals(result.size(), positions.size());
+        assertEquals(result.size(), result.size(POS.class.getName())
+                + result.size(Dependency.class.getName()));
+        for (int i = 1; i < positions.size(); i++) {
+            assertTrue(positions.get(i - 1).compareTo(positions.get(i)) < 0);
+        }
+        for (Position pos : positions) {
+            assertEquals(pos, result.getConfigurationSet(pos).getPosition());
+        }
+    }
+
+    @Test
+    public void projectionEqualsPairwiseDiffTest() throws Exception
+    {
+        Map<String, List<CAS>> casByUser = load("casdiff/relationDistance/user1.conll",
+                "casdiff/relationDistance/user2.conll", "casdiff/relationDistance/user1.conll");
+
+        List<? extends DiffAdapter> diffAdapters = asList(POS_DIFF_ADAPTER,
+                new RelationDiffAdapter(Dependency.class.getName(), "Dependent", "Governor",
+                        "DependencyType"));
+
+        CasDiff diff = doDiff(diffAdapters, LINK_TARGET_AS_LABEL, casByUser);
+
+        for (List<String> pair : asList(asList("user1", "user2"), asList("user2", "user3"),
+                asList("user1", "user3"))) {
+            Map<String, List<CAS>> pairwiseCasByUser = new LinkedHashMap<>();
+            pair.forEach(user -> pairwiseCasByUser.put(user, casByUser.get(user)));
+
+            DiffResult expected = doDiff(diffAdapters, LINK_TARGET_AS_LABEL, pairwiseCasByUser)
+                    .toResult();
+            DiffResult actual = diff.project(pair).toResult();
+
+            assertSamePositions(expected.getPositions(), actual.getPositions());
+            assertSamePositions(expected.getDifferingConfigurationSets().keySet(),
+                    actual.getDifferingConfigurationSets().keySet());
+            assertSamePositions(expected.getIncompleteConfigurationSets().keySet(),
+                    actual.getIncompleteConfigurationSets().keySet());
+            for (Position pos : expected.getPositions()) {
+                assertEquals(expected.getConfigurationSet(pos).getCasGroupIds(),
+                        actual.getConfigurationSet(pos).getCasGroupIds());
+                assertEquals(expected.getConfigurationSet(pos).getRecordedConfigurationCount(),
+                        actual.getConfigurationSet(pos).getRecordedConfigurationCount());
+            }
+        }
+    }
+
+    @Test
+    public void stackedDivergentAnnotationsTest() throws Exception
+    {
+        JCas user1 = JCasFactory.createJCas();
+        user1.setDocumentText("test");
+        for (String value : asList("A", "B", null, "")) {
+            POS pos = new POS(user1, 0, 4);
+            pos.setPosValue(value);
+            pos.addToIndexes();
+        }
+
+        JCas user2 = JCasFactory.createJCas();
+        user2.setDocumentText("test");
+        for (String value : asList("B", "C", null)) {
+            POS pos = new POS(user2, 0, 4);
+            pos.setPosValue(value);
+            pos.addToIndexes();
+        }
+
+        Map<String, List<CAS>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", asList(user1.getCas()));
+        casByUser.put("user2", asList(user2.getCas()));
+
+        List<? extends DiffAdapter> diffAdapters = asList(
+                new SpanDiffAdapter(POS.class.getName(), "PosValue"));
+
+        DiffResult result = doDiff(diffAdapters, LINK_TARGET_AS_LABEL, casByUser).toResult();
+
+        assertEquals(1, result.size());
+        ConfigurationSet cfgSet = result.getConfigurationSets().iterator().next();
+        assertEquals(5, cfgSet.getConfigurations().size());
+        assertEquals(4, cfgSet.getConfigurations("user1").size());
+        assertEquals(3, cfgSet.getConfigurations("user2").size());
+    }
+
     @Test
     public void relationDistanceTest() throws Exception
     {
@@ -657,6 +762,70 @@ public class CasDiffTest
         // assertEquals(0.0, agreement.getAgreement(), 0.00001d);
     }
 
+    @Test
+    public void thatCasIdOffsetEqualsNullPadding() throws Exception
+    {
+        JCas user1 = JCasFactory.createJCas();
+        user1.setDocumentText("test a");
+        new POS(user1, 0, 4).addToIndexes();
+        POS pos = new POS(user1, 5, 6);
+        pos.setPosValue("DT");
+        pos.addToIndexes();
+
+        JCas user2 = JCasFactory.createJCas();
+        user2.setDocumentText("test a");
+        new POS(user2, 0, 4).addToIndexes();
+
+        Map<String, List<CAS>> paddedCasByUser = new LinkedHashMap<>();
+        paddedCasByUser.put("user1", asList(null, null, user1.getCas()));
+        paddedCasByUser.put("user2", asList(null, null, user2.getCas()));
+
+        Map<String, List<CAS>> casByUser = new LinkedHashMap<>();
+        casByUser.put("user1", asList(user1.getCas()));
+        casByUser.put("user2", asList(user2.getCas()));
+
+        List<? extends DiffAdapter> diffAdapters = asList(POS_DIFF_ADAPTER);
+
+        DiffResult expected = doDiff(diffAdapters, LINK_TARGET_AS_LABEL, paddedCasByUser)
+                .toResult();
+        DiffResult actual = doDiff(diffAdapters, LINK_TARGET_AS_LABEL, casByUser, -1, -1, 2)
+                .toResult();
+
+        assertEquals(2, actual.size());
+        assertTrue(actual.getPositions().stream().allMatch(p -> p.getCasId() == 2));
+        assertSamePositions(expected.getPositions(), actual.getPositions());
+        assertSamePositions(expected.getIncompleteConfigurationSets().keySet(),
+                actual.getIncompleteConfigurationSets().keySet());
+
+        // The CASes can be looked up by the CAS IDs of the positions
+        List<CAS> offsetList = new OffsetCasList(2, casByUser.get("user1"));
+        assertEquals(3, offsetList.size());
+        assertEquals(null, offsetList.get(1));
+        Position position = actual.getIncompleteConfigurationSets().keySet().iterator().next();
+        assertEquals(user1.getCas(), offsetList.get(position.getCasId()));
+    }
+
+    /**
+     * The collection and document of a position refer to the CAS in which the position was seen
+     * first, so they may differ between a projection and a pairwise diff and are not compared.
+     */
+    private static void assertSamePositions(Collection<Position> aExpected,
+            Collection<Position> aActual)
+    {
+        List<Position> expected = new ArrayList<>(aExpected);
+        List<Position> actual = new ArrayList<>(aActual);
+        String message = toStrings(expected) + " vs. " + toStrings(actual);
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message, 0, expected.get(i).compareTo(actual.get(i)));
+        }
+    }
+
+    private static List<String> toStrings(Collection<?> aObjects)
+    {
+        return aObjects.stream().map(Object::toString).collect(Collectors.toList());
+    }
+
     @Rule
     public DkproTestContext testContext = new DkproTestContext();
 }
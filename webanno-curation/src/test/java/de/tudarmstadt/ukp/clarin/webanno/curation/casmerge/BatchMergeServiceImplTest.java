@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.curation.casmerge;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.EXCLUSIVE_WRITE_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.UNMANAGED_ACCESS;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.CANCELLED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.COMPLETED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.RUNNING;
+import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.ANNOTATION_IN_PROGRESS;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.CURATION_FINISHED;
+import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransition.ANNOTATION_IN_PROGRESS_TO_CURATION_IN_PROGRESS;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.CasProvider;
+import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
+import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+public class BatchMergeServiceImplTest
+{
+    private @Mock AnnotationSchemaService schemaService;
+    private @Mock DocumentService documentService;
+    private @Mock CurationDocumentService curationDocumentService;
+    private @Mock CasStorageService casStorageService;
+
+    private BatchMergeServiceImpl sut;
+    private Project project;
+    private SourceDocument document;
+    private AnnotationDocument annotationDocument;
+    private CAS curationCas;
+
+    @Before
+    public void setup() throws Exception
+    {
+        initMocks(this);
+
+        project = new Project();
+        project.setId(1l);
+        project.setName("project");
+
+        document = new SourceDocument();
+        document.setId(1l);
+        document.setName("document");
+        document.setProject(project);
+        document.setState(ANNOTATION_IN_PROGRESS);
+
+        annotationDocument = new AnnotationDocument("document", project, "user", document);
+        annotationDocument.setState(FINISHED);
+
+        CAS annotatorCas = JCasFactory.createText("This is a test.").getCas();
+        curationCas = JCasFactory.createText("This is a test.").getCas();
+
+        when(schemaService.listAnnotationLayer(project)).thenReturn(emptyList());
+        when(curationDocumentService.listCuratableSourceDocuments(project))
+                .thenReturn(asList(document));
+        when(documentService.listAnnotationDocuments(document))
+                .thenReturn(asList(annotationDocument));
+        when(documentService.readAnnotationCas(annotationDocument, UNMANAGED_ACCESS))
+                .thenReturn(curationCas);
+        when(documentService.readAnnotationCas(document, "user", AUTO_CAS_UPGRADE,
+                SHARED_READ_ONLY_ACCESS)).thenReturn(annotatorCas);
+
+        sut = new BatchMergeServiceImpl(schemaService, documentService, curationDocumentService,
+                casStorageService);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        sut.destroy();
+    }
+
+    @Test
+    public void thatDocumentWithoutCurationCasIsMerged() throws Exception
+    {
+        // The storage has no curation CAS, so it initializes one using the given provider
+        when(casStorageService.readOrCreateCas(eq(document), eq(CURATION_USER), any(), any(),
+                eq(EXCLUSIVE_WRITE_ACCESS)))
+                        .thenAnswer(call -> call.getArgument(3, CasProvider.class).get());
+
+        BatchMergeMonitor monitor = new BatchMergeMonitor();
+        sut.mergeProject(project, false, false, monitor);
+
+        assertEquals(1, monitor.getMerged());
+        assertEquals(0, monitor.getSkipped());
+        assertEquals(0, monitor.getFailed());
+        assertEquals(true, monitor.isFinished());
+        verify(curationDocumentService).writeCurationCas(curationCas, document, true);
+        verify(documentService).transitionSourceDocumentState(document,
+                ANNOTATION_IN_PROGRESS_TO_CURATION_IN_PROGRESS);
+    }
+
+    @Test
+    public void thatExistingCurationCasIsSkipped() throws Exception
+    {
+        when(curationDocumentService.existsCurationCas(document)).thenReturn(true);
+
+        BatchMergeMonitor monitor = new BatchMergeMonitor();
+        sut.mergeProject(project, false, false, monitor);
+
+        assertEquals(0, monitor.getMerged());
+        assertEquals(1, monitor.getSkipped());
+        verify(curationDocumentService, never()).writeCurationCas(any(), any(),
+                any(Boolean.class));
+        verify(documentService, never()).transitionSourceDocumentState(any(), any());
+    }
+
+    @Test
+    public void thatCurationCasCreatedAfterCheckIsSkipped() throws Exception
+    {
+        // A curator creates the curation CAS after the quick check but before the merge obtains
+        // exclusive access - the storage then returns that CAS without calling the provider
+        when(casStorageService.readOrCreateCas(eq(document), eq(CURATION_USER), any(), any(),
+                eq(EXCLUSIVE_WRITE_ACCESS))).thenReturn(curationCas);
+
+        BatchMergeMonitor monitor = new BatchMergeMonitor();
+        sut.mergeProject(project, false, false, monitor);
+
+        assertEquals(0, monitor.getMerged());
+        assertEquals(1, monitor.getSkipped());
+        verify(curationDocumentService, never()).writeCurationCas(any(), any(),
+                any(Boolean.class));
+        verify(documentService, never()).transitionSourceDocumentState(any(), any());
+    }
+
+    @Test
+    public void thatExistingCurationCasIsReplacedWhenOverwriting() throws Exception
+    {
+        when(curationDocumentService.existsCurationCas(document)).thenReturn(true);
+        when(casStorageService.readOrCreateCas(eq(document), eq(CURATION_USER), any(), any(),
+                eq(EXCLUSIVE_WRITE_ACCESS))).thenReturn(curationCas);
+
+        BatchMergeMonitor monitor = new BatchMergeMonitor();
+        sut.mergeProject(project, false, true, monitor);
+
+        assertEquals(1, monitor.getMerged());
+        verify(curationDocumentService).writeCurationCas(curationCas, document, true);
+        verify(documentService).transitionSourceDocumentState(document,
+                ANNOTATION_IN_PROGRESS_TO_CURATION_IN_PROGRESS);
+    }
+
+    @Test
+    public void thatFinishedCurationIsNeverTouched() throws Exception
+    {
+        document.setState(CURATION_FINISHED);
+
+        BatchMergeMonitor monitor = new BatchMergeMonitor();
+        sut.mergeProject(project, false, true, monitor);
+
+        assertEquals(0, monitor.getMerged());
+        assertEquals(1, monitor.getSkipped());
+        verify(casStorageService, never()).readOrCreateCas(any(), any(), any(), any(), any());
+        verify(curationDocumentService, never()).writeCurationCas(any(), any(),
+                any(Boolean.class));
+    }
+
+    @Test
+    public void thatTaskMergesProjectInBackground() throws Exception
+    {
+        when(casStorageService.readOrCreateCas(eq(document), eq(CURATION_USER), any(), any(),
+                eq(EXCLUSIVE_WRITE_ACCESS)))
+                        .thenAnswer(call -> call.getArgument(3, CasProvider.class).get());
+
+        BatchMergeTaskHandle handle = sut.startMergeTask(project, false, false, "user");
+        BatchMergeMonitor monitor = sut.getTaskMonitor(handle);
+        awaitTermination(monitor);
+
+        assertEquals(COMPLETED, monitor.getState());
+        assertEquals(1, monitor.getMerged());
+        assertEquals(100, monitor.getProgress());
+        verify(curationDocumentService).writeCurationCas(curationCas, document, true);
+    }
+
+    @Test
+    public void thatRunningTaskCanBeCancelled() throws Exception
+    {
+        CountDownLatch documentReached = new CountDownLatch(1);
+        when(documentService.listAnnotationDocuments(document)).then(_call -> {
+            documentReached.countDown();
+            // Blocks until the worker is interrupted
+            new CountDownLatch(1).await();
+            return asList(annotationDocument);
+        });
+
+        BatchMergeTaskHandle handle = sut.startMergeTask(project, false, false, "user");
+        BatchMergeMonitor monitor = sut.getTaskMonitor(handle);
+
+        assertTrue(documentReached.await(10, SECONDS));
+        assertEquals(RUNNING, monitor.getState());
+        assertTrue(sut.cancelTask(handle));
+        awaitTermination(monitor);
+
+        assertEquals(CANCELLED, monitor.getState());
+        assertEquals(0, monitor.getMerged());
+        verify(curationDocumentService, never()).writeCurationCas(any(), any(),
+                any(Boolean.class));
+    }
+
+    @Test
+    public void thatTaskForSameProjectIsJoined() throws Exception
+    {
+        CountDownLatch released = new CountDownLatch(1);
+        when(curationDocumentService.existsCurationCas(document)).then(_call -> {
+            released.await();
+            return true;
+        });
+
+        BatchMergeTaskHandle handle1 = sut.startMergeTask(project, false, false, "user1");
+        BatchMergeTaskHandle handle2 = sut.startMergeTask(project, true, false, "user2");
+
+        released.countDown();
+        awaitTermination(sut.getTaskMonitor(handle1));
+
+        BatchMergeTaskHandle handle3 = sut.startMergeTask(project, false, false, "user1");
+        awaitTermination(sut.getTaskMonitor(handle3));
+
+        assertSame(handle1, handle2);
+        assertNotSame(handle1, handle3);
+    }
+
+    private static void awaitTermination(BatchMergeMonitor aMonitor) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (asList(NOT_STARTED, RUNNING).contains(aMonitor.getState())) {
+            assertTrue("Task did not terminate", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -31,6 +31,7 @@ import static org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -79,6 +80,7 @@ import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
+import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ImportExportService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
@@ -130,6 +132,7 @@ public class AeroRemoteApiController
     private static final String CURATION = "curation";
     private static final String IMPORT = "import";
     private static final String EXPORT = "export.zip";
+    private static final String HISTORY = "history";
 
     private static final String PARAM_FILE = "file";
     private static final String PARAM_CONTENT = "content";
@@ -140,6 +143,7 @@ public class AeroRemoteApiController
     private static final String PARAM_PROJECT_ID = "projectId";
     private static final String PARAM_ANNOTATOR_ID = "userId";
     private static final String PARAM_DOCUMENT_ID = "documentId";
+    private static final String PARAM_TIMESTAMP = "timestamp";
 
     private static final String VAL_ORIGINAL = "ORIGINAL";
 
@@ -154,6 +158,7 @@ public class AeroRemoteApiController
     private final Logger LOG = LoggerFactory.getLogger(getClass());
 
     private @Autowired DocumentService documentService;
+    private @Autowired CasStorageService casStorageService;
     private @Autowired CurationDocumentService curationService;
     private @Autowired ProjectService projectService;
     private @Autowired ImportExportService importExportService;
@@ -749,6 +754,58 @@ public class AeroRemoteApiController
                         + aDocumentId + "] deleted from project [" + aProjectId + "]."));
     }
 
+    @ApiOperation(value = "List the history versions of a user's annotations of one document")
+    @RequestMapping(value = "/" + PROJECTS + "/{" + PARAM_PROJECT_ID + "}/" + DOCUMENTS + "/{"
+            + PARAM_DOCUMENT_ID + "}/" + ANNOTATIONS + "/{" + PARAM_ANNOTATOR_ID + "}/"
+            + HISTORY, method = RequestMethod.GET, produces = APPLICATION_JSON_UTF8_VALUE)
+    public ResponseEntity<RResponse<List<Long>>> annotationsHistoryList(
+            @PathVariable(PARAM_PROJECT_ID) long aProjectId,
+            @PathVariable(PARAM_DOCUMENT_ID) long aDocumentId,
+            @PathVariable(PARAM_ANNOTATOR_ID) String aAnnotatorId)
+        throws Exception
+    {
+        // Get project (this also ensures that it exists and that the current user can access it
+        Project project = getProject(aProjectId);
+
+        SourceDocument doc = getDocument(project, aDocumentId);
+        getAnnotation(doc, aAnnotatorId, false);
+
+        return ResponseEntity.ok(new RResponse<>(casStorageService.listCasHistory(doc,
+                aAnnotatorId)));
+    }
+
+    @ApiOperation(value = "Restore a user's annotations of one document from a history version")
+    @RequestMapping(value = "/" + PROJECTS + "/{" + PARAM_PROJECT_ID + "}/" + DOCUMENTS + "/{"
+            + PARAM_DOCUMENT_ID + "}/" + ANNOTATIONS + "/{" + PARAM_ANNOTATOR_ID + "}/" + HISTORY
+            + "/{" + PARAM_TIMESTAMP
+            + "}", method = RequestMethod.POST, produces = APPLICATION_JSON_UTF8_VALUE)
+    public ResponseEntity<RResponse<Void>> annotationsHistoryRestore(
+            @PathVariable(PARAM_PROJECT_ID) long aProjectId,
+            @PathVariable(PARAM_DOCUMENT_ID) long aDocumentId,
+            @PathVariable(PARAM_ANNOTATOR_ID) String aAnnotatorId,
+            @PathVariable(PARAM_TIMESTAMP) long aTimestamp)
+        throws Exception
+    {
+        // Get project (this also ensures that it exists and that the current user can access it
+        Project project = getProject(aProjectId);
+
+        SourceDocument doc = getDocument(project, aDocumentId);
+        getAnnotation(doc, aAnnotatorId, false);
+
+        try {
+            casStorageService.restoreCasFromHistory(doc, aAnnotatorId, aTimestamp);
+        }
+        catch (FileNotFoundException e) {
+            throw new ObjectNotFoundException("History version [" + aTimestamp
+                    + "] of annotations of user [" + aAnnotatorId + "] on document ["
+                    + aDocumentId + "] in project [" + aProjectId + "] not found.");
+        }
+
+        return ResponseEntity.ok(new RResponse<>(INFO,
+                "Annotations of user [" + aAnnotatorId + "] on document [" + aDocumentId
+                        + "] restored from history version [" + aTimestamp + "]."));
+    }
+
     @ApiOperation(value = "Create curation for a document in a project")
     @ApiImplicitParams({
             @ApiImplicitParam(name = PARAM_FORMAT, paramType = "form", required = true),
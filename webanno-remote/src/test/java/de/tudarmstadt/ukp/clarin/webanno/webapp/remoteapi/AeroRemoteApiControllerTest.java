@@ -54,10 +54,13 @@ import org.springframework.security.config.annotation.web.configuration.EnableWe
 import org.springframework.security.test.web.servlet.setup.SecurityMockMvcConfigurers;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.util.FileSystemUtils;
 import org.springframework.web.context.WebApplicationContext;
 
+import com.jayway.jsonpath.JsonPath;
+
 import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.CasStorageService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
@@ -290,6 +293,37 @@ public class AeroRemoteApiControllerTest
         // @formatter:on
     }
 
+    @Test
+    public void t006_testAnnotationHistoryRestore() throws Exception
+    {
+        // @formatter:off
+        String history = API_BASE + "/projects/1/documents/1/annotations/admin/history";
+        
+        MvcResult result = mvc.perform(get(history)
+                .with(csrf().asHeader())
+                .with(user("admin").roles("ADMIN")))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType("application/json;charset=UTF-8"))
+            .andExpect(jsonPath("$.body.length()").value(1))
+            .andReturn();
+        
+        long timestamp = JsonPath.<Number> read(result.getResponse().getContentAsString(),
+                "$.body[0]").longValue();
+        
+        mvc.perform(post(history + "/" + timestamp)
+                .with(csrf().asHeader())
+                .with(user("admin").roles("ADMIN")))
+            .andExpect(status().isOk())
+            .andExpect(content().contentType("application/json;charset=UTF-8"))
+            .andExpect(jsonPath("$.messages[0].level").value("INFO"));
+        
+        mvc.perform(post(history + "/1")
+                .with(csrf().asHeader())
+                .with(user("admin").roles("ADMIN")))
+            .andExpect(status().isNotFound());
+        // @formatter:on
+    }
+
     @Configuration
     public static class TestContext
     {
@@ -371,7 +405,9 @@ public class AeroRemoteApiControllerTest
         @Bean
         public BackupProperties backupProperties()
         {
-            return new BackupProperties();
+            BackupProperties backupProperties = new BackupProperties();
+            backupProperties.setInterval(1);
+            return backupProperties;
         }
 
         @Bean
@@ -17,11 +17,16 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.ui.curation.actionbar;
 
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskState.RUNNING;
 import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentState.CURATION_FINISHED;
 import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransition.CURATION_IN_PROGRESS_TO_CURATION_FINISHED;
 import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.enabledWhen;
+import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.visibleWhen;
+import static java.util.Arrays.asList;
 
 import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.markup.html.WebMarkupContainer;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.panel.Panel;
@@ -30,12 +35,18 @@ import org.apache.wicket.model.LambdaModel;
 import org.apache.wicket.model.PropertyModel;
 import org.apache.wicket.model.StringResourceModel;
 import org.apache.wicket.spring.injection.annot.SpringBean;
+import org.wicketstuff.progressbar.ProgressBar;
+import org.wicketstuff.progressbar.Progression;
+import org.wicketstuff.progressbar.ProgressionModel;
 
 import de.agilecoders.wicket.core.markup.html.bootstrap.behavior.CssClassNameModifier;
 import de.agilecoders.wicket.extensions.markup.html.bootstrap.icon.FontAwesome5IconType;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.page.AnnotationPageBase;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeMonitor;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeService;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casmerge.BatchMergeTaskHandle;
 import de.tudarmstadt.ukp.clarin.webanno.curation.storage.CurationDocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
@@ -52,12 +63,18 @@ public class CuratorWorkflowActionBarItemGroup
     private @SpringBean DocumentService documentService;
     private @SpringBean CurationDocumentService curationDocumentService;
     private @SpringBean UserDao userRepository;
+    private @SpringBean BatchMergeService batchMergeService;
 
     private final AnnotationPageBase page;
     protected final ConfirmationDialog finishDocumentDialog;
     private final LambdaAjaxLink finishDocumentLink;
     private MergeDialog resetDocumentDialog;
     private LambdaAjaxLink resetDocumentLink;
+    private MergeDialog mergeProjectDialog;
+    private LambdaAjaxLink mergeProjectLink;
+    private WebMarkupContainer mergeProjectProgressContainer;
+    private ProgressBar mergeProjectProgress;
+    private BatchMergeTaskHandle mergeProjectTask;
 
     public CuratorWorkflowActionBarItemGroup(String aId, AnnotationPageBase aPage)
     {
@@ -87,6 +104,51 @@ public class CuratorWorkflowActionBarItemGroup
         add(resetDocumentLink = new LambdaAjaxLink("showResetDocumentDialog",
                 resetDocumentDialog::show));
         resetDocumentLink.add(enabledWhen(this::isEditable));
+
+        IModel<String> projectNameModel = PropertyModel.of(page.getModel(), "project.name");
+        add(mergeProjectDialog = new MergeDialog("mergeProjectDialog",
+                new StringResourceModel("MergeProjectDialog.title", this),
+                new StringResourceModel("MergeProjectDialog.text", this).setModel(page.getModel())
+                        .setParameters(projectNameModel),
+                projectNameModel));
+        mergeProjectDialog.setConfirmAction(this::actionMergeProject);
+
+        add(mergeProjectLink = new LambdaAjaxLink("showMergeProjectDialog",
+                mergeProjectDialog::show));
+        mergeProjectLink.setOutputMarkupId(true);
+        mergeProjectLink.add(enabledWhen(
+                () -> page.getModelObject().getProject() != null && !isMergeProjectRunning()));
+
+        mergeProjectProgressContainer = new WebMarkupContainer("mergeProjectProgressContainer");
+        mergeProjectProgressContainer.setOutputMarkupPlaceholderTag(true);
+        mergeProjectProgressContainer.add(visibleWhen(() -> getMergeProjectMonitor() != null));
+        add(mergeProjectProgressContainer);
+
+        mergeProjectProgress = new ProgressBar("mergeProjectProgress", new ProgressionModel()
+        {
+            private static final long serialVersionUID = 2934707417567375436L;
+
+            @Override
+            protected Progression getProgression()
+            {
+                return getMergeProjectProgression();
+            }
+        })
+        {
+            private static final long serialVersionUID = -6578243935467519587L;
+
+            @Override
+            protected void onFinished(AjaxRequestTarget aTarget)
+            {
+                actionMergeProjectFinished(aTarget);
+            }
+        };
+        mergeProjectProgressContainer.add(mergeProjectProgress);
+
+        LambdaAjaxLink cancelMergeProjectLink = new LambdaAjaxLink("cancelMergeProject",
+                this::actionCancelMergeProject);
+        cancelMergeProjectLink.add(visibleWhen(this::isMergeProjectRunning));
+        mergeProjectProgressContainer.add(cancelMergeProjectLink);
     }
 
     public String getStateClass()
@@ -139,4 +201,96 @@ public class CuratorWorkflowActionBarItemGroup
         success("Re-merge finished!");
         aTarget.add(page.getFeedbackPanel());
     }
+
+    private BatchMergeMonitor getMergeProjectMonitor()
+    {
+        return mergeProjectTask != null ? batchMergeService.getTaskMonitor(mergeProjectTask)
+                : null;
+    }
+
+    private boolean isMergeProjectRunning()
+    {
+        BatchMergeMonitor monitor = getMergeProjectMonitor();
+        return monitor != null && asList(NOT_STARTED, RUNNING).contains(monitor.getState());
+    }
+
+    private Progression getMergeProjectProgression()
+    {
+        BatchMergeMonitor monitor = getMergeProjectMonitor();
+
+        // If the task is gone, there is nothing left to wait for
+        if (monitor == null) {
+            return new Progression(100);
+        }
+
+        switch (monitor.getState()) {
+        case NOT_STARTED:
+            return new Progression(0, "Waiting for other merges to finish...");
+        case RUNNING:
+            // All documents may have been processed before the task has completed, but the
+            // progress bar stops polling once it reaches 100%
+            return new Progression(Math.min(monitor.getProgress(), 99),
+                    String.format("%d/%d documents (%.2f docs/s)", monitor.getProcessed(),
+                            monitor.getTotal(), monitor.getThroughput()));
+        default:
+            return new Progression(100);
+        }
+    }
+
+    protected void actionMergeProject(AjaxRequestTarget aTarget, Form<MergeDialog.State> aForm)
+        throws Exception
+    {
+        // Existing curation CASes are never replaced - they may already contain curated
+        // annotations. Single documents can still be re-merged explicitly.
+        // The merge runs in the background - the progress bar polls until it is done.
+        mergeProjectTask = batchMergeService.startMergeTask(page.getModelObject().getProject(),
+                aForm.getModelObject().isMergeIncompleteAnnotations(), false,
+                userRepository.getCurrentUsername());
+
+        aTarget.add(mergeProjectLink);
+        mergeProjectProgress.start(aTarget);
+    }
+
+    private void actionCancelMergeProject(AjaxRequestTarget aTarget)
+    {
+        batchMergeService.cancelTask(mergeProjectTask);
+        aTarget.add(mergeProjectProgressContainer);
+    }
+
+    private void actionMergeProjectFinished(AjaxRequestTarget aTarget)
+    {
+        BatchMergeMonitor monitor = getMergeProjectMonitor();
+        mergeProjectTask = null;
+
+        aTarget.add(mergeProjectProgressContainer, mergeProjectLink, page.getFeedbackPanel());
+
+        if (monitor == null) {
+            error("The merge is no longer available");
+            return;
+        }
+
+        monitor.getMessages().forEach(msg -> error(msg.getMessage()));
+
+        switch (monitor.getState()) {
+        case COMPLETED:
+            if (monitor.getFailed() > 0) {
+                error("Merged " + monitor.getMerged() + " documents, skipped "
+                        + monitor.getSkipped() + ", failed to merge " + monitor.getFailed()
+                        + ".");
+            }
+            else {
+                success("Merged " + monitor.getMerged() + " documents, skipped "
+                        + monitor.getSkipped() + ".");
+            }
+            break;
+        case CANCELLED:
+            info("Merge cancelled after merging " + monitor.getMerged() + " documents.");
+            break;
+        case FAILED:
+            error("Merge failed");
+            break;
+        default:
+            error("Invalid merge state: " + monitor.getState());
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.stream.Collectors.toList;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.BeforeProjectRemovedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.api.event.LayerConfigurationChangedEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+/**
+ * Caches which segments of a document the annotators disagree on so that paging through a
+ * document in the curation view does not re-calculate the differences on segments that have
+ * already been displayed. The states of a document are only valid for the annotator CASes they
+ * were calculated on. This is ensured by keying them with the timestamps of these CASes. Entries
+ * are dropped eagerly when an annotator CAS of the document is written, but not when the curation
+ * CAS is written.
+ */
+@Component
+public class CurationDiffCache
+{
+    private final Cache<Long, DocumentSegmentStates> cache;
+
+    public CurationDiffCache()
+    {
+        cache = Caffeine.newBuilder().expireAfterAccess(30, MINUTES).maximumSize(1000).build();
+    }
+
+    /**
+     * Get the segment states of the given document. If the cached states were calculated on
+     * different annotator CASes or layers, they are replaced by an empty set of states.
+     * 
+     * @param aDocument
+     *            the document.
+     * @param aCasTimestamps
+     *            the timestamps of the annotator CASes the differences are calculated on.
+     * @param aLayers
+     *            the layers the differences are calculated on.
+     * @return a thread-safe map from segment begin and end offset to whether the annotators
+     *         disagree on the segment. Callers add the states of segments missing from the map.
+     */
+    public Map<Pair<Integer, Integer>, Boolean> getSegmentStates(SourceDocument aDocument,
+            Map<String, Long> aCasTimestamps, List<AnnotationLayer> aLayers)
+    {
+        List<Object> key = asKey(aCasTimestamps, aLayers);
+
+        return cache.asMap().compute(aDocument.getId(), (id, states) -> {
+            if (states != null && states.key.equals(key)) {
+                return states;
+            }
+            return new DocumentSegmentStates(aDocument.getProject().getId(), key);
+        }).states;
+    }
+
+    private static List<Object> asKey(Map<String, Long> aCasTimestamps,
+            List<AnnotationLayer> aLayers)
+    {
+        // Layers are compared by ID and the CAS timestamps irrespective of the order of the users
+        List<Long> layerIds = aLayers.stream().map(AnnotationLayer::getId).collect(toList());
+        return asList(new TreeMap<>(aCasTimestamps), layerIds);
+    }
+
+    public void invalidate(SourceDocument aDocument)
+    {
+        cache.invalidate(aDocument.getId());
+    }
+
+    private void invalidateProject(long aProjectId)
+    {
+        cache.asMap().values().removeIf(states -> states.projectId == aProjectId);
+    }
+
+    @EventListener
+    public void onAfterCasWritten(AfterCasWrittenEvent aEvent)
+    {
+        // The differences are only calculated between the annotators - merging annotations into
+        // the curation CAS does not change them
+        if (CURATION_USER.equals(aEvent.getDocument().getUser())) {
+            return;
+        }
+
+        invalidate(aEvent.getDocument().getDocument());
+    }
+
+    @EventListener
+    public void onLayerConfigurationChanged(LayerConfigurationChangedEvent aEvent)
+    {
+        // Changes to the features of a layer affect the differences without changing the layer IDs
+        invalidateProject(aEvent.getProject().getId());
+    }
+
+    @EventListener
+    public void onBeforeProjectRemoved(BeforeProjectRemovedEvent aEvent)
+    {
+        invalidateProject(aEvent.getProject().getId());
+    }
+
+    private static class DocumentSegmentStates
+    {
+        private final long projectId;
+        private final List<Object> key;
+        private final Map<Pair<Integer, Integer>, Boolean> states = new ConcurrentHashMap<>();
+
+        public DocumentSegmentStates(long aProjectId, List<Object> aKey)
+        {
+            projectId = aProjectId;
+            key = aKey;
+        }
+    }
+}
@@ -33,16 +33,29 @@ import static de.tudarmstadt.ukp.clarin.webanno.model.SourceDocumentStateTransit
 import static de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.SentenceState.AGREE;
 import static de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.SentenceState.DISAGREE;
 import static org.apache.uima.fit.util.CasUtil.getType;
+import static java.util.Arrays.asList;
 import static org.apache.uima.fit.util.CasUtil.selectCovered;
+import static org.slf4j.event.Level.DEBUG;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.Validate;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.uima.UIMAException;
 import org.apache.uima.cas.CAS;
 import org.apache.uima.cas.Type;
@@ -60,6 +73,7 @@ import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.exception.AnnotationException;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.model.AnnotatorState;
 import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
+import de.tudarmstadt.ukp.clarin.webanno.api.dao.casstorage.CasStorageSession;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.Configuration;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.ConfigurationSet;
 import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.CasDiff.DiffResult;
@@ -101,6 +115,9 @@ public class SuggestionBuilder
     private int diffRangeBegin;
     private int diffRangeEnd;
 
+    private ExecutorService executor;
+    private CurationDiffCache diffCache;
+
     public SuggestionBuilder(CasStorageService aCasStorageService, DocumentService aDocumentService,
             CorrectionDocumentService aCorrectionDocumentService,
             CurationDocumentService aCurationDocumentService,
@@ -114,6 +131,31 @@ public class SuggestionBuilder
         casStorageService = aCasStorageService;
     }
 
+    /**
+     * Load the annotator CASes and calculate the differences between them on the given executor
+     * instead of on the calling thread.
+     * 
+     * @param aExecutor
+     *            an executor or {@code null} to do all the work on the calling thread.
+     * @see SuggestionBuilderExecutor
+     */
+    public void setExecutor(ExecutorService aExecutor)
+    {
+        executor = aExecutor;
+    }
+
+    /**
+     * Re-use the differences calculated on segments of the document while none of the annotator
+     * CASes has changed. Only used in curation mode.
+     * 
+     * @param aDiffCache
+     *            a cache or {@code null} to always calculate the differences.
+     */
+    public void setDiffCache(CurationDiffCache aDiffCache)
+    {
+        diffCache = aDiffCache;
+    }
+
     public CurationContainer buildCurationContainer(AnnotatorState aState)
         throws UIMAException, ClassNotFoundException, IOException, AnnotationException
     {
@@ -139,25 +181,38 @@ public class SuggestionBuilder
         AnnotationDocument randomAnnotationDocument = null;
         CAS mergeCas;
 
-        // get the correction/automation CAS for the logged in user
-        if (aState.getMode().equals(AUTOMATION) || aState.getMode().equals(CORRECTION)) {
-            casses = listCasesforCorrection(randomAnnotationDocument, sourceDocument,
-                    aState.getMode());
-            mergeCas = getMergeCas(aState, sourceDocument, casses, randomAnnotationDocument, false,
-                    false, false);
-            String username = casses.keySet().iterator().next();
-            updateSegment(aState, segmentBeginEnd, segmentNumber, segmentAdress,
-                    casses.get(username), username, aState.getWindowBeginOffset(),
-                    aState.getWindowEndOffset());
+        // The timestamps must be obtained before loading the CASes. Otherwise, we might cache
+        // states calculated on CASes older than the timestamps.
+        Map<Pair<Integer, Integer>, Boolean> segmentStates = null;
+        if (diffCache != null && !aState.getMode().equals(AUTOMATION)
+                && !aState.getMode().equals(CORRECTION)) {
+            Map<String, Long> casTimestamps = getCasTimestamps(finishedAnnotationDocuments);
+            if (casTimestamps != null) {
+                segmentStates = diffCache.getSegmentStates(sourceDocument, casTimestamps,
+                        aState.getAnnotationLayers());
+            }
         }
-        else {
-            casses = listCassesforCuration(finishedAnnotationDocuments, aState.getMode());
-            mergeCas = getMergeCas(aState, sourceDocument, casses, randomAnnotationDocument, false,
-                    false, false);
-            updateSegment(aState, segmentBeginEnd, segmentNumber, segmentAdress, mergeCas,
-                    CURATION_USER, getFirstSentence(mergeCas).getBegin(),
-                    mergeCas.getDocumentText().length());
 
+        try (StopWatch watch = new StopWatch(log, DEBUG, "Curation view: loading CASes")) {
+            // get the correction/automation CAS for the logged in user
+            if (aState.getMode().equals(AUTOMATION) || aState.getMode().equals(CORRECTION)) {
+                casses = listCasesforCorrection(randomAnnotationDocument, sourceDocument,
+                        aState.getMode());
+                mergeCas = getMergeCas(aState, sourceDocument, casses, randomAnnotationDocument,
+                        false, false, false);
+                String username = casses.keySet().iterator().next();
+                updateSegment(aState, segmentBeginEnd, segmentNumber, segmentAdress,
+                        casses.get(username), username, aState.getWindowBeginOffset(),
+                        aState.getWindowEndOffset());
+            }
+            else {
+                casses = listCassesforCuration(finishedAnnotationDocuments, aState.getMode());
+                mergeCas = getMergeCas(aState, sourceDocument, casses, randomAnnotationDocument,
+                        false, false, false);
+                updateSegment(aState, segmentBeginEnd, segmentNumber, segmentAdress, mergeCas,
+                        CURATION_USER, getFirstSentence(mergeCas).getBegin(),
+                        mergeCas.getDocumentText().length());
+            }
         }
 
         segmentAdress.put(CURATION_USER, new HashMap<>());
@@ -168,63 +223,191 @@ public class SuggestionBuilder
 
         List<DiffAdapter> adapters = getDiffAdapters(schemaService, aState.getAnnotationLayers());
 
-        long diffStart = System.currentTimeMillis();
-        log.debug("Calculating differences...");
-        int count = 0;
-        for (Integer begin : segmentBeginEnd.keySet()) {
-            Integer end = segmentBeginEnd.get(begin);
+        Set<Integer> disagreeingSegments;
+        try (StopWatch watch = new StopWatch(log, DEBUG,
+                "Curation view: calculating differences on %d segments", segmentBeginEnd.size())) {
+            disagreeingSegments = findDisagreeingSegments(adapters, casses, segmentBeginEnd,
+                    segmentStates);
+        }
 
-            count++;
-            if (count % 100 == 0) {
-                log.debug("Processing differences: {} of {} sentences...", count,
-                        segmentBeginEnd.size());
+        try (StopWatch watch = new StopWatch(log, DEBUG, "Curation view: building segments")) {
+            for (Integer begin : segmentBeginEnd.keySet()) {
+                SourceListView curationSegment = new SourceListView();
+                curationSegment.setBegin(begin);
+                curationSegment.setEnd(segmentBeginEnd.get(begin));
+                curationSegment.setSentenceNumber(segmentNumber.get(begin));
+                curationSegment.setSentenceState(
+                        disagreeingSegments.contains(begin) ? DISAGREE : AGREE);
+
+                for (String username : segmentAdress.keySet()) {
+                    curationSegment.getSentenceAddress().put(username,
+                            segmentAdress.get(username).get(begin));
+                }
+                curationContainer.getCurationViewByBegin().put(begin, curationSegment);
             }
+        }
 
-            DiffResult diff = doDiffSingle(adapters, LINK_ROLE_AS_LABEL, casses, begin, end)
-                    .toResult();
-
-            SourceListView curationSegment = new SourceListView();
-            curationSegment.setBegin(begin);
-            curationSegment.setEnd(end);
-            curationSegment.setSentenceNumber(segmentNumber.get(begin));
-            if (diff.hasDifferences() || !diff.getIncompleteConfigurationSets().isEmpty()) {
-                // Is this confSet a diff due to stacked annotations (with same configuration)?
-                boolean stackedDiff = false;
-
-                stackedDiffSet: for (ConfigurationSet d : diff.getDifferingConfigurationSets()
-                        .values()) {
-                    for (Configuration c : d.getConfigurations()) {
-                        if (c.getCasGroupIds().size() != d.getCasGroupIds().size()) {
-                            stackedDiff = true;
-                            break stackedDiffSet;
-                        }
-                    }
-                }
+        return curationContainer;
+    }
 
-                if (stackedDiff) {
-                    curationSegment.setSentenceState(DISAGREE);
-                }
-                else if (!diff.getIncompleteConfigurationSets().isEmpty()) {
-                    curationSegment.setSentenceState(DISAGREE);
-                }
-                else {
-                    curationSegment.setSentenceState(AGREE);
-                }
+    /**
+     * Determines the segments on which the annotators disagree. If an executor is set, the
+     * differences are calculated for each layer in parallel. This yields the same result as
+     * calculating them for all layers at once because a configuration set never spans multiple
+     * layers.
+     * 
+     * @param aSegmentStates
+     *            states of segments calculated previously on the same CASes or {@code null}. The
+     *            states of the segments calculated by this call are added.
+     * @return the begin offsets of the disagreeing segments.
+     */
+    Set<Integer> findDisagreeingSegments(List<DiffAdapter> aAdapters,
+            Map<String, CAS> aCasses, Map<Integer, Integer> aSegmentBeginEnd,
+            Map<Pair<Integer, Integer>, Boolean> aSegmentStates)
+        throws IOException
+    {
+        Set<Integer> disagreeingSegments = new HashSet<>();
+        Map<Integer, Integer> pendingSegments = new HashMap<>();
+        for (Entry<Integer, Integer> segment : aSegmentBeginEnd.entrySet()) {
+            Boolean disagree = aSegmentStates != null
+                    ? aSegmentStates.get(Pair.of(segment.getKey(), segment.getValue()))
+                    : null;
+            if (disagree == null) {
+                pendingSegments.put(segment.getKey(), segment.getValue());
             }
-            else {
-                curationSegment.setSentenceState(AGREE);
+            else if (disagree) {
+                disagreeingSegments.add(segment.getKey());
+            }
+        }
+
+        log.trace("Calculating differences on {} of {} segments", pendingSegments.size(),
+                aSegmentBeginEnd.size());
+
+        if (pendingSegments.isEmpty()) {
+            return disagreeingSegments;
+        }
+
+        Set<Integer> pendingDisagreeingSegments;
+        if (executor == null || aAdapters.size() < 2) {
+            pendingDisagreeingSegments = findDisagreeingSegmentsForLayers(aAdapters, aCasses,
+                    pendingSegments);
+        }
+        else {
+            List<Callable<Set<Integer>>> tasks = new ArrayList<>();
+            for (DiffAdapter adapter : aAdapters) {
+                // The annotator CASes are shared read-only CASes which are not bound to a thread
+                tasks.add(() -> findDisagreeingSegmentsForLayers(asList(adapter), aCasses,
+                        pendingSegments));
             }
 
-            for (String username : segmentAdress.keySet()) {
-                curationSegment.getSentenceAddress().put(username,
-                        segmentAdress.get(username).get(begin));
+            pendingDisagreeingSegments = new HashSet<>();
+            runTasks(tasks).forEach(pendingDisagreeingSegments::addAll);
+        }
+
+        disagreeingSegments.addAll(pendingDisagreeingSegments);
+
+        if (aSegmentStates != null) {
+            for (Entry<Integer, Integer> segment : pendingSegments.entrySet()) {
+                aSegmentStates.put(Pair.of(segment.getKey(), segment.getValue()),
+                        pendingDisagreeingSegments.contains(segment.getKey()));
             }
-            curationContainer.getCurationViewByBegin().put(begin, curationSegment);
         }
-        log.debug("Difference calculation completed in {}ms",
-                (System.currentTimeMillis() - diffStart));
 
-        return curationContainer;
+        return disagreeingSegments;
+    }
+
+    /**
+     * @return the timestamps of the CASes of the given annotation documents or {@code null} if
+     *         any of the CASes does not exist yet.
+     */
+    private Map<String, Long> getCasTimestamps(List<AnnotationDocument> aAnnotationDocuments)
+        throws IOException
+    {
+        Map<String, Long> timestamps = new HashMap<>();
+        for (AnnotationDocument annotationDocument : aAnnotationDocuments) {
+            Optional<Long> timestamp = documentService.getAnnotationCasTimestamp(
+                    annotationDocument.getDocument(), annotationDocument.getUser());
+            if (!timestamp.isPresent()) {
+                return null;
+            }
+            timestamps.put(annotationDocument.getUser(), timestamp.get());
+        }
+        return timestamps;
+    }
+
+    private Set<Integer> findDisagreeingSegmentsForLayers(List<DiffAdapter> aAdapters,
+            Map<String, CAS> aCasses, Map<Integer, Integer> aSegmentBeginEnd)
+    {
+        Set<Integer> disagreeingSegments = new HashSet<>();
+        for (Entry<Integer, Integer> segment : aSegmentBeginEnd.entrySet()) {
+            DiffResult diff = doDiffSingle(aAdapters, LINK_ROLE_AS_LABEL, aCasses,
+                    segment.getKey(), segment.getValue()).toResult();
+
+            if (isDisagreement(diff)) {
+                disagreeingSegments.add(segment.getKey());
+            }
+        }
+        return disagreeingSegments;
+    }
+
+    private static boolean isDisagreement(DiffResult aDiff)
+    {
+        if (!aDiff.getIncompleteConfigurationSets().isEmpty()) {
+            return true;
+        }
+
+        // Is this confSet a diff due to stacked annotations (with same configuration)?
+        for (ConfigurationSet d : aDiff.getDifferingConfigurationSets().values()) {
+            for (Configuration c : d.getConfigurations()) {
+                if (c.getCasGroupIds().size() != d.getCasGroupIds().size()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs the given tasks on the executor and waits for all of them to complete.
+     * 
+     * @return the results of the tasks in the order of the tasks.
+     */
+    private <T> List<T> runTasks(List<Callable<T>> aTasks) throws IOException
+    {
+        List<Future<T>> futures = new ArrayList<>();
+        try {
+            for (Callable<T> task : aTasks) {
+                futures.add(executor.submit(task));
+            }
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building curation view");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        finally {
+            // Does nothing for completed tasks, but stops remaining tasks if one has failed
+            futures.forEach(future -> future.cancel(true));
+        }
     }
 
     /**
@@ -264,6 +447,7 @@ public class SuggestionBuilder
         throws UIMAException, ClassNotFoundException, IOException
     {
         Map<String, CAS> casses = new HashMap<>();
+        Map<String, Callable<CAS>> tasks = new LinkedHashMap<>();
         for (AnnotationDocument annotationDocument : annotationDocuments) {
             String username = annotationDocument.getUser();
 
@@ -271,10 +455,37 @@ public class SuggestionBuilder
                 continue;
             }
 
-            CAS cas = documentService.readAnnotationCas(annotationDocument.getDocument(),
-                    annotationDocument.getUser(), AUTO_CAS_UPGRADE, SHARED_READ_ONLY_ACCESS);
-            casses.put(username, cas);
+            SourceDocument document = annotationDocument.getDocument();
+
+            // CASes which are already managed by the session of the current thread must not be
+            // borrowed by another thread, so we only offload those which are not
+            if (executor == null || CasStorageSession.get()
+                    .getManagedState(document.getId(), username).isPresent()) {
+                CAS cas = documentService.readAnnotationCas(document, username,
+                        AUTO_CAS_UPGRADE, SHARED_READ_ONLY_ACCESS);
+                casses.put(username, cas);
+                continue;
+            }
+
+            tasks.put(username, () -> {
+                // Sessions are bound to a thread, so the worker needs its own session. Shared
+                // read-only CASes are not bound to the thread which loaded them and can be handed
+                // back to the calling thread.
+                try (CasStorageSession session = CasStorageSession.openNested()) {
+                    return documentService.readAnnotationCas(document, username,
+                            AUTO_CAS_UPGRADE, SHARED_READ_ONLY_ACCESS);
+                }
+            });
         }
+
+        if (!tasks.isEmpty()) {
+            List<String> usernames = new ArrayList<>(tasks.keySet());
+            List<CAS> loaded = runTasks(new ArrayList<>(tasks.values()));
+            for (int i = 0; i < usernames.size(); i++) {
+                casses.put(usernames.get(i), loaded.get(i));
+            }
+        }
+
         return casses;
     }
 
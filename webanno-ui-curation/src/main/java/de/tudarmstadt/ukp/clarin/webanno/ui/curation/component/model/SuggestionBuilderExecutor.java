@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import de.tudarmstadt.ukp.clarin.webanno.ui.curation.config.CurationProperties;
+import de.tudarmstadt.ukp.clarin.webanno.ui.curation.config.CurationProperties.ParallelDiffOptions;
+
+/**
+ * Provides the bounded executor on which the {@link SuggestionBuilder} loads the annotator CASes
+ * and calculates the differences between them in parallel.
+ */
+@Component
+public class SuggestionBuilderExecutor
+    implements DisposableBean
+{
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ExecutorService executor;
+
+    public SuggestionBuilderExecutor(CurationProperties aProperties)
+    {
+        ParallelDiffOptions options = aProperties.getParallelDiff();
+
+        if (options.isEnabled()) {
+            AtomicInteger threadCount = new AtomicInteger();
+            // If all threads are busy and the queue is full, the requesting thread does the work
+            // itself instead of failing
+            executor = new ThreadPoolExecutor(options.getThreads(), options.getThreads(), 0,
+                    MILLISECONDS, new ArrayBlockingQueue<>(options.getQueueSize()), runnable -> {
+                        Thread thread = new Thread(runnable,
+                                "curation-diff-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+            log.info("Parallel curation diff enabled with {} threads", options.getThreads());
+        }
+        else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @return the executor or {@code null} if parallel processing is disabled.
+     */
+    public ExecutorService getExecutor()
+    {
+        return executor;
+    }
+
+    @Override
+    public void destroy() throws Exception
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.ui.curation.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Component
+@ConfigurationProperties("curation")
+public class CurationProperties
+{
+    private final ParallelDiffOptions parallelDiff = new ParallelDiffOptions();
+
+    public ParallelDiffOptions getParallelDiff()
+    {
+        return parallelDiff;
+    }
+
+    /**
+     * Options for loading the annotator CASes and calculating the differences between them in
+     * parallel when building the curation view.
+     */
+    public static class ParallelDiffOptions
+    {
+        private boolean enabled = false;
+        private int threads = 4;
+        private int queueSize = 64;
+
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        public void setEnabled(boolean aEnabled)
+        {
+            enabled = aEnabled;
+        }
+
+        /**
+         * @return the number of threads shared by all users building a curation view.
+         */
+        public int getThreads()
+        {
+            return threads;
+        }
+
+        public void setThreads(int aThreads)
+        {
+            threads = aThreads;
+        }
+
+        /**
+         * @return the number of tasks which may be waiting for a thread. If the queue is full,
+         *         further tasks are executed by the requesting thread.
+         */
+        public int getQueueSize()
+        {
+            return queueSize;
+        }
+
+        public void setQueueSize(int aQueueSize)
+        {
+            queueSize = aQueueSize;
+        }
+    }
+}
@@ -106,8 +106,10 @@ import de.tudarmstadt.ukp.clarin.webanno.ui.annotation.detail.AnnotationDetailEd
 import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.SuggestionViewPanel;
 import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.AnnotationSelection;
 import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.CurationContainer;
+import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.CurationDiffCache;
 import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.SourceListView;
 import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.SuggestionBuilder;
+import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.SuggestionBuilderExecutor;
 import de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model.UserAnnotationSegment;
 
 /**
@@ -133,6 +135,8 @@ public class CurationPage
     private @SpringBean ConstraintsService constraintsService;
     private @SpringBean AnnotationSchemaService annotationService;
     private @SpringBean UserDao userRepository;
+    private @SpringBean SuggestionBuilderExecutor suggestionBuilderExecutor;
+    private @SpringBean CurationDiffCache curationDiffCache;
 
     private long currentprojectId;
 
@@ -578,6 +582,8 @@ public class CurationPage
             SuggestionBuilder builder = new SuggestionBuilder(casStorageService, documentService,
                     correctionDocumentService, curationDocumentService, annotationService,
                     userRepository);
+            builder.setExecutor(suggestionBuilderExecutor.getExecutor());
+            builder.setDiffCache(curationDiffCache);
             curationContainer = builder.buildCurationContainer(state);
             curationContainer.setState(state);
             editor.reset(aTarget);
@@ -630,6 +636,7 @@ public class CurationPage
         SuggestionBuilder cb = new SuggestionBuilder(casStorageService, documentService,
                 correctionDocumentService, curationDocumentService, annotationService,
                 userRepository);
+        cb.setExecutor(suggestionBuilderExecutor.getExecutor());
         Map<String, CAS> casses = cb.listCassesforCuration(finishedAnnotationDocuments,
                 state.getMode());
         CAS mergeCas = cb.getMergeCas(state, state.getDocument(), casses, randomAnnotationDocument,
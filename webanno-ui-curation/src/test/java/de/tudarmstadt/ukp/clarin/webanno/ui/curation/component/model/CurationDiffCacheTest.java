@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model;
+
+import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.CURATION_USER;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.api.event.AfterCasWrittenEvent;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
+import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationLayer;
+import de.tudarmstadt.ukp.clarin.webanno.model.Project;
+import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
+
+public class CurationDiffCacheTest
+{
+    private CurationDiffCache sut;
+    private Project project;
+    private SourceDocument document;
+    private Map<String, Long> casTimestamps;
+    private List<AnnotationLayer> layers;
+
+    @Before
+    public void setup()
+    {
+        sut = new CurationDiffCache();
+
+        project = new Project();
+        project.setId(1l);
+
+        document = new SourceDocument("doc", project, "text");
+        document.setId(1l);
+
+        casTimestamps = new HashMap<>();
+        casTimestamps.put("user1", 1l);
+        casTimestamps.put("user2", 2l);
+
+        AnnotationLayer layer = new AnnotationLayer();
+        layer.setId(1l);
+        layers = asList(layer);
+
+        sut.getSegmentStates(document, casTimestamps, layers).put(Pair.of(0, 10), true);
+    }
+
+    @Test
+    public void thatCuratorWriteKeepsEntry()
+    {
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this,
+                new AnnotationDocument("doc", project, CURATION_USER, document), null));
+
+        Map<Pair<Integer, Integer>, Boolean> states = sut.getSegmentStates(document,
+                casTimestamps, layers);
+
+        assertEquals(1, states.size());
+        assertTrue(states.get(Pair.of(0, 10)));
+    }
+
+    @Test
+    public void thatAnnotatorWriteInvalidatesEntry()
+    {
+        sut.onAfterCasWritten(new AfterCasWrittenEvent(this,
+                new AnnotationDocument("doc", project, "user1", document), null));
+
+        // Even if the timestamps were not updated, the states are calculated anew
+        assertTrue(sut.getSegmentStates(document, casTimestamps, layers).isEmpty());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Technische Universität Darmstadt under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The Technische Universität Darmstadt 
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ *  
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.tudarmstadt.ukp.clarin.webanno.ui.curation.component.model;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.uima.cas.CAS;
+import org.apache.uima.fit.factory.JCasFactory;
+import org.apache.uima.jcas.JCas;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.api.DiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.curation.casdiff.span.SpanDiffAdapter;
+import de.tudarmstadt.ukp.clarin.webanno.ui.curation.config.CurationProperties;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Lemma;
+import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Stem;
+
+public class SuggestionBuilderTest
+{
+    private static final int SEGMENT_COUNT = 30;
+    private static final int SEGMENT_LENGTH = 10;
+
+    private SuggestionBuilder sut;
+    private SuggestionBuilderExecutor executor;
+    private List<DiffAdapter> adapters;
+    private Map<String, CAS> casses;
+    private Map<Integer, Integer> segments;
+    private Set<Integer> expectedSegments;
+
+    @Before
+    public void setup() throws Exception
+    {
+        // Finding the disagreeing segments does not access any of the services
+        sut = new SuggestionBuilder(null, null, null, null, null, null);
+
+        adapters = asList(new SpanDiffAdapter(Lemma.class.getName(), "value"),
+                new SpanDiffAdapter(Stem.class.getName(), "value"));
+
+        JCas user1 = JCasFactory.createJCas();
+        user1.setDocumentText("word word ".repeat(SEGMENT_COUNT));
+        JCas user2 = JCasFactory.createJCas();
+        user2.setDocumentText(user1.getDocumentText());
+
+        segments = new LinkedHashMap<>();
+        expectedSegments = new HashSet<>();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            int begin = i * SEGMENT_LENGTH;
+            segments.put(begin, begin + SEGMENT_LENGTH - 1);
+
+            addLemma(user1, begin, "lemma");
+            addStem(user1, begin, "stem");
+
+            // The annotators disagree on the lemma in some segments, on the stem in others and
+            // one of them does not annotate the lemma in yet others
+            if (i % 7 != 0) {
+                addLemma(user2, begin, i % 3 == 0 ? "other" : "lemma");
+            }
+            addStem(user2, begin, i % 5 == 0 ? "other" : "stem");
+
+            if (i % 3 == 0 || i % 5 == 0 || i % 7 == 0) {
+                expectedSegments.add(begin);
+            }
+        }
+
+        casses = new LinkedHashMap<>();
+        casses.put("user1", user1.getCas());
+        casses.put("user2", user2.getCas());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (executor != null) {
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void thatSequentialRunFindsDisagreeingSegments() throws Exception
+    {
+        sut.setExecutor(null);
+
+        assertEquals(expectedSegments,
+                sut.findDisagreeingSegments(adapters, casses, segments, null));
+    }
+
+    @Test
+    public void thatParallelRunEqualsSequentialRun() throws Exception
+    {
+        sut.setExecutor(null);
+        Set<Integer> sequential = sut.findDisagreeingSegments(adapters, casses, segments, null);
+
+        executor = new SuggestionBuilderExecutor(makeProperties(2, 64));
+        sut.setExecutor(executor.getExecutor());
+        Set<Integer> parallel = sut.findDisagreeingSegments(adapters, casses, segments, null);
+
+        assertEquals(sequential, parallel);
+        assertEquals(expectedSegments, parallel);
+    }
+
+    @Test(timeout = 30_000)
+    public void thatCallerRunsTasksWhenQueueIsFull() throws Exception
+    {
+        executor = new SuggestionBuilderExecutor(makeProperties(1, 1));
+        ExecutorService executorService = executor.getExecutor();
+
+        // Occupy the only thread and fill the queue, so every task of the builder is rejected
+        // by the executor and has to run on the calling thread
+        CountDownLatch released = new CountDownLatch(1);
+        executorService.submit(() -> {
+            released.await();
+            return null;
+        });
+        executorService.submit(() -> {
+        });
+
+        sut.setExecutor(executorService);
+        try {
+            assertEquals(expectedSegments,
+                    sut.findDisagreeingSegments(adapters, casses, segments, null));
+        }
+        finally {
+            released.countDown();
+        }
+    }
+
+    @Test
+    public void thatCachedSegmentStatesAreUsedAndFilled() throws Exception
+    {
+        executor = new SuggestionBuilderExecutor(makeProperties(2, 64));
+        sut.setExecutor(executor.getExecutor());
+
+        Map<Pair<Integer, Integer>, Boolean> states = new HashMap<>();
+        // A cached state takes precedence over the annotations
+        states.put(Pair.of(0, SEGMENT_LENGTH - 1), false);
+
+        Set<Integer> disagreeing = sut.findDisagreeingSegments(adapters, casses, segments,
+                states);
+
+        Set<Integer> expected = new HashSet<>(expectedSegments);
+        expected.remove(0);
+        assertEquals(expected, disagreeing);
+        assertEquals(SEGMENT_COUNT, states.size());
+    }
+
+    private static CurationProperties makeProperties(int aThreads, int aQueueSize)
+    {
+        CurationProperties properties = new CurationProperties();
+        properties.getParallelDiff().setEnabled(true);
+        properties.getParallelDiff().setThreads(aThreads);
+        properties.getParallelDiff().setQueueSize(aQueueSize);
+        return properties;
+    }
+
+    private static void addLemma(JCas aJCas, int aSegmentBegin, String aValue)
+    {
+        Lemma lemma = new Lemma(aJCas, aSegmentBegin, aSegmentBegin + 4);
+        lemma.setValue(aValue);
+        lemma.addToIndexes();
+    }
+
+    private static void addStem(JCas aJCas, int aSegmentBegin, String aValue)
+    {
+        Stem stem = new Stem(aJCas, aSegmentBegin + 5, aSegmentBegin + 9);
+        stem.setValue(aValue);
+        stem.addToIndexes();
+    }
+}
@@ -17,17 +17,19 @@
  */
 package de.tudarmstadt.ukp.clarin.webanno.ui.monitoring.page;
 
-import static de.tudarmstadt.ukp.clarin.webanno.api.CasUpgradeMode.AUTO_CAS_UPGRADE;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.COMPLETED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.NOT_STARTED;
+import static de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskState.RUNNING;
 import static de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst.PAGE_PARAM_PROJECT_ID;
-import static de.tudarmstadt.ukp.clarin.webanno.api.casstorage.CasAccessMode.SHARED_READ_ONLY_ACCESS;
-import static de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocumentState.FINISHED;
 import static de.tudarmstadt.ukp.clarin.webanno.model.PermissionLevel.ANNOTATOR;
 import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.enabledWhen;
+import static de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaBehavior.visibleWhen;
+import static java.util.Arrays.asList;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -36,11 +38,7 @@ import java.util.stream.Collectors;
 
 import javax.persistence.NoResultException;
 
-import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.uima.cas.CAS;
-import org.apache.uima.cas.FeatureStructure;
-import org.apache.uima.fit.util.FSUtil;
 import org.apache.wicket.Component;
 import org.apache.wicket.ajax.AjaxRequestTarget;
 import org.apache.wicket.feedback.IFeedback;
@@ -62,8 +60,14 @@ import org.apache.wicket.util.string.StringValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wicketstuff.annotation.mount.MountPath;
+import org.wicketstuff.progressbar.ProgressBar;
+import org.wicketstuff.progressbar.Progression;
+import org.wicketstuff.progressbar.ProgressionModel;
 
 import de.agilecoders.wicket.extensions.markup.html.bootstrap.form.select.BootstrapSelect;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementService;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskHandle;
+import de.tudarmstadt.ukp.clarin.webanno.agreement.AgreementTaskMonitor;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasure;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasureSupport;
 import de.tudarmstadt.ukp.clarin.webanno.agreement.measures.AgreementMeasureSupportRegistry;
@@ -72,16 +76,16 @@ import de.tudarmstadt.ukp.clarin.webanno.api.AnnotationSchemaService;
 import de.tudarmstadt.ukp.clarin.webanno.api.DocumentService;
 import de.tudarmstadt.ukp.clarin.webanno.api.ProjectService;
 import de.tudarmstadt.ukp.clarin.webanno.api.WebAnnoConst;
-import de.tudarmstadt.ukp.clarin.webanno.api.annotation.util.WebAnnoCasUtil;
-import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationDocument;
 import de.tudarmstadt.ukp.clarin.webanno.model.AnnotationFeature;
 import de.tudarmstadt.ukp.clarin.webanno.model.Project;
 import de.tudarmstadt.ukp.clarin.webanno.model.SourceDocument;
 import de.tudarmstadt.ukp.clarin.webanno.security.UserDao;
 import de.tudarmstadt.ukp.clarin.webanno.security.model.User;
 import de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaAjaxButton;
+import de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaAjaxLink;
 import de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaAjaxFormComponentUpdatingBehavior;
 import de.tudarmstadt.ukp.clarin.webanno.support.lambda.LambdaChoiceRenderer;
+import de.tudarmstadt.ukp.clarin.webanno.support.logging.LogMessage;
 import de.tudarmstadt.ukp.clarin.webanno.support.wicket.OverviewListChoice;
 import de.tudarmstadt.ukp.clarin.webanno.ui.core.page.ApplicationPageBase;
 import de.tudarmstadt.ukp.dkpro.core.api.segmentation.type.Token;
@@ -103,11 +107,15 @@ public class AgreementPage
     private @SpringBean AnnotationSchemaService annotationService;
     private @SpringBean UserDao userRepository;
     private @SpringBean AgreementMeasureSupportRegistry agreementRegistry;
+    private @SpringBean AgreementService agreementService;
 
     private ProjectSelectionForm projectSelectionForm;
     private AgreementForm agreementForm;
     private WebMarkupContainer resultsContainer;
 
+    private AgreementTaskHandle agreementTask;
+    private String agreementTaskMeasureId;
+
     public AgreementPage()
     {
         super();
@@ -170,6 +178,11 @@ public class AgreementPage
 
         private final WebMarkupContainer traitsContainer;
 
+        private final ProgressBar calculationProgress;
+
+        private final LambdaAjaxLink cancelLink;
+
+
         public AgreementForm(String id, IModel<AgreementFormModel> aModel)
         {
             super(id, CompoundPropertyModel.of(aModel));
@@ -225,7 +238,57 @@ public class AgreementPage
             measureDropDown.add(new LambdaAjaxFormComponentUpdatingBehavior("change",
                     _target -> _target.add(runCalculationsButton, traitsContainer)));
 
-            runCalculationsButton.add(enabledWhen(() -> measureDropDown.getModelObject() != null));
+            runCalculationsButton.add(enabledWhen(
+                    () -> measureDropDown.getModelObject() != null && !isCalculationRunning()));
+
+            calculationProgress = new ProgressBar("progress", new ProgressionModel()
+            {
+                private static final long serialVersionUID = -4236417519536283185L;
+
+                @Override
+                protected Progression getProgression()
+                {
+                    AgreementTaskMonitor monitor = getTaskMonitor();
+                    if (monitor != null) {
+                        return new Progression(monitor.getProgress());
+                    }
+                    else {
+                        return new Progression(0, "Calculation not started yet...");
+                    }
+                }
+            })
+            {
+                private static final long serialVersionUID = 4520815718658547946L;
+
+                @Override
+                protected void onFinished(AjaxRequestTarget aTarget)
+                {
+                    actionCalculationFinished(aTarget);
+                }
+            };
+            calculationProgress.add(visibleWhen(() -> getTaskMonitor() != null));
+            add(calculationProgress);
+
+            cancelLink = new LambdaAjaxLink("cancel", this::actionCancel);
+            cancelLink.add(visibleWhen(this::isCalculationRunning));
+            add(cancelLink);
+        }
+
+        private AgreementTaskMonitor getTaskMonitor()
+        {
+            return agreementTask != null ? agreementService.getTaskMonitor(agreementTask) : null;
+        }
+
+        private File getReport()
+        {
+            AgreementTaskMonitor monitor = getTaskMonitor();
+            return monitor != null ? monitor.getReport() : null;
+        }
+
+        private boolean isCalculationRunning()
+        {
+            AgreementTaskMonitor monitor = getTaskMonitor();
+            return monitor != null && asList(NOT_STARTED, RUNNING).contains(monitor.getState());
         }
 
         private void actionSelectFeature(AjaxRequestTarget aTarget)
@@ -262,19 +325,76 @@ public class AgreementPage
                     (DefaultAgreementTraits) traitsContainer.get(MID_TRAITS)
                             .getDefaultModelObject());
 
-            Map<String, List<CAS>> casMap = getCasMap();
+            Project project = feature.getProject();
 
-            if (casMap.values().stream().allMatch(list -> list == null || list.isEmpty())) {
+            if (projectService.listProjectUsersWithPermissions(project, ANNOTATOR).isEmpty()
+                    || documentService.listSourceDocuments(project).isEmpty()) {
                 error("No documents with annotations were found.");
                 aTarget.addChildren(getPage(), IFeedback.class);
+                return;
             }
-            else {
-                Serializable result = measure.getAgreement(casMap);
-                resultsContainer.addOrReplace(ams.createResultsPanel(MID_RESULTS, Model.of(result),
-                        AgreementPage.this::getCasMap));
-                aTarget.add(resultsContainer);
+
+            // The calculation runs in the background - the progress bar polls until it is done.
+            // The agreement service only re-loads the annotations of documents which have changed
+            // since the last calculation.
+            agreementTask = agreementService.startAgreementTask(project, measure,
+                    userRepository.getCurrentUsername());
+            agreementTaskMeasureId = ams.getId();
+
+            resultsContainer.addOrReplace(new EmptyPanel(MID_RESULTS));
+            aTarget.add(resultsContainer, AgreementForm.this);
+            calculationProgress.start(aTarget);
+        }
+
+        private void actionCancel(AjaxRequestTarget aTarget)
+        {
+            agreementService.cancelTask(agreementTask);
+            aTarget.add(AgreementForm.this);
+        }
+
+        private void actionCalculationFinished(AjaxRequestTarget aTarget)
+        {
+            aTarget.addChildren(getPage(), IFeedback.class);
+            aTarget.add(AgreementForm.this);
+
+            AgreementTaskMonitor monitor = getTaskMonitor();
+            if (monitor == null) {
+                error("The agreement calculation is no longer available");
+                return;
+            }
+
+            while (!monitor.getMessages().isEmpty()) {
+                LogMessage msg = monitor.getMessages().poll();
+                switch (msg.getLevel()) {
+                case INFO:
+                    info(msg.getMessage());
+                    break;
+                case WARN:
+                    warn(msg.getMessage());
+                    break;
+                default:
+                    error(msg.getMessage());
+                    break;
+                }
             }
 
+            switch (monitor.getState()) {
+            case COMPLETED:
+                AgreementMeasureSupport ams = agreementRegistry
+                        .getAgreementMeasureSupport(agreementTaskMeasureId);
+                resultsContainer.addOrReplace(ams.createResultsPanel(MID_RESULTS,
+                        Model.of(monitor.getResult()), this::getReport));
+                aTarget.add(resultsContainer);
+                break;
+            case FAILED:
+                error("Agreement calculation failed");
+                break;
+            case CANCELLED:
+                info("Agreement calculation cancelled");
+                break;
+            default:
+                error("Invalid agreement calculation state: " + monitor.getState());
+            }
         }
 
         List<Pair<String, String>> listMeasures()
@@ -382,94 +502,4 @@ public class AgreementPage
             return Optional.empty();
         }
     }
-
-    // The CASes cannot be serialized, so we make them transient here. However, it does not matter
-    // as we do not access the field directly but via getCases() which will re-load them if
-    // necessary, e.g. if the transient field is empty after a session is restored from a
-    // persisted state.
-    private transient Map<String, List<CAS>> cachedCASes;
-    private transient Project cachedProject;
-    private transient boolean cachedLimitToFinishedDocuments;
-
-    public Map<String, List<CAS>> getCasMap()
-    {
-        if (agreementForm.featureList.getModelObject() == null) {
-            return Collections.emptyMap();
-        }
-
-        Project project = agreementForm.featureList.getModelObject().getProject();
-
-        DefaultAgreementTraits traits = (DefaultAgreementTraits) agreementForm.traitsContainer
-                .get(MID_TRAITS).getDefaultModelObject();
-
-        // Avoid reloading the CASes when switching features within the same project
-        if (cachedCASes != null && project.equals(cachedProject)
-                && cachedLimitToFinishedDocuments == traits.isLimitToFinishedDocuments()) {
-            return cachedCASes;
-        }
-
-        List<User> users = projectService.listProjectUsersWithPermissions(project, ANNOTATOR);
-
-        List<SourceDocument> sourceDocuments = documentService.listSourceDocuments(project);
-
-        cachedCASes = new LinkedHashMap<>();
-        for (User user : users) {
-            List<CAS> cases = new ArrayList<>();
-
-            // Bulk-fetch all source documents for which there is already an annotation document for
-            // the user which is faster then checking for their existence individually
-            List<SourceDocument> docsForUser = documentService
-                    .listAnnotationDocuments(project, user).stream()
-                    .map(AnnotationDocument::getDocument).distinct().collect(Collectors.toList());
-
-            nextDocument: for (SourceDocument document : sourceDocuments) {
-                CAS cas = null;
-
-                try {
-                    if (docsForUser.contains(document)) {
-                        AnnotationDocument annotationDocument = documentService
-                                .getAnnotationDocument(document, user);
-
-                        if (traits.isLimitToFinishedDocuments()
-                                && !annotationDocument.getState().equals(FINISHED)) {
-                            // Add a skip marker (null) for the current CAS to the CAS list - this
-                            // is necessary because we expect the CAS lists for all users to have
-                            // the same size
-                            cases.add(null);
-                            continue nextDocument;
-                        }
-                    }
-
-                    // Reads the user's annotation document or the initial source document -
-                    // depending on what is available
-                    cas = documentService.readAnnotationCas(document, user.getUsername(),
-                            AUTO_CAS_UPGRADE, SHARED_READ_ONLY_ACCESS);
-                }
-                catch (Exception e) {
-                    error("Unable to load data: " + ExceptionUtils.getRootCauseMessage(e));
-                    LOG.error("Unable to load data", e);
-                }
-
-                if (cas != null) {
-                    // Set the CAS name in the DocumentMetaData so that we can pick it
-                    // up in the Diff position for the purpose of debugging / transparency.
-                    FeatureStructure dmd = WebAnnoCasUtil.getDocumentMetadata(cas);
-                    FSUtil.setFeature(dmd, "documentId", document.getName());
-                    FSUtil.setFeature(dmd, "collectionId", document.getProject().getName());
-
-                }
-
-                // The next line can enter null values into the list if a user didn't work on this
-                // source document yet.
-                cases.add(cas);
-            }
-
-            cachedCASes.put(user.getUsername(), cases);
-        }
-
-        cachedProject = project;
-        cachedLimitToFinishedDocuments = traits.isLimitToFinishedDocuments();
-
-        return cachedCASes;
-    }
 }